@@ -2,8 +2,10 @@ import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -32,14 +34,34 @@ public class GraphBuildingHandler extends DefaultHandler {
      * roads, but in practice we walk all over them with such impunity that we forget cars can
      * actually drive on them.
      */
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
+    static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
             ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
                     "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
                     "secondary_link", "tertiary_link"));
+    /**
+     * Ways of these types are also kept, for the walking and cycling profiles. Each profile
+     * decides which ways it may use; see Profile.Mode.
+     */
+    static final Set<String> PATH_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
+            ("service", "footway", "path", "pedestrian", "steps", "track", "cycleway"));
+    /** Way tags that profiles look at, besides highway and name. */
+    private static final Set<String> ACCESS_TAGS = new HashSet<>(Arrays.asList
+            ("maxspeed", "access", "foot", "bicycle", "oneway", "oneway:bicycle", "junction"));
     private String activeState = "";
     private final GraphDB g;
-    private GraphDB.Node lastNode;
+    private long lastNodeID;
     private GraphDB.Edge lastEdge;
+    /** Whether the way being parsed is a road of a type that is not routed, e.g. one under
+     * construction, whose nodes the graph keeps for change files; see GraphDB.addSpareNodes. */
+    private boolean unroutedRoad;
+    /* The relation being parsed, if it may be a turn restriction: its id, its from and to
+     * ways, its via node, or 0 if it has none or its via is a way, and its tags. */
+    private long relationID;
+    private final List<Long> restrictionFrom = new ArrayList<>();
+    private final List<Long> restrictionTo = new ArrayList<>();
+    private long restrictionVia;
+    private String relationType;
+    private String restriction;
 
     /**
      * Create a new GraphBuildingHandler.
@@ -76,15 +98,15 @@ public class GraphBuildingHandler extends DefaultHandler {
 
             /* TODO Use the above information to save a "node" to somewhere. */
             /* Hint: A graph-like structure would be nice. */
-            GraphDB.Node node = new GraphDB.Node(Long.parseLong(attributes.getValue("id")), Double.parseDouble(attributes.getValue("lat")),
+            lastNodeID = Long.parseLong(attributes.getValue("id"));
+            g.addNode(lastNodeID, Double.parseDouble(attributes.getValue("lat")),
                     Double.parseDouble(attributes.getValue("lon")));
-            g.addNode(node);
-            lastNode = node;
         } else if (qName.equals("way")) {
             /* We encountered a new <way...> tag. */
             activeState = "way";
             GraphDB.Edge edge = new GraphDB.Edge(Long.parseLong(attributes.getValue("id")));
             lastEdge = edge;
+            unroutedRoad = false;
             //lastNode = null;
             //System.out.println("Beginning a way...");
         } else if (activeState.equals("way") && qName.equals("nd")) {
@@ -102,15 +124,17 @@ public class GraphBuildingHandler extends DefaultHandler {
             /* While looking at a way, we found a <tag...> tag. */
             String k = attributes.getValue("k");
             String v = attributes.getValue("v");
-            if (k.equals("maxspeed")) {
+            if (ACCESS_TAGS.contains(k)) {
                 //System.out.println("Max Speed: " + v);
-                lastEdge.extrainfo.put("maxspeed", v);
+                lastEdge.extrainfo.put(k, v);
                 /* TODO set the max speed of the "current way" here. */
             } else if (k.equals("highway")) {
                 //System.out.println("Highway type: " + v);
-                if (ALLOWED_HIGHWAY_TYPES.contains(v)) {
+                if (ALLOWED_HIGHWAY_TYPES.contains(v) || PATH_HIGHWAY_TYPES.contains(v)) {
                     lastEdge.extrainfo.put("highway", v);
                     lastEdge.valid = true;
+                } else {
+                    unroutedRoad = true;
                 }
                 /* TODO Figure out whether this way and its connections are valid. */
                 /* Hint: Setting a "flag" is good enough! */
@@ -119,12 +143,39 @@ public class GraphBuildingHandler extends DefaultHandler {
                 lastEdge.extrainfo.put("name", v);
             //System.out.println("Tag with k=" + k + ", v=" + v + ".");
             }
+        } else if (qName.equals("relation")) {
+            /* We encountered a new <relation...> tag. Only turn restrictions are used. */
+            activeState = "relation";
+            relationID = Long.parseLong(attributes.getValue("id"));
+            restrictionFrom.clear();
+            restrictionTo.clear();
+            restrictionVia = 0;
+            relationType = null;
+            restriction = null;
+        } else if (activeState.equals("relation") && qName.equals("member")) {
+            String type = attributes.getValue("type");
+            String role = attributes.getValue("role");
+            long ref = Long.parseLong(attributes.getValue("ref"));
+            if (type.equals("way") && role.equals("from")) {
+                restrictionFrom.add(ref);
+            } else if (type.equals("way") && role.equals("to")) {
+                restrictionTo.add(ref);
+            } else if (role.equals("via")) {
+                /* Restrictions via ways are not supported; they are dropped below. */
+                restrictionVia = type.equals("node") && restrictionVia == 0 ? ref : -1;
+            }
+        } else if (activeState.equals("relation") && qName.equals("tag")) {
+            String k = attributes.getValue("k");
+            if (k.equals("type")) {
+                relationType = attributes.getValue("v");
+            } else if (k.equals("restriction") || k.equals("restriction:motorcar")) {
+                restriction = attributes.getValue("v");
+            }
         } else if (activeState.equals("node") && qName.equals("tag") && attributes.getValue("k")
                 .equals("name")) {
             /* While looking at a node, we found a <tag...> with k="name". */
             /* TODO Create a location. */
-                lastNode.extrainfo.put("name", attributes.getValue("v"));
-                g.addNodeName(lastNode);
+                g.addNodeName(lastNodeID, attributes.getValue("v"));
             /* Hint: Since we found this <tag...> INSIDE a node, we should probably remember which
             node this tag belongs to. Remember XML is parsed top-to-bottom, so probably it's the
             last node that you looked at (check the first if-case). */
@@ -155,12 +206,27 @@ public class GraphBuildingHandler extends DefaultHandler {
                 lastEdge.extrainfo.put("name", "");
             }
             if (lastEdge.valid && len >= 2) {
-                for (int i = 0; i < len - 1; i++) {
-                    g.adEdge(lastEdge.nodeList.get(i), lastEdge.nodeList.get(i + 1), lastEdge);
-                }
+                g.addWay(lastEdge);
+            } else if (unroutedRoad && len >= 2) {
+                g.addSpareNodes(lastEdge.nodeList);
             }
             lastEdge = null;
             activeState = "";
+        } else if (qName.equals("relation")) {
+            /* A turn restriction forbids turning from a way onto another at a node, e.g.
+             * no_left_turn, or forbids every turn but one, e.g. only_straight_on. */
+            if ("restriction".equals(relationType) && restriction != null
+                    && restrictionVia > 0) {
+                boolean only = restriction.startsWith("only_");
+                if (only || restriction.startsWith("no_")) {
+                    for (long from : restrictionFrom) {
+                        for (long to : restrictionTo) {
+                            g.addTurnRestriction(relationID, from, restrictionVia, to, only);
+                        }
+                    }
+                }
+            }
+            activeState = "";
         }
     }
 }
@@ -0,0 +1,70 @@
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ *  Parses OSM change files, which list the nodes, ways and relations to create, modify and
+ *  delete. See <a href="http://wiki.openstreetmap.org/wiki/OsmChange">the osmChange
+ *  format</a>.
+ *
+ *  Elements in the create and modify sections are complete, so they are handed to a
+ *  GraphBuildingHandler and added to the graph as if read from an OSM file. The ids of the
+ *  nodes, ways and relations in every section are collected, so that their old versions
+ *  can be left out; see GraphDB(GraphDB, String). Turn restrictions keep the id of their
+ *  relation, so a modified relation replaces the restrictions of the old one.
+ */
+public class GraphChangeHandler extends DefaultHandler {
+    private final GraphBuildingHandler builder;
+    private String section = "";
+    /** Ids of the nodes, ways and relations created, modified or deleted. */
+    final Set<Long> nodes = new HashSet<>();
+    final Set<Long> ways = new HashSet<>();
+    final Set<Long> relations = new HashSet<>();
+
+    /**
+     * Create a new GraphChangeHandler.
+     * @param g The graph to add the created and modified elements to, or null to only
+     *          collect the ids of the changed elements.
+     */
+    public GraphChangeHandler(GraphDB g) {
+        this.builder = g == null ? null : new GraphBuildingHandler(g);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes)
+            throws SAXException {
+        if (qName.equals("create") || qName.equals("modify") || qName.equals("delete")) {
+            section = qName;
+            return;
+        }
+        if (qName.equals("node")) {
+            nodes.add(Long.parseLong(attributes.getValue("id")));
+        } else if (qName.equals("way")) {
+            ways.add(Long.parseLong(attributes.getValue("id")));
+        } else if (qName.equals("relation")) {
+            relations.add(Long.parseLong(attributes.getValue("id")));
+        }
+        if (forwarding()) {
+            builder.startElement(uri, localName, qName, attributes);
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (qName.equals("create") || qName.equals("modify") || qName.equals("delete")) {
+            section = "";
+            return;
+        }
+        if (forwarding()) {
+            builder.endElement(uri, localName, qName);
+        }
+    }
+
+    /** Whether the current element is added to the graph. */
+    private boolean forwarding() {
+        return builder != null && (section.equals("create") || section.equals("modify"));
+    }
+}
@@ -1,12 +1,23 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.util.*;
+import java.util.function.ObjIntConsumer;
+import java.util.function.UnaryOperator;
 
 /**
  * Graph for storing all of the intersection (vertex) and road (edge) information.
@@ -17,79 +28,2625 @@ import java.util.*;
  *
  * @author Alan Yao, Josh Hug
  */
-public class GraphDB {
+public class GraphDB implements Cloneable {
+    private static final Logger LOG = LoggerFactory.getLogger(GraphDB.class);
+
     /** Your instance variables for storing the graph. You should consider
      * creating helper classes, e.g. Node, Edge, etc. */
+    private Trie trie = new Trie();
+
+    /* Storage used while parsing. OSM files list every node before the ways that use it, so
+     * all nodes are kept in these growable arrays until the ways are known. clean() then
+     * keeps only the nodes that are vertices and drops the rest. */
+    private long[] rawIDs = new long[1024];
+    private double[] rawLons = new double[1024];
+    private double[] rawLats = new double[1024];
+    private int numRaw;
+    /** Consecutive node pairs of valid ways, as ids, with the way each pair comes from. */
+    private long[] pairEnds = new long[2048];
+    private int[] pairWays = new int[1024];
+    private int numPairs;
+    /** Matching POI indexes for every cleaned name, filled while parsing. */
+    private Map<String, List<Integer>> pendingNames = new HashMap<>();
+    /**
+     * Turn restrictions as from way id, via node id, to way id, 1 for only_ or 0, and the
+     * id of the relation they come from, or 0 if unknown.
+     */
+    private long[] restrictions = new long[0];
+    private int numRestrictions;
+    /** Ids of the nodes of roads that are not routed, collected while parsing. */
+    private long[] spareRefs = new long[64];
+    private int numSpareRefs;
+    /**
+     * The nodes of roads that are not routed, e.g. highway=construction, and are not
+     * vertices, in id order. clean() keeps them so that a change file that opens such a road
+     * can still find its nodes; see GraphDB(GraphDB, String).
+     */
+    private long[] spareIDs = new long[0];
+    private double[] spareLons = new double[0];
+    private double[] spareLats = new double[0];
+    /** Segments of ways that clean() left out because one of their nodes was missing. */
+    private int droppedSegments;
+
+    /* The routable graph, built by clean(), holding the ways of every mode of travel.
+     * Vertices are numbered 0..n-1 in increasing id order. The half-edges leaving vertex i
+     * are adjStart[i]..adjEnd[i] - 1; half-edge e leads to vertex adjTarget[e] along way
+     * ways.get(adjWay[e]), against the order of the way's nodes if adjBackward[e], and may
+     * be used by the modes in the bitmask adjAccess[e]. Every half-edge has a twin in the
+     * other direction, even on one-way streets. The vertices(), adjacent() and closest()
+     * methods only see the car graph, and ignore directions.
+     *
+     * The arrays have room to spare, see withSlack(), which withChange() fills in rather
+     * than copying them; numVertices and numEdges count the slots in use. In a graph built
+     * by clean(), adjStart[i + 1] is adjEnd[i]. */
+    private long[] ids;
+    private double[] lons;
+    private double[] lats;
+    private int[] adjStart;
+    private int[] adjEnd;
+    private int[] adjTarget;
+    private int[] adjWay;
+    private boolean[] adjBackward;
+    private int numVertices;
+    private int numEdges;
+    /**
+     * Way segments the half-edges above leave out, as vertex index pairs and way indexes:
+     * those where another way joins the same two vertices and was kept in either direction.
+     * Together with the kept half-edges they give every segment of every way, which
+     * applying a change needs. Graphs loaded from snapshots have none.
+     */
+    private int[] hiddenPairs = new int[0];
+    private int[] hiddenWays = new int[0];
+    /** Whether one-way streets and turn restrictions are obeyed. */
+    private final boolean directed;
+    /** Great-circle length in miles of every half-edge, computed once the graph is final. */
+    private double[] adjLength;
+    /** Bitmask of the Profile.Modes allowed on every way, in either direction. */
+    private byte[] wayAccess;
+    /** Bitmask of the Profile.Modes allowed along every half-edge, in its direction. */
+    private byte[] adjAccess;
+    /*
+     * Turn restrictions, for cars. A search over the car graph labels vertices with states
+     * rather than vertex indexes: state v < turnBase is vertex v, and state turnBase + k is
+     * vertex turnVertex[k] entered along half-edge turnEdge[k], from which the half-edges
+     * turnForbidden[turnForbiddenStart[k]..turnForbiddenStart[k+1] - 1] may not be taken.
+     * adjState[e] is the state half-edge e leads to; it is adjTarget unless some turn is
+     * restricted. turnBase is the number of vertex slots, so that withChange() can add
+     * vertices without renumbering the turn states. The states of a vertex follow each
+     * other; in a graph built by clean() they are ordered by vertex, and otherwise
+     * turnBlocks lists the first state of every vertex with some, in vertex order.
+     */
+    private int[] adjState;
+    private int turnBase;
+    private int numTurns;
+    private int[] turnVertex;
+    private int[] turnEdge;
+    private int[] turnForbiddenStart;
+    private int[] turnForbidden;
+    private int[] turnBlocks;
+    /**
+     * The direction of every turn, as a Router.NavigationDirection. The turns from half-edge
+     * e onto the half-edges leaving its target start at turnDirectionStart[e], and the
+     * first numTurnDirections entries are in use.
+     */
+    private byte[] turnDirections;
+    private int[] turnDirectionStart;
+    private int numTurnDirections;
+    /**
+     * The name of every way as an index into wayNameTable, so that equal names have equal
+     * ids. Unnamed ways have the id of the empty string.
+     */
+    private int[] wayNameId;
+    private String[] wayNameTable;
+    /**
+     * Cost of every half-edge under each profile, indexed by Profile.ordinal(), or infinity
+     * where the profile's mode may not go.
+     */
+    private double[][] adjWeights;
+    /** Lowest cost per mile on any way under each profile, for A* heuristics. */
+    private double[] minCostPerMile;
+    private List<Edge> ways = new ArrayList<>();
+    /**
+     * The traffic the weights and access bits above include, and the graph without any,
+     * which is this graph unless it was returned by withTraffic().
+     */
+    private Traffic traffic = Traffic.NONE;
+    private GraphDB plain = this;
+
+    /* Named locations, kept in a compact table whether or not they are vertices. */
+    private long[] poiIDs = new long[64];
+    private double[] poiLons = new double[64];
+    private double[] poiLats = new double[64];
+    private String[] poiNames = new String[64];
+    private int numPOIs;
+    /** POI indexes of every cleaned name. */
+    private Map<String, int[]> names = new HashMap<>();
+
+    /** Graph files ending with this suffix are snapshots written by writeSnapshot. */
+    static final String SNAPSHOT_SUFFIX = ".snapshot";
+    /** Leading bytes of a snapshot file, "BEAR", followed by the format version. */
+    private static final int SNAPSHOT_MAGIC = 0x42454152;
+    private static final int SNAPSHOT_VERSION = 4;
+    private static final String NO_RELATION_IDS = "The graph's turn restrictions have no "
+            + "relation ids, so relations cannot be changed; reload it from XML.";
+
+    /** Spatial indexes over the matches of frequently occurring names, e.g. chain stores. */
+    private Map<String, KdTree> nameIndex = new HashMap<>();
+    /** Names with more matches than this get their own KdTree for proximity search. */
+    private static final int NAME_INDEX_THRESHOLD = 8;
+    /** Spatial index over all POIs. */
+    private KdTree namedNodeIndex;
+    /** Spatial index over the segments of named ways, with the half-edge of each segment. */
+    private SegmentIndex namedWayIndex;
+    private int[] namedWayEdges;
+    /** Vertices with a half-edge each mode may use, indexed by Mode.ordinal(). */
+    private int[][] modeVertices;
+    /** Spatial indexes over modeVertices, for closest(). */
+    private KdTree[] modeTrees;
+    /**
+     * Spatial indexes over the road segments each mode may use in some direction, indexed
+     * by Mode.ordinal(), for snap(). Segment i of a mode is half-edge modeSegmentEdges[i],
+     * which leads from the lower vertex index to the higher.
+     */
+    private SegmentIndex[] modeSegments;
+    private int[][] modeSegmentEdges;
+    /**
+     * The arrays and indexes this graph shares with the graph built by clean() that
+     * withChange() started from, and what changed since, or null for a graph built by
+     * clean(); see LayerBase and Layer.
+     */
+    private LayerBase layerBase;
+    private Layer layer;
+    /** The source of every half-edge past those of layerBase, see edgeSource(). */
+    private int[] tailSource;
+
+    /**
+     * Example constructor shows how to create and start an XML parser.
+     * You do not need to modify this constructor, but you're welcome to do so.
+     * @param dbPath Path to the XML file to be parsed, or to a snapshot file written by
+     *               writeSnapshot, which loads much faster.
+     */
+    public GraphDB(String dbPath) {
+        this(dbPath, true);
+    }
+
+    /**
+     * Loads a graph like {@link #GraphDB(String)}.
+     * @param directed Whether routes keep to the direction of one-way streets and obey turn
+     *                 restrictions. Without, every road can be driven both ways, as in the
+     *                 reference routes of the course tests.
+     */
+    public GraphDB(String dbPath, boolean directed) {
+        this.directed = directed;
+        if (dbPath.endsWith(SNAPSHOT_SUFFIX)) {
+            try {
+                readSnapshot(dbPath);
+                return;
+            } catch (IOException e) {
+                /* Fall back to an empty graph, as for an unreadable XML file. */
+                LOG.error("Loading the snapshot {} failed, the graph is empty.", dbPath, e);
+                ways.clear();
+                numPOIs = 0;
+                pendingNames.clear();
+                clean();
+                return;
+            }
+        }
+        try {
+            File inputFile = new File(dbPath);
+            FileInputStream inputStream = new FileInputStream(inputFile);
+            // GZIPInputStream stream = new GZIPInputStream(inputStream);
+
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            SAXParser saxParser = factory.newSAXParser();
+            GraphBuildingHandler gbh = new GraphBuildingHandler(this);
+            saxParser.parse(inputStream, gbh);
+        } catch (ParserConfigurationException | SAXException | IOException e) {
+            e.printStackTrace();
+        }
+        clean();
+    }
+
+    /**
+     * Loads a directed graph from an OSM XML file, handing the file to GraphBuildingHandler
+     * through a filter, so that only part of a map too large to load at once is built; see
+     * ShardedGraph.write(String, String, double, int).
+     * @param filter Returns the handler to parse the file with, given the graph's own.
+     * @throws IOException If the file cannot be read.
+     * @throws SAXException If the file is not valid XML.
+     */
+    GraphDB(String osmPath, UnaryOperator<DefaultHandler> filter)
+            throws IOException, SAXException {
+        this.directed = true;
+        newParser().parse(new File(osmPath), filter.apply(new GraphBuildingHandler(this)));
+        clean();
+    }
+
+    /**
+     * Builds a new graph from a base graph with an OSM change file applied: the nodes, ways
+     * and turn restriction relations the file creates or modifies replace or add to those
+     * of the base graph, and the ones it deletes are left out. The base graph is not
+     * modified, so requests can go on using it until the new graph is swapped in.
+     *
+     * Only the change file is parsed; the rest is copied from the base graph's packed
+     * arrays, which is much faster than parsing the whole map again. New ways may use the
+     * base graph's vertices, named nodes and the nodes of its roads that are not routed,
+     * e.g. a road under construction that the change opens, and any node in the change
+     * file. Segments with other nodes are left out and counted; see droppedSegments().
+     * @param base The graph to change.
+     * @param changePath Path to the osmChange XML file.
+     * @throws IOException If the change file cannot be read.
+     * @throws SAXException If the change file is not valid XML.
+     * @throws IllegalArgumentException If the change modifies or deletes relations, but
+     * the base graph was loaded from a snapshot without relation ids.
+     */
+    GraphDB(GraphDB base, String changePath) throws IOException, SAXException {
+        this.directed = base.directed;
+        SAXParser saxParser = newParser();
+        /* Find out what the change replaces first, so that the base graph's ways come
+         * before the changed ones, as they would in a full extract. */
+        GraphChangeHandler changed = new GraphChangeHandler(null);
+        saxParser.parse(new File(changePath), changed);
+        copyFrom(base, changed.nodes, changed.ways, changed.relations);
+        saxParser.parse(new File(changePath), new GraphChangeHandler(this));
+        clean();
+    }
+
+    /**
+     * Returns this graph with an OSM change file applied, like GraphDB(GraphDB, String), in
+     * time that grows with the size of the change rather than of the graph. The result is a
+     * delta over the graph built by clean() that this one was changed from: it shares that
+     * graph's arrays, writes the vertices and half-edges the change touches into the room
+     * they have to spare, and keeps spatial indexes over just those; see Layer. Deltas pile
+     * up over successive changes, so compact() should be run once needsCompaction() says so.
+     * Neither this graph nor the ones it was changed from are modified, so requests can go
+     * on using them.
+     *
+     * Routes cost the same as in GraphDB(GraphDB, String), but vertices and half-edges are
+     * numbered differently. Falls back to that constructor once the arrays have no room left
+     * for new vertices.
+     * @param changePath Path to the osmChange XML file.
+     * @throws IOException If the change file cannot be read.
+     * @throws SAXException If the change file is not valid XML.
+     * @throws IllegalArgumentException If the change modifies or deletes relations, but
+     * the graph was loaded from a snapshot without relation ids.
+     */
+    GraphDB withChange(String changePath) throws IOException, SAXException {
+        GraphDB change = new GraphDB(directed);
+        GraphChangeHandler changed = new GraphChangeHandler(change);
+        newParser().parse(new File(changePath), changed);
+        GraphDB base = plain;
+        for (int r = 0; r < base.numRestrictions && !changed.relations.isEmpty(); r++) {
+            if (base.restrictions[5 * r + 4] == 0) {
+                throw new IllegalArgumentException(NO_RELATION_IDS);
+            }
+        }
+        LayerBase lb = base.layerBase();
+        synchronized (lb) {
+            GraphDB res = new Delta(base, lb, change, changed).build();
+            if (res != null) {
+                return res;
+            }
+        }
+        return new GraphDB(base, changePath);
+    }
+
+    /**
+     * Returns this graph packed as clean() builds it, without traffic and without what
+     * withChange() left behind, or this graph if clean() built it. Takes time linear in the
+     * size of the graph, and this graph is not modified.
+     */
+    GraphDB compact() {
+        if (layer == null) {
+            return plain;
+        }
+        GraphDB res = new GraphDB(directed);
+        Set<Long> none = Collections.emptySet();
+        res.copyFrom(plain, none, none, none);
+        res.clean();
+        res.droppedSegments = droppedSegments;
+        return res;
+    }
+
+    /**
+     * Returns whether withChange() has piled up enough deltas on this graph for compact() to
+     * be worth its time: once the half-edges added since the graph built by clean() use up
+     * the room its arrays had to spare, or half the room for new vertices is used.
+     */
+    boolean needsCompaction() {
+        if (layer == null) {
+            return false;
+        }
+        LayerBase lb = layerBase;
+        return numEdges - lb.numEdges > lb.numEdges / 16 + 16
+                || 2 * (numVertices - lb.numVertices) > turnBase - lb.numVertices;
+    }
+
+    /** Returns the LayerBase of this graph, building it if clean() built the graph. */
+    private synchronized LayerBase layerBase() {
+        if (layerBase == null) {
+            layerBase = new LayerBase(this);
+        }
+        return layerBase;
+    }
+
+    /**
+     * What withChange() shares between a graph built by clean() and the graphs changed from
+     * it: the graph's own arrays, grown as needed, and indexes over the graph that applying
+     * a change needs. Changed graphs write their vertices and half-edges past those of every
+     * graph still in use, see free(), so none of them sees another's.
+     */
+    private static final class LayerBase {
+        /** The vertices, half-edges, ways and turn directions of the graph built by clean(). */
+        final int numVertices;
+        final int numEdges;
+        final int numWays;
+        final int numTurnDirections;
+        final int[] adjStart;
+        /** Its hidden segments, and their positions in hiddenPairs grouped by vertex. */
+        final int[] hiddenPairs;
+        final int[] hiddenWays;
+        final int[][] hiddenAt;
+        /** The ends of the segments of its ways, as vertex indexes grouped by way. */
+        final int[][] wayNodes;
+        /** Its way indexes by id. */
+        final Map<Long, Integer> wayIndex = new HashMap<>();
+        /** Every way name so far, by name id; see wayNameId. */
+        final Map<String, Integer> nameIds = new HashMap<>();
+        final List<String> names;
+        /** The shared arrays, see GraphDB. */
+        long[] ids;
+        double[] lons;
+        double[] lats;
+        int[] adjTarget;
+        int[] adjWay;
+        boolean[] adjBackward;
+        double[] adjLength;
+        byte[] adjAccess;
+        double[][] adjWeights;
+        int[] adjState;
+        int[] turnDirectionStart;
+        byte[] turnDirections;
+        int[] tailSource;
+        /** The graphs changed from the graph built by clean(), with the slots they use. */
+        private final List<Claim> claims = new ArrayList<>();
+
+        private static final class Claim {
+            final WeakReference<GraphDB> graph;
+            final int vertices;
+            final int edges;
+            final int turnDirections;
+
+            Claim(GraphDB g) {
+                graph = new WeakReference<>(g);
+                vertices = g.numVertices;
+                edges = g.numEdges;
+                turnDirections = g.numTurnDirections;
+            }
+        }
+
+        LayerBase(GraphDB g) {
+            numVertices = g.numVertices;
+            numEdges = g.numEdges;
+            numWays = g.ways.size();
+            numTurnDirections = g.numTurnDirections;
+            adjStart = g.adjStart;
+            hiddenPairs = g.hiddenPairs;
+            hiddenWays = g.hiddenWays;
+            hiddenAt = group(hiddenPairs, numVertices);
+            int[] way = new int[numEdges + hiddenPairs.length];
+            int[] node = new int[way.length];
+            for (int v = 0; v < numVertices; v++) {
+                for (int e = g.adjStart[v]; e < g.adjEnd[v]; e++) {
+                    way[e] = g.adjWay[e];
+                    node[e] = v;
+                }
+            }
+            for (int k = 0; k < hiddenPairs.length; k++) {
+                way[numEdges + k] = hiddenWays[k / 2];
+                node[numEdges + k] = hiddenPairs[k];
+            }
+            wayNodes = group(way, numWays);
+            for (int k = 0; k < wayNodes[1].length; k++) {
+                wayNodes[1][k] = node[wayNodes[1][k]];
+            }
+            for (int w = 0; w < numWays; w++) {
+                wayIndex.put(g.ways.get(w).id, w);
+            }
+            names = new ArrayList<>(Arrays.asList(g.wayNameTable));
+            for (int id = 0; id < names.size(); id++) {
+                nameIds.put(names.get(id), id);
+            }
+            ids = g.ids;
+            lons = g.lons;
+            lats = g.lats;
+            adjTarget = g.adjTarget;
+            adjWay = g.adjWay;
+            adjBackward = g.adjBackward;
+            adjLength = g.adjLength;
+            adjAccess = g.adjAccess;
+            adjWeights = g.adjWeights;
+            adjState = g.adjState;
+            turnDirectionStart = g.turnDirectionStart;
+            turnDirections = g.turnDirections;
+            tailSource = new int[adjTarget.length - numEdges];
+        }
+
+        /**
+         * Returns the first vertex, half-edge and turn direction slots that no graph still
+         * in use reads.
+         */
+        int[] free() {
+            int[] res = {numVertices, numEdges, numTurnDirections};
+            for (Iterator<Claim> it = claims.iterator(); it.hasNext(); ) {
+                Claim claim = it.next();
+                if (claim.graph.get() == null) {
+                    it.remove();
+                } else {
+                    res[0] = Math.max(res[0], claim.vertices);
+                    res[1] = Math.max(res[1], claim.edges);
+                    res[2] = Math.max(res[2], claim.turnDirections);
+                }
+            }
+            return res;
+        }
+
+        /** Records the slots a changed graph uses, so that later ones leave them alone. */
+        void claim(GraphDB g) {
+            claims.add(new Claim(g));
+        }
+
+        /** Grows the shared arrays to hold m half-edges and t turn directions. */
+        void reserve(int m, int t) {
+            if (m > adjTarget.length) {
+                int capacity = withSlack(m);
+                boolean aliased = adjState == adjTarget;
+                adjTarget = Arrays.copyOf(adjTarget, capacity);
+                adjWay = Arrays.copyOf(adjWay, capacity);
+                adjBackward = Arrays.copyOf(adjBackward, capacity);
+                adjLength = Arrays.copyOf(adjLength, capacity);
+                adjAccess = Arrays.copyOf(adjAccess, capacity);
+                adjWeights = adjWeights.clone();
+                for (Profile profile : Profile.values()) {
+                    adjWeights[profile.ordinal()] = profile == Profile.DISTANCE ? adjLength
+                            : Arrays.copyOf(adjWeights[profile.ordinal()], capacity);
+                }
+                adjState = aliased ? adjTarget : Arrays.copyOf(adjState, capacity);
+                turnDirectionStart = Arrays.copyOf(turnDirectionStart, capacity);
+                tailSource = Arrays.copyOf(tailSource, capacity - numEdges);
+            }
+            if (t > turnDirections.length) {
+                turnDirections = Arrays.copyOf(turnDirections, withSlack(t));
+            }
+        }
+
+        /** Points the arrays of a changed graph at the shared ones. */
+        void share(GraphDB g) {
+            g.ids = ids;
+            g.lons = lons;
+            g.lats = lats;
+            g.adjTarget = adjTarget;
+            g.adjWay = adjWay;
+            g.adjBackward = adjBackward;
+            g.adjLength = adjLength;
+            g.adjAccess = adjAccess;
+            g.adjWeights = adjWeights.clone();
+            g.adjState = adjState;
+            g.turnDirectionStart = turnDirectionStart;
+            g.turnDirections = turnDirections;
+            g.tailSource = tailSource;
+        }
+    }
+
+    /**
+     * What a graph returned by withChange() changed since the graph built by clean() that
+     * its LayerBase holds. Immutable once built; each change copies its parent's, which
+     * takes time in the size of the delta.
+     */
+    private static final class Layer implements Cloneable {
+        /** Vertex indexes of the nodes whose index is not the base graph's, -1 if none. */
+        final Map<Long, Integer> nodes;
+        /** Way indexes of the ways changed since the base graph, -1 for deleted ones. */
+        final Map<Long, Integer> ways;
+        /** The ends of the segments of the ways added since, as node ids, by way index. */
+        final Map<Integer, long[]> waySegments;
+        /** Locations of the spare nodes changed since, or null for those no longer spare. */
+        final Map<Long, double[]> spare;
+        /**
+         * Nodes that were rebuilt since: the base graph's hidden segments at them are void,
+         * and the hidden segments below, as node ids and way indexes, replace them.
+         */
+        final Set<Long> covered;
+        long[] hiddenEnds;
+        int[] hiddenWays;
+        int numHidden;
+        /** Vertices whose half-edges are not the base graph's, in increasing order. */
+        int[] touched;
+        /** Spatial indexes like those of GraphDB, over the touched vertices only. */
+        int[][] modeVertices;
+        KdTree[] modeTrees;
+        SegmentIndex[] modeSegments;
+        int[][] modeSegmentEdges;
+        int[] namedWayEdges;
+        SegmentIndex namedWayIndex;
+
+        Layer() {
+            nodes = new HashMap<>();
+            ways = new HashMap<>();
+            waySegments = new HashMap<>();
+            spare = new HashMap<>();
+            covered = new HashSet<>();
+            hiddenEnds = new long[32];
+            hiddenWays = new int[16];
+            touched = new int[0];
+        }
+
+        Layer(Layer parent) {
+            nodes = new HashMap<>(parent.nodes);
+            ways = new HashMap<>(parent.ways);
+            waySegments = new HashMap<>(parent.waySegments);
+            spare = new HashMap<>(parent.spare);
+            covered = new HashSet<>(parent.covered);
+            hiddenEnds = new long[32];
+            hiddenWays = new int[16];
+            touched = parent.touched;
+        }
+
+        void addHidden(long from, long to, int way) {
+            if (numHidden == hiddenWays.length) {
+                hiddenWays = Arrays.copyOf(hiddenWays, 2 * numHidden);
+                hiddenEnds = Arrays.copyOf(hiddenEnds, 2 * hiddenWays.length);
+            }
+            hiddenEnds[2 * numHidden] = from;
+            hiddenEnds[2 * numHidden + 1] = to;
+            hiddenWays[numHidden++] = way;
+        }
+
+        /** Returns this layer without its spatial indexes of a mode, see withTraffic(). */
+        Layer withoutIndex(Profile.Mode mode) {
+            Layer res;
+            try {
+                res = (Layer) super.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+            res.modeTrees = modeTrees.clone();
+            res.modeTrees[mode.ordinal()] = null;
+            return res;
+        }
+    }
+
+    /**
+     * Builds the graph withChange() returns. Only the vertices at the ends of the segments
+     * that change, and those the change moves or deletes, are rebuilt from their segments,
+     * the way buildAdjacency() would. Their neighbours and the vertices whose turn
+     * restrictions change get copies of their half-edges, with new turn directions and turn
+     * states. All of these half-edges go past those of every graph still in use, and so do
+     * vertices that move or are new; the ones they replace are left without half-edges.
+     */
+    private static final class Delta {
+        private final GraphDB base;
+        private final LayerBase lb;
+        private final GraphDB change;
+        private final GraphChangeHandler changed;
+        private final GraphDB res;
+        private final Layer layer;
+        private final Locator at;
+        /** The first free vertex, half-edge and turn direction slots, see LayerBase.free(). */
+        private final int[] free;
+        /** Ways the change replaces or deletes, by index. */
+        private final Set<Integer> deadWays = new HashSet<>();
+        /** Vertices the change moves or deletes. */
+        private final Set<Long> moved = new HashSet<>();
+        /** The rebuilt nodes in id order, their segments and their new vertex indexes. */
+        private long[] rebuilt;
+        private Candidates[] candidates;
+        private int[] index;
+        /** The vertex slots rebuilt vertices left, and the vertices whose turns change. */
+        private final Set<Integer> left = new HashSet<>();
+        private final Set<Integer> turnsChanged = new HashSet<>();
+        /** Half-edges of the base graph that were copied, with their copies. */
+        private final Map<Integer, Integer> copies = new HashMap<>();
+
+        Delta(GraphDB base, LayerBase lb, GraphDB change, GraphChangeHandler changed) {
+            this.base = base;
+            this.lb = lb;
+            this.change = change;
+            this.changed = changed;
+            change.sortRawNodes();
+            res = new GraphDB(base.directed);
+            res.layerBase = lb;
+            res.layer = base.layer == null ? new Layer() : new Layer(base.layer);
+            layer = res.layer;
+            at = new Locator(base, change, changed.nodes);
+            free = lb.free();
+        }
+
+        /** Returns the changed graph, or null if there is no room for its vertices. */
+        GraphDB build() {
+            collectSegments();
+            if (!numberVertices()) {
+                return null;
+            }
+            writeEdges();
+            writeTurns();
+            writeTables();
+            res.buildLayerIndexes();
+            lb.claim(res);
+            return res;
+        }
+
+        /**
+         * Finds the nodes to rebuild, and every segment at them, in the order copyFrom()
+         * adds them: hidden segments first, then those kept both ways, then the new ones.
+         */
+        private void collectSegments() {
+            Set<Long> nodes = new HashSet<>();
+            res.ways = new ArrayList<>(base.ways);
+            for (long id : changed.ways) {
+                int w = base.wayIndexOf(id);
+                if (w < 0) {
+                    continue;
+                }
+                deadWays.add(w);
+                if (w < lb.numWays) {
+                    for (int k = lb.wayNodes[0][w]; k < lb.wayNodes[0][w + 1]; k++) {
+                        nodes.add(lb.ids[lb.wayNodes[1][k]]);
+                    }
+                } else {
+                    for (long node : layer.waySegments.remove(w)) {
+                        nodes.add(node);
+                    }
+                }
+                if (lb.wayIndex.containsKey(id)) {
+                    layer.ways.put(id, -1);
+                } else {
+                    layer.ways.remove(id);
+                }
+            }
+            for (Edge way : change.ways) {
+                int w = res.ways.size();
+                res.ways.add(way);
+                layer.ways.put(way.id, w);
+                long[] ends = new long[2 * (way.nodeList.size() - 1)];
+                for (int i = 0; i < ends.length; i++) {
+                    ends[i] = way.nodeList.get((i + 1) / 2);
+                    nodes.add(ends[i]);
+                }
+                layer.waySegments.put(w, ends);
+                way.nodeList = Collections.emptyList();
+            }
+            for (long id : changed.nodes) {
+                int v = base.indexOf(id);
+                double[] location = v < 0 ? null : at.locate(id);
+                if (v >= 0 && (location == null || location[0] != base.lons[v]
+                        || location[1] != base.lats[v])) {
+                    moved.add(id);
+                    nodes.add(id);
+                    for (int e = base.adjStart[v]; e < base.adjEnd[v]; e++) {
+                        nodes.add(base.ids[base.adjTarget[e]]);
+                    }
+                }
+            }
+            rebuilt = new long[nodes.size()];
+            int n = 0;
+            for (long id : nodes) {
+                rebuilt[n++] = id;
+            }
+            Arrays.sort(rebuilt);
+            candidates = new Candidates[n];
+            for (int i = 0; i < n; i++) {
+                candidates[i] = new Candidates();
+            }
+
+            Layer parent = base.layer;
+            for (int i = 0; i < n; i++) {
+                int r = Arrays.binarySearch(lb.ids, 0, lb.numVertices, rebuilt[i]);
+                if (r < 0 || parent != null && parent.covered.contains(rebuilt[i])) {
+                    continue;
+                }
+                for (int k = lb.hiddenAt[0][r]; k < lb.hiddenAt[0][r + 1]; k++) {
+                    int h = lb.hiddenAt[1][k] / 2;
+                    boolean backward = lb.hiddenAt[1][k] % 2 == 1;
+                    long other = lb.ids[lb.hiddenPairs[2 * h + (backward ? 0 : 1)]];
+                    if (!deadWays.contains(lb.hiddenWays[h])
+                            && (parent == null || !parent.covered.contains(other))) {
+                        candidates[i].add(other, lb.hiddenWays[h], backward);
+                    }
+                }
+            }
+            for (int h = 0; parent != null && h < parent.numHidden; h++) {
+                long from = parent.hiddenEnds[2 * h], to = parent.hiddenEnds[2 * h + 1];
+                int way = parent.hiddenWays[h];
+                int i = Arrays.binarySearch(rebuilt, from), j = Arrays.binarySearch(rebuilt, to);
+                if (deadWays.contains(way)) {
+                    continue;
+                } else if (i < 0 && j < 0) {
+                    layer.addHidden(from, to, way);
+                }
+                if (i >= 0) {
+                    candidates[i].add(to, way, false);
+                }
+                if (j >= 0) {
+                    candidates[j].add(from, way, true);
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                int v = base.indexOf(rebuilt[i]);
+                for (int e = v < 0 ? 0 : base.adjStart[v]; v >= 0 && e < base.adjEnd[v]; e++) {
+                    int w = base.adjTarget[e];
+                    if (!deadWays.contains(base.adjWay[e])
+                            && base.isKept(w, v, base.adjWay[e], !base.adjBackward[e])) {
+                        candidates[i].add(base.ids[w], base.adjWay[e], base.adjBackward[e]);
+                    }
+                }
+            }
+            for (int w = base.ways.size(); w < res.ways.size(); w++) {
+                long[] ends = layer.waySegments.get(w);
+                for (int k = 0; k < ends.length; k += 2) {
+                    candidates[Arrays.binarySearch(rebuilt, ends[k])].add(ends[k + 1], w, false);
+                    candidates[Arrays.binarySearch(rebuilt, ends[k + 1])].add(ends[k], w, true);
+                }
+            }
+        }
+
+        /**
+         * Keeps one segment per neighbour of every rebuilt node and numbers the nodes left
+         * with some: vertices that stay put keep their index, and the others get new slots.
+         * Returns false if there are not enough slots.
+         */
+        private boolean numberVertices() {
+            index = new int[rebuilt.length];
+            int next = free[0];
+            for (int i = 0; i < rebuilt.length; i++) {
+                Candidates c = candidates[i];
+                res.droppedSegments += c.keep(res, rebuilt[i], at);
+                int v = base.indexOf(rebuilt[i]);
+                if (c.size == 0) {
+                    index[i] = -1;
+                } else if (v >= 0 && !moved.contains(rebuilt[i])) {
+                    index[i] = v;
+                } else if (next == base.turnBase) {
+                    return false;
+                } else {
+                    index[i] = next++;
+                }
+                if (v >= 0 && v != index[i]) {
+                    left.add(v);
+                }
+            }
+            res.numVertices = next > free[0] ? next : base.numVertices;
+            for (int i = 0; i < rebuilt.length; i++) {
+                if (index[i] == base.indexOf(rebuilt[i])) {
+                    continue;
+                }
+                if (index[i] >= 0) {
+                    double[] location = at.locate(rebuilt[i]);
+                    lb.ids[index[i]] = rebuilt[i];
+                    lb.lons[index[i]] = location[0];
+                    lb.lats[index[i]] = location[1];
+                }
+                int r = Arrays.binarySearch(lb.ids, 0, lb.numVertices, rebuilt[i]);
+                if (index[i] == (r < 0 ? -1 : r)) {
+                    layer.nodes.remove(rebuilt[i]);
+                } else {
+                    layer.nodes.put(rebuilt[i], index[i]);
+                }
+            }
+
+            /* Segments that are not kept both ways are hidden, and listed once. */
+            for (int i = 0; i < rebuilt.length; i++) {
+                Candidates c = candidates[i];
+                for (int k = 0; k < c.size; k++) {
+                    int j = Arrays.binarySearch(rebuilt, c.to[k]);
+                    boolean kept = c.kept[k] && (j >= 0
+                            ? candidates[j].keeps(rebuilt[i], c.way[k], !c.backward[k])
+                            : base.isKept(base.indexOf(c.to[k]), index[i], c.way[k],
+                                    !c.backward[k]));
+                    if (!kept && (j < 0 || rebuilt[i] < c.to[k])) {
+                        if (c.backward[k]) {
+                            layer.addHidden(c.to[k], rebuilt[i], c.way[k]);
+                        } else {
+                            layer.addHidden(rebuilt[i], c.to[k], c.way[k]);
+                        }
+                    }
+                }
+            }
+            for (long id : rebuilt) {
+                layer.covered.add(id);
+            }
+            return true;
+        }
+
+        /** Returns the new index of a vertex, rebuilt or not. */
+        private int indexOf(long id) {
+            int i = Arrays.binarySearch(rebuilt, id);
+            return i >= 0 ? index[i] : base.indexOf(id);
+        }
+
+        /**
+         * Writes the half-edge lists of the rebuilt vertices, their neighbours and the
+         * vertices whose turns change, copying what does not change from the base graph.
+         */
+        private void writeEdges() {
+            res.restrictions = new long[5 * (base.numRestrictions + change.numRestrictions)];
+            Set<Long> vias = new HashSet<>();
+            for (int r = 0; r < base.numRestrictions; r++) {
+                if (changed.relations.contains(base.restrictions[5 * r + 4])) {
+                    vias.add(base.restrictions[5 * r + 1]);
+                } else {
+                    System.arraycopy(base.restrictions, 5 * r, res.restrictions,
+                            5 * res.numRestrictions++, 5);
+                }
+            }
+            for (int r = 0; r < change.numRestrictions; r++) {
+                vias.add(change.restrictions[5 * r + 1]);
+                System.arraycopy(change.restrictions, 5 * r, res.restrictions,
+                        5 * res.numRestrictions++, 5);
+            }
+            res.restrictions = Arrays.copyOf(res.restrictions, 5 * res.numRestrictions);
+            Set<Long> restricted = new HashSet<>();
+            for (int r = 0; r < res.numRestrictions; r++) {
+                restricted.add(res.restrictions[5 * r + 1]);
+            }
+            for (int i = 0; i < rebuilt.length; i++) {
+                if (index[i] >= 0 && restricted.contains(rebuilt[i])) {
+                    vias.add(rebuilt[i]);
+                }
+            }
+            for (long via : base.directed ? vias : Collections.<Long>emptySet()) {
+                int v = indexOf(via);
+                if (v >= 0) {
+                    turnsChanged.add(v);
+                }
+            }
+
+            /* The vertices to write, with their half-edges as target, way and direction. */
+            Map<Integer, long[]> lists = new TreeMap<>();
+            for (int i = 0; i < rebuilt.length; i++) {
+                if (index[i] < 0) {
+                    continue;
+                }
+                Candidates c = candidates[i];
+                long[] list = new long[c.size];
+                int n = 0;
+                for (int k = 0; k < c.size; k++) {
+                    if (c.kept[k]) {
+                        list[n++] = (long) indexOf(c.to[k]) << 32 | (long) c.way[k] << 1
+                                | (c.backward[k] ? 1 : 0);
+                    }
+                }
+                list = Arrays.copyOf(list, n);
+                Arrays.sort(list);
+                lists.put(index[i], list);
+            }
+            Set<Integer> copied = new HashSet<>();
+            for (long[] list : new ArrayList<>(lists.values())) {
+                for (long entry : list) {
+                    copied.add((int) (entry >>> 32));
+                }
+            }
+            for (int v : turnsChanged) {
+                copied.add(v);
+                if (!lists.containsKey(v)) {
+                    for (int e = base.adjStart[v]; e < base.adjEnd[v]; e++) {
+                        copied.add(base.adjTarget[e]);
+                    }
+                }
+            }
+            Set<Integer> renumbered = new HashSet<>(lists.keySet());
+            int total = 0;
+            for (int v : copied) {
+                if (!lists.containsKey(v)) {
+                    long[] list = new long[base.adjEnd[v] - base.adjStart[v]];
+                    for (int e = base.adjStart[v]; e < base.adjEnd[v]; e++) {
+                        list[e - base.adjStart[v]] = (long) base.adjTarget[e] << 32
+                                | (long) base.adjWay[e] << 1 | (base.adjBackward[e] ? 1 : 0);
+                    }
+                    lists.put(v, list);
+                }
+            }
+            for (long[] list : lists.values()) {
+                total += list.length;
+            }
+
+            lb.reserve(free[1] + total, 0);
+            lb.share(res);
+            res.adjStart = Arrays.copyOf(base.adjStart, base.turnBase + 1);
+            res.adjEnd = Arrays.copyOf(base.adjEnd, base.turnBase);
+            for (int v : left) {
+                res.adjStart[v] = lb.numEdges;
+                res.adjEnd[v] = lb.numEdges;
+            }
+            int m = free[1];
+            Profile[] profiles = Profile.values();
+            for (Map.Entry<Integer, long[]> entry : lists.entrySet()) {
+                int v = entry.getKey();
+                res.adjStart[v] = m;
+                for (long item : entry.getValue()) {
+                    int w = (int) (item >>> 32), way = (int) item >>> 1;
+                    boolean backward = (item & 1) != 0;
+                    res.adjTarget[m] = w;
+                    res.adjWay[m] = way;
+                    res.adjBackward[m] = backward;
+                    res.tailSource[m - lb.numEdges] = v;
+                    int c = v < base.numVertices && !left.contains(v) && w < base.numVertices
+                            && !left.contains(w) ? base.edgeBetween(v, w) : -1;
+                    if (c >= 0 && (base.adjWay[c] != way || base.adjBackward[c] != backward)) {
+                        c = -1;
+                    }
+                    if (c >= 0) {
+                        copies.put(c, m);
+                        res.adjLength[m] = base.adjLength[c];
+                        res.adjAccess[m] = base.adjAccess[c];
+                        for (Profile profile : profiles) {
+                            if (profile != Profile.DISTANCE) {
+                                res.adjWeights[profile.ordinal()][m] =
+                                        base.adjWeights[profile.ordinal()][c];
+                            }
+                        }
+                        res.adjState[m] = turnsChanged.contains(w) ? w : base.adjState[c];
+                        res.turnDirectionStart[m] = base.turnDirectionStart[c];
+                    } else {
+                        Edge e = res.ways.get(way);
+                        res.adjLength[m] = distance(res.lons[v], res.lats[v], res.lons[w],
+                                res.lats[w]);
+                        res.adjAccess[m] = (byte) Profile.access(e, backward && res.directed);
+                        for (Profile profile : profiles) {
+                            if (profile != Profile.DISTANCE) {
+                                res.adjWeights[profile.ordinal()][m] =
+                                        (res.adjAccess[m] & profile.mode.bit()) == 0
+                                        ? Double.POSITIVE_INFINITY
+                                        : res.adjLength[m] * profile.costPerMile(e);
+                            }
+                        }
+                        res.adjState[m] = w;
+                        res.turnDirectionStart[m] = -1;
+                    }
+                    m++;
+                }
+                res.adjEnd[v] = m;
+            }
+            res.numEdges = m > free[1] ? m : base.numEdges;
+
+            /* Turns onto the half-edges of vertices whose half-edges changed. */
+            int t = free[2];
+            for (int e = free[1]; e < m; e++) {
+                int w = res.adjTarget[e];
+                if (res.turnDirectionStart[e] < 0 || renumbered.contains(w)) {
+                    res.turnDirectionStart[e] = t;
+                    t += res.adjEnd[w] - res.adjStart[w];
+                }
+            }
+            lb.reserve(0, t);
+            res.turnDirections = lb.turnDirections;
+            for (int e = free[1]; e < m; e++) {
+                int w = res.adjTarget[e];
+                int start = res.turnDirectionStart[e];
+                if (start < free[2]) {
+                    continue;
+                }
+                int v = res.tailSource[e - lb.numEdges];
+                double in = bearing(res.lons[v], res.lats[v], res.lons[w], res.lats[w]);
+                for (int f = res.adjStart[w]; f < res.adjEnd[w]; f++) {
+                    int x = res.adjTarget[f];
+                    res.turnDirections[start + f - res.adjStart[w]] = (byte) Router.getDirection(
+                            in, bearing(res.lons[w], res.lats[w], res.lons[x], res.lats[x]));
+                }
+            }
+            res.numTurnDirections = t > free[2] ? t : base.numTurnDirections;
+            Set<Integer> all = new TreeSet<>(lists.keySet());
+            all.addAll(left);
+            for (int v : layer.touched) {
+                all.add(v);
+            }
+            layer.touched = new int[all.size()];
+            int k = 0;
+            for (int v : all) {
+                layer.touched[k++] = v;
+            }
+        }
+
+        /**
+         * Copies the turn states of the base graph, except those of vertices whose turns
+         * changed or that were rebuilt elsewhere, which are voided, and adds new ones for the
+         * vertices whose turns changed.
+         */
+        private void writeTurns() {
+            res.turnBase = base.turnBase;
+            res.numTurns = base.numTurns;
+            res.turnVertex = base.turnVertex.clone();
+            res.turnEdge = base.turnEdge.clone();
+            res.turnForbiddenStart = base.turnForbiddenStart.clone();
+            res.turnForbidden = new int[base.turnForbidden.length];
+            int f = 0;
+            for (int k = 0; k < base.numTurns; k++) {
+                int v = base.turnVertex[k];
+                res.turnForbiddenStart[k] = f;
+                if (v < 0 || turnsChanged.contains(v) || left.contains(v)) {
+                    res.turnVertex[k] = -1;
+                    continue;
+                }
+                res.turnEdge[k] = copies.getOrDefault(base.turnEdge[k], base.turnEdge[k]);
+                for (int i = base.turnForbiddenStart[k]; i < base.turnForbiddenStart[k + 1];
+                     i++) {
+                    res.turnForbidden[f++] = copies.getOrDefault(base.turnForbidden[i],
+                            base.turnForbidden[i]);
+                }
+            }
+            res.turnForbiddenStart[base.numTurns] = f;
+            if (!turnsChanged.isEmpty()) {
+                Map<Long, List<Integer>> byVia = new HashMap<>();
+                for (int r = 0; r < res.numRestrictions; r++) {
+                    byVia.computeIfAbsent(res.restrictions[5 * r + 1], id -> new ArrayList<>())
+                            .add(r);
+                }
+                for (int v : new TreeSet<>(turnsChanged)) {
+                    List<Integer> rs = byVia.getOrDefault(res.ids[v],
+                            Collections.emptyList());
+                    int[] items = new int[rs.size()];
+                    for (int i = 0; i < items.length; i++) {
+                        items[i] = rs.get(i);
+                    }
+                    res.addTurnStates(v, items, 0, items.length);
+                }
+                lb.adjState = res.adjState;
+            }
+            int n = 0;
+            int[] blocks = new int[res.numTurns];
+            for (int k = 0; k < res.numTurns; k++) {
+                if (res.turnVertex[k] >= 0 && (k == 0
+                        || res.turnVertex[k - 1] != res.turnVertex[k])) {
+                    blocks[n++] = k;
+                }
+            }
+            Integer[] sorted = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                sorted[i] = blocks[i];
+            }
+            Arrays.sort(sorted, Comparator.comparingInt(k -> res.turnVertex[k]));
+            res.turnBlocks = new int[n];
+            for (int i = 0; i < n; i++) {
+                res.turnBlocks[i] = sorted[i];
+            }
+        }
+
+        /** Updates the way tables, spare nodes and named locations. */
+        private void writeTables() {
+            int numWays = res.ways.size();
+            res.wayAccess = Arrays.copyOf(base.wayAccess, numWays);
+            res.wayNameId = Arrays.copyOf(base.wayNameId, numWays);
+            res.minCostPerMile = base.minCostPerMile.clone();
+            res.wayNameTable = base.wayNameTable;
+            for (int w = base.ways.size(); w < numWays; w++) {
+                Edge way = res.ways.get(w);
+                res.wayAccess[w] = (byte) Profile.access(way);
+                for (Profile profile : Profile.values()) {
+                    if ((res.wayAccess[w] & profile.mode.bit()) != 0) {
+                        res.minCostPerMile[profile.ordinal()] = Math.min(
+                                res.minCostPerMile[profile.ordinal()], profile.costPerMile(way));
+                    }
+                }
+                String name = way.extrainfo.get("name");
+                Integer id = lb.nameIds.get(name);
+                if (id == null) {
+                    id = lb.names.size();
+                    lb.nameIds.put(name, id);
+                    lb.names.add(name);
+                }
+                res.wayNameId[w] = id;
+                if (id >= res.wayNameTable.length) {
+                    res.wayNameTable = lb.names.toArray(new String[0]);
+                }
+            }
+
+            /* Nodes stay or become spare as keepSpareNodes() would decide. */
+            res.spareIDs = base.spareIDs;
+            res.spareLons = base.spareLons;
+            res.spareLats = base.spareLats;
+            Set<Long> refs = new HashSet<>();
+            for (int i = 0; i < change.numSpareRefs; i++) {
+                refs.add(change.spareRefs[i]);
+            }
+            Set<Long> nodes = new HashSet<>(refs);
+            nodes.addAll(changed.nodes);
+            for (long id : rebuilt) {
+                nodes.add(id);
+            }
+            for (long id : nodes) {
+                double[] location;
+                if (res.indexOf(id) >= 0) {
+                    location = null;
+                } else if (refs.contains(id)) {
+                    location = at.locate(id);
+                } else if (changed.nodes.contains(id)) {
+                    location = null;
+                } else {
+                    location = base.spareLocation(id);
+                }
+                int r = Arrays.binarySearch(res.spareIDs, id);
+                if (r >= 0 && location != null && location[0] == res.spareLons[r]
+                        && location[1] == res.spareLats[r] || r < 0 && location == null) {
+                    layer.spare.remove(id);
+                } else {
+                    layer.spare.put(id, location);
+                }
+            }
+
+            boolean renamed = change.numPOIs > 0;
+            for (int poi = 0; poi < base.numPOIs && !renamed; poi++) {
+                renamed = changed.nodes.contains(base.poiIDs[poi]);
+            }
+            if (renamed) {
+                res.changePOIs(base, change, changed.nodes);
+            } else {
+                res.poiIDs = base.poiIDs;
+                res.poiLons = base.poiLons;
+                res.poiLats = base.poiLats;
+                res.poiNames = base.poiNames;
+                res.numPOIs = base.numPOIs;
+                res.names = base.names;
+                res.nameIndex = base.nameIndex;
+                res.trie = base.trie;
+                res.namedNodeIndex = base.namedNodeIndex;
+            }
+            res.modeVertices = base.modeVertices;
+            res.modeTrees = base.modeTrees;
+            res.modeSegments = base.modeSegments;
+            res.modeSegmentEdges = base.modeSegmentEdges;
+            res.namedWayEdges = base.namedWayEdges;
+            res.namedWayIndex = base.namedWayIndex;
+            res.rawIDs = null;
+            res.rawLons = null;
+            res.rawLats = null;
+            res.pairEnds = null;
+            res.pairWays = null;
+            res.spareRefs = null;
+            res.pendingNames = null;
+        }
+    }
+
+    /** Finds where nodes are once a change is applied to a graph, see withChange(). */
+    private static final class Locator {
+        private final GraphDB base;
+        private final GraphDB change;
+        private final Set<Long> changed;
+        private final Map<Long, double[]> found = new HashMap<>();
+        /** POI indexes of the base graph by id, built when first needed. */
+        private Map<Long, Integer> pois;
+
+        Locator(GraphDB base, GraphDB change, Set<Long> changed) {
+            this.base = base;
+            this.change = change;
+            this.changed = changed;
+        }
+
+        /**
+         * Returns the longitude and latitude of a node: that in the change if it changed,
+         * otherwise that in the base graph, where it may be a vertex, a spare node or a named
+         * location. Returns null for nodes that are gone or never were.
+         */
+        double[] locate(long id) {
+            if (found.containsKey(id)) {
+                return found.get(id);
+            }
+            double[] res = null;
+            int v = base.indexOf(id);
+            if (changed.contains(id)) {
+                int r = Arrays.binarySearch(change.rawIDs, 0, change.numRaw, id);
+                res = r < 0 ? null : new double[]{change.rawLons[r], change.rawLats[r]};
+            } else if (v >= 0) {
+                res = new double[]{base.lons[v], base.lats[v]};
+            } else if ((res = base.spareLocation(id)) == null) {
+                if (pois == null) {
+                    pois = new HashMap<>();
+                    for (int poi = 0; poi < base.numPOIs; poi++) {
+                        pois.put(base.poiIDs[poi], poi);
+                    }
+                }
+                Integer poi = pois.get(id);
+                res = poi == null ? null : new double[]{base.poiLons[poi], base.poiLats[poi]};
+            }
+            found.put(id, res);
+            return res;
+        }
+    }
+
+    /**
+     * The segments at a node withChange() rebuilds, as the other node, the way and whether
+     * it runs against the way, in the order buildAdjacency() would see them.
+     */
+    private static final class Candidates {
+        long[] to = new long[4];
+        int[] way = new int[4];
+        boolean[] backward = new boolean[4];
+        /** Whether each segment is the one kept for its neighbour, see keep(). */
+        boolean[] kept;
+        int size;
+
+        void add(long other, int w, boolean back) {
+            if (size == to.length) {
+                to = Arrays.copyOf(to, 2 * size);
+                way = Arrays.copyOf(way, 2 * size);
+                backward = Arrays.copyOf(backward, 2 * size);
+            }
+            to[size] = other;
+            way[size] = w;
+            backward[size++] = back;
+        }
+
+        /**
+         * Drops the segments with an end that is gone and marks the one kept for every
+         * neighbour: the last way that ranks highest, see buildAdjacency(). Returns the number
+         * of dropped segments that count against this node: those whose other end is gone,
+         * and those with both ends gone if this node has the lower id.
+         */
+        int keep(GraphDB g, long self, Locator at) {
+            boolean present = at.locate(self) != null;
+            int dropped = 0;
+            int n = 0;
+            for (int k = 0; k < size; k++) {
+                boolean other = at.locate(to[k]) != null;
+                if (present && other) {
+                    to[n] = to[k];
+                    way[n] = way[k];
+                    backward[n++] = backward[k];
+                } else if (present || !other && self < to[k]) {
+                    dropped++;
+                }
+            }
+            size = n;
+            int[] rank = new int[n];
+            for (int k = 0; k < n; k++) {
+                rank[k] = g.rank(g.ways.get(way[k]), backward[k]);
+            }
+            kept = new boolean[n];
+            for (int k = 0; k < n; k++) {
+                kept[k] = true;
+                for (int j = 0; j < n && kept[k]; j++) {
+                    kept[k] = j == k || to[j] != to[k] || rank[j] < rank[k]
+                            || rank[j] == rank[k] && (way[j] < way[k]
+                                    || way[j] == way[k] && j < k);
+                }
+            }
+            return dropped;
+        }
+
+        /** Whether the segment to other along way, in the given direction, is kept. */
+        boolean keeps(long other, int w, boolean back) {
+            for (int k = 0; k < size; k++) {
+                if (kept[k] && to[k] == other && way[k] == w && backward[k] == back) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /** Returns a new SAX parser, for change files and the parts of maps; see ShardedGraph. */
+    static SAXParser newParser() {
+        try {
+            return SAXParserFactory.newInstance().newSAXParser();
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns this graph with the given traffic instead of its own. The graphs share all
+     * their arrays except the driving weights and access bits of the half-edges, which are
+     * copied and adjusted, so searches pay nothing for traffic while they run. Slowdowns
+     * scale the cost of the driving profiles that measure time, and closures keep every
+     * driving profile off a half-edge. Closures also rebuild the spatial indexes of the
+     * car mode, so that snap() and closest() stay off roads closed in both directions.
+     * Rules for ways or nodes not in the graph are ignored. Takes time linear in the
+     * number of half-edges, and this graph is not modified.
+     */
+    GraphDB withTraffic(Traffic newTraffic) {
+        if (newTraffic.isEmpty()) {
+            return plain;
+        }
+        double[] factor = new double[numEdges];
+        Arrays.fill(factor, 1);
+        if (!newTraffic.ways().isEmpty()) {
+            double[] wayFactor = new double[ways.size()];
+            for (int w = 0; w < wayFactor.length; w++) {
+                wayFactor[w] = newTraffic.ways().getOrDefault(ways.get(w).id, 1.0);
+            }
+            for (int v = 0; v < numVertices; v++) {
+                for (int e = adjStart[v]; e < adjEnd[v]; e++) {
+                    factor[e] = wayFactor[adjWay[e]];
+                }
+            }
+        }
+        for (Map.Entry<Traffic.Segment, Double> entry : newTraffic.segments().entrySet()) {
+            int v = indexOf(entry.getKey().from);
+            int w = indexOf(entry.getKey().to);
+            int e = v < 0 || w < 0 ? -1 : edgeBetween(v, w);
+            if (e >= 0) {
+                factor[e] = Math.max(factor[e], entry.getValue());
+            }
+        }
+
+        GraphDB res;
+        try {
+            res = (GraphDB) plain.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+        res.traffic = newTraffic;
+        int car = Profile.Mode.CAR.bit();
+        res.adjAccess = plain.adjAccess.clone();
+        boolean closed = false;
+        for (int e = 0; e < factor.length; e++) {
+            if (factor[e] == Double.POSITIVE_INFINITY && (res.adjAccess[e] & car) != 0) {
+                res.adjAccess[e] &= ~car;
+                closed = true;
+            }
+        }
+        if (closed) {
+            /* Keep snap() and closest() off the roads that are now closed to cars. */
+            res.modeVertices = plain.modeVertices.clone();
+            res.modeTrees = plain.modeTrees.clone();
+            res.modeSegments = plain.modeSegments.clone();
+            res.modeSegmentEdges = plain.modeSegmentEdges.clone();
+            res.buildModeIndex(Profile.Mode.CAR);
+            if (layer != null) {
+                /* The rebuilt index covers the whole graph, so the layer's is not needed. */
+                res.layer = layer.withoutIndex(Profile.Mode.CAR);
+            }
+        }
+        res.adjWeights = plain.adjWeights.clone();
+        for (Profile profile : Profile.values()) {
+            if (profile.mode != Profile.Mode.CAR || profile == Profile.DISTANCE) {
+                continue;
+            }
+            double[] weights = plain.adjWeights[profile.ordinal()].clone();
+            for (int e = 0; e < factor.length; e++) {
+                if (factor[e] != Double.POSITIVE_INFINITY) {
+                    weights[e] *= factor[e];
+                }
+            }
+            res.adjWeights[profile.ordinal()] = weights;
+        }
+        return res;
+    }
+
+    /** Returns the traffic this graph's weights include. */
+    Traffic traffic() {
+        return traffic;
+    }
+
+    /**
+     * Adds the nodes, named locations, ways and turn restrictions of a cleaned graph to
+     * the parse-time storage, except for the nodes, ways and relations with the given ids.
+     * @throws IllegalArgumentException If relations are to be skipped but some turn
+     * restrictions of the base graph have no relation id.
+     */
+    private void copyFrom(GraphDB base, Set<Long> skipNodes, Set<Long> skipWays,
+                          Set<Long> skipRelations) {
+        for (int i = 0; i < base.numVertices; i++) {
+            /* Vertices that withChange() moved or dropped are left without half-edges. */
+            if (base.adjStart[i] < base.adjEnd[i] && !skipNodes.contains(base.ids[i])) {
+                addNode(base.ids[i], base.lats[i], base.lons[i]);
+            }
+        }
+        /* The nodes of roads that are not routed stay spare unless a change routes them. */
+        for (long id : base.spareNodes()) {
+            if (!skipNodes.contains(id)) {
+                double[] location = base.spareLocation(id);
+                addNode(id, location[1], location[0]);
+                addSpareNodes(Collections.singletonList(id));
+            }
+        }
+        for (int poi = 0; poi < base.numPOIs; poi++) {
+            long id = base.poiIDs[poi];
+            if (skipNodes.contains(id)) {
+                continue;
+            }
+            /* Named nodes that are not vertices may still be used by new ways. */
+            if (base.indexOf(id) < 0 && base.spareLocation(id) == null) {
+                addNode(id, base.poiLats[poi], base.poiLons[poi]);
+            }
+            addPOI(id, base.poiLons[poi], base.poiLats[poi], base.poiNames[poi]);
+        }
+
+        /* Ways are immutable once cleaned, so the new graph shares them. withChange() keeps
+         * the ways it replaced, unused. */
+        int[] wayIndex = new int[base.ways.size()];
+        for (int w = 0; w < wayIndex.length; w++) {
+            Edge way = base.ways.get(w);
+            boolean gone = base.layer != null && base.wayIndexOf(way.id) != w;
+            wayIndex[w] = gone || skipWays.contains(way.id) ? -1 : ways.size();
+            if (wayIndex[w] >= 0) {
+                ways.add(way);
+            }
+        }
+        /* Hidden segments go first, so that the way kept for each segment is again the
+         * last of the ways that rank highest for it; see buildAdjacency(). */
+        base.forEachHidden((from, to, way) -> {
+            if (wayIndex[way] >= 0) {
+                addPair(from, to, wayIndex[way]);
+            }
+        });
+        for (int v = 0; v < base.numVertices; v++) {
+            for (int e = base.adjStart[v]; e < base.adjEnd[v]; e++) {
+                int w = base.adjTarget[e];
+                int way = base.adjWay[e];
+                /* Each segment kept both ways is added once, from its start. */
+                if (!base.adjBackward[e] && wayIndex[way] >= 0
+                        && base.isKept(w, v, way, true)) {
+                    addPair(base.ids[v], base.ids[w], wayIndex[way]);
+                }
+            }
+        }
+        for (int r = 0; r < base.numRestrictions; r++) {
+            long relation = base.restrictions[5 * r + 4];
+            if (relation == 0 && !skipRelations.isEmpty()) {
+                throw new IllegalArgumentException(NO_RELATION_IDS);
+            }
+            if (!skipRelations.contains(relation)) {
+                addTurnRestriction(relation, base.restrictions[5 * r],
+                        base.restrictions[5 * r + 1], base.restrictions[5 * r + 2],
+                        base.restrictions[5 * r + 3] != 0);
+            }
+        }
+    }
+
+    /** Assigns locations to the parts of a graph; see split(). */
+    interface Partition {
+        /** Returns the part of the location with the given longitude and latitude. */
+        int partOf(double lon, double lat);
+    }
+
+    /**
+     * Splits this graph into parts by location, for maps too large to load at once; see
+     * ShardedGraph. Every vertex and named location goes to the part of its location. Part
+     * k holds every way segment with an end in part k, so besides its own vertices it has
+     * boundary vertices, the other ends of the segments leaving it, with only those
+     * segments. Its own vertices keep all their half-edges, with the same weights and
+     * access bits as in this graph, and the turn restrictions at them.
+     *
+     * The parts are handed to the consumer one at a time, so that only one is built at
+     * once; parts without vertices or named locations are skipped.
+     * @param numParts The number of parts, which the partition numbers from 0.
+     */
+    void split(Partition partition, int numParts, ObjIntConsumer<GraphDB> consumer) {
+        if (layer != null) {
+            compact().split(partition, numParts, consumer);
+            return;
+        }
+        int n = numVertices;
+        int[] vertexPart = new int[n];
+        for (int v = 0; v < n; v++) {
+            vertexPart[v] = partition.partOf(lons[v], lats[v]);
+        }
+        int[] poiPart = new int[numPOIs];
+        for (int poi = 0; poi < numPOIs; poi++) {
+            poiPart[poi] = partition.partOf(poiLons[poi], poiLats[poi]);
+        }
+        int[] restrictionPart = new int[numRestrictions];
+        for (int r = 0; r < numRestrictions; r++) {
+            int via = indexOf(restrictions[5 * r + 1]);
+            restrictionPart[r] = via < 0 ? -1 : vertexPart[via];
+        }
+        /* Hidden segments belong to the parts of both their ends. */
+        int[] hiddenFrom = new int[hiddenWays.length];
+        int[] hiddenTo = new int[hiddenWays.length];
+        for (int h = 0; h < hiddenWays.length; h++) {
+            hiddenFrom[h] = vertexPart[hiddenPairs[2 * h]];
+            int to = vertexPart[hiddenPairs[2 * h + 1]];
+            hiddenTo[h] = to == hiddenFrom[h] ? -1 : to;
+        }
+        int[][] vertices = group(vertexPart, numParts);
+        int[][] pois = group(poiPart, numParts);
+        int[][] turns = group(restrictionPart, numParts);
+        int[][] hiddenOut = group(hiddenFrom, numParts);
+        int[][] hiddenIn = group(hiddenTo, numParts);
+
+        /* The node and way indexes of the part being built, marked with its number. */
+        int[] nodeMark = new int[n];
+        int[] wayMark = new int[ways.size()];
+        int[] wayIndex = new int[ways.size()];
+        Arrays.fill(nodeMark, -1);
+        Arrays.fill(wayMark, -1);
+        for (int p = 0; p < numParts; p++) {
+            if (vertices[0][p] == vertices[0][p + 1] && pois[0][p] == pois[0][p + 1]) {
+                continue;
+            }
+            GraphDB part = new GraphDB(directed);
+            /* Hidden segments go first, as in copyFrom(). */
+            for (int[][] hidden : new int[][][]{hiddenOut, hiddenIn}) {
+                for (int k = hidden[0][p]; k < hidden[0][p + 1]; k++) {
+                    int h = hidden[1][k];
+                    part.addPart(this, hiddenPairs[2 * h], hiddenPairs[2 * h + 1],
+                            hiddenWays[h], p, nodeMark, wayMark, wayIndex);
+                }
+            }
+            for (int k = vertices[0][p]; k < vertices[0][p + 1]; k++) {
+                int v = vertices[1][k];
+                for (int e = adjStart[v]; e < adjEnd[v]; e++) {
+                    int w = adjTarget[e];
+                    /* Segments within the part are added once, from their start. */
+                    if (adjBackward[e] && vertexPart[w] == p) {
+                        continue;
+                    }
+                    int from = adjBackward[e] ? w : v;
+                    int to = adjBackward[e] ? v : w;
+                    if (isKept(from, to, adjWay[e], false) && isKept(to, from, adjWay[e], true)) {
+                        part.addPart(this, from, to, adjWay[e], p, nodeMark, wayMark, wayIndex);
+                    }
+                }
+            }
+            for (int k = pois[0][p]; k < pois[0][p + 1]; k++) {
+                int poi = pois[1][k];
+                part.addPOI(poiIDs[poi], poiLons[poi], poiLats[poi], poiNames[poi]);
+            }
+            for (int k = turns[0][p]; k < turns[0][p + 1]; k++) {
+                int r = turns[1][k];
+                part.addTurnRestriction(restrictions[5 * r + 4], restrictions[5 * r],
+                        restrictions[5 * r + 1], restrictions[5 * r + 2],
+                        restrictions[5 * r + 3] != 0);
+            }
+            part.clean();
+            consumer.accept(part, p);
+        }
+    }
+
+    /** Creates an empty graph, to be filled like a parsed one. */
+    private GraphDB(boolean directed) {
+        this.directed = directed;
+    }
+
+    /**
+     * Adds the segment from vertex v to vertex w of base along its way to the parse-time
+     * storage of part p of base, with the nodes and the way if not added yet; see split().
+     */
+    private void addPart(GraphDB base, int v, int w, int way, int p, int[] nodeMark,
+                         int[] wayMark, int[] wayIndex) {
+        for (int x : new int[]{v, w}) {
+            if (nodeMark[x] != p) {
+                nodeMark[x] = p;
+                addNode(base.ids[x], base.lats[x], base.lons[x]);
+            }
+        }
+        if (wayMark[way] != p) {
+            wayMark[way] = p;
+            wayIndex[way] = ways.size();
+            ways.add(base.ways.get(way));
+        }
+        addPair(base.ids[v], base.ids[w], wayIndex[way]);
+    }
+
+    /**
+     * Groups the indexes of keys by key, skipping negative keys. Returns the start of every
+     * group, followed by the end of the last, and the indexes in order of their group.
+     */
+    private static int[][] group(int[] keys, int numGroups) {
+        int[] start = new int[numGroups + 1];
+        for (int key : keys) {
+            if (key >= 0) {
+                start[key + 1]++;
+            }
+        }
+        for (int k = 0; k < numGroups; k++) {
+            start[k + 1] += start[k];
+        }
+        int[] items = new int[start[numGroups]];
+        int[] fill = Arrays.copyOf(start, numGroups);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] >= 0) {
+                items[fill[keys[i]]++] = i;
+            }
+        }
+        return new int[][]{start, items};
+    }
+
+    /** Returns the size to give arrays that should have room to spare for size items. */
+    private static int withSlack(int size) {
+        return size + size / 16 + 16;
+    }
+
+    /** Ranks the ways a segment may be kept along, see buildAdjacency(). */
+    private int rank(Edge way, boolean backward) {
+        int car = Profile.Mode.CAR.bit();
+        int road = (Profile.access(way) & car) != 0 ? 1 : 0;
+        return road + ((Profile.access(way, backward && directed) & car) != 0 ? 1 : 0);
+    }
+
+    /**
+     * Returns the longitude and latitude of a node of a road that is not routed, see
+     * spareIDs, or null if id is not one.
+     */
+    private double[] spareLocation(long id) {
+        if (layer != null && layer.spare.containsKey(id)) {
+            return layer.spare.get(id);
+        }
+        int i = Arrays.binarySearch(spareIDs, id);
+        return i < 0 ? null : new double[]{spareLons[i], spareLats[i]};
+    }
+
+    /** Returns the ids of the nodes of roads that are not routed, see spareIDs. */
+    private List<Long> spareNodes() {
+        List<Long> res = new ArrayList<>();
+        for (long id : spareIDs) {
+            if (layer == null || !layer.spare.containsKey(id)) {
+                res.add(id);
+            }
+        }
+        for (Map.Entry<Long, double[]> entry : layer == null
+                ? Collections.<Long, double[]>emptyMap().entrySet() : layer.spare.entrySet()) {
+            if (entry.getValue() != null) {
+                res.add(entry.getKey());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns the index of the way with the given id in a graph returned by withChange(),
+     * or -1 if it is not in the graph.
+     */
+    private int wayIndexOf(long id) {
+        Integer w = layer == null ? null : layer.ways.get(id);
+        if (w == null) {
+            w = layerBase.wayIndex.get(id);
+        }
+        return w == null ? -1 : w;
+    }
+
+    /** Receives way segments, see forEachHidden(). */
+    private interface SegmentVisitor {
+        void visit(long from, long to, int way);
+    }
+
+    /**
+     * Passes every hidden segment, see hiddenPairs, to the visitor, with the ids of its
+     * ends and its way index.
+     */
+    private void forEachHidden(SegmentVisitor visitor) {
+        if (layer == null) {
+            for (int h = 0; h < hiddenWays.length; h++) {
+                visitor.visit(ids[hiddenPairs[2 * h]], ids[hiddenPairs[2 * h + 1]],
+                        hiddenWays[h]);
+            }
+            return;
+        }
+        LayerBase lb = layerBase;
+        for (int h = 0; h < lb.hiddenWays.length; h++) {
+            long from = ids[lb.hiddenPairs[2 * h]], to = ids[lb.hiddenPairs[2 * h + 1]];
+            if (!layer.covered.contains(from) && !layer.covered.contains(to)) {
+                visitor.visit(from, to, lb.hiddenWays[h]);
+            }
+        }
+        for (int h = 0; h < layer.numHidden; h++) {
+            visitor.visit(layer.hiddenEnds[2 * h], layer.hiddenEnds[2 * h + 1],
+                    layer.hiddenWays[h]);
+        }
+    }
+
+    /**
+     * Whether the half-edges of vertex v, in a graph returned by withChange(), are not those
+     * of the graph built by clean() it was changed from, so that the spatial indexes of the
+     * layer rather than the graph's own cover them.
+     */
+    private boolean isTouched(int v) {
+        return v >= layerBase.numVertices || adjStart[v] >= layerBase.numEdges;
+    }
+
+    /**
+     * Builds the named location tables of a graph returned by withChange() from those of
+     * base, without the named nodes the change touches and with those it names. Only the
+     * trie entries of the names that changed are copied, see Trie.with().
+     */
+    private void changePOIs(GraphDB base, GraphDB change, Set<Long> changedNodes) {
+        poiIDs = new long[base.numPOIs + change.numPOIs];
+        poiLons = new double[poiIDs.length];
+        poiLats = new double[poiIDs.length];
+        poiNames = new String[poiIDs.length];
+        pendingNames = new HashMap<>();
+        Set<String> renamed = new TreeSet<>();
+        for (GraphDB g : new GraphDB[]{base, change}) {
+            for (int poi = 0; poi < g.numPOIs; poi++) {
+                if (g == base && changedNodes.contains(g.poiIDs[poi])) {
+                    renamed.add(cleanString(g.poiNames[poi]));
+                    continue;
+                }
+                if (g == change) {
+                    renamed.add(cleanString(g.poiNames[poi]));
+                }
+                poiIDs[numPOIs] = g.poiIDs[poi];
+                poiLons[numPOIs] = g.poiLons[poi];
+                poiLats[numPOIs] = g.poiLats[poi];
+                poiNames[numPOIs] = g.poiNames[poi];
+                pendingNames.computeIfAbsent(cleanString(poiNames[numPOIs]),
+                        k -> new ArrayList<>()).add(numPOIs);
+                numPOIs++;
+            }
+        }
+        buildNames();
+        buildNameIndex();
+        namedNodeIndex = new KdTree(poiLons, poiLats);
+        trie = base.trie;
+        for (String cleanedName : renamed) {
+            Set<String> matches = new TreeSet<>();
+            for (int poi : names.getOrDefault(cleanedName, new int[0])) {
+                matches.add(poiNames[poi]);
+            }
+            trie = trie.with(cleanedName, matches);
+        }
+    }
+
+    /** Builds the spatial indexes of the layer over its touched vertices, see Layer. */
+    private void buildLayerIndexes() {
+        Profile.Mode[] modes = Profile.Mode.values();
+        layer.modeVertices = new int[modes.length][];
+        layer.modeTrees = new KdTree[modes.length];
+        layer.modeSegments = new SegmentIndex[modes.length];
+        layer.modeSegmentEdges = new int[modes.length][];
+        for (Profile.Mode mode : modes) {
+            int bit = mode.bit();
+            int[] vertices = openVertices(layer.touched, bit);
+            int[] segmentEdges = edgesFrom(layer.touched,
+                    (v, e) -> isLowerEnd(v, e) && isSegmentOpen(v, e, bit));
+            layer.modeVertices[mode.ordinal()] = vertices;
+            layer.modeTrees[mode.ordinal()] = vertexTree(vertices);
+            layer.modeSegmentEdges[mode.ordinal()] = segmentEdges;
+            layer.modeSegments[mode.ordinal()] = segmentIndex(segmentEdges);
+        }
+        layer.namedWayEdges = edgesFrom(layer.touched, this::isNamedWaySegment);
+        layer.namedWayIndex = segmentIndex(layer.namedWayEdges);
+    }
+
+    /**
+     * Helper to process strings into their "cleaned" form, ignoring punctuation and capitalization.
+     * @param s Input string.
+     * @return Cleaned string.
+     */
+    static String cleanString(String s) {
+        return s.replaceAll("[^a-zA-Z ]", "").toLowerCase();
+    }
+
+    /**
+     *  Remove nodes with no connections from the graph.
+     *  While this does not guarantee that any two nodes in the remaining graph are connected,
+     *  we can reasonably assume this since typically roads are connected.
+     *  The surviving vertices and their edges are packed into arrays, and the parse-time
+     *  storage of all other nodes is released.
+     */
+    private void clean() {
+        sortRawNodes();
+
+        /* Resolve way pairs to raw node indexes; pairs with unknown nodes are dropped. */
+        int[] pairRaw = new int[2 * numPairs];
+        boolean[] connected = new boolean[numRaw];
+        for (int p = 0; p < 2 * numPairs; p++) {
+            pairRaw[p] = Arrays.binarySearch(rawIDs, 0, numRaw, pairEnds[p]);
+        }
+        droppedSegments = 0;
+        for (int p = 0; p < numPairs; p++) {
+            if (pairRaw[2 * p] >= 0 && pairRaw[2 * p + 1] >= 0) {
+                connected[pairRaw[2 * p]] = true;
+                connected[pairRaw[2 * p + 1]] = true;
+            } else {
+                droppedSegments++;
+            }
+        }
+        keepSpareNodes(connected);
+
+        /* Number the connected nodes, which keeps them in id order. */
+        int[] vertexOf = new int[numRaw];
+        int n = 0;
+        for (int r = 0; r < numRaw; r++) {
+            vertexOf[r] = connected[r] ? n++ : -1;
+        }
+        ids = new long[withSlack(n)];
+        lons = new double[ids.length];
+        lats = new double[ids.length];
+        numVertices = n;
+        for (int r = 0; r < numRaw; r++) {
+            if (connected[r]) {
+                ids[vertexOf[r]] = rawIDs[r];
+                lons[vertexOf[r]] = rawLons[r];
+                lats[vertexOf[r]] = rawLats[r];
+            }
+        }
+        buildAdjacency(pairRaw, vertexOf);
+
+        rawIDs = null;
+        rawLons = null;
+        rawLats = null;
+        pairEnds = null;
+        pairWays = null;
+        spareRefs = null;
+        for (Edge way : ways) {
+            way.nodeList = Collections.emptyList();
+        }
+        buildIndexes();
+    }
+
+    /** Packs the parse-time nodes in spareRefs that are not vertices into spareIDs. */
+    private void keepSpareNodes(boolean[] connected) {
+        long[] refs = Arrays.copyOf(spareRefs, numSpareRefs);
+        Arrays.sort(refs);
+        int[] spare = new int[numRaw];
+        int n = 0;
+        for (int r = 0; r < numRaw; r++) {
+            if (!connected[r] && Arrays.binarySearch(refs, rawIDs[r]) >= 0) {
+                spare[n++] = r;
+            }
+        }
+        spareIDs = new long[n];
+        spareLons = new double[n];
+        spareLats = new double[n];
+        for (int i = 0; i < n; i++) {
+            spareIDs[i] = rawIDs[spare[i]];
+            spareLons[i] = rawLons[spare[i]];
+            spareLats[i] = rawLats[spare[i]];
+        }
+    }
+
+    /**
+     * Returns the number of way segments left out of this graph because one of their nodes
+     * was missing: from the file for a loaded graph, which is common at the edges of an
+     * extract, or from both the base graph and the change file for a changed one.
+     */
+    int droppedSegments() {
+        return droppedSegments;
+    }
+
+    /** Builds the name table and the spatial indexes once the vertices and POIs are final. */
+    private void buildIndexes() {
+        buildEdgeCosts();
+        buildTurnRestrictions();
+        buildTurnDirections();
+        buildWayNames();
+        buildModeIndexes();
+        buildNames();
+        buildNameIndex();
+        buildReverseIndex();
+    }
+
+    /**
+     * Writes the cleaned graph, its ways and its named locations to a binary snapshot file.
+     * Loading a snapshot skips XML parsing and cleaning; the name and spatial indexes are
+     * rebuilt on load.
+     * @param path The file to write, which should end with SNAPSHOT_SUFFIX.
+     */
+    void writeSnapshot(String path) throws IOException {
+        if (layer != null) {
+            compact().writeSnapshot(path);
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(path), 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(numVertices);
+            for (int i = 0; i < numVertices; i++) {
+                out.writeLong(ids[i]);
+                out.writeDouble(lons[i]);
+                out.writeDouble(lats[i]);
+            }
+            out.writeInt(numEdges);
+            for (int i = 0; i <= numVertices; i++) {
+                out.writeInt(adjStart[i]);
+            }
+            for (int e = 0; e < numEdges; e++) {
+                out.writeInt(adjTarget[e]);
+                out.writeInt(adjWay[e]);
+                out.writeBoolean(adjBackward[e]);
+            }
+            out.writeInt(ways.size());
+            for (Edge way : ways) {
+                out.writeLong(way.id);
+                out.writeInt(way.extrainfo.size());
+                for (Map.Entry<String, String> tag : way.extrainfo.entrySet()) {
+                    out.writeUTF(tag.getKey());
+                    out.writeUTF(tag.getValue());
+                }
+            }
+            out.writeInt(numPOIs);
+            for (int poi = 0; poi < numPOIs; poi++) {
+                out.writeLong(poiIDs[poi]);
+                out.writeDouble(poiLons[poi]);
+                out.writeDouble(poiLats[poi]);
+                out.writeUTF(poiNames[poi]);
+            }
+            out.writeInt(numRestrictions);
+            for (int i = 0; i < 5 * numRestrictions; i++) {
+                out.writeLong(restrictions[i]);
+            }
+            out.writeInt(spareIDs.length);
+            for (int i = 0; i < spareIDs.length; i++) {
+                out.writeLong(spareIDs[i]);
+                out.writeDouble(spareLons[i]);
+                out.writeDouble(spareLats[i]);
+            }
+        }
+    }
+
+    private void readSnapshot(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(path), 1 << 16))) {
+            int version = in.readInt() == SNAPSHOT_MAGIC ? in.readInt() : -1;
+            if (version < 1 || version > SNAPSHOT_VERSION) {
+                throw new IOException(path + " is not a version " + SNAPSHOT_VERSION
+                        + " graph snapshot.");
+            }
+            int n = in.readInt();
+            ids = new long[withSlack(n)];
+            lons = new double[ids.length];
+            lats = new double[ids.length];
+            numVertices = n;
+            for (int i = 0; i < n; i++) {
+                ids[i] = in.readLong();
+                lons[i] = in.readDouble();
+                lats[i] = in.readDouble();
+            }
+            int m = in.readInt();
+            adjStart = new int[n + 1];
+            adjTarget = new int[withSlack(m)];
+            adjWay = new int[adjTarget.length];
+            adjBackward = new boolean[adjTarget.length];
+            numEdges = m;
+            for (int i = 0; i <= n; i++) {
+                adjStart[i] = in.readInt();
+            }
+            adjEnd = Arrays.copyOfRange(adjStart, 1, n + 1);
+            /* Version 1 snapshots have no directions, so one-way streets in them are
+             * driven both ways, and no turn restrictions. */
+            for (int e = 0; e < m; e++) {
+                adjTarget[e] = in.readInt();
+                adjWay[e] = in.readInt();
+                adjBackward[e] = version > 1 && in.readBoolean();
+            }
+            int numWays = in.readInt();
+            for (int w = 0; w < numWays; w++) {
+                Edge way = new Edge(in.readLong());
+                way.valid = true;
+                way.nodeList = Collections.emptyList();
+                int numTags = in.readInt();
+                for (int t = 0; t < numTags; t++) {
+                    way.extrainfo.put(in.readUTF(), in.readUTF());
+                }
+                ways.add(way);
+            }
+            numPOIs = in.readInt();
+            poiIDs = new long[numPOIs];
+            poiLons = new double[numPOIs];
+            poiLats = new double[numPOIs];
+            poiNames = new String[numPOIs];
+            for (int poi = 0; poi < numPOIs; poi++) {
+                poiIDs[poi] = in.readLong();
+                poiLons[poi] = in.readDouble();
+                poiLats[poi] = in.readDouble();
+                poiNames[poi] = in.readUTF();
+                indexName(poi);
+            }
+            numRestrictions = version > 1 ? in.readInt() : 0;
+            restrictions = new long[5 * numRestrictions];
+            /* Before version 4, snapshots have no relation ids. */
+            for (int i = 0; i < restrictions.length; i++) {
+                restrictions[i] = i % 5 < 4 || version > 3 ? in.readLong() : 0;
+            }
+            /* Before version 3, snapshots have no spare nodes. */
+            int numSpare = version > 2 ? in.readInt() : 0;
+            spareIDs = new long[numSpare];
+            spareLons = new double[numSpare];
+            spareLats = new double[numSpare];
+            for (int i = 0; i < numSpare; i++) {
+                spareIDs[i] = in.readLong();
+                spareLons[i] = in.readDouble();
+                spareLats[i] = in.readDouble();
+            }
+        }
+        rawIDs = null;
+        rawLons = null;
+        rawLats = null;
+        pairEnds = null;
+        pairWays = null;
+        spareRefs = null;
+        buildIndexes();
+    }
+
+    /** Sorts the parse-time nodes by id. OSM extracts are usually sorted already. */
+    private void sortRawNodes() {
+        boolean sorted = true;
+        for (int r = 1; r < numRaw && sorted; r++) {
+            sorted = rawIDs[r - 1] <= rawIDs[r];
+        }
+        if (sorted) {
+            return;
+        }
+        Integer[] order = new Integer[numRaw];
+        for (int r = 0; r < numRaw; r++) {
+            order[r] = r;
+        }
+        Arrays.sort(order, Comparator.comparingLong(r -> rawIDs[r]));
+        long[] sortedIDs = new long[numRaw];
+        double[] sortedLons = new double[numRaw];
+        double[] sortedLats = new double[numRaw];
+        for (int r = 0; r < numRaw; r++) {
+            sortedIDs[r] = rawIDs[order[r]];
+            sortedLons[r] = rawLons[order[r]];
+            sortedLats[r] = rawLats[order[r]];
+        }
+        rawIDs = sortedIDs;
+        rawLons = sortedLons;
+        rawLats = sortedLats;
+    }
+
+    /**
+     * Builds the compressed adjacency arrays. Each pair becomes a half-edge in both
+     * directions, and the one against the order of the way's nodes is marked backward. If
+     * several ways join the same two vertices, the way added last wins, and each vertex
+     * lists its neighbors in increasing id order.
+     */
+    private void buildAdjacency(int[] pairRaw, int[] vertexOf) {
+        int n = numVertices;
+        int[] degree = new int[n + 1];
+        for (int p = 0; p < numPairs; p++) {
+            if (pairRaw[2 * p] >= 0 && pairRaw[2 * p + 1] >= 0) {
+                degree[vertexOf[pairRaw[2 * p]] + 1]++;
+                degree[vertexOf[pairRaw[2 * p + 1]] + 1]++;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            degree[i + 1] += degree[i];
+        }
+        int[] target = new int[degree[n]];
+        int[] way = new int[degree[n]];
+        boolean[] backward = new boolean[degree[n]];
+        int[] fill = Arrays.copyOf(degree, n);
+        for (int p = 0; p < numPairs; p++) {
+            if (pairRaw[2 * p] >= 0 && pairRaw[2 * p + 1] >= 0) {
+                int v = vertexOf[pairRaw[2 * p]];
+                int w = vertexOf[pairRaw[2 * p + 1]];
+                target[fill[v]] = w;
+                way[fill[v]++] = pairWays[p];
+                target[fill[w]] = v;
+                backward[fill[w]] = true;
+                way[fill[w]++] = pairWays[p];
+            }
+        }
+
+        /* Sort each vertex's half-edges by target, stably so the last way stays last, and
+         * keep one half-edge per target: the last way cars can drive in its direction, if
+         * any, then the last road cars can use, so that a footway or a one-way street
+         * sharing a segment with a road does not take the road away from cars, and
+         * otherwise the last way. The last way is the one with the highest index, so that
+         * graphs built from changes, whose segments come in another order, agree. */
+        int[] rank = new int[2 * ways.size()];
+        for (int w = 0; w < ways.size(); w++) {
+            rank[2 * w] = rank(ways.get(w), false);
+            rank[2 * w + 1] = rank(ways.get(w), true);
+        }
+        adjStart = new int[n + 1];
+        int m = 0;
+        for (int v = 0; v < n; v++) {
+            int lo = degree[v], hi = degree[v + 1];
+            for (int i = lo + 1; i < hi; i++) {
+                int t = target[i], wy = way[i], j = i - 1;
+                boolean b = backward[i];
+                while (j >= lo && target[j] > t) {
+                    target[j + 1] = target[j];
+                    way[j + 1] = way[j];
+                    backward[j + 1] = backward[j];
+                    j--;
+                }
+                target[j + 1] = t;
+                way[j + 1] = wy;
+                backward[j + 1] = b;
+            }
+            adjStart[v] = m;
+            for (int i = lo; i < hi; ) {
+                int end = i + 1;
+                while (end < hi && target[end] == target[i]) {
+                    end++;
+                }
+                int keep = end - 1;
+                for (int k = end - 1; k >= i; k--) {
+                    int r = rank[2 * way[k] + (backward[k] ? 1 : 0)];
+                    int best = rank[2 * way[keep] + (backward[keep] ? 1 : 0)];
+                    if (r > best || r == best && way[k] > way[keep]) {
+                        keep = k;
+                    }
+                }
+                target[m] = target[i];
+                backward[m] = backward[keep];
+                way[m++] = way[keep];
+                i = end;
+            }
+        }
+        adjStart[n] = m;
+        adjEnd = Arrays.copyOfRange(adjStart, 1, n + 1);
+        adjTarget = Arrays.copyOf(target, withSlack(m));
+        adjWay = Arrays.copyOf(way, adjTarget.length);
+        adjBackward = Arrays.copyOf(backward, adjTarget.length);
+        numEdges = m;
+
+        int numHidden = 0;
+        for (int p = 0; p < numPairs; p++) {
+            if (pairRaw[2 * p] >= 0 && pairRaw[2 * p + 1] >= 0) {
+                int v = vertexOf[pairRaw[2 * p]];
+                int w = vertexOf[pairRaw[2 * p + 1]];
+                if (!isKept(v, w, pairWays[p], false) || !isKept(w, v, pairWays[p], true)) {
+                    if (numHidden == hiddenWays.length) {
+                        hiddenWays = Arrays.copyOf(hiddenWays, Math.max(16, 2 * numHidden));
+                        hiddenPairs = Arrays.copyOf(hiddenPairs, 2 * hiddenWays.length);
+                    }
+                    hiddenPairs[2 * numHidden] = v;
+                    hiddenPairs[2 * numHidden + 1] = w;
+                    hiddenWays[numHidden++] = pairWays[p];
+                }
+            }
+        }
+        hiddenPairs = Arrays.copyOf(hiddenPairs, 2 * numHidden);
+        hiddenWays = Arrays.copyOf(hiddenWays, numHidden);
+    }
+
+    /** Whether the half-edge from v to w is along the given way, in the given direction. */
+    private boolean isKept(int v, int w, int way, boolean backward) {
+        int e = Arrays.binarySearch(adjTarget, adjStart[v], adjEnd[v], w);
+        return e >= 0 && adjWay[e] == way && adjBackward[e] == backward;
+    }
+
+    /**
+     * Computes the length of every half-edge, the modes allowed along it and its cost under
+     * every profile.
+     */
+    private void buildEdgeCosts() {
+        adjLength = new double[adjTarget.length];
+        for (int v = 0; v < numVertices; v++) {
+            for (int e = adjStart[v]; e < adjEnd[v]; e++) {
+                int w = adjTarget[e];
+                adjLength[e] = distance(lons[v], lats[v], lons[w], lats[w]);
+            }
+        }
+        wayAccess = new byte[ways.size()];
+        byte[] forwardAccess = new byte[ways.size()];
+        byte[] backwardAccess = new byte[ways.size()];
+        for (int w = 0; w < wayAccess.length; w++) {
+            Edge way = ways.get(w);
+            wayAccess[w] = (byte) Profile.access(way);
+            forwardAccess[w] = (byte) Profile.access(way, false);
+            backwardAccess[w] = (byte) Profile.access(way, directed);
+        }
+        adjAccess = new byte[adjTarget.length];
+        for (int e = 0; e < numEdges; e++) {
+            adjAccess[e] = adjBackward[e] ? backwardAccess[adjWay[e]] : forwardAccess[adjWay[e]];
+        }
+
+        Profile[] profiles = Profile.values();
+        adjWeights = new double[profiles.length][];
+        minCostPerMile = new double[profiles.length];
+        double[] wayCost = new double[ways.size()];
+        for (Profile profile : profiles) {
+            int bit = profile.mode.bit();
+            double min = Double.POSITIVE_INFINITY;
+            for (int w = 0; w < wayCost.length; w++) {
+                if ((wayAccess[w] & bit) == 0) {
+                    wayCost[w] = Double.POSITIVE_INFINITY;
+                } else {
+                    wayCost[w] = profile.costPerMile(ways.get(w));
+                    min = Math.min(min, wayCost[w]);
+                }
+            }
+            double[] weights = adjLength;
+            if (profile != Profile.DISTANCE) {
+                weights = new double[adjTarget.length];
+                for (int e = 0; e < numEdges; e++) {
+                    weights[e] = (adjAccess[e] & bit) == 0 ? Double.POSITIVE_INFINITY
+                            : adjLength[e] * wayCost[adjWay[e]];
+                }
+            }
+            adjWeights[profile.ordinal()] = weights;
+            minCostPerMile[profile.ordinal()] = min == Double.POSITIVE_INFINITY ? 0 : min;
+        }
+    }
+
+    /**
+     * Resolves the turn restrictions against the graph and builds the turn state tables.
+     * Restrictions whose ways or via node are not in the car graph are ignored, as are all
+     * of them in an undirected graph.
+     */
+    private void buildTurnRestrictions() {
+        turnBase = ids.length;
+        numTurns = 0;
+        turnVertex = new int[0];
+        turnEdge = new int[0];
+        turnForbiddenStart = new int[1];
+        turnForbidden = new int[0];
+        adjState = adjTarget;
+        int[] viaOf = new int[numRestrictions];
+        for (int r = 0; r < numRestrictions; r++) {
+            viaOf[r] = directed ? indexOf(restrictions[5 * r + 1]) : -1;
+        }
+        int[][] byVia = group(viaOf, numVertices);
+        for (int v = 0; v < numVertices; v++) {
+            if (byVia[0][v] < byVia[0][v + 1]) {
+                addTurnStates(v, byVia[1], byVia[0][v], byVia[0][v + 1]);
+            }
+        }
+    }
+
+    /**
+     * Resolves the turn restrictions rs[from..to - 1], all at vertex via, and adds a turn
+     * state for every half-edge into via with restricted turns, in half-edge order.
+     */
+    private void addTurnStates(int via, int[] rs, int from, int to) {
+        int car = Profile.Mode.CAR.bit();
+        /* Restricted turns, as the half-edge in and the half-edge out of the via vertex. */
+        long[] turns = new long[16];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            long fromWay = restrictions[5 * rs[i]], toWay = restrictions[5 * rs[i] + 2];
+            boolean only = restrictions[5 * rs[i] + 3] != 0;
+            for (int back = adjStart[via]; back < adjEnd[via]; back++) {
+                int in = edgeTwin(back);
+                if (ways.get(adjWay[back]).id != fromWay || (adjAccess[in] & car) == 0) {
+                    continue;
+                }
+                for (int out = adjStart[via]; out < adjEnd[via]; out++) {
+                    /* A U-turn restriction names the same way twice, and forbids only
+                     * turning back onto it. */
+                    boolean onto = ways.get(adjWay[out]).id == toWay
+                            && (fromWay != toWay || out == back);
+                    if (onto != only && (adjAccess[out] & car) != 0) {
+                        if (count == turns.length) {
+                            turns = Arrays.copyOf(turns, 2 * count);
+                        }
+                        turns[count++] = (long) in << 32 | out;
+                    }
+                }
+            }
+        }
+
+        /* One turn state per half-edge with restricted turns. */
+        Arrays.sort(turns, 0, count);
+        for (int t = 0; t < count; ) {
+            if (numTurns + 1 >= turnForbiddenStart.length) {
+                turnVertex = Arrays.copyOf(turnVertex, Math.max(16, 2 * numTurns));
+                turnEdge = Arrays.copyOf(turnEdge, turnVertex.length);
+                turnForbiddenStart = Arrays.copyOf(turnForbiddenStart, turnVertex.length + 1);
+            }
+            int in = (int) (turns[t] >>> 32);
+            int f = turnForbiddenStart[numTurns];
+            if (f + count > turnForbidden.length) {
+                turnForbidden = Arrays.copyOf(turnForbidden, Math.max(f + count,
+                        2 * turnForbidden.length));
+            }
+            for (; t < count && turns[t] >>> 32 == in; t++) {
+                if (f == turnForbiddenStart[numTurns] || turnForbidden[f - 1] != (int) turns[t]) {
+                    turnForbidden[f++] = (int) turns[t];
+                }
+            }
+            if (adjState == adjTarget) {
+                adjState = adjTarget.clone();
+            }
+            adjState[in] = turnBase + numTurns;
+            turnVertex[numTurns] = via;
+            turnEdge[numTurns] = in;
+            turnForbiddenStart[++numTurns] = f;
+        }
+    }
+
+    /** Classifies every turn by the bearings of the half-edges it joins. */
+    private void buildTurnDirections() {
+        int m = numEdges;
+        double[] bearings = new double[m];
+        turnDirectionStart = new int[adjTarget.length];
+        int total = 0;
+        for (int v = 0; v < numVertices; v++) {
+            for (int e = adjStart[v]; e < adjEnd[v]; e++) {
+                int w = adjTarget[e];
+                bearings[e] = bearing(lons[v], lats[v], lons[w], lats[w]);
+                turnDirectionStart[e] = total;
+                total += adjEnd[w] - adjStart[w];
+            }
+        }
+        turnDirections = new byte[withSlack(total)];
+        numTurnDirections = total;
+        for (int e = 0; e < m; e++) {
+            int w = adjTarget[e];
+            for (int f = adjStart[w]; f < adjEnd[w]; f++) {
+                turnDirections[turnDirectionStart[e] + f - adjStart[w]] =
+                        (byte) Router.getDirection(bearings[e], bearings[f]);
+            }
+        }
+    }
+
+    /** Numbers the distinct way names. */
+    private void buildWayNames() {
+        Map<String, Integer> interned = new HashMap<>();
+        wayNameId = new int[ways.size()];
+        for (int w = 0; w < wayNameId.length; w++) {
+            String name = ways.get(w).extrainfo.get("name");
+            Integer id = interned.get(name);
+            if (id == null) {
+                id = interned.size();
+                interned.put(name, id);
+            }
+            wayNameId[w] = id;
+        }
+        wayNameTable = new String[interned.size()];
+        for (Map.Entry<String, Integer> entry : interned.entrySet()) {
+            wayNameTable[entry.getValue()] = entry.getKey();
+        }
+    }
+
+    /** Returns the half-edge in the opposite direction of half-edge e. */
+    int edgeTwin(int e) {
+        int v = edgeSource(e);
+        int w = adjTarget[e];
+        for (int back = adjStart[w]; back < adjEnd[w]; back++) {
+            if (adjTarget[back] == v) {
+                return back;
+            }
+        }
+        throw new IllegalStateException("Half-edge " + e + " has no twin.");
+    }
 
     /**
-     * Example constructor shows how to create and start an XML parser.
-     * You do not need to modify this constructor, but you're welcome to do so.
-     * @param dbPath Path to the XML file to be parsed.
+     * Finds the vertices and road segments each mode can use, and builds a spatial index
+     * over each set.
      */
+    private void buildModeIndexes() {
+        Profile.Mode[] modes = Profile.Mode.values();
+        modeVertices = new int[modes.length][];
+        modeTrees = new KdTree[modes.length];
+        modeSegments = new SegmentIndex[modes.length];
+        modeSegmentEdges = new int[modes.length][];
+        for (Profile.Mode mode : modes) {
+            buildModeIndex(mode);
+        }
+    }
 
-    private final Map<Long, Node> graph = new HashMap<>();
-    private final Trie trie = new Trie();
-    private final Map<String, List<Long>> names = new HashMap<>();
-    private final Map<Long, Node> rawGraph = new HashMap<>();
-    public GraphDB(String dbPath) {
-        try {
-            File inputFile = new File(dbPath);
-            FileInputStream inputStream = new FileInputStream(inputFile);
-            // GZIPInputStream stream = new GZIPInputStream(inputStream);
+    /**
+     * Builds the spatial indexes of the vertices and road segments a mode can use in some
+     * direction, going by the access bits of the half-edges, so that withTraffic() can
+     * leave closed roads out of them.
+     */
+    private void buildModeIndex(Profile.Mode mode) {
+        int bit = mode.bit();
+        int[] vertices = openVertices(null, bit);
+        modeVertices[mode.ordinal()] = vertices;
+        modeTrees[mode.ordinal()] = vertexTree(vertices);
+        int[] segmentEdges = edgesFrom(null,
+                (v, e) -> isLowerEnd(v, e) && isSegmentOpen(v, e, bit));
+        modeSegmentEdges[mode.ordinal()] = segmentEdges;
+        modeSegments[mode.ordinal()] = segmentIndex(segmentEdges);
+    }
 
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
-            GraphBuildingHandler gbh = new GraphBuildingHandler(this);
-            saxParser.parse(inputStream, gbh);
-        } catch (ParserConfigurationException | SAXException | IOException e) {
-            e.printStackTrace();
+    /**
+     * Returns the vertices among the given ones, or among all if null, with a half-edge
+     * whose segment the modes in the bitmask may use.
+     */
+    private int[] openVertices(int[] among, int bit) {
+        int count = among == null ? numVertices : among.length;
+        int n = 0;
+        int[] members = new int[count];
+        for (int k = 0; k < count; k++) {
+            int v = among == null ? k : among[k];
+            for (int e = adjStart[v]; e < adjEnd[v]; e++) {
+                if (isSegmentOpen(v, e, bit)) {
+                    members[n++] = v;
+                    break;
+                }
+            }
         }
-        clean();
+        return Arrays.copyOf(members, n);
+    }
+
+    /** Selects half-edges, see edgesFrom(). */
+    private interface EdgeFilter {
+        boolean test(int v, int e);
     }
 
     /**
-     * Helper to process strings into their "cleaned" form, ignoring punctuation and capitalization.
-     * @param s Input string.
-     * @return Cleaned string.
+     * Returns the half-edges the filter accepts among those leaving the given vertices, or
+     * all vertices if null, in order.
      */
-    static String cleanString(String s) {
-        return s.replaceAll("[^a-zA-Z ]", "").toLowerCase();
+    private int[] edgesFrom(int[] among, EdgeFilter filter) {
+        int count = among == null ? numVertices : among.length;
+        int capacity = among == null ? numEdges : 0;
+        for (int k = 0; among != null && k < count; k++) {
+            capacity += adjEnd[among[k]] - adjStart[among[k]];
+        }
+        int m = 0;
+        int[] edges = new int[capacity];
+        for (int k = 0; k < count; k++) {
+            int v = among == null ? k : among[k];
+            for (int e = adjStart[v]; e < adjEnd[v]; e++) {
+                if (filter.test(v, e)) {
+                    edges[m++] = e;
+                }
+            }
+        }
+        return Arrays.copyOf(edges, m);
+    }
+
+    /** Builds a KdTree over the given vertices. */
+    private KdTree vertexTree(int[] vertices) {
+        double[] treeLons = new double[vertices.length], treeLats = new double[vertices.length];
+        for (int i = 0; i < vertices.length; i++) {
+            treeLons[i] = lons[vertices[i]];
+            treeLats[i] = lats[vertices[i]];
+        }
+        return new KdTree(treeLons, treeLats);
+    }
+
+    /** Builds a SegmentIndex over the segments of the given half-edges. */
+    private SegmentIndex segmentIndex(int[] edges) {
+        int m = edges.length;
+        double[] lon1 = new double[m], lat1 = new double[m];
+        double[] lon2 = new double[m], lat2 = new double[m];
+        for (int i = 0; i < m; i++) {
+            int e = edges[i];
+            int from = edgeSource(e);
+            lon1[i] = lons[from];
+            lat1[i] = lats[from];
+            lon2[i] = lons[adjTarget[e]];
+            lat2[i] = lats[adjTarget[e]];
+        }
+        return new SegmentIndex(lon1, lat1, lon2, lat2);
     }
 
     /**
-     *  Remove nodes with no connections from the graph.
-     *  While this does not guarantee that any two nodes in the remaining graph are connected,
-     *  we can reasonably assume this since typically roads are connected.
+     * Whether half-edge e leads from vertex v to a higher id. The spatial indexes list each
+     * segment from its end with the lower id, which is the lower index unless withChange()
+     * renumbered the vertex, since overlapping ways may give its two half-edges different
+     * ways.
      */
-    private void clean() {
-        // TODO: Your code here.
-        Set<Long> temp = new HashSet<>();
-        for (long id : graph.keySet()) {
-            if (graph.get(id).neighbors.isEmpty()) {
-                temp.add(id);
+    private boolean isLowerEnd(int v, int e) {
+        return ids[v] < ids[adjTarget[e]];
+    }
+
+    /**
+     * Returns whether the modes in the bitmask may use the segment of half-edge e, which
+     * leaves vertex v, in either direction. Without traffic this is whether they may use
+     * its way at all.
+     */
+    private boolean isSegmentOpen(int v, int e, int bit) {
+        if ((adjAccess[e] & bit) != 0) {
+            return true;
+        }
+        int w = adjTarget[e];
+        for (int back = adjStart[w]; back < adjEnd[w]; back++) {
+            if (adjTarget[back] == v && adjWay[back] == adjWay[e]
+                    && (adjAccess[back] & bit) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /** Converts the parse-time name lists into arrays. */
+    private void buildNames() {
+        for (Map.Entry<String, List<Integer>> entry : pendingNames.entrySet()) {
+            List<Integer> pois = entry.getValue();
+            int[] indexes = new int[pois.size()];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = pois.get(i);
+            }
+            names.put(entry.getKey(), indexes);
+        }
+        pendingNames = null;
+        poiIDs = Arrays.copyOf(poiIDs, numPOIs);
+        poiLons = Arrays.copyOf(poiLons, numPOIs);
+        poiLats = Arrays.copyOf(poiLats, numPOIs);
+        poiNames = Arrays.copyOf(poiNames, numPOIs);
+    }
+
+    /**
+     * Builds a KdTree over the locations of every name with many matches, so that
+     * proximity-ordered search does not have to look at every match.
+     */
+    private void buildNameIndex() {
+        for (Map.Entry<String, int[]> entry : names.entrySet()) {
+            int[] pois = entry.getValue();
+            if (pois.length <= NAME_INDEX_THRESHOLD) {
+                continue;
+            }
+            double[] matchLons = new double[pois.length];
+            double[] matchLats = new double[pois.length];
+            for (int i = 0; i < pois.length; i++) {
+                matchLons[i] = poiLons[pois[i]];
+                matchLats[i] = poiLats[pois[i]];
+            }
+            nameIndex.put(entry.getKey(), new KdTree(matchLons, matchLats));
+        }
+    }
+
+    /**
+     * Builds the spatial indexes used for reverse geocoding: a KdTree over every named node
+     * and a SegmentIndex over every segment of a named way.
+     */
+    private void buildReverseIndex() {
+        namedNodeIndex = new KdTree(poiLons, poiLats);
+        namedWayEdges = edgesFrom(null, this::isNamedWaySegment);
+        namedWayIndex = segmentIndex(namedWayEdges);
+    }
+
+    /** Whether half-edge e, leaving v, leads to a higher id along a named road. */
+    private boolean isNamedWaySegment(int v, int e) {
+        return isLowerEnd(v, e) && (wayAccess[adjWay[e]] & Profile.Mode.CAR.bit()) != 0
+                && !ways.get(adjWay[e]).extrainfo.get("name").isEmpty();
+    }
+
+    /** Returns the vertex a half-edge leaves from. */
+    private int edgeSource(int e) {
+        int[] start = adjStart;
+        int n = numVertices;
+        if (layer != null) {
+            /* Half-edges past those of the graph built by clean() record their source. */
+            if (e >= layerBase.numEdges) {
+                return tailSource[e - layerBase.numEdges];
             }
+            start = layerBase.adjStart;
+            n = layerBase.numVertices;
+        }
+        int v = Arrays.binarySearch(start, 0, n + 1, e);
+        if (v < 0) {
+            return -v - 2;
         }
-        for (long tempID : temp) {
-            graph.remove(tempID);
+        /* Skip vertices without half-edges, which share their start with the next vertex. */
+        while (start[v + 1] == e) {
+            v++;
         }
+        return v;
     }
 
     /**
-     * Returns an iterable of all vertex IDs in the graph.
+     * Returns an iterable of all vertex IDs in the graph of roads cars can use.
      * @return An iterable of id's of all vertices in the graph.
      */
     Iterable<Long> vertices() {
-        //YOUR CODE HERE, this currently returns only an empty list.
-        return graph.keySet();
+        int car = Profile.Mode.CAR.ordinal();
+        int[] roadVertices = modeVertices[car];
+        if (layer != null && layer.modeTrees[car] != null) {
+            /* The layer lists the vertices it touched instead. */
+            int[] base = roadVertices, touched = layer.modeVertices[car];
+            int n = 0;
+            roadVertices = new int[base.length + touched.length];
+            for (int v : base) {
+                if (!isTouched(v)) {
+                    roadVertices[n++] = v;
+                }
+            }
+            System.arraycopy(touched, 0, roadVertices, n, touched.length);
+            roadVertices = Arrays.copyOf(roadVertices, n + touched.length);
+        }
+        int[] vertices = roadVertices;
+        return new AbstractList<Long>() {
+            @Override
+            public Long get(int i) {
+                return ids[vertices[i]];
+            }
+
+            @Override
+            public int size() {
+                return vertices.length;
+            }
+        };
     }
 
     /**
-     * Returns ids of all vertices adjacent to v.
+     * Returns ids of all vertices adjacent to v by roads cars can use, in either direction.
      * @param v The id of the vertex we are looking adjacent to.
      * @return An iterable of the ids of the neighbors of v.
      */
     Iterable<Long> adjacent(long v) {
-        return graph.get(v).neighbors.keySet();
+        int i = vertexIndex(v);
+        List<Long> res = new ArrayList<>(adjEnd[i] - adjStart[i]);
+        for (int e = adjStart[i]; e < adjEnd[i]; e++) {
+            if ((wayAccess[adjWay[e]] & Profile.Mode.CAR.bit()) != 0) {
+                res.add(ids[adjTarget[e]]);
+            }
+        }
+        return res;
     }
 
     /**
@@ -101,7 +2658,9 @@ public class GraphDB {
      * @return The great-circle distance between the two locations from the graph.
      */
     double distance(long v, long w) {
-        return distance(lon(v), lat(v), lon(w), lat(w));
+        int i = vertexIndex(v);
+        int j = vertexIndex(w);
+        return distance(lons[i], lats[i], lons[j], lats[j]);
     }
 
     static double distance(double lonV, double latV, double lonW, double latW) {
@@ -144,22 +2703,71 @@ public class GraphDB {
     }
 
     /**
-     * Returns the vertex closest to the given longitude and latitude.
+     * Returns the vertex closest to the given longitude and latitude on a road cars can use.
      * @param lon The target longitude.
      * @param lat The target latitude.
      * @return The id of the node in the graph closest to the target.
      */
     long closest(double lon, double lat) {
-        long resID = 0;
-        double dis = Double.MAX_VALUE;
-        for (long nodeID : graph.keySet()) {
-            double candDis = distance(graph.get(nodeID).lon, graph.get(nodeID).lat, lon, lat);
-            if (candDis < dis) {
-                dis = candDis;
-                resID = nodeID;
+        return closest(lon, lat, Profile.DISTANCE);
+    }
+
+    /**
+     * Returns the vertex closest to the given longitude and latitude that the profile's mode
+     * of travel can use, or 0 if there is none.
+     */
+    long closest(double lon, double lat, Profile profile) {
+        int i = closestIndex(lon, lat, profile);
+        return i < 0 ? 0 : ids[i];
+    }
+
+    /**
+     * Returns the index of the vertex closest to the given longitude and latitude that the
+     * profile's mode of travel can use, or -1 if there is none.
+     */
+    int closestIndex(double lon, double lat, Profile profile) {
+        int mode = profile.mode.ordinal();
+        int[] vertices = modeVertices[mode];
+        if (layer == null || layer.modeTrees[mode] == null) {
+            int i = modeTrees[mode].nearest(lon, lat);
+            return i < 0 ? -1 : vertices[i];
+        }
+        /* The vertices the layer touched are answered from its own index. */
+        int i = modeTrees[mode].nearest(lon, lat, k -> !isTouched(vertices[k]));
+        int j = layer.modeTrees[mode].nearest(lon, lat);
+        int v = i < 0 ? -1 : vertices[i];
+        int w = j < 0 ? -1 : layer.modeVertices[mode][j];
+        if (v < 0 || w < 0) {
+            return Math.max(v, w);
+        }
+        return distance(lons[w], lats[w], lon, lat) < distance(lons[v], lats[v], lon, lat)
+                ? w : v;
+    }
+
+    /**
+     * Returns the point closest to the given longitude and latitude on a road segment the
+     * profile's mode of travel can use, or null if there is none.
+     */
+    Snap snap(double lon, double lat, Profile profile) {
+        int mode = profile.mode.ordinal();
+        int[] edges = modeSegmentEdges[mode];
+        int[] hitEdges = edges;
+        SegmentIndex.Hit hit;
+        if (layer == null || layer.modeTrees[mode] == null) {
+            hit = modeSegments[mode].nearest(lon, lat);
+        } else {
+            /* The segments the layer touched are answered from its own index. */
+            hit = modeSegments[mode].nearest(lon, lat, k -> !isTouched(edgeSource(edges[k])));
+            SegmentIndex.Hit touched = layer.modeSegments[mode].nearest(lon, lat);
+            if (touched != null && (hit == null || touched.distance < hit.distance)) {
+                hit = touched;
+                hitEdges = layer.modeSegmentEdges[mode];
             }
         }
-        return resID;
+        if (hit == null) {
+            return null;
+        }
+        return new Snap(hitEdges[hit.segment], hit.t, hit.lon, hit.lat);
     }
 
     /**
@@ -168,7 +2776,7 @@ public class GraphDB {
      * @return The longitude of the vertex.
      */
     double lon(long v) {
-        return graph.get(v).lon;
+        return lons[vertexIndex(v)];
     }
 
     /**
@@ -177,25 +2785,318 @@ public class GraphDB {
      * @return The latitude of the vertex.
      */
     double lat(long v) {
-        return graph.get(v).lat;
+        return lats[vertexIndex(v)];
+    }
+
+    /**
+     * Gets the name of the way joining two adjacent vertices.
+     * @param v The id of the first vertex.
+     * @param w The id of the second vertex.
+     * @return The name of the way, or the empty string for an unnamed way.
+     */
+    String wayName(long v, long w) {
+        int e = edgeBetween(vertexIndex(v), vertexIndex(w));
+        if (e < 0) {
+            throw new IllegalArgumentException("Vertices " + v + " and " + w
+                    + " are not adjacent.");
+        }
+        return wayNameTable[edgeNameId(e)];
+    }
+
+    /*
+     * Index-level access for search algorithms, which keep their state in arrays indexed by
+     * vertex rather than in maps keyed by id. Vertex indexes run from 0 to numVertices() - 1;
+     * the half-edges leaving vertex i are edgeStart(i) to edgeEnd(i) - 1. In graphs returned
+     * by withChange(), the indexes of vertices that a change moved or removed are left
+     * without half-edges, though vertexID() still gives their ids.
+     */
+
+    /**
+     * Returns the index of a vertex in the packed arrays.
+     * @throws IllegalArgumentException If v is not a vertex of the graph.
+     */
+    int vertexIndex(long v) {
+        int i = indexOf(v);
+        if (i < 0) {
+            throw new IllegalArgumentException("Vertex " + v + " is not in the graph.");
+        }
+        return i;
+    }
+
+    int numVertices() {
+        return numVertices;
+    }
+
+    /** Returns the index of the vertex with the given id, or -1 if it is not a vertex. */
+    private int indexOf(long id) {
+        int n = numVertices;
+        if (layer != null) {
+            Integer i = layer.nodes.get(id);
+            if (i != null) {
+                return i;
+            }
+            n = layerBase.numVertices;
+        }
+        int i = Arrays.binarySearch(ids, 0, n, id);
+        return i < 0 ? -1 : i;
+    }
+
+    /** Returns the id of the vertex with the given index. */
+    long vertexID(int i) {
+        return ids[i];
+    }
+
+    double vertexLon(int i) {
+        return lons[i];
+    }
+
+    double vertexLat(int i) {
+        return lats[i];
+    }
+
+    int edgeStart(int i) {
+        return adjStart[i];
+    }
+
+    int edgeEnd(int i) {
+        return adjEnd[i];
+    }
+
+    int numEdges() {
+        return numEdges;
+    }
+
+    /** Returns the index of the vertex a half-edge leads to. */
+    int edgeTarget(int e) {
+        return adjTarget[e];
+    }
+
+    /** Returns the half-edge from vertex index i to vertex index j, or -1 if there is none. */
+    int edgeBetween(int i, int j) {
+        for (int e = adjStart[i]; e < adjEnd[i]; e++) {
+            if (adjTarget[e] == j) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the name id of the way along a half-edge. Half-edges are on equally named ways
+     * exactly if their name ids are equal; nameOfId() turns an id back into the name.
+     */
+    int edgeNameId(int e) {
+        return wayNameId[adjWay[e]];
+    }
+
+    /** Returns the way name with the given id, or the empty string for unnamed ways. */
+    String nameOfId(int id) {
+        return wayNameTable[id];
+    }
+
+    /** Returns the bitmask of the Profile.Modes allowed along a half-edge, in its direction. */
+    int edgeAccess(int e) {
+        return adjAccess[e];
+    }
+
+    /**
+     * Returns the direction of every turn, as a Router.NavigationDirection: the turn from
+     * half-edge in onto half-edge out, which must leave the target of in, is at
+     * turnIndex(in) + out. The array is shared and must not be modified.
+     */
+    byte[] turnDirections() {
+        return turnDirections;
+    }
+
+    /** See turnDirections(). The offset may be negative, since out is a half-edge index. */
+    int turnIndex(int in) {
+        return turnDirectionStart[in] - adjStart[adjTarget[in]];
+    }
+
+    /*
+     * Search states, for obeying turn restrictions; see adjState. Searches label states
+     * 0 to numStates() - 1 instead of vertices, follow edgeTargets() to states and skip
+     * the half-edges isTurnForbidden() from the state they expand.
+     */
+
+    int numStates() {
+        return numTurns == 0 ? numVertices : turnBase + numTurns;
+    }
+
+    /** Returns the vertex of a search state. */
+    int stateVertex(int s) {
+        return s < turnBase ? s : turnVertex[s - turnBase];
+    }
+
+    /**
+     * Returns the first turn state of vertex v, or numStates() if it has none. The turn
+     * states of v follow in order, as long as their stateVertex is v.
+     */
+    int firstTurnState(int v) {
+        int[] blocks = turnBlocks;
+        int lo = 0, hi = blocks == null ? numTurns : blocks.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (turnVertex[blocks == null ? mid : blocks[mid]] < v) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int k = blocks == null ? lo : lo < blocks.length ? blocks[lo] : numTurns;
+        return k < numTurns && turnVertex[k] == v ? turnBase + k : numStates();
+    }
+
+    /** Returns whether half-edge e may not be taken from state s. */
+    boolean isTurnForbidden(int s, int e) {
+        if (s < turnBase) {
+            return false;
+        }
+        int k = s - turnBase;
+        for (int f = turnForbiddenStart[k]; f < turnForbiddenStart[k + 1]; f++) {
+            if (turnForbidden[f] == e) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the state every half-edge leads to under a profile, indexed by half-edge.
+     * Only driving obeys turn restrictions, so for other profiles these are just the
+     * target vertices. The array is shared and must not be modified.
+     */
+    int[] edgeTargets(Profile profile) {
+        return profile.mode == Profile.Mode.CAR ? adjState : adjTarget;
+    }
+
+    /** Returns the length of a half-edge in miles. */
+    double edgeLength(int e) {
+        return adjLength[e];
+    }
+
+    /**
+     * Returns the cost of every half-edge under a profile, indexed by half-edge. The array
+     * is shared and must not be modified.
+     */
+    double[] edgeWeights(Profile profile) {
+        return adjWeights[profile.ordinal()];
+    }
+
+    /**
+     * Returns the lowest cost per mile of any way under a profile. Great-circle miles times
+     * this never exceed the cost of a route, which makes it an admissible A* heuristic.
+     */
+    double minCostPerMile(Profile profile) {
+        return minCostPerMile[profile.ordinal()];
+    }
+
+    /**
+     * Records a node while parsing. Nodes that end up on no valid way are discarded by
+     * clean(), unless they are named.
+     */
+    void addNode(long id, double lat, double lon) {
+        if (numRaw == rawIDs.length) {
+            rawIDs = Arrays.copyOf(rawIDs, 2 * numRaw);
+            rawLons = Arrays.copyOf(rawLons, 2 * numRaw);
+            rawLats = Arrays.copyOf(rawLats, 2 * numRaw);
+        }
+        rawIDs[numRaw] = id;
+        rawLons[numRaw] = lon;
+        rawLats[numRaw] = lat;
+        numRaw++;
+    }
+
+    /**
+     * Names the node most recently passed to addNode, adding it to the location table.
+     * @param id The id of that node.
+     * @param name The name of the node.
+     */
+    void addNodeName(long id, String name) {
+        if (numRaw == 0 || rawIDs[numRaw - 1] != id) {
+            throw new IllegalArgumentException("Node " + id + " was not the last node added.");
+        }
+        addPOI(id, rawLons[numRaw - 1], rawLats[numRaw - 1], name);
+    }
+
+    /** Adds a named location to the location table. */
+    private void addPOI(long id, double lon, double lat, String name) {
+        if (numPOIs == poiIDs.length) {
+            poiIDs = Arrays.copyOf(poiIDs, 2 * numPOIs);
+            poiLons = Arrays.copyOf(poiLons, 2 * numPOIs);
+            poiLats = Arrays.copyOf(poiLats, 2 * numPOIs);
+            poiNames = Arrays.copyOf(poiNames, 2 * numPOIs);
+        }
+        poiIDs[numPOIs] = id;
+        poiLons[numPOIs] = lon;
+        poiLats[numPOIs] = lat;
+        poiNames[numPOIs] = name;
+        indexName(numPOIs);
+        numPOIs++;
+    }
+
+    /** Adds a POI's name to the autocomplete trie and to the pending name lists. */
+    private void indexName(int poi) {
+        String cleanedName = cleanString(poiNames[poi]);
+        trie.insert(cleanedName, poiNames[poi]);
+        pendingNames.computeIfAbsent(cleanedName, k -> new ArrayList<>()).add(poi);
+    }
+
+    /**
+     * Records a valid way while parsing, connecting each pair of consecutive nodes.
+     * @param way The way, with its nodes in order.
+     */
+    void addWay(Edge way) {
+        for (int i = 0; i < way.nodeList.size() - 1; i++) {
+            addPair(way.nodeList.get(i), way.nodeList.get(i + 1), ways.size());
+        }
+        ways.add(way);
     }
 
-    Node getNode(long v) {
-        return graph.get(v);
+    /**
+     * Records the nodes of a road that is not routed while parsing, so that clean() keeps
+     * those that are not vertices; see spareIDs.
+     */
+    void addSpareNodes(List<Long> nodes) {
+        while (numSpareRefs + nodes.size() > spareRefs.length) {
+            spareRefs = Arrays.copyOf(spareRefs, 2 * spareRefs.length);
+        }
+        for (long id : nodes) {
+            spareRefs[numSpareRefs++] = id;
+        }
     }
 
-    void addNode(Node node) {
-        graph.put(node.id, node);
-        rawGraph.put(node.id, node);
+    /** Records a segment of a way while parsing, from node id v to node id w. */
+    private void addPair(long v, long w, int way) {
+        if (2 * numPairs == pairEnds.length) {
+            pairEnds = Arrays.copyOf(pairEnds, 2 * pairEnds.length);
+            pairWays = Arrays.copyOf(pairWays, pairEnds.length / 2);
+        }
+        pairEnds[2 * numPairs] = v;
+        pairEnds[2 * numPairs + 1] = w;
+        pairWays[numPairs] = way;
+        numPairs++;
     }
 
-    void addNodeName(Node node) {
-        String name = node.extrainfo.get("name");
-        String cleanedName = cleanString(name);
-        trie.insert(cleanedName, name);
-        List<Long> listOfIDs = names.getOrDefault(cleanedName, new ArrayList<>());
-        listOfIDs.add(node.id);
-        names.put(cleanedName, listOfIDs);
+    /**
+     * Records a turn restriction while parsing.
+     * @param relation The id of the relation the restriction comes from.
+     * @param fromWay The id of the way the turn starts on.
+     * @param viaNode The id of the node where the turn is made.
+     * @param toWay The id of the way the turn ends on.
+     * @param only If true, every other turn from fromWay at viaNode is forbidden instead.
+     */
+    void addTurnRestriction(long relation, long fromWay, long viaNode, long toWay,
+                            boolean only) {
+        if (5 * numRestrictions == restrictions.length) {
+            restrictions = Arrays.copyOf(restrictions, Math.max(20, 2 * restrictions.length));
+        }
+        restrictions[5 * numRestrictions] = fromWay;
+        restrictions[5 * numRestrictions + 1] = viaNode;
+        restrictions[5 * numRestrictions + 2] = toWay;
+        restrictions[5 * numRestrictions + 3] = only ? 1 : 0;
+        restrictions[5 * numRestrictions + 4] = relation;
+        numRestrictions++;
     }
 
     List<String> getLocationsByPrefix(String prefix) {
@@ -203,38 +3104,127 @@ public class GraphDB {
     }
 
     List<Map<String, Object>> getLocations(String locationName) {
-        List<Long> listOfIDs = names.get(cleanString(locationName));
+        int[] pois = names.getOrDefault(cleanString(locationName), new int[0]);
         List<Map<String, Object>> infoList = new ArrayList<>();
-        for (long id : listOfIDs) {
-            Node node = rawGraph.get(id);
-            Map<String, Object> info = new HashMap<>();
-            info.put("lat", node.lat);
-            info.put("lon", node.lon);
-            info.put("name", node.extrainfo.get("name"));
-            info.put("id", node.id);
-            infoList.add(info);
+        for (int poi : pois) {
+            infoList.add(locationInfo(poi));
         }
         return infoList;
     }
 
+    /**
+     * Collects the k locations matching a cleaned locationName that are closest to the given
+     * point, closest first. Names with many matches are answered from their KdTree, so the
+     * cost depends on k rather than on the number of matches.
+     * @param locationName A full name of a location searched for.
+     * @param lon The longitude to rank matches by, e.g. the viewport center.
+     * @param lat The latitude to rank matches by.
+     * @param k The maximum number of locations to return.
+     * @return The matching locations as in getLocations, each with an extra "distance"
+     * entry holding its great-circle distance in miles from (lon, lat).
+     */
+    List<Map<String, Object>> getLocations(String locationName, double lon, double lat, int k) {
+        String cleanedName = cleanString(locationName);
+        int[] pois = names.getOrDefault(cleanedName, new int[0]);
+        List<Map<String, Object>> infoList = new ArrayList<>();
+        KdTree tree = nameIndex.get(cleanedName);
+        if (tree != null) {
+            for (int i : tree.nearest(lon, lat, k)) {
+                infoList.add(locationInfo(pois[i], lon, lat));
+            }
+            return infoList;
+        }
+        for (int poi : pois) {
+            infoList.add(locationInfo(poi, lon, lat));
+        }
+        infoList.sort(Comparator.comparingDouble(info -> (double) info.get("distance")));
+        return infoList.size() > k ? new ArrayList<>(infoList.subList(0, k)) : infoList;
+    }
+
+    private Map<String, Object> locationInfo(int poi) {
+        Map<String, Object> info = new HashMap<>();
+        info.put("lat", poiLats[poi]);
+        info.put("lon", poiLons[poi]);
+        info.put("name", poiNames[poi]);
+        info.put("id", poiIDs[poi]);
+        return info;
+    }
 
-    void adEdge(long end1, long end2, Edge edge) {
-        graph.get(end1).neighbors.put(end2, edge);
-        graph.get(end2).neighbors.put(end1, edge);
+    private Map<String, Object> locationInfo(int poi, double lon, double lat) {
+        Map<String, Object> info = locationInfo(poi);
+        info.put("distance", distance(poiLons[poi], poiLats[poi], lon, lat));
+        return info;
     }
 
-    public static class Node {
-        long id;
-        double lat;
-        double lon;
-        Map<Long, Edge> neighbors;
-        Map<String, String> extrainfo;
-        public Node(long id, double lat, double lon) {
-            this.id = id;
-            this.lat = lat;
+    /**
+     * Finds what is at a given point: the closest named node and the closest point on a
+     * named way. Both lookups are answered from spatial indexes built at load time.
+     * @param lon The longitude of the point.
+     * @param lat The latitude of the point.
+     * @return A map with a "node" entry, a location as in getLocations plus its "distance"
+     * in miles, and a "way" entry with the way's "name", the "lat" and "lon" of the closest
+     * point on it, its "distance" in miles, and the ids "from" and "to" of the vertices of
+     * the closest segment. Either entry is absent if the graph has nothing to offer.
+     */
+    Map<String, Object> reverseGeocode(double lon, double lat) {
+        Map<String, Object> result = new HashMap<>();
+        int poi = namedNodeIndex.nearest(lon, lat);
+        if (poi >= 0) {
+            result.put("node", locationInfo(poi, lon, lat));
+        }
+        int[] edges = namedWayEdges;
+        int[] hitEdges = edges;
+        SegmentIndex.Hit hit;
+        if (layer == null) {
+            hit = namedWayIndex.nearest(lon, lat);
+        } else {
+            hit = namedWayIndex.nearest(lon, lat, k -> !isTouched(edgeSource(edges[k])));
+            SegmentIndex.Hit touched = layer.namedWayIndex.nearest(lon, lat);
+            if (touched != null && (hit == null || touched.distance < hit.distance)) {
+                hit = touched;
+                hitEdges = layer.namedWayEdges;
+            }
+        }
+        if (hit != null) {
+            int e = hitEdges[hit.segment];
+            Map<String, Object> way = new HashMap<>();
+            way.put("name", ways.get(adjWay[e]).extrainfo.get("name"));
+            way.put("lat", hit.lat);
+            way.put("lon", hit.lon);
+            way.put("distance", hit.distance);
+            way.put("from", ids[edgeSource(e)]);
+            way.put("to", ids[adjTarget[e]]);
+            result.put("way", way);
+        }
+        return result;
+    }
+
+    /**
+     * A point on a road segment, found by snap(): a fraction t of the way along half-edge
+     * edge, from 0 at its source to 1 at its target. Snaps are equal if they are at the
+     * same place on the same segment.
+     */
+    public static class Snap {
+        final int edge;
+        final double t;
+        final double lon;
+        final double lat;
+
+        Snap(int edge, double t, double lon, double lat) {
+            this.edge = edge;
+            this.t = t;
             this.lon = lon;
-            this.neighbors = new HashMap<>();
-            this.extrainfo = new HashMap<>();
+            this.lat = lat;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Snap && edge == ((Snap) o).edge && t == ((Snap) o).t;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(edge, t);
         }
     }
 
@@ -305,6 +3295,33 @@ public class GraphDB {
             }
         }
 
+        /**
+         * Returns a trie like this one with the given names under word instead, sharing
+         * every node off the path to word; this trie is not modified.
+         */
+        public Trie with(String word, Set<String> names) {
+            Trie res = new Trie();
+            res.root = with(root, word, 0, names);
+            return res;
+        }
+
+        private static TrieNode with(TrieNode node, String word, int depth, Set<String> names) {
+            TrieNode res = new TrieNode(node != null && node.isEndOfWord);
+            if (node != null) {
+                res.children.putAll(node.children);
+                res.wordSet = node.wordSet;
+            }
+            if (depth == word.length()) {
+                res.isEndOfWord |= !names.isEmpty();
+                res.wordSet = names;
+            } else {
+                char c = word.charAt(depth);
+                res.children.put(c, with(node == null ? null : node.children.get(c), word,
+                        depth + 1, names));
+            }
+            return res;
+        }
+
         public List<String> colStringsStartsWith(String prefix) {
             TrieNode trieNode = startsWith(prefix);
             List<String> res = new ArrayList<>();
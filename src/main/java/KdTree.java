@@ -0,0 +1,253 @@
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * A static 2-d tree over (longitude, latitude) points, used to answer nearest and
+ * k-nearest queries under the great-circle distance of {@link GraphDB#distance}.
+ * The tree is stored implicitly: the points are permuted so that the median of every
+ * range [lo, hi) sits at its midpoint, which avoids allocating a node object per point.
+ * Even depths split on longitude and odd depths split on latitude.
+ *
+ * Pruning uses exact lower bounds on the great-circle distance to a half-space, so the
+ * answers are identical to a linear scan:
+ * <ul>
+ *     <li>Latitude split: every point with latitude beyond the split is at least
+ *     R * |dphi| away.</li>
+ *     <li>Longitude split: every point with longitude beyond the split is at least the
+ *     cross-track distance to the split meridian, R * asin(|sin(dlambda)| * cos(phi)).</li>
+ * </ul>
+ */
+public class KdTree {
+    /** Earth radius in miles, matching {@link GraphDB#distance}. */
+    private static final double R = 3963;
+
+    /** Coordinates in tree order. */
+    private final double[] lons;
+    private final double[] lats;
+    /** index[i] is the caller's index of the point stored at tree position i. */
+    private final int[] index;
+
+    /**
+     * Builds a tree over the given points. Point i is reported back as index i.
+     * @param lons The longitudes of the points.
+     * @param lats The latitudes of the points, parallel to lons.
+     */
+    public KdTree(double[] lons, double[] lats) {
+        int n = lons.length;
+        this.lons = Arrays.copyOf(lons, n);
+        this.lats = Arrays.copyOf(lats, n);
+        this.index = new int[n];
+        for (int i = 0; i < n; i++) {
+            index[i] = i;
+        }
+        build(0, n, 0);
+    }
+
+    /** Number of points in the tree. */
+    public int size() {
+        return index.length;
+    }
+
+    /**
+     * Returns the index of the point closest to the target, or -1 if the tree is empty.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     */
+    public int nearest(double lon, double lat) {
+        int[] res = nearest(lon, lat, 1);
+        return res.length == 0 ? -1 : res[0];
+    }
+
+    /**
+     * Returns the index of the point closest to the target among those the filter accepts,
+     * or -1 if it accepts none.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param accept Whether a point, by index, may be returned.
+     */
+    public int nearest(double lon, double lat, IntPredicate accept) {
+        Best best = new Best(Math.min(1, index.length));
+        if (best.capacity > 0) {
+            search(0, index.length, 0, lon, lat, Math.cos(Math.toRadians(lat)), accept, best);
+        }
+        int[] res = best.sorted();
+        return res.length == 0 ? -1 : res[0];
+    }
+
+    /**
+     * Returns the indices of the k points closest to the target, closest first.
+     * Fewer than k indices are returned if the tree holds fewer than k points.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param k The maximum number of points to return.
+     */
+    public int[] nearest(double lon, double lat, int k) {
+        Best best = new Best(Math.min(k, index.length));
+        if (best.capacity > 0) {
+            search(0, index.length, 0, lon, lat, Math.cos(Math.toRadians(lat)), null, best);
+        }
+        return best.sorted();
+    }
+
+    private void build(int lo, int hi, int depth) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, depth % 2 == 0 ? lons : lats);
+        build(lo, mid, depth + 1);
+        build(mid + 1, hi, depth + 1);
+    }
+
+    /** Quickselect so that position k holds the median of [lo, hi] on the given axis. */
+    private void select(int lo, int hi, int k, double[] axis) {
+        while (hi > lo) {
+            double pivot = axis[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (axis[i] < pivot) {
+                    i++;
+                }
+                while (axis[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        double t = lons[i];
+        lons[i] = lons[j];
+        lons[j] = t;
+        t = lats[i];
+        lats[i] = lats[j];
+        lats[j] = t;
+        int s = index[i];
+        index[i] = index[j];
+        index[j] = s;
+    }
+
+    /** Offers the points of [lo, hi) that accept takes, or all if it is null, to best. */
+    private void search(int lo, int hi, int depth, double lon, double lat, double cosLat,
+                        IntPredicate accept, Best best) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        if (accept == null || accept.test(index[mid])) {
+            best.offer(index[mid], GraphDB.distance(lons[mid], lats[mid], lon, lat));
+        }
+
+        double delta;
+        double bound;
+        if (depth % 2 == 0) {
+            delta = lon - lons[mid];
+            double s = Math.abs(Math.sin(Math.toRadians(Math.min(Math.abs(delta), 90))));
+            bound = R * Math.asin(Math.min(1.0, s * cosLat));
+        } else {
+            delta = lat - lats[mid];
+            bound = R * Math.toRadians(Math.abs(delta));
+        }
+        if (delta < 0) {
+            search(lo, mid, depth + 1, lon, lat, cosLat, accept, best);
+            if (bound < best.worst()) {
+                search(mid + 1, hi, depth + 1, lon, lat, cosLat, accept, best);
+            }
+        } else {
+            search(mid + 1, hi, depth + 1, lon, lat, cosLat, accept, best);
+            if (bound < best.worst()) {
+                search(lo, mid, depth + 1, lon, lat, cosLat, accept, best);
+            }
+        }
+    }
+
+    /** Bounded max-heap of the best candidates seen so far. */
+    private static class Best {
+        private final int capacity;
+        private final int[] ids;
+        private final double[] dists;
+        private int size;
+
+        Best(int capacity) {
+            this.capacity = capacity;
+            this.ids = new int[capacity];
+            this.dists = new double[capacity];
+        }
+
+        double worst() {
+            return size < capacity ? Double.MAX_VALUE : dists[0];
+        }
+
+        void offer(int id, double dist) {
+            if (size < capacity) {
+                ids[size] = id;
+                dists[size] = dist;
+                siftUp(size++);
+            } else if (dist < dists[0]) {
+                ids[0] = id;
+                dists[0] = dist;
+                siftDown(0);
+            }
+        }
+
+        int[] sorted() {
+            int[] res = new int[size];
+            for (int i = size - 1; i >= 0; i--) {
+                res[i] = ids[0];
+                ids[0] = ids[i];
+                dists[0] = dists[i];
+                size = i;
+                siftDown(0);
+            }
+            return res;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (dists[parent] >= dists[i]) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int l = 2 * i + 1;
+                int largest = i;
+                if (l < size && dists[l] > dists[largest]) {
+                    largest = l;
+                }
+                if (l + 1 < size && dists[l + 1] > dists[largest]) {
+                    largest = l + 1;
+                }
+                if (largest == i) {
+                    return;
+                }
+                swap(i, largest);
+                i = largest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int t = ids[i];
+            ids[i] = ids[j];
+            ids[j] = t;
+            double d = dists[i];
+            dists[i] = dists[j];
+            dists[j] = d;
+        }
+    }
+}
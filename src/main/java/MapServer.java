@@ -2,9 +2,25 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
 import java.io.IOException;
@@ -12,6 +28,13 @@ import java.io.IOException;
 
 /* Maven is used to pull in these dependencies. */
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
 import static spark.Spark.*;
 
@@ -35,10 +58,15 @@ public class MapServer {
     public static final int TILE_SIZE = 256;
     /** HTTP failed response. */
     private static final int HALT_RESPONSE = 403;
+    /** HTTP response for requests shed because the server is overloaded. */
+    private static final int BUSY_RESPONSE = 503;
     /** Route stroke information: typically roads are not more than 5px wide. */
     public static final float ROUTE_STROKE_WIDTH_PX = 5.0f;
     /** Route stroke information: Cyan with half transparency. */
     public static final Color ROUTE_STROKE_COLOR = new Color(108, 181, 230, 200);
+    /** Isochrone stroke information: thinner than routes, orange with half transparency. */
+    public static final float ISOCHRONE_STROKE_WIDTH_PX = 3.0f;
+    public static final Color ISOCHRONE_STROKE_COLOR = new Color(240, 140, 40, 180);
     /** The tile images are in the IMG_ROOT folder. */
     private static final String IMG_ROOT = "../library-sp18/data/proj3_imgs/";
     /**
@@ -60,10 +88,41 @@ public class MapServer {
      * Each route request to the server will have the following parameters
      * as keys in the params map.<br>
      * start_lat : start point latitude,<br> start_lon : start point longitude,<br>
-     * end_lat : end point latitude, <br>end_lon : end point longitude.
+     * end_lat : end point latitude, <br>end_lon : end point longitude.<br>
+     * Route, route matrix and isochrone requests may also name a Profile, e.g. profile=time
+     * to minimize driving time instead of distance, or profile=foot to walk. Route requests
+     * may also penalize turns with turn_costs=left,right,sharp in seconds, e.g. 15,5,30.
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
+    /**
+     * A full search request may also carry the viewport center, in which case the matches are
+     * returned closest first.<br>
+     * lat : viewport center latitude,<br> lon : viewport center longitude.
+     **/
+    private static final String[] PROXIMITY_SEARCH_REQUEST_PARAMS = {"lat", "lon"};
+    /**
+     * Each reverse geocoding request to the server will have the following parameters
+     * as keys in the params map.<br>
+     * lat : latitude of the point,<br> lon : longitude of the point.
+     **/
+    private static final String[] REQUIRED_REVERSE_REQUEST_PARAMS = {"lat", "lon"};
+    /**
+     * Each route matrix request to the server will have the following parameters, each a
+     * list of points written as lon,lat pairs separated by semicolons.<br>
+     * origins : the points routes start from,<br> destinations : the points routes end at.
+     **/
+    private static final String[] REQUIRED_MATRIX_REQUEST_PARAMS = {"origins", "destinations"};
+    /**
+     * Each isochrone request to the server will have the following parameters
+     * as keys in the params map.<br>
+     * lat : origin latitude,<br> lon : origin longitude,<br>
+     * max_miles : distance budget along the roads, in miles.
+     **/
+    private static final String[] REQUIRED_ISOCHRONE_REQUEST_PARAMS = {"lat", "lon",
+        "max_miles"};
+    /** Maximum number of origins, and of destinations, in one route matrix request. */
+    private static final int MAX_MATRIX_POINTS = 100;
 
     /**
      * The result of rastering must be a map containing all of the
@@ -72,9 +131,180 @@ public class MapServer {
     private static final String[] REQUIRED_RASTER_RESULT_PARAMS = {"render_grid", "raster_ul_lon",
         "raster_ul_lat", "raster_lr_lon", "raster_lr_lat", "depth", "query_success"};
 
-    private static Rasterer rasterer;
-    private static GraphDB graph;
-    private static List<Long> route = new LinkedList<>();
+    /* Metrics exported by the /metrics endpoint, per request phase. */
+    private static final Metrics.Histogram RASTER_GRID = phaseHistogram("raster", "grid");
+    private static final Metrics.Histogram RASTER_TILE_LOAD = phaseHistogram("raster", "tile_load");
+    private static final Metrics.Histogram RASTER_COMPOSITE = phaseHistogram("raster", "composite");
+    private static final Metrics.Histogram RASTER_ENCODE = phaseHistogram("raster", "png_encode");
+    private static final Metrics.Histogram RASTER_BASE64 = phaseHistogram("raster", "base64");
+    private static final Metrics.Histogram ROUTE_CLOSEST = phaseHistogram("route", "closest");
+    private static final Metrics.Histogram ROUTE_SEARCH = phaseHistogram("route", "search");
+    private static final Metrics.Histogram ROUTE_DIRECTIONS =
+            phaseHistogram("route", "directions");
+    private static final Metrics.Counter PNG_BYTES = Metrics.counter(
+            "bearmap_raster_png_bytes_total", "Bytes of PNG images encoded for /raster.");
+    private static final Metrics.Counter TILES_LOADED = Metrics.counter(
+            "bearmap_raster_tiles_loaded_total", "Tile images read for /raster.");
+    private static final Metrics.Counter TILE_ERRORS = Metrics.counter(
+            "bearmap_raster_tile_errors_total", "Tile images that could not be read.");
+    private static final Metrics.Counter RASTER_FAILURES = Metrics.counter(
+            "bearmap_raster_query_failures_total", "Raster queries that produced no image.");
+    private static final Metrics.Counter ROUTE_SETTLED = Metrics.counter(
+            "bearmap_route_nodes_settled_total", "Vertices settled by route searches.");
+    private static final Metrics.Counter ROUTE_RELAXED = Metrics.counter(
+            "bearmap_route_edges_relaxed_total", "Edges examined by route searches.");
+    private static final Metrics.Counter ROUTE_PUSHES = Metrics.counter(
+            "bearmap_route_heap_pushes_total", "Heap entries added by route searches.");
+    private static final Metrics.Counter ROUTE_DECREASES = Metrics.counter(
+            "bearmap_route_heap_decreases_total", "Heap keys lowered by route searches.");
+    private static final Metrics.Counter ROUTE_HEAP_LEFT = Metrics.counter(
+            "bearmap_route_heap_left_total", "Heap entries left when route searches stopped.");
+    private static final Metrics.Counter ROUTE_SLOW = Metrics.counter(
+            "bearmap_route_slow_queries_total", "Route queries slower than the slow query log "
+                    + "threshold.");
+    /**
+     * Route queries taking longer than this many milliseconds are logged with their search
+     * statistics. Set with -Dbearmap.slowRouteMillis=n; 0, the default, disables the log.
+     */
+    private static final long SLOW_ROUTE_MILLIS = Long.getLong("bearmap.slowRouteMillis", 0);
+    private static final Logger LOG = LoggerFactory.getLogger(MapServer.class);
+    /**
+     * Routes computed recently, for repeated requests. Holds up to this many routes, set
+     * with -Dbearmap.routeCacheSize=n; 0 disables the cache.
+     */
+    private static final RouteCache ROUTE_CACHE = new RouteCache(
+            Integer.getInteger("bearmap.routeCacheSize", 4096), null);
+    /**
+     * Vertices per cell at each level of the overlay that routes are searched on, lowest
+     * level first, set with -Dbearmap.overlayCells=n,n,..., e.g. 128,1024,8192. Empty, the
+     * default, searches routes with Router alone; see Overlay.
+     */
+    private static final int[] OVERLAY_CELLS = parseCellSizes(
+            System.getProperty("bearmap.overlayCells", ""));
+    /**
+     * A directory of cells written by ShardedGraph.write() to serve instead of a whole
+     * graph, set with -Dbearmap.shards=dir, for maps too large to load at once. Only routes
+     * are served then, between the vertices closest to the points asked for and without
+     * turn costs; requests to the other endpoints that read the graph are refused.
+     */
+    private static final String SHARDS_DIR = System.getProperty("bearmap.shards");
+    /** The number of cells of SHARDS_DIR kept loaded, set with -Dbearmap.shardCells=n. */
+    private static final int SHARD_CELLS = Integer.getInteger("bearmap.shardCells", 64);
+
+    private static final int CPUS = Runtime.getRuntime().availableProcessors();
+    /**
+     * Whether every request runs on a virtual thread of its own, set with
+     * -Dbearmap.virtualThreads=true on Java 21 or later; see VirtualThreadPool. Tile reads
+     * then also run on virtual threads, while CPU-heavy work stays on CPU_POOL.
+     */
+    static final boolean VIRTUAL_THREADS = Boolean.getBoolean("bearmap.virtualThreads");
+    /**
+     * Threads serving HTTP requests, set with -Dbearmap.httpThreads=n. Request threads
+     * mostly wait for the worker pools below, so there are more of them than cores.
+     * Unused with virtual threads.
+     */
+    static final int HTTP_THREADS = Integer.getInteger("bearmap.httpThreads",
+            Math.max(16, 8 * CPUS));
+    /**
+     * Runs the CPU-heavy part of requests: route searches, isochrones, route matrices and
+     * compositing and encoding raster images. Sized with -Dbearmap.cpuThreads=n, one per
+     * core by default, and -Dbearmap.cpuQueue=n waiting requests.
+     */
+    private static final int CPU_THREADS = Integer.getInteger("bearmap.cpuThreads", CPUS);
+    private static final WorkerPool CPU_POOL = new WorkerPool("cpu", CPU_THREADS,
+            Integer.getInteger("bearmap.cpuQueue", 8 * CPUS));
+    /**
+     * Reads tile images, which mostly waits on the disk. Sized with -Dbearmap.ioThreads=n
+     * and -Dbearmap.ioQueue=n waiting tile reads; a raster reads a few dozen tiles. With
+     * virtual threads, every read has its own thread and at most ioQueue run at once.
+     */
+    private static final WorkerPool IO_POOL = VIRTUAL_THREADS
+            ? WorkerPool.virtual("io", Integer.getInteger("bearmap.ioQueue", 1024))
+            : new WorkerPool("io", Integer.getInteger("bearmap.ioThreads", 16),
+                    Integer.getInteger("bearmap.ioQueue", 1024));
+
+    /**
+     * Builds replacement graphs for /admin/reload and /admin/change, one at a time, so that
+     * every change applies to the graph left by the one before. One more update may wait
+     * for the current one; any further updates are refused.
+     */
+    private static final WorkerPool RELOAD_POOL = new WorkerPool("reload", 1, 1);
+    /**
+     * Partitions and customizes the route overlay of each new graph, see updateOverlay(),
+     * one graph at a time. The cells run on CPU_POOL.
+     */
+    private static final WorkerPool OVERLAY_POOL = new WorkerPool("overlay", 1, 1);
+    /**
+     * Compacts the graph once changes have piled up on it, see compactGraph(). One more
+     * compaction may wait for the current one; it will find the latest graph.
+     */
+    private static final WorkerPool COMPACT_POOL = new WorkerPool("compact", 1, 1);
+    private static final Semaphore OVERLAY_TASKS = new Semaphore(CPU_THREADS);
+    private static final Metrics.Histogram GRAPH_LOAD = Metrics.histogram(
+            "bearmap_graph_load_duration_seconds", "Time spent building graphs for reloads.");
+    private static final Metrics.Counter GRAPH_RELOADS = Metrics.counter(
+            "bearmap_graph_reloads_total", "Graphs swapped in while serving.");
+    private static final Metrics.Counter GRAPH_RELOAD_FAILURES = Metrics.counter(
+            "bearmap_graph_reload_failures_total", "Reloads that kept the current graph.");
+    private static final Metrics.Histogram GRAPH_CHANGE = Metrics.histogram(
+            "bearmap_graph_change_duration_seconds", "Time spent applying OSM change files.");
+    private static final Metrics.Histogram GRAPH_COMPACT = Metrics.histogram(
+            "bearmap_graph_compact_duration_seconds",
+            "Time spent compacting the changes applied to graphs.");
+    private static final Metrics.Counter GRAPH_CHANGE_DROPPED = Metrics.counter(
+            "bearmap_graph_change_dropped_segments_total",
+            "Way segments left out of changed graphs because one of their nodes was missing.");
+    private static final Metrics.Histogram TRAFFIC_UPDATE = Metrics.histogram(
+            "bearmap_traffic_update_duration_seconds", "Time spent applying traffic updates.");
+    private static final Metrics.Histogram OVERLAY_CUSTOMIZE = Metrics.histogram(
+            "bearmap_overlay_customize_duration_seconds",
+            "Time spent partitioning and customizing route overlays for new graphs.");
+
+    static {
+        Metrics.gauge("bearmap_route_cache_size", "Routes held by the route cache.",
+                ROUTE_CACHE::size);
+    }
+
+    /*
+     * Request threads share the fields below. They are volatile and the arrays they hold
+     * are replaced, never modified, so a raster being drawn sees either the whole old route
+     * or the whole new one.
+     */
+    private static volatile Rasterer rasterer;
+    /**
+     * The graph requests are served from. Each request reads it once and works on that
+     * graph throughout, so a reload never changes the graph under a running request.
+     */
+    private static volatile GraphDB graph;
+    /** The cells served instead of graph, which is null then; see SHARDS_DIR. */
+    private static volatile ShardedGraph shards;
+    /** The file the current graph was loaded from, set with -Dbearmap.osm=path. */
+    private static volatile String graphPath = System.getProperty("bearmap.osm", OSM_DB_PATH);
+    /** The number of graphs loaded so far, counting the first. */
+    private static volatile long graphVersion;
+    /** Road slowdowns and closures, applied to every graph served; see updateTraffic(). */
+    private static volatile Traffic traffic = Traffic.NONE;
+    /** Points of the current route, as lon, lat pairs; see Router.Route.polyline(). */
+    private static volatile double[] routeLine = new double[0];
+    /** Segments of the current isochrone overlay, as in Router.Isochrone. */
+    private static volatile double[] isochrone = new double[0];
+    /**
+     * The latest customized route overlay, or null without OVERLAY_CELLS. Routes are only
+     * searched on it while its graph is the current one, and with Router until then.
+     */
+    private static volatile RouteOverlay routeOverlay;
+
+    static {
+        Metrics.gauge("bearmap_graph_version", "Graphs loaded since the server started.",
+                () -> graphVersion);
+        Metrics.gauge("bearmap_traffic_rules", "Road slowdowns and closures in effect.",
+                () -> traffic.size());
+        Metrics.gauge("bearmap_graph_vertices", "Vertices of the current graph.", () -> {
+            GraphDB g = graph;
+            ShardedGraph s = shards;
+            return g != null ? g.numVertices() : s != null ? s.numVertices() : 0;
+        });
+    }
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
 
@@ -84,12 +314,226 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
+        if (SHARDS_DIR != null) {
+            try {
+                shards = new ShardedGraph(SHARDS_DIR, SHARD_CELLS);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            swapGraph(new GraphDB(graphPath), graphPath);
+        }
         rasterer = new Rasterer();
     }
 
+    /**
+     * Builds a graph from an OSM XML file or a snapshot and then swaps it in for the
+     * current graph, while requests continue to be served from the current one. Requests
+     * already running finish on the graph they started with, and the old graph is garbage
+     * once the last of them is done. Cached routes are dropped with the old graph, while
+     * the current traffic carries over to the new one.
+     * @param path The OSM XML or snapshot file to load.
+     * @return The new graph, as served.
+     * @throws IOException If the file is missing or holds no roads. The current graph is
+     * kept then.
+     */
+    static GraphDB reloadGraph(String path) throws IOException {
+        if (!new File(path).isFile()) {
+            GRAPH_RELOAD_FAILURES.increment();
+            throw new FileNotFoundException(path);
+        }
+        long start = System.nanoTime();
+        GraphDB g = new GraphDB(path);
+        GRAPH_LOAD.recordSince(start);
+        /* GraphDB reports unreadable files and loads an empty graph instead. */
+        if (g.numVertices() == 0) {
+            GRAPH_RELOAD_FAILURES.increment();
+            throw new IOException(path + " holds no roads, keeping the current graph.");
+        }
+        g = swapGraph(g, path);
+        GRAPH_RELOADS.increment();
+        return g;
+    }
+
+    /**
+     * Applies an OSM change file to the current graph, building a new graph that is then
+     * swapped in as by reloadGraph. The change is layered over the current graph, which
+     * takes time in the size of the change, and the layers are compacted on COMPACT_POOL
+     * once they pile up; see GraphDB.withChange. The graph's file is not changed, so
+     * reloading it discards the change. Segments of changed ways whose nodes neither graph
+     * has are left out, and counted in bearmap_graph_change_dropped_segments_total.
+     * @param path The osmChange file to apply.
+     * @return The new graph, as served.
+     * @throws IOException If the file cannot be read.
+     * @throws SAXException If the file is not valid XML. The current graph is kept then.
+     * @throws IllegalArgumentException If the change modifies or deletes relations of a
+     * graph loaded from an old snapshot, which has no relation ids.
+     */
+    static GraphDB applyChange(String path) throws IOException, SAXException {
+        long start = System.nanoTime();
+        GraphDB g = graph.withChange(path);
+        GRAPH_CHANGE.recordSince(start);
+        GRAPH_CHANGE_DROPPED.add(g.droppedSegments());
+        g = swapGraph(g, graphPath);
+        if (g.needsCompaction()) {
+            try {
+                COMPACT_POOL.supply(() -> {
+                    compactGraph();
+                    return null;
+                }).exceptionally(e -> {
+                    LOG.error("Compacting the graph failed.", e);
+                    return null;
+                });
+            } catch (RejectedExecutionException e) {
+                /* The waiting compaction compacts the latest graph. */
+            }
+        }
+        return g;
+    }
+
+    /**
+     * Compacts the changes layered over the current graph and swaps in the result, unless
+     * the graph is replaced meanwhile: a later change will ask again, and a reload leaves
+     * nothing to compact. The map does not change, so the graph version stays the same.
+     */
+    private static void compactGraph() {
+        GraphDB base = graph.withTraffic(Traffic.NONE);
+        if (!base.needsCompaction()) {
+            return;
+        }
+        long start = System.nanoTime();
+        GraphDB g = base.compact();
+        synchronized (MapServer.class) {
+            if (graph.withTraffic(Traffic.NONE) != base) {
+                return;
+            }
+            graph = g.withTraffic(traffic);
+            ROUTE_CACHE.invalidate(graph);
+            updateOverlay();
+        }
+        GRAPH_COMPACT.recordSince(start);
+    }
+
+    /**
+     * Updates the traffic on the roads of the current graph and of any graph loaded later,
+     * applying the rules in order. Routes from now on avoid closed roads and take the
+     * slowed down ones into account; routes already being searched finish with the old
+     * traffic. Cached routes are dropped.
+     * @param clear Whether to drop all current rules first.
+     * @return The new traffic.
+     * @throws IllegalArgumentException If a rule is invalid; the traffic is kept then.
+     */
+    static synchronized Traffic updateTraffic(List<Traffic.Rule> rules, boolean clear) {
+        long start = System.nanoTime();
+        Traffic t = (clear ? Traffic.NONE : traffic).with(rules);
+        traffic = t;
+        if (graph != null) {
+            graph = graph.withTraffic(t);
+            ROUTE_CACHE.invalidate(graph);
+            updateOverlay();
+        }
+        TRAFFIC_UPDATE.recordSince(start);
+        return t;
+    }
+
+    /** Returns the graph requests are currently served from. */
+    static GraphDB currentGraph() {
+        return graph;
+    }
+
+    /**
+     * Makes g, with the current traffic, the graph of new requests and returns it.
+     * Synchronized so that the route cache always belongs to the latest graph, and the
+     * latest traffic applies, when reloads and traffic updates race.
+     */
+    private static synchronized GraphDB swapGraph(GraphDB g, String path) {
+        graph = g.withTraffic(traffic);
+        graphPath = path;
+        graphVersion += 1;
+        ROUTE_CACHE.invalidate(graph);
+        updateOverlay();
+        return graph;
+    }
+
+    /**
+     * Starts customizing the route overlay for the current graph on OVERLAY_POOL, unless
+     * an update that has yet to start is already waiting there, as it will find the same
+     * graph. Routes are searched with Router until the overlay is ready.
+     */
+    private static void updateOverlay() {
+        if (OVERLAY_CELLS.length == 0) {
+            return;
+        }
+        try {
+            OVERLAY_POOL.supply(() -> {
+                customizeOverlay();
+                return null;
+            }).exceptionally(e -> {
+                LOG.error("Customizing the route overlay failed.", e);
+                return null;
+            });
+        } catch (RejectedExecutionException e) {
+            /* The waiting update customizes the latest graph. */
+        }
+    }
+
+    /**
+     * Customizes the route overlay for every profile on the current graph and publishes
+     * it, partitioning the graph first unless only its traffic changed. The cells are
+     * customized on CPU_POOL, or on this thread when the pool is full. Stops early if the
+     * graph is replaced meanwhile, as the next update will start over.
+     */
+    private static void customizeOverlay() {
+        GraphDB g = graph;
+        RouteOverlay old = routeOverlay;
+        if (old != null && old.graph == g) {
+            return;
+        }
+        long start = System.nanoTime();
+        GraphDB base = g.withTraffic(Traffic.NONE);
+        Overlay overlay = old != null && old.base == base ? old.overlay
+                : new Overlay(base, OVERLAY_CELLS);
+        Map<Profile, Overlay.Metric> metrics = new EnumMap<>(Profile.class);
+        for (Profile p : Profile.values()) {
+            if (graph != g) {
+                return;
+            }
+            metrics.put(p, overlay.customize(g, p, MapServer::runOnCpuPool));
+        }
+        routeOverlay = new RouteOverlay(overlay, base, g, metrics);
+        OVERLAY_CUSTOMIZE.recordSince(start);
+    }
+
+    /**
+     * Runs a cell task of customizeOverlay() on CPU_POOL without waiting for it, or on this
+     * thread if the pool is full. At most CPU_THREADS such tasks are on the pool at once,
+     * so that requests keep most of its queue; this waits for one to finish if need be.
+     */
+    private static void runOnCpuPool(Runnable task) {
+        OVERLAY_TASKS.acquireUninterruptibly();
+        try {
+            CPU_POOL.supply(() -> {
+                try {
+                    task.run();
+                } finally {
+                    OVERLAY_TASKS.release();
+                }
+                return null;
+            });
+        } catch (RejectedExecutionException e) {
+            OVERLAY_TASKS.release();
+            task.run();
+        }
+    }
+
     public static void main(String[] args) {
         initialize();
+        if (VIRTUAL_THREADS) {
+            EmbeddedServers.add(EmbeddedServers.defaultIdentifier(),
+                    new EmbeddedJettyFactory().withThreadPool(new VirtualThreadPool("http")));
+        } else {
+            threadPool(HTTP_THREADS);
+        }
         staticFileLocation("/page");
         /* Allow for all origin requests (since this is not an authenticated server, we do not
          * care about CSRF).  */
@@ -100,56 +544,122 @@ public class MapServer {
         });
 
         /* Define the raster endpoint for HTTP GET requests. I use anonymous functions to define
-         * the request handlers. */
-        get("/raster", (req, res) -> {
+         * the request handlers. The image is rendered and streamed back as in writeRaster. */
+        get("/raster", instrumented("raster", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
-            /* The png image is written to the ByteArrayOutputStream */
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            /* getMapRaster() does almost all the work for this API call */
-            Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
-
-            boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
+            res.type("application/json");
+            writeRaster(rasterer, params, res.raw().getOutputStream());
+            return "";
+        }));
 
-            if (rasterSuccess) {
-                writeImagesToOutputStream(rasteredImgParams, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
-                rasteredImgParams.put("b64_encoded_image_data", encodedImage);
+        /* Define the routing endpoint for HTTP GET requests. The route and its directions are
+         * streamed back as JSON; see writeRoute. */
+        get("/route", instrumented("route", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
+            Profile profile = getProfile(req);
+            Router.TurnCosts turnCosts = getTurnCosts(req);
+            ShardedGraph s = shards;
+            if (s != null) {
+                if (turnCosts != null) {
+                    halt(HALT_RESPONSE, "Request failed - turn costs are not supported on "
+                            + "a sharded graph.");
+                }
+                Router.Route route = CPU_POOL.run(() -> shortestPath(s, params, profile));
+                routeLine = route.polyline(s);
+                long start = System.nanoTime();
+                res.type("application/json");
+                writeRoute(s, route, res.raw().getOutputStream());
+                ROUTE_DIRECTIONS.recordSince(start);
+                return "";
             }
+            GraphDB g = graph;
+            Router.Route route = CPU_POOL.run(() -> shortestPath(g, params, profile,
+                    turnCosts));
+            routeLine = route.polyline(g);
+            long start = System.nanoTime();
+            res.type("application/json");
+            writeRoute(g, route, res.raw().getOutputStream());
+            ROUTE_DIRECTIONS.recordSince(start);
+            return "";
+        }));
 
-            /* Encode response to Json */
-            Gson gson = new Gson();
-            return gson.toJson(rasteredImgParams);
-        });
+        /* Define the route matrix endpoint for HTTP GET requests. The matrix is computed on
+         * the CPU pool and written back from the request thread; see writeRouteMatrix. */
+        get("/route/matrix", instrumented("route_matrix", (req, res) -> {
+            for (String param : REQUIRED_MATRIX_REQUEST_PARAMS) {
+                if (req.queryParams(param) == null) {
+                    halt(HALT_RESPONSE, "Request failed - parameters missing.");
+                }
+            }
+            double[][] origins = parsePoints(req.queryParams("origins"));
+            double[][] destinations = parsePoints(req.queryParams("destinations"));
+            Profile profile = getProfile(req);
+            GraphDB g = requireGraph();
+            res.type("application/json");
+            writeRouteMatrix(g, origins, destinations, profile, res.raw().getOutputStream());
+            return "";
+        }));
 
-        /* Define the routing endpoint for HTTP GET requests. */
-        get("/route", (req, res) -> {
+        /* Define the isochrone endpoint for HTTP GET requests. The reachable roads are also
+         * drawn on subsequent rasters, until cleared along with the route. */
+        get("/isochrone", instrumented("isochrone", (req, res) -> {
             HashMap<String, Double> params =
-                    getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
-            String directions = getDirectionsText();
-            Map<String, Object> routeParams = new HashMap<>();
-            routeParams.put("routing_success", !route.isEmpty());
-            routeParams.put("directions_success", directions.length() > 0);
-            routeParams.put("directions", directions);
+                    getRequestParams(req, REQUIRED_ISOCHRONE_REQUEST_PARAMS);
+            Map<String, Object> isochroneParams = new LinkedHashMap<>();
+            Profile profile = getProfile(req);
+            GraphDB g = requireGraph();
+            int origin = g.closestIndex(params.get("lon"), params.get("lat"), profile);
+            double maxMiles = params.get("max_miles");
+            if (origin < 0 || !(maxMiles >= 0)) {
+                isochroneParams.put("isochrone_success", false);
+            } else {
+                Router.Isochrone result = CPU_POOL.run(() -> Router.isochrone(g,
+                        g.vertexID(origin), maxMiles, profile));
+                isochrone = result.segments;
+                isochroneParams.put("isochrone_success", true);
+                isochroneParams.put("origin", g.vertexID(origin));
+                isochroneParams.put("num_vertices", result.vertices.length);
+                isochroneParams.put("segments", result.segments);
+            }
             Gson gson = new Gson();
-            return gson.toJson(routeParams);
-        });
+            return gson.toJson(isochroneParams);
+        }));
 
         /* Define the API endpoint for clearing the current route. */
-        get("/clear_route", (req, res) -> {
+        get("/clear_route", instrumented("clear_route", (req, res) -> {
             clearRoute();
             return true;
-        });
+        }));
 
         /* Define the API endpoint for search */
-        get("/search", (req, res) -> {
+        get("/search", instrumented("search", (req, res) -> {
+            requireGraph();
             Set<String> reqParams = req.queryParams();
             String term = req.queryParams("term");
             Gson gson = new Gson();
             /* Search for actual location data. */
             if (reqParams.contains("full")) {
+                if (reqParams.containsAll(Arrays.asList(PROXIMITY_SEARCH_REQUEST_PARAMS))) {
+                    HashMap<String, Double> params =
+                            getRequestParams(req, PROXIMITY_SEARCH_REQUEST_PARAMS);
+                    /* Every match, closest first, unless the client asks for fewer. */
+                    int limit = Integer.MAX_VALUE;
+                    if (reqParams.contains("limit")) {
+                        try {
+                            limit = Integer.parseInt(req.queryParams("limit"));
+                        } catch (NumberFormatException e) {
+                            halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+                        }
+                        if (limit < 1) {
+                            halt(HALT_RESPONSE, "Incorrect parameters - limit must be at "
+                                    + "least 1.");
+                        }
+                    }
+                    return gson.toJson(getLocations(term, params.get("lon"), params.get("lat"),
+                            limit));
+                }
                 List<Map<String, Object>> data = getLocations(term);
                 return gson.toJson(data);
             } else {
@@ -157,6 +667,106 @@ public class MapServer {
                 List<String> matches = getLocationsByPrefix(term);
                 return gson.toJson(matches);
             }
+        }));
+
+        /* Define the API endpoint for reverse geocoding */
+        get("/reverse", instrumented("reverse", (req, res) -> {
+            requireGraph();
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_REVERSE_REQUEST_PARAMS);
+            Map<String, Object> result = reverseGeocode(params.get("lon"), params.get("lat"));
+            result.put("reverse_success",
+                    result.containsKey("node") || result.containsKey("way"));
+            Gson gson = new Gson();
+            return gson.toJson(result);
+        }));
+
+        /* Define the admin endpoint for loading a new graph, from the given path or else the
+         * current graph's file. The graph is built in the background and swapped in once
+         * ready; see reloadGraph. */
+        post("/admin/reload", instrumented("reload", (req, res) -> {
+            requireLocal(req);
+            requireGraph();
+            String path = req.queryParams("path") != null ? req.queryParams("path") : graphPath;
+            if (!new File(path).isFile()) {
+                halt(HALT_RESPONSE, "Reload failed - no such graph file.");
+            }
+            RELOAD_POOL.supply(() -> reloadGraph(path)).exceptionally(e -> {
+                LOG.error("Reloading the graph from {} failed.", path,
+                        e instanceof CompletionException ? e.getCause() : e);
+                return null;
+            });
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("reload_started", true);
+            result.put("path", path);
+            result.put("version", graphVersion);
+            res.status(202);
+            Gson gson = new Gson();
+            return gson.toJson(result);
+        }));
+
+        /* Define the admin endpoint for applying an OSM change file to the graph. The response
+         * is sent once the changed graph serves requests; see applyChange. */
+        post("/admin/change", instrumented("change", (req, res) -> {
+            requireLocal(req);
+            requireGraph();
+            String path = req.queryParams("path");
+            if (path == null || !new File(path).isFile()) {
+                halt(HALT_RESPONSE, "Change failed - no such change file.");
+            }
+            GraphDB g = null;
+            try {
+                g = RELOAD_POOL.run(() -> applyChange(path));
+            } catch (SAXException | IllegalArgumentException e) {
+                halt(HALT_RESPONSE, "Change failed - " + e.getMessage());
+            }
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("change_success", true);
+            result.put("version", graphVersion);
+            result.put("num_vertices", g.numVertices());
+            Gson gson = new Gson();
+            return gson.toJson(result);
+        }));
+
+        /* Define the admin endpoint for updating the traffic on the roads. The body is JSON of
+         * the form {"clear": false, "rules": [{"way": id, "factor": 2.5},
+         * {"from": id, "to": id, "closed": true}, ...]}; see Traffic.Rule. */
+        post("/admin/traffic", instrumented("traffic", (req, res) -> {
+            requireLocal(req);
+            requireGraph();
+            Gson gson = new Gson();
+            TrafficUpdate update = null;
+            try {
+                update = gson.fromJson(req.body(), TrafficUpdate.class);
+            } catch (JsonParseException e) {
+                halt(HALT_RESPONSE, "Traffic update failed - " + e.getMessage());
+            }
+            if (update == null || update.rules == null) {
+                halt(HALT_RESPONSE, "Traffic update failed - no rules.");
+            }
+            Traffic t = null;
+            try {
+                t = updateTraffic(update.rules, update.clear);
+            } catch (IllegalArgumentException e) {
+                halt(HALT_RESPONSE, "Traffic update failed - " + e.getMessage());
+            }
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("traffic_success", true);
+            result.put("num_rules", t.size());
+            return gson.toJson(result);
+        }));
+
+        /* Define the admin endpoint for listing the traffic rules in effect. */
+        get("/admin/traffic", instrumented("traffic", (req, res) -> {
+            requireLocal(req);
+            Gson gson = new Gson();
+            return gson.toJson(traffic.rules());
+        }));
+
+        /* Define the API endpoint for metrics, in the Prometheus text format. */
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4");
+            return Metrics.prometheus();
         });
 
         /* Define map application redirect */
@@ -166,6 +776,295 @@ public class MapServer {
         });
     }
 
+    /**
+     * Wraps a request handler so that its latency, the size of its responses and its
+     * failures are recorded under the given endpoint label. Response sizes are counted in
+     * characters, which equal bytes for the JSON bodies except within place names; bodies
+     * streamed straight to the response, as by /route/matrix, are not counted. Requests
+     * whose work a full worker pool rejected are answered with BUSY_RESPONSE.
+     * @param endpoint The endpoint label, e.g. "raster".
+     * @param handler The request handler.
+     * @return The instrumented handler.
+     */
+    private static spark.Route instrumented(String endpoint, spark.Route handler) {
+        Metrics.Histogram latency = Metrics.histogram("bearmap_request_duration_seconds",
+                "Request latency by endpoint.", "endpoint", endpoint);
+        Metrics.Counter bytes = Metrics.counter("bearmap_response_bytes_total",
+                "Response body bytes written by endpoint.", "endpoint", endpoint);
+        return (req, res) -> {
+            long start = System.nanoTime();
+            try {
+                Object body = handler.handle(req, res);
+                if (body instanceof String) {
+                    bytes.add(((String) body).length());
+                }
+                return body;
+            } catch (spark.HaltException e) {
+                requestErrors(endpoint, e.statusCode()).increment();
+                throw e;
+            } catch (RejectedExecutionException e) {
+                requestErrors(endpoint, BUSY_RESPONSE).increment();
+                res.header("Retry-After", "1");
+                halt(BUSY_RESPONSE, "Server busy - try again later.");
+                return null;
+            } catch (Exception e) {
+                requestErrors(endpoint, 500).increment();
+                throw e;
+            } finally {
+                latency.recordSince(start);
+            }
+        };
+    }
+
+    /**
+     * Computes the response to a raster request and writes it to the output stream as
+     * JSON: the rasterer's result, with the image as base64-encoded PNG data in the
+     * "b64_encoded_image_data" field if the query succeeded.
+     *
+     * The image is rendered as a pipeline. All tile reads are started on the I/O pool as
+     * soon as the grid is known, each tile is drawn as soon as it has been read, and the
+     * overlays and PNG encoding run on the CPU pool once the last tile is in. The PNG data
+     * is base64-encoded as it is written, so no encoded copy of the image is built.
+     * @throws RejectedExecutionException If either pool is full. Nothing has been written
+     * to the output stream then.
+     */
+    static void writeRaster(Rasterer r, Map<String, Double> params, OutputStream os)
+            throws Exception {
+        /* getMapRaster() does almost all the work for this API call */
+        long start = System.nanoTime();
+        Map<String, Object> rasteredImgParams = r.getMapRaster(params);
+        RASTER_GRID.recordSince(start);
+
+        boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
+
+        ByteArrayOutputStream png = null;
+        if (rasterSuccess) {
+            png = WorkerPool.await(renderRaster(rasteredImgParams));
+        }
+
+        Gson gson = new Gson();
+        BufferedOutputStream bytes = new BufferedOutputStream(os);
+        Writer json = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+        json.write('{');
+        String separator = "";
+        for (Map.Entry<String, Object> field : rasteredImgParams.entrySet()) {
+            json.write(separator);
+            json.write(gson.toJson(field.getKey()));
+            json.write(':');
+            gson.toJson(field.getValue(), json);
+            separator = ",";
+        }
+        if (png != null) {
+            json.write(",\"b64_encoded_image_data\":\"");
+            json.flush();
+            start = System.nanoTime();
+            /* Closing the encoder writes its last bytes, but must not close the response. */
+            OutputStream base64 = Base64.getEncoder().wrap(new FilterOutputStream(bytes) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            });
+            png.writeTo(base64);
+            base64.close();
+            RASTER_BASE64.recordSince(start);
+            json.write('"');
+        }
+        json.write('}');
+        json.flush();
+    }
+
+    /**
+     * Starts rendering the image of a raster result, returning the future PNG data. Every
+     * tile read has been handed to the I/O pool when this returns, so a full pool is
+     * reported at once.
+     * @throws RejectedExecutionException If the I/O pool is full.
+     */
+    private static CompletableFuture<ByteArrayOutputStream> renderRaster(
+            Map<String, Object> rasteredImageParams) {
+        String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
+        BufferedImage img = newRasterImage(renderGrid);
+        long start = System.nanoTime();
+        List<CompletableFuture<BufferedImage>> reads = new ArrayList<>();
+        List<CompletableFuture<Void>> drawn = new ArrayList<>();
+        try {
+            for (int r = 0; r < renderGrid.length; r += 1) {
+                for (int c = 0; c < renderGrid[r].length; c += 1) {
+                    String path = IMG_ROOT + renderGrid[r][c];
+                    int x = c * MapServer.TILE_SIZE, y = r * MapServer.TILE_SIZE;
+                    CompletableFuture<BufferedImage> read = IO_POOL.supply(() -> getImage(path));
+                    reads.add(read);
+                    drawn.add(read.thenAccept(tile -> drawTile(img, tile, x, y)));
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            for (CompletableFuture<BufferedImage> read : reads) {
+                read.cancel(true);
+            }
+            throw e;
+        }
+        return CompletableFuture.allOf(drawn.toArray(new CompletableFuture<?>[0]))
+                .thenCompose(v -> {
+                    RASTER_TILE_LOAD.recordSince(start);
+                    return CPU_POOL.supply(() -> {
+                        ByteArrayOutputStream os = new ByteArrayOutputStream();
+                        encodeRaster(rasteredImageParams, img, os);
+                        return os;
+                    });
+                });
+    }
+
+    /**
+     * Returns the route for a route request, from the route cache if it was computed
+     * recently, and records its statistics. Both ends are snapped to the closest point on
+     * a road the profile may use. Routes without turn costs are searched on the route
+     * overlay, if there is one.
+     */
+    private static Router.Route shortestPath(GraphDB g, Map<String, Double> params,
+                                             Profile profile, Router.TurnCosts turnCosts) {
+        Router.SearchStats stats = new Router.SearchStats();
+        long t = System.nanoTime();
+        GraphDB.Snap from = g.snap(params.get("start_lon"), params.get("start_lat"), profile);
+        GraphDB.Snap to = g.snap(params.get("end_lon"), params.get("end_lat"), profile);
+        stats.closestNanos = System.nanoTime() - t;
+        if (from == null || to == null) {
+            ROUTE_CLOSEST.record(stats.closestNanos);
+            return new Router.Route(from, to, Collections.emptyList(), false);
+        }
+        Router.Route route = ROUTE_CACHE.get(g, from, to, profile, turnCosts);
+        if (route != null) {
+            ROUTE_CLOSEST.record(stats.closestNanos);
+            return route;
+        }
+        RouteOverlay o = routeOverlay;
+        route = o != null && o.graph == g && turnCosts == null
+                ? o.metrics.get(profile).shortestPath(from, to, stats)
+                : Router.shortestPath(g, from, to, profile, turnCosts, stats);
+        ROUTE_CACHE.put(g, from, to, profile, turnCosts, route);
+        recordRouteStats(params, stats);
+        return route;
+    }
+
+    /**
+     * Returns the route between the vertices of a sharded graph closest to the points of a
+     * route request, and records its statistics. The search loads the cells it reaches.
+     */
+    private static Router.Route shortestPath(ShardedGraph g, Map<String, Double> params,
+                                             Profile profile) {
+        Router.SearchStats stats = new Router.SearchStats();
+        long t = System.nanoTime();
+        long start = g.closest(params.get("start_lon"), params.get("start_lat"), profile);
+        long dest = g.closest(params.get("end_lon"), params.get("end_lat"), profile);
+        stats.closestNanos = System.nanoTime() - t;
+        if (start == 0 || dest == 0) {
+            ROUTE_CLOSEST.record(stats.closestNanos);
+            return new Router.Route(null, null, Collections.emptyList(), false);
+        }
+        List<Long> path = Router.shortestPath(g, start, dest, profile, stats);
+        recordRouteStats(params, stats);
+        /* An unreachable destination gives a path of just the destination. */
+        boolean found = path.get(0) == start;
+        return new Router.Route(null, null, found ? path : Collections.emptyList(), found);
+    }
+
+    /**
+     * Adds the statistics of a route query to the server metrics, and logs the query if it
+     * was slower than SLOW_ROUTE_MILLIS.
+     */
+    private static void recordRouteStats(Map<String, Double> params, Router.SearchStats stats) {
+        ROUTE_CLOSEST.record(stats.closestNanos);
+        ROUTE_SEARCH.record(stats.searchNanos);
+        ROUTE_SETTLED.add(stats.settled);
+        ROUTE_RELAXED.add(stats.relaxed);
+        ROUTE_PUSHES.add(stats.pushes);
+        ROUTE_DECREASES.add(stats.decreases);
+        ROUTE_HEAP_LEFT.add(stats.finalHeapSize);
+        if (SLOW_ROUTE_MILLIS > 0
+                && stats.closestNanos + stats.searchNanos > SLOW_ROUTE_MILLIS * 1000000) {
+            ROUTE_SLOW.increment();
+            LOG.warn("Slow route query from ({}, {}) to ({}, {}): {}", params.get("start_lon"),
+                    params.get("start_lat"), params.get("end_lon"), params.get("end_lat"), stats);
+        }
+    }
+
+    /** The body of a traffic update request. */
+    private static class TrafficUpdate {
+        boolean clear;
+        List<Traffic.Rule> rules;
+    }
+
+    /**
+     * An overlay of a graph without traffic, base, with the metrics of every profile
+     * customized for graph, which is base with some traffic. Traffic updates make a new
+     * RouteOverlay over the same partition.
+     */
+    private static class RouteOverlay {
+        final Overlay overlay;
+        final GraphDB base;
+        final GraphDB graph;
+        final Map<Profile, Overlay.Metric> metrics;
+
+        RouteOverlay(Overlay overlay, GraphDB base, GraphDB graph,
+                     Map<Profile, Overlay.Metric> metrics) {
+            this.overlay = overlay;
+            this.base = base;
+            this.graph = graph;
+            this.metrics = metrics;
+        }
+    }
+
+    /** Parses overlay cell sizes written as numbers separated by commas. */
+    private static int[] parseCellSizes(String sizes) {
+        if (sizes.trim().isEmpty()) {
+            return new int[0];
+        }
+        String[] parts = sizes.split(",");
+        int[] res = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            res[i] = Integer.parseInt(parts[i].trim());
+        }
+        return res;
+    }
+
+    /**
+     * Returns the graph requests are served from, or halts the request if only cells are
+     * served; see SHARDS_DIR.
+     */
+    private static GraphDB requireGraph() {
+        GraphDB g = graph;
+        if (g == null) {
+            halt(HALT_RESPONSE, "Request failed - only routes are served from a sharded "
+                    + "graph.");
+        }
+        return g;
+    }
+
+    /**
+     * Halts admin requests that do not come from this machine. The server is not
+     * authenticated, so only its operator may change what it serves.
+     */
+    private static void requireLocal(spark.Request req) throws IOException {
+        if (!InetAddress.getByName(req.ip()).isLoopbackAddress()) {
+            halt(HALT_RESPONSE, "Admin requests are only accepted locally.");
+        }
+    }
+
+    private static Metrics.Counter requestErrors(String endpoint, int status) {
+        return Metrics.counter("bearmap_request_errors_total",
+                "Failed requests by endpoint and HTTP status.", "endpoint", endpoint,
+                "status", String.valueOf(status));
+    }
+
+    private static Metrics.Histogram phaseHistogram(String endpoint, String phase) {
+        return Metrics.histogram("bearmap_phase_duration_seconds",
+                "Time spent in each phase of a request.", "endpoint", endpoint, "phase", phase);
+    }
+
     /**
      * Validate & return a parameter map of the required request parameters.
      * Requires that all input parameters are doubles.
@@ -192,34 +1091,228 @@ public class MapServer {
         return params;
     }
 
+    /**
+     * Returns the routing profile named by the optional "profile" request parameter, e.g.
+     * "time", or Profile.DISTANCE if there is none.
+     */
+    private static Profile getProfile(spark.Request req) {
+        String name = req.queryParams("profile");
+        if (name == null) {
+            return Profile.DISTANCE;
+        }
+        try {
+            return Profile.fromName(name);
+        } catch (IllegalArgumentException e) {
+            halt(HALT_RESPONSE, "Request failed - unknown profile " + name + ".");
+            return null;
+        }
+    }
+
+    /** Returns the turn costs a request asks for, or null if it does not penalize turns. */
+    private static Router.TurnCosts getTurnCosts(spark.Request req) {
+        String costs = req.queryParams("turn_costs");
+        if (costs == null) {
+            return null;
+        }
+        try {
+            return Router.TurnCosts.parse(costs);
+        } catch (IllegalArgumentException e) {
+            halt(HALT_RESPONSE, "Request failed - malformed turn costs " + costs + ".");
+            return null;
+        }
+    }
+
+    /**
+     * Parses a list of points written as lon,lat pairs separated by semicolons.
+     * @return The points as {lon, lat} pairs.
+     */
+    private static double[][] parsePoints(String points) {
+        String[] pairs = points.split(";");
+        if (pairs.length > MAX_MATRIX_POINTS) {
+            halt(HALT_RESPONSE, "Request failed - at most " + MAX_MATRIX_POINTS
+                    + " points are allowed.");
+        }
+        double[][] res = new double[pairs.length][];
+        for (int i = 0; i < pairs.length; i++) {
+            String[] lonLat = pairs[i].split(",");
+            try {
+                if (lonLat.length != 2) {
+                    throw new NumberFormatException("Not a lon,lat pair: " + pairs[i]);
+                }
+                res[i] = new double[]{Double.parseDouble(lonLat[0].trim()),
+                    Double.parseDouble(lonLat[1].trim())};
+            } catch (NumberFormatException e) {
+                LOG.debug("Malformed point {}.", pairs[i], e);
+                halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Computes the cost of the cheapest routes in g from every origin to every destination,
+     * in miles or seconds depending on the profile, and writes them to the output stream as
+     * JSON of the form
+     * <code>{"origins": [...], "destinations": [...], "rows": [...]}</code>. The origins and
+     * destinations are the vertices closest to the requested points, with their id, lon
+     * and lat. Each row is <code>{"origin": i, "distances": [...]}</code>, holding the
+     * costs from origin i to each destination in order, or null where there is no
+     * route. Rows are in the order of the origins.
+     *
+     * The searches run on CPU_POOL, see routeMatrix(), while the calling thread writes
+     * each row as soon as it and the rows before it are done. The matrix is streamed back
+     * as it fills in, and a slow client holds no CPU worker.
+     * @throws RejectedExecutionException If the CPU pool is full.
+     */
+    static void writeRouteMatrix(GraphDB g, double[][] origins, double[][] destinations,
+                                 Profile profile, OutputStream os) throws Exception {
+        long[] from = closestVertices(g, origins, profile);
+        long[] to = closestVertices(g, destinations, profile);
+        List<CompletableFuture<double[]>> rows = routeMatrix(g, from, to, profile);
+        try {
+            Gson gson = new Gson();
+            Writer out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+            out.write("{\"origins\":" + gson.toJson(vertexLocations(g, from))
+                    + ",\"destinations\":" + gson.toJson(vertexLocations(g, to))
+                    + ",\"rows\":[");
+            out.flush();
+            for (int i = 0; i < rows.size(); i++) {
+                double[] row;
+                try {
+                    row = rows.get(i).get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+                out.write(i == 0 ? "{\"origin\":" : ",{\"origin\":");
+                out.write(i + ",\"distances\":[");
+                for (int j = 0; j < row.length; j++) {
+                    out.write(j == 0 ? "" : ",");
+                    out.write(Double.isInfinite(row[j]) ? "null" : Double.toString(row[j]));
+                }
+                out.write("]}");
+                out.flush();
+            }
+            out.write("]}");
+            out.flush();
+        } finally {
+            /* Stop the searches if the client went away. */
+            for (CompletableFuture<double[]> row : rows) {
+                row.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Starts the searches for the costs of the cheapest routes from every origin to every
+     * target on CPU_POOL, and returns a future row per origin as in
+     * Router.distanceMatrix(). The origins are dealt out to one task per CPU thread at
+     * most, so rows complete roughly in order. A task stops at its next row once one of
+     * its rows is cancelled. If a task fails, its rows fail with it.
+     * @throws RejectedExecutionException If the CPU pool is full. The tasks accepted
+     * before are stopped.
+     */
+    static List<CompletableFuture<double[]>> routeMatrix(GraphDB g, long[] origins,
+                                                         long[] targets, Profile profile) {
+        List<CompletableFuture<double[]>> rows = new ArrayList<>();
+        for (int i = 0; i < origins.length; i++) {
+            rows.add(new CompletableFuture<>());
+        }
+        int numTasks = Math.min(origins.length, CPU_THREADS);
+        try {
+            for (int k = 0; k < numTasks; k++) {
+                int first = k;
+                long[] taskOrigins = new long[(origins.length - k + numTasks - 1) / numTasks];
+                for (int j = 0; j < taskOrigins.length; j++) {
+                    taskOrigins[j] = origins[first + j * numTasks];
+                }
+                CPU_POOL.supply(() -> {
+                    Router.distanceMatrix(g, taskOrigins, targets, profile, (row, j) -> {
+                        CompletableFuture<double[]> future = rows.get(first + j * numTasks);
+                        if (future.isCancelled()) {
+                            throw new CancellationException();
+                        }
+                        future.complete(row);
+                    });
+                    return null;
+                }).whenComplete((v, e) -> {
+                    for (int i = first; e != null && i < rows.size(); i += numTasks) {
+                        rows.get(i).completeExceptionally(e);
+                    }
+                });
+            }
+        } catch (RejectedExecutionException e) {
+            for (CompletableFuture<double[]> row : rows) {
+                row.cancel(false);
+            }
+            throw e;
+        }
+        return rows;
+    }
+
+    private static long[] closestVertices(GraphDB g, double[][] points, Profile profile) {
+        long[] res = new long[points.length];
+        for (int i = 0; i < points.length; i++) {
+            res[i] = g.closest(points[i][0], points[i][1], profile);
+        }
+        return res;
+    }
+
+    private static List<Map<String, Object>> vertexLocations(GraphDB g, long[] vertices) {
+        List<Map<String, Object>> res = new ArrayList<>();
+        for (long v : vertices) {
+            Map<String, Object> location = new LinkedHashMap<>();
+            location.put("id", v);
+            location.put("lon", g.lon(v));
+            location.put("lat", g.lat(v));
+            res.add(location);
+        }
+        return res;
+    }
+
     /**
      * Writes the images corresponding to rasteredImgParams to the output stream.
      * In Spring 2016, students had to do this on their own, but in 2017,
      * we have made this into provided code since it was just a bit too low level.
      */
-    private static void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
+    static void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
                                                   ByteArrayOutputStream os) {
         String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
-        int numVertTiles = renderGrid.length;
-        int numHorizTiles = renderGrid[0].length;
-
-        BufferedImage img = new BufferedImage(numHorizTiles * MapServer.TILE_SIZE,
-                numVertTiles * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
-        Graphics graphic = img.getGraphics();
-        int x = 0, y = 0;
-
-        for (int r = 0; r < numVertTiles; r += 1) {
-            for (int c = 0; c < numHorizTiles; c += 1) {
-                graphic.drawImage(getImage(IMG_ROOT + renderGrid[r][c]), x, y, null);
-                x += MapServer.TILE_SIZE;
-                if (x >= img.getWidth()) {
-                    x = 0;
-                    y += MapServer.TILE_SIZE;
-                }
+        BufferedImage img = newRasterImage(renderGrid);
+        long start = System.nanoTime();
+        for (int r = 0; r < renderGrid.length; r += 1) {
+            for (int c = 0; c < renderGrid[r].length; c += 1) {
+                drawTile(img, getImage(IMG_ROOT + renderGrid[r][c]), c * MapServer.TILE_SIZE,
+                        r * MapServer.TILE_SIZE);
             }
         }
+        RASTER_TILE_LOAD.recordSince(start);
+        encodeRaster(rasteredImageParams, img, os);
+    }
+
+    private static BufferedImage newRasterImage(String[][] renderGrid) {
+        return new BufferedImage(renderGrid[0].length * MapServer.TILE_SIZE,
+                renderGrid.length * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+    }
+
+    /** Draws a tile into a raster image. Tiles may arrive on several threads at once. */
+    private static void drawTile(BufferedImage img, BufferedImage tile, int x, int y) {
+        synchronized (img) {
+            Graphics graphic = img.getGraphics();
+            graphic.drawImage(tile, x, y, null);
+            graphic.dispose();
+        }
+    }
 
-        /* If there is a route, draw it. */
+    /**
+     * Draws the current isochrone and route on a raster image whose tiles are all drawn,
+     * and writes the image to the output stream as a PNG.
+     */
+    private static void encodeRaster(Map<String, Object> rasteredImageParams,
+                                     BufferedImage img, ByteArrayOutputStream os) {
+        Graphics graphic = img.getGraphics();
+        long start = System.nanoTime();
+
+        /* If there is an isochrone or a route, draw it. */
         double ullon = (double) rasteredImageParams.get("raster_ul_lon"); //tiles.get(0).ulp;
         double ullat = (double) rasteredImageParams.get("raster_ul_lat"); //tiles.get(0).ulp;
         double lrlon = (double) rasteredImageParams.get("raster_lr_lon"); //tiles.get(0).ulp;
@@ -227,28 +1320,52 @@ public class MapServer {
 
         final double wdpp = (lrlon - ullon) / img.getWidth();
         final double hdpp = (ullat - lrlat) / img.getHeight();
-        if (route != null && !route.isEmpty()) {
+        double[] segments = isochrone;
+        if (segments.length > 0) {
+            Graphics2D g2d = (Graphics2D) graphic;
+            g2d.setColor(MapServer.ISOCHRONE_STROKE_COLOR);
+            g2d.setStroke(new BasicStroke(MapServer.ISOCHRONE_STROKE_WIDTH_PX,
+                    BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+            for (int i = 0; i < segments.length; i += 4) {
+                if (Math.max(segments[i], segments[i + 2]) < ullon
+                        || Math.min(segments[i], segments[i + 2]) > lrlon
+                        || Math.max(segments[i + 1], segments[i + 3]) < lrlat
+                        || Math.min(segments[i + 1], segments[i + 3]) > ullat) {
+                    continue;
+                }
+                g2d.drawLine((int) ((segments[i] - ullon) * (1 / wdpp)),
+                             (int) ((ullat - segments[i + 1]) * (1 / hdpp)),
+                             (int) ((segments[i + 2] - ullon) * (1 / wdpp)),
+                             (int) ((ullat - segments[i + 3]) * (1 / hdpp)));
+            }
+        }
+        double[] line = routeLine;
+        if (line.length > 0) {
             Graphics2D g2d = (Graphics2D) graphic;
             g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
             g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
                     BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                             (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
+            for (int i = 2; i < line.length; i += 2) {
+                g2d.drawLine((int) ((line[i - 2] - ullon) * (1 / wdpp)),
+                             (int) ((ullat - line[i - 1]) * (1 / hdpp)),
+                             (int) ((line[i] - ullon) * (1 / wdpp)),
+                             (int) ((ullat - line[i + 1]) * (1 / hdpp)));
+            }
         }
 
         rasteredImageParams.put("raster_width", img.getWidth());
         rasteredImageParams.put("raster_height", img.getHeight());
+        RASTER_COMPOSITE.recordSince(start);
 
+        start = System.nanoTime();
+        int before = os.size();
         try {
             ImageIO.write(img, "png", os);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        RASTER_ENCODE.recordSince(start);
+        PNG_BYTES.add(os.size() - before);
 
     }
 
@@ -258,7 +1375,9 @@ public class MapServer {
             try {
                 File in = new File(imgPath);
                 tileImg = ImageIO.read(in);
+                TILES_LOADED.increment();
             } catch (IOException | NullPointerException e) {
+                TILE_ERRORS.increment();
                 e.printStackTrace();
             }
         }
@@ -266,10 +1385,11 @@ public class MapServer {
     }
 
     /**
-     * Clear the current found route, if it exists.
+     * Clear the current found route and isochrone, if they exist.
      */
     public static void clearRoute() {
-        route = new LinkedList<Long>();
+        routeLine = new double[0];
+        isochrone = new double[0];
     }
 
     /**
@@ -299,6 +1419,36 @@ public class MapServer {
         return graph.getLocations(locationName);
     }
 
+    /**
+     * Collect the <code>limit</code> locations matching a cleaned <code>locationName</code>
+     * that are closest to the given point, closest first.
+     * @param locationName A full name of a location searched for.
+     * @param lon The longitude to rank by, typically the viewport center.
+     * @param lat The latitude to rank by, typically the viewport center.
+     * @param limit The maximum number of locations to return.
+     * @return A list of locations as in getLocations, each with an additional
+     * "distance" : Number, the distance in miles from (lon, lat).
+     */
+    public static List<Map<String, Object>> getLocations(String locationName, double lon,
+                                                         double lat, int limit) {
+        return graph.getLocations(locationName, lon, lat, limit);
+    }
+
+    /**
+     * Find the named node and the named way closest to a point.
+     * @param lon The longitude of the point.
+     * @param lat The latitude of the point.
+     * @return A map of parameters for the Json response as specified: <br>
+     * "node" : Object, the closest named node, with the fields of getLocations and
+     * "distance" : Number, its distance in miles. <br>
+     * "way" : Object, the closest named way, with "name" : String, "lat" and "lon" : Number,
+     * the closest point on the way, "distance" : Number, in miles, and "from" and
+     * "to" : Number, the ids of the vertices of the closest segment. <br>
+     */
+    public static Map<String, Object> reverseGeocode(double lon, double lat) {
+        return graph.reverseGeocode(lon, lat);
+    }
+
     /**
      * Validates that Rasterer has returned a result that can be rendered.
      * @param rip : Parameters provided by the rasterer
@@ -313,6 +1463,7 @@ public class MapServer {
         if (rip.containsKey("query_success")) {
             boolean success = (boolean) rip.get("query_success");
             if (!success) {
+                RASTER_FAILURES.increment();
                 System.out.println("query_success was reported as a failure");
                 return false;
             }
@@ -321,21 +1472,52 @@ public class MapServer {
     }
 
     /**
-     * Takes the route of this MapServer and converts it into an HTML friendly
-     * String to be passed to the frontend.
+     * Writes a route in g and its directions to the output stream as JSON of the form
+     * <code>{"routing_success": ..., "directions_success": ..., "steps": [...],
+     * "polyline": [...]}</code>. The polyline holds the lon and lat of every point of the
+     * route in turn: the snapped start, the vertices passed and the snapped destination.
+     * Each step is <code>{"maneuver": m, "way": name, "distance": miles, "start": i,
+     * "end": j}</code>, where m is a Router.NavigationDirection constant and the step runs
+     * along the polyline from point i to point j. Clients word and localize the steps
+     * themselves.
      */
-    private static String getDirectionsText() {
-        List<Router.NavigationDirection> directions = Router.routeDirections(graph, route);
-        if (directions == null || directions.isEmpty()) {
-          return "";
+    static void writeRoute(GraphDB g, Router.Route route, OutputStream os)
+            throws IOException {
+        writeRoute(route, Router.routeDirections(g, route), route.polyline(g), os);
+    }
+
+    /** Like writeRoute(GraphDB, Router.Route, OutputStream), for a sharded graph. */
+    static void writeRoute(ShardedGraph g, Router.Route route, OutputStream os)
+            throws IOException {
+        writeRoute(route, Router.routeDirections(g, route), route.polyline(g), os);
+    }
+
+    private static void writeRoute(Router.Route route,
+                                   List<Router.NavigationDirection> directions,
+                                   double[] polyline, OutputStream os) throws IOException {
+        JsonWriter out = new JsonWriter(new BufferedWriter(
+                new OutputStreamWriter(os, StandardCharsets.UTF_8)));
+        out.beginObject();
+        out.name("routing_success").value(route.found);
+        out.name("directions_success").value(!directions.isEmpty());
+        out.name("steps").beginArray();
+        for (Router.NavigationDirection d : directions) {
+            out.beginObject();
+            out.name("maneuver").value(d.direction);
+            out.name("way").value(d.way);
+            out.name("distance").value(d.distance);
+            out.name("start").value(d.start);
+            out.name("end").value(d.end);
+            out.endObject();
         }
-        StringBuilder sb = new StringBuilder();
-        int step = 1;
-        for (Router.NavigationDirection d: directions) {
-            sb.append(String.format("%d. %s <br>", step, d));
-            step += 1;
+        out.endArray();
+        out.name("polyline").beginArray();
+        for (double coordinate : polyline) {
+            out.value(coordinate);
         }
-        return sb.toString();
+        out.endArray();
+        out.endObject();
+        out.flush();
     }
 
 }
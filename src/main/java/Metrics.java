@@ -0,0 +1,231 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A small, low-overhead metrics registry for the server: latency histograms, counters and
+ * gauges, exported in the Prometheus text format by {@link #prometheus()}.
+ *
+ * Metrics are registered by name and a set of labels, e.g.
+ * <code>Metrics.histogram("bearmap_request_duration_seconds", help, "endpoint", "raster")</code>,
+ * and the returned object should be kept in a static field, so that recording costs only
+ * a few atomic adds.
+ */
+public class Metrics {
+    private static final Map<String, Family> FAMILIES = new ConcurrentHashMap<>();
+
+    /** All metrics of one name, with their help text and type. */
+    private static class Family {
+        final String help;
+        final String type;
+        final Map<String, Object> byLabels = new ConcurrentHashMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /**
+     * A histogram of durations in nanoseconds. Like HdrHistogram, values are counted in
+     * buckets whose width doubles every 2^PRECISION_BITS buckets, which keeps every recorded
+     * value within about 3% and needs no locking or resizing.
+     */
+    public static class Histogram {
+        private static final int PRECISION_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << PRECISION_BITS;
+        private static final int NUM_BUCKETS = (64 - PRECISION_BITS + 1) << PRECISION_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        /** Records a duration in nanoseconds. */
+        public void record(long nanos) {
+            nanos = Math.max(nanos, 0);
+            counts.incrementAndGet(bucket(nanos));
+            count.increment();
+            sum.add(nanos);
+        }
+
+        /** Records the time elapsed since a System.nanoTime() reading. */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long sum() {
+            return sum.sum();
+        }
+
+        /**
+         * Returns an estimate of the given quantile of the recorded values, or 0 if nothing
+         * has been recorded.
+         * @param q The quantile, between 0 and 1.
+         */
+        public long quantile(double q) {
+            long total = 0;
+            long[] snapshot = new long[NUM_BUCKETS];
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return lowerBound(i) + (width(i) - 1) / 2;
+                }
+            }
+            return lowerBound(NUM_BUCKETS - 1);
+        }
+
+        static int bucket(long v) {
+            if (v < SUB_BUCKETS) {
+                return (int) v;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(v) - PRECISION_BITS;
+            int mantissa = (int) (v >>> shift) & (SUB_BUCKETS - 1);
+            return ((shift + 1) << PRECISION_BITS) | mantissa;
+        }
+
+        static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = (bucket >>> PRECISION_BITS) - 1;
+            return (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+        }
+
+        static long width(int bucket) {
+            return bucket < SUB_BUCKETS ? 1 : 1L << ((bucket >>> PRECISION_BITS) - 1);
+        }
+    }
+
+    /** A monotonically increasing count. */
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Returns the latency histogram with the given name and labels, registering it on
+     * first use. It is exported as a Prometheus summary in seconds.
+     * @param name The metric name, ending in "_seconds".
+     * @param help A one-line description of the metric.
+     * @param labels Alternating label names and values.
+     */
+    public static Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) register(name, help, "summary", labels, Histogram::new);
+    }
+
+    /**
+     * Returns the counter with the given name and labels, registering it on first use.
+     * @param name The metric name, ending in "_total".
+     * @param help A one-line description of the metric.
+     * @param labels Alternating label names and values.
+     */
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, help, "counter", labels, Counter::new);
+    }
+
+    /**
+     * Registers a gauge whose value is read from the given supplier at export time,
+     * replacing any gauge with the same name and labels.
+     */
+    public static void gauge(String name, String help, LongSupplier value, String... labels) {
+        Family family = FAMILIES.computeIfAbsent(name, n -> new Family(help, "gauge"));
+        family.byLabels.put(labelString(labels), value);
+    }
+
+    private static Object register(String name, String help, String type, String[] labels,
+                                   Supplier<Object> create) {
+        Family family = FAMILIES.computeIfAbsent(name, n -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a "
+                    + family.type + ".");
+        }
+        return family.byLabels.computeIfAbsent(labelString(labels), l -> create.get());
+    }
+
+    private static String labelString(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name, value pairs.");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\")
+                    .replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns every registered metric in the Prometheus text exposition format.
+     * Histograms are exported as summaries with the 0.5, 0.9, 0.99 and 0.999 quantiles.
+     */
+    public static String prometheus() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Family> entry : new TreeMap<>(FAMILIES).entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            sb.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> metric : new TreeMap<>(family.byLabels).entrySet()) {
+                String labels = metric.getKey();
+                Object value = metric.getValue();
+                if (value instanceof Histogram) {
+                    Histogram h = (Histogram) value;
+                    for (double q : new double[]{0.5, 0.9, 0.99, 0.999}) {
+                        String withQuantile = (labels.isEmpty() ? "" : labels + ",")
+                                + "quantile=\"" + q + "\"";
+                        sample(sb, name, withQuantile, h.quantile(q) / 1e9);
+                    }
+                    sample(sb, name + "_sum", labels, h.sum() / 1e9);
+                    sb.append(name).append("_count").append(braces(labels)).append(' ')
+                            .append(h.count()).append('\n');
+                } else if (value instanceof Counter) {
+                    sb.append(name).append(braces(labels)).append(' ')
+                            .append(((Counter) value).get()).append('\n');
+                } else {
+                    sb.append(name).append(braces(labels)).append(' ')
+                            .append(((LongSupplier) value).getAsLong()).append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name).append(braces(labels)).append(' ').append(value).append('\n');
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+}
@@ -0,0 +1,861 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.stream.IntStream;
+
+/**
+ * A multi-level overlay of a graph for customizable route planning (CRP): route searches
+ * that skip over whole cells of the map, with weights that can be replaced, e.g. for
+ * traffic, without partitioning the graph again, as the partition does not depend on them.
+ *
+ * The partition is built once per graph and holds for every profile and weight. The
+ * vertices are split in half by longitude or latitude, whichever is wider, and the halves
+ * again, so that a cell at level i is the union of cells at level i - 1. Boundary arcs
+ * are the half-edges between two cells of the lowest level. A cell's entries are the
+ * boundary arcs into it at its level, and its exits the ones out of it.
+ *
+ * customize() then computes a Metric: for every cell, the cost from each entry to each
+ * exit within the cell, its clique. Cells of the lowest level are searched on the graph,
+ * and cells above on the cliques of the cells below; the cells of a level may be
+ * customized in parallel, as tasks on a given Executor.
+ *
+ * A query is a bidirectional Dijkstra search. Near the start and the destination, within
+ * their lowest level cells, it runs on the graph; elsewhere, on the cliques of the highest
+ * level whose cell holds neither. See Metric.shortestPath().
+ */
+public class Overlay {
+    /** The most tasks the cells of a level are customized in. */
+    private static final int MAX_TASKS = 64;
+    private final GraphDB g;
+    /**
+     * The bisection code of every vertex; its cell at level i, counting from 0 for the
+     * lowest, is code >>> shift[i]. numCells[i] cells have that level.
+     */
+    private final int[] code;
+    private final int[] shift;
+    private final int[] numCells;
+    /**
+     * The boundary arcs, as the half-edge, its source and target vertices, and the number
+     * of levels whose cells it leaves: arc a is an entry and an exit at levels 0 to
+     * arcLevels[a] - 1. arcOf gives the arc of every half-edge, or -1.
+     */
+    private final int[] arcEdge;
+    private final int[] arcTail;
+    private final int[] arcHead;
+    private final int[] arcLevels;
+    private final int[] arcOf;
+    /** The position of every arc among the entries of the lowest level. */
+    private final int[] entryPosition;
+    /**
+     * The entries of cell c at level i are entryArcs[i][entryStart[i][c]] and on, and
+     * entryIndex[i][a] is the position of arc a among those of its cell; likewise for exits.
+     * The clique of cell c at level i starts at cliqueStart[i][c], a row per entry.
+     */
+    private final int[][] entryStart;
+    private final int[][] entryArcs;
+    private final int[][] entryIndex;
+    private final int[][] exitStart;
+    private final int[][] exitArcs;
+    private final int[][] exitIndex;
+    private final int[][] cliqueStart;
+
+    /**
+     * Partitions a graph. Level i has cells of at most cellSizes[i] vertices, so the
+     * sizes must increase; levels that would have a single cell are left out.
+     * @throws IllegalArgumentException If the cell sizes are not positive and increasing.
+     */
+    public Overlay(GraphDB g, int... cellSizes) {
+        this.g = g;
+        int n = g.numVertices();
+        List<Integer> depths = new ArrayList<>();
+        for (int k = 0; k < cellSizes.length; k++) {
+            if (cellSizes[k] < 1 || k > 0 && cellSizes[k] <= cellSizes[k - 1]) {
+                throw new IllegalArgumentException("Cell sizes must be positive and "
+                        + "increasing.");
+            }
+            int depth = 0;
+            while ((long) cellSizes[k] << depth < n) {
+                depth++;
+            }
+            if (depth > 0 && (depths.isEmpty() || depth < depths.get(depths.size() - 1))) {
+                depths.add(depth);
+            }
+        }
+        int levels = depths.size();
+        int maxDepth = levels == 0 ? 0 : depths.get(0);
+        shift = new int[levels];
+        numCells = new int[levels];
+        for (int i = 0; i < levels; i++) {
+            shift[i] = maxDepth - depths.get(i);
+            numCells[i] = 1 << depths.get(i);
+        }
+        code = new int[n];
+        int[] order = IntStream.range(0, n).toArray();
+        bisect(order, 0, n, 0, 0, maxDepth);
+
+        /*
+         * Arcs are numbered in the order of their sources' codes, so that the exits of a cell
+         * at any level have neighbouring labels.
+         */
+        arcOf = new int[g.numEdges()];
+        Arrays.fill(arcOf, -1);
+        int numArcs = 0;
+        for (int k = 0; k < n && levels > 0; k++) {
+            int v = order[k];
+            for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                if (cell(0, v) != cell(0, g.edgeTarget(e))) {
+                    arcOf[e] = numArcs++;
+                }
+            }
+        }
+        arcEdge = new int[numArcs];
+        arcTail = new int[numArcs];
+        arcHead = new int[numArcs];
+        arcLevels = new int[numArcs];
+        for (int v = 0; v < n && numArcs > 0; v++) {
+            for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                int a = arcOf[e];
+                if (a < 0) {
+                    continue;
+                }
+                arcEdge[a] = e;
+                arcTail[a] = v;
+                arcHead[a] = g.edgeTarget(e);
+                while (arcLevels[a] < levels
+                        && cell(arcLevels[a], v) != cell(arcLevels[a], arcHead[a])) {
+                    arcLevels[a]++;
+                }
+            }
+        }
+
+        entryStart = new int[levels][];
+        entryArcs = new int[levels][];
+        entryIndex = new int[levels][];
+        exitStart = new int[levels][];
+        exitArcs = new int[levels][];
+        exitIndex = new int[levels][];
+        cliqueStart = new int[levels][];
+        for (int i = 0; i < levels; i++) {
+            int[][] entries = groupArcs(i, arcHead);
+            int[][] exits = groupArcs(i, arcTail);
+            entryStart[i] = entries[0];
+            entryArcs[i] = entries[1];
+            entryIndex[i] = entries[2];
+            exitStart[i] = exits[0];
+            exitArcs[i] = exits[1];
+            exitIndex[i] = exits[2];
+            cliqueStart[i] = new int[numCells[i] + 1];
+            long total = 0;
+            for (int c = 0; c < numCells[i]; c++) {
+                cliqueStart[i][c] = (int) total;
+                total += (long) (entryStart[i][c + 1] - entryStart[i][c])
+                        * (exitStart[i][c + 1] - exitStart[i][c]);
+                if (total > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("The cliques of level " + i
+                            + " are too large; use smaller cells.");
+                }
+            }
+            cliqueStart[i][numCells[i]] = (int) total;
+        }
+        entryPosition = new int[numArcs];
+        for (int p = 0; levels > 0 && p < numArcs; p++) {
+            entryPosition[entryArcs[0][p]] = p;
+        }
+    }
+
+    /**
+     * Assigns codes to the vertices order[lo..hi), which share the given code prefix, by
+     * splitting them in half at the median of the wider of their longitude and latitude.
+     * Leaves order[lo..hi) sorted by code.
+     */
+    private void bisect(int[] order, int lo, int hi, int prefix, int depth, int maxDepth) {
+        if (depth == maxDepth) {
+            for (int k = lo; k < hi; k++) {
+                code[order[k]] = prefix;
+            }
+            return;
+        }
+        double west = Double.POSITIVE_INFINITY, east = Double.NEGATIVE_INFINITY;
+        double south = Double.POSITIVE_INFINITY, north = Double.NEGATIVE_INFINITY;
+        for (int k = lo; k < hi; k++) {
+            west = Math.min(west, g.vertexLon(order[k]));
+            east = Math.max(east, g.vertexLon(order[k]));
+            south = Math.min(south, g.vertexLat(order[k]));
+            north = Math.max(north, g.vertexLat(order[k]));
+        }
+        boolean byLon = (east - west) * Math.cos(Math.toRadians((south + north) / 2))
+                > north - south;
+        int mid = (lo + hi) >>> 1;
+        select(order, lo, hi, mid, byLon);
+        bisect(order, lo, mid, prefix << 1, depth + 1, maxDepth);
+        bisect(order, mid, hi, prefix << 1 | 1, depth + 1, maxDepth);
+    }
+
+    /**
+     * Reorders order[lo..hi) so that order[k] has the vertex with the k-th smallest
+     * coordinate, with no larger ones before it and no smaller ones after it.
+     */
+    private void select(int[] order, int lo, int hi, int k, boolean byLon) {
+        hi--;
+        while (lo < hi) {
+            double pivot = coordinate(order[(lo + hi) >>> 1], byLon);
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (coordinate(order[i], byLon) < pivot) {
+                    i++;
+                }
+                while (coordinate(order[j], byLon) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int t = order[i];
+                    order[i++] = order[j];
+                    order[j--] = t;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private double coordinate(int v, boolean byLon) {
+        return byLon ? g.vertexLon(v) : g.vertexLat(v);
+    }
+
+    /**
+     * Groups the arcs that cross the cells of level i by the cell of the given end.
+     * Returns the start of every cell's arcs, the arcs and the position of every arc
+     * among those of its cell, or -1 for arcs within a cell.
+     */
+    private int[][] groupArcs(int i, int[] end) {
+        int[] start = new int[numCells[i] + 1];
+        for (int a = 0; a < end.length; a++) {
+            if (arcLevels[a] > i) {
+                start[cell(i, end[a]) + 1]++;
+            }
+        }
+        for (int c = 0; c < numCells[i]; c++) {
+            start[c + 1] += start[c];
+        }
+        int[] arcs = new int[start[numCells[i]]];
+        int[] index = new int[end.length];
+        int[] fill = Arrays.copyOf(start, numCells[i]);
+        for (int a = 0; a < end.length; a++) {
+            if (arcLevels[a] > i) {
+                int c = cell(i, end[a]);
+                index[a] = fill[c] - start[c];
+                arcs[fill[c]++] = a;
+            } else {
+                index[a] = -1;
+            }
+        }
+        return new int[][]{start, arcs, index};
+    }
+
+    /** Returns the cell of vertex v at level i. */
+    private int cell(int i, int v) {
+        return code[v] >>> shift[i];
+    }
+
+    /** Returns the number of levels. */
+    int numLevels() {
+        return shift.length;
+    }
+
+    /** Returns the number of cells at level i. */
+    int numCells(int i) {
+        return numCells[i];
+    }
+
+    /** Returns the number of half-edges between cells of the lowest level. */
+    int numBoundaryArcs() {
+        return arcEdge.length;
+    }
+
+    /**
+     * Computes the cliques of every cell for a profile, on the weights and access bits of
+     * the given graph, which must be the partitioned graph or one with the same vertices
+     * and half-edges, e.g. from GraphDB.withTraffic(). Runs on the calling thread.
+     * @throws IllegalArgumentException If the graph is not like the partitioned one.
+     */
+    public Metric customize(GraphDB weights, Profile profile) {
+        return customize(weights, profile, Runnable::run);
+    }
+
+    /**
+     * Computes the cliques of every cell like customize(GraphDB, Profile), with the cells
+     * of each level split into at most MAX_TASKS tasks that run on the executor. The
+     * calling thread waits for each level before starting the next.
+     * @throws IllegalArgumentException If the graph is not like the partitioned one.
+     */
+    public Metric customize(GraphDB weights, Profile profile, Executor executor) {
+        if (weights.numVertices() != g.numVertices() || weights.numEdges() != g.numEdges()
+                || weights.numStates() != g.numStates()) {
+            throw new IllegalArgumentException("The weights are not of the partitioned "
+                    + "graph.");
+        }
+        return new Metric(this, weights, profile, executor);
+    }
+
+    /**
+     * The cliques of an Overlay for one profile and set of weights. A Metric is immutable
+     * once customized, so any number of queries may run on it at once.
+     */
+    public static class Metric {
+        private final Overlay overlay;
+        private final GraphDB graph;
+        private final Profile profile;
+        private final double[] weight;
+        private final int[] next;
+        private final int bit;
+        /** The cliques of every level, see Overlay.cliqueStart. */
+        private final double[][] clique;
+
+        private Metric(Overlay overlay, GraphDB graph, Profile profile, Executor executor) {
+            this.overlay = overlay;
+            this.graph = graph;
+            this.profile = profile;
+            weight = graph.edgeWeights(profile);
+            next = graph.edgeTargets(profile);
+            bit = profile.mode.bit();
+            clique = new double[overlay.numLevels()][];
+            for (int i = 0; i < clique.length; i++) {
+                int level = i;
+                clique[i] = new double[overlay.cliqueStart[i][overlay.numCells[i]]];
+                Arrays.fill(clique[i], Double.POSITIVE_INFINITY);
+                int numCells = overlay.numCells[i];
+                int numTasks = Math.min(numCells, MAX_TASKS);
+                CompletableFuture<?>[] tasks = new CompletableFuture<?>[numTasks];
+                for (int k = 0; k < numTasks; k++) {
+                    int lo = (int) ((long) numCells * k / numTasks);
+                    int hi = (int) ((long) numCells * (k + 1) / numTasks);
+                    tasks[k] = CompletableFuture.runAsync(() -> {
+                        for (int c = lo; c < hi; c++) {
+                            customize(level, c);
+                        }
+                    }, executor);
+                }
+                try {
+                    CompletableFuture.allOf(tasks).join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        }
+
+        /** Returns whether the profile may use half-edge e. */
+        private boolean usable(int e) {
+            return (graph.edgeAccess(e) & bit) != 0 && weight[e] < Double.POSITIVE_INFINITY;
+        }
+
+        /** Computes the clique of cell c at level i, from an entry at a time. */
+        private void customize(int i, int c) {
+            Overlay o = overlay;
+            if (i > 0) {
+                new CliqueSearch(i, c).run();
+                return;
+            }
+            int numExits = o.exitStart[0][c + 1] - o.exitStart[0][c];
+            for (int k = o.entryStart[0][c]; k < o.entryStart[0][c + 1]; k++) {
+                int a = o.entryArcs[0][k];
+                if (usable(o.arcEdge[a])) {
+                    cellSearch(0, c, next[o.arcEdge[a]],
+                            o.cliqueStart[0][c] + (k - o.entryStart[0][c]) * numExits, -1);
+                }
+            }
+        }
+
+        /**
+         * Dijkstra's search on the graph from a search state, restricted to the vertices of
+         * cell c at level i. Either records the cost to every exit of the cell in the
+         * clique row starting at row, or, if target is an arc, stops at the first state
+         * that may take it.
+         * @return The state found for target, or -1.
+         */
+        private int cellSearch(int i, int c, int source, int row, int target) {
+            Overlay o = overlay;
+            SearchState state = SearchState.begin(graph.numStates());
+            VertexHeap heap = state.heap;
+            state.reach(source, 0, -1);
+            heap.push(source, 0);
+            while (!heap.isEmpty()) {
+                int s = heap.pop();
+                state.settle(s);
+                int v = graph.stateVertex(s);
+                if (target >= 0 && v == o.arcTail[target]
+                        && !graph.isTurnForbidden(s, o.arcEdge[target])) {
+                    return s;
+                }
+                double distS = state.dist(s);
+                for (int e = graph.edgeStart(v); e < graph.edgeEnd(v); e++) {
+                    if (!usable(e) || graph.isTurnForbidden(s, e)) {
+                        continue;
+                    }
+                    int w = graph.edgeTarget(e);
+                    if (o.cell(i, w) != c) {
+                        if (row >= 0) {
+                            int exit = row + o.exitIndex[i][o.arcOf[e]];
+                            clique[i][exit] = Math.min(clique[i][exit], distS);
+                        }
+                        continue;
+                    }
+                    int x = next[e];
+                    double d = distS + weight[e];
+                    if (!state.isSettled(x) && state.dist(x) > d) {
+                        state.reach(x, d, s);
+                        heap.push(x, d);
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Dijkstra's searches from every entry of cell c at level i > 0, on the cliques of
+         * its cells at level i - 1 and the arcs between them, recording the costs to every
+         * exit of the cell in its clique. The entries and exits of the cells below are
+         * contiguous in entryArcs and exitArcs, so the searches label them with their
+         * position there, in arrays of their own rather than a SearchState over every arc,
+         * which keeps the labels in cache. Only entries are queued: an exit below either
+         * leaves the cell or crosses into the next entry, so it is followed at once.
+         */
+        private class CliqueSearch {
+            final int i;
+            final int c;
+            final int entryBase;
+            final int exitBase;
+            /**
+             * For every exit below, the entry it crosses into and the cost of the arc, or
+             * -1 - its position in the cell's clique rows if it leaves the cell.
+             */
+            final int[] exitTarget;
+            final double[] exitCost;
+            final VertexHeap heap;
+            final double[] dist;
+
+            CliqueSearch(int i, int c) {
+                Overlay o = overlay;
+                this.i = i;
+                this.c = c;
+                int span = o.shift[i] - o.shift[i - 1];
+                int endSub = (c + 1) << span;
+                entryBase = o.entryStart[i - 1][c << span];
+                exitBase = o.exitStart[i - 1][c << span];
+                int numEntries = o.entryStart[i - 1][endSub] - entryBase;
+                int numExits = o.exitStart[i - 1][endSub] - exitBase;
+                exitTarget = new int[numExits];
+                exitCost = new double[numExits];
+                for (int x = 0; x < numExits; x++) {
+                    int b = o.exitArcs[i - 1][exitBase + x];
+                    if (o.arcLevels[b] > i) {
+                        exitTarget[x] = -1 - o.exitIndex[i][b];
+                    } else {
+                        exitTarget[x] = o.entryStart[i - 1][o.cell(i - 1, o.arcHead[b])]
+                                + o.entryIndex[i - 1][b] - entryBase;
+                        exitCost[x] = usable(o.arcEdge[b]) ? weight[o.arcEdge[b]]
+                                : Double.POSITIVE_INFINITY;
+                    }
+                }
+                heap = new VertexHeap(numEntries);
+                dist = new double[numEntries];
+            }
+
+            void run() {
+                Overlay o = overlay;
+                int numExits = o.exitStart[i][c + 1] - o.exitStart[i][c];
+                for (int k = o.entryStart[i][c]; k < o.entryStart[i][c + 1]; k++) {
+                    int a = o.entryArcs[i][k];
+                    if (usable(o.arcEdge[a])) {
+                        search(o.entryStart[i - 1][o.cell(i - 1, o.arcHead[a])]
+                                        + o.entryIndex[i - 1][a] - entryBase,
+                                o.cliqueStart[i][c] + (k - o.entryStart[i][c]) * numExits);
+                    }
+                }
+            }
+
+            void search(int source, int row) {
+                Overlay o = overlay;
+                double[] cliqueBelow = clique[i - 1];
+                Arrays.fill(dist, Double.POSITIVE_INFINITY);
+                heap.clear();
+                dist[source] = 0;
+                heap.push(source, 0);
+                while (!heap.isEmpty()) {
+                    int x = heap.pop();
+                    double distX = dist[x];
+                    int a = o.entryArcs[i - 1][entryBase + x];
+                    int sub = o.cell(i - 1, o.arcHead[a]);
+                    int firstExit = o.exitStart[i - 1][sub];
+                    int numExits = o.exitStart[i - 1][sub + 1] - firstExit;
+                    int subRow = o.cliqueStart[i - 1][sub] + o.entryIndex[i - 1][a] * numExits;
+                    for (int j = 0; j < numExits; j++) {
+                        double d = distX + cliqueBelow[subRow + j];
+                        int y = firstExit - exitBase + j;
+                        int target = exitTarget[y];
+                        if (target < 0) {
+                            /* The exit leaves the cell at level i. */
+                            int exit = row - 1 - target;
+                            clique[i][exit] = Math.min(clique[i][exit], d);
+                            continue;
+                        }
+                        d += exitCost[y];
+                        if (d < dist[target]) {
+                            dist[target] = d;
+                            heap.push(target, d);
+                        }
+                    }
+                }
+            }
+        }
+
+        private static boolean relax(SearchState state, int x, double d, int from) {
+            if (state.isSettled(x) || state.dist(x) <= d) {
+                return false;
+            }
+            state.reach(x, d, from);
+            state.heap.push(x, d);
+            return true;
+        }
+
+        /**
+         * Like {@link Router#shortestPath(GraphDB, long, long, Profile, SearchStats)}, on
+         * the weights and profile of this metric.
+         *
+         * The forward search from the start and the backward search from the destination
+         * label the graph's search states and the ends of the boundary arcs: with
+         * S = numStates() and B boundary arcs, entry a is S + its position in the entries of
+         * the lowest level, so that the entries of a cell have neighbouring labels at every
+         * level, and exit b is S + B + b. A vertex is
+         * searched on the graph if it is in the lowest level cell of the start or the
+         * destination, and otherwise through the cliques of the highest level whose cell
+         * holds neither. The forward cost of an exit excludes its arc, and the backward
+         * cost includes it. The search stops once the best route found is no longer than
+         * the smallest keys of both heaps together. Clique edges on the route are unpacked
+         * by searching their cell on the graph.
+         * @param stats The statistics to fill in, or null to not collect any.
+         */
+        public List<Long> shortestPath(long start, long dest, Router.SearchStats stats) {
+            long t = stats == null ? 0 : System.nanoTime();
+            int v = graph.vertexIndex(start), w = graph.vertexIndex(dest);
+            Query q = new Query(v, w);
+            q.reach(true, v, 0, -1);
+            for (int s : q.states(w)) {
+                q.reach(false, s, 0, -1);
+            }
+            q.run();
+            q.record(stats);
+            /* An unreachable destination gives a path of just the destination. */
+            List<Long> res = q.found() ? q.path() : Collections.singletonList(dest);
+            if (stats != null) {
+                stats.searchNanos = System.nanoTime() - t;
+            }
+            return res;
+        }
+
+        /**
+         * Like {@link Router#shortestPath(GraphDB, GraphDB.Snap, GraphDB.Snap, Profile,
+         * Router.TurnCosts, Router.SearchStats)}, without turn costs, on the weights and
+         * profile of this metric. The search is that of shortestPath(long, long, ...), with
+         * both ends of each point's segment searched on the graph: it starts along the
+         * start's segment in each direction allowed, and ends along the destination's.
+         * Points on the same segment are routed by Router, which may stay on it.
+         */
+        public Router.Route shortestPath(GraphDB.Snap from, GraphDB.Snap to,
+                                         Router.SearchStats stats) {
+            int fromTwin = graph.edgeTwin(from.edge);
+            if (to.edge == from.edge || to.edge == fromTwin) {
+                return Router.shortestPath(graph, from, to, profile, null, stats);
+            }
+            long t = stats == null ? 0 : System.nanoTime();
+            int toTwin = graph.edgeTwin(to.edge);
+            Query q = new Query(graph.edgeTarget(from.edge), graph.edgeTarget(fromTwin),
+                    graph.edgeTarget(to.edge), graph.edgeTarget(toTwin));
+            /* Leave the start along its segment, and arrive along the destination's. */
+            if (usable(from.edge)) {
+                q.reach(true, next[from.edge], (1 - from.t) * weight[from.edge], -1);
+            }
+            if (usable(fromTwin)) {
+                q.reach(true, next[fromTwin], from.t * weight[fromTwin], -1);
+            }
+            if (usable(to.edge)) {
+                q.arriveBackward(to.edge, graph.edgeTarget(toTwin), to.t * weight[to.edge],
+                        -1);
+            }
+            if (usable(toTwin)) {
+                q.arriveBackward(toTwin, graph.edgeTarget(to.edge),
+                        (1 - to.t) * weight[toTwin], -1);
+            }
+            q.run();
+            q.record(stats);
+            Router.Route res = q.found() ? new Router.Route(from, to, q.path(), true)
+                    : new Router.Route(from, to, Collections.emptyList(), false);
+            if (stats != null) {
+                stats.searchNanos = System.nanoTime() - t;
+            }
+            return res;
+        }
+
+        /** One query's bidirectional search; see shortestPath(). */
+        private class Query {
+            /** The vertices whose lowest level cells are searched on the graph. */
+            final int[] ends;
+            final int numStates = graph.numStates();
+            final SearchState forward;
+            final SearchState backward;
+            /** The best route found so far, and the label where its halves meet. */
+            double best = Double.POSITIVE_INFINITY;
+            int meet = -1;
+            int settled;
+            int relaxed;
+            int pushes;
+
+            Query(int... ends) {
+                this.ends = ends;
+                int n = numStates + 2 * overlay.arcEdge.length;
+                forward = SearchState.begin(n);
+                backward = SearchState.begin(n, true);
+            }
+
+            int entryLabel(int a) {
+                return numStates + overlay.entryPosition[a];
+            }
+
+            int exitLabel(int b) {
+                return numStates + overlay.arcEdge.length + b;
+            }
+
+            /** Returns whether a label that is not a search state is an entry. */
+            boolean isEntry(int x) {
+                return x < numStates + overlay.arcEdge.length;
+            }
+
+            /** Returns the arc of a label that is not a search state. */
+            int arcOfLabel(int x) {
+                return isEntry(x) ? overlay.entryArcs[0][x - numStates]
+                        : x - numStates - overlay.arcEdge.length;
+            }
+
+            /**
+             * Returns the level whose cliques the search uses at vertex v, plus one, or 0
+             * if it searches the graph there.
+             */
+            int level(int v) {
+                Overlay o = overlay;
+                for (int i = o.numLevels() - 1; i >= 0; i--) {
+                    int c = o.cell(i, v);
+                    boolean holdsEnd = false;
+                    for (int end : ends) {
+                        holdsEnd |= c == o.cell(i, end);
+                    }
+                    if (!holdsEnd) {
+                        return i + 1;
+                    }
+                }
+                return 0;
+            }
+
+            /** Reaches label x in one direction at cost d, and checks the other. */
+            void reach(boolean isForward, int x, double d, int from) {
+                SearchState state = isForward ? forward : backward;
+                SearchState other = isForward ? backward : forward;
+                relaxed++;
+                if (!relax(state, x, d, from)) {
+                    return;
+                }
+                pushes++;
+                if (other.isReached(x) && d + other.dist(x) < best) {
+                    best = d + other.dist(x);
+                    meet = x;
+                }
+            }
+
+            /** Runs the search from the labels reached so far in each direction. */
+            void run() {
+                while (!forward.heap.isEmpty() && !backward.heap.isEmpty()
+                        && forward.heap.minKey() + backward.heap.minKey() < best) {
+                    boolean isForward = forward.heap.minKey() <= backward.heap.minKey();
+                    SearchState state = isForward ? forward : backward;
+                    int x = state.heap.pop();
+                    state.settle(x);
+                    settled++;
+                    if (isForward) {
+                        expandForward(x, state.dist(x));
+                    } else {
+                        expandBackward(x, state.dist(x));
+                    }
+                }
+            }
+
+            boolean found() {
+                return meet >= 0;
+            }
+
+            void record(Router.SearchStats stats) {
+                if (stats != null) {
+                    stats.settled = settled;
+                    stats.relaxed = relaxed;
+                    stats.pushes = pushes;
+                    stats.finalHeapSize = forward.heap.size() + backward.heap.size();
+                }
+            }
+
+            /** Returns the search states of a vertex: itself, then its turn states. */
+            List<Integer> states(int v) {
+                List<Integer> res = new ArrayList<>();
+                res.add(v);
+                if (profile.mode == Profile.Mode.CAR) {
+                    for (int s = graph.firstTurnState(v);
+                         s < graph.numStates() && graph.stateVertex(s) == v; s++) {
+                        res.add(s);
+                    }
+                }
+                return res;
+            }
+
+            void expandForward(int x, double d) {
+                Overlay o = overlay;
+                if (x < numStates) {
+                    int v = graph.stateVertex(x);
+                    for (int e = graph.edgeStart(v); e < graph.edgeEnd(v); e++) {
+                        if (!usable(e) || graph.isTurnForbidden(x, e)) {
+                            continue;
+                        }
+                        int w = graph.edgeTarget(e);
+                        reach(true, level(w) == 0 ? next[e] : entryLabel(o.arcOf[e]),
+                                d + weight[e], x);
+                    }
+                    return;
+                }
+                int a = arcOfLabel(x);
+                if (!isEntry(x)) {
+                    /* Cross exit a into the next cell. */
+                    int e = o.arcEdge[a];
+                    if (usable(e)) {
+                        reach(true, level(o.arcHead[a]) == 0 ? next[e] : entryLabel(a),
+                                d + weight[e], x);
+                    }
+                    return;
+                }
+                int i = level(o.arcHead[a]) - 1;
+                int c = o.cell(i, o.arcHead[a]);
+                int numExits = o.exitStart[i][c + 1] - o.exitStart[i][c];
+                int row = o.cliqueStart[i][c] + o.entryIndex[i][a] * numExits;
+                for (int j = 0; j < numExits; j++) {
+                    double cost = clique[i][row + j];
+                    if (cost < Double.POSITIVE_INFINITY) {
+                        reach(true, exitLabel(o.exitArcs[i][o.exitStart[i][c] + j]), d + cost,
+                                x);
+                    }
+                }
+            }
+
+            void expandBackward(int x, double d) {
+                Overlay o = overlay;
+                if (x < numStates) {
+                    int w = graph.stateVertex(x);
+                    for (int f = graph.edgeStart(w); f < graph.edgeEnd(w); f++) {
+                        int e = graph.edgeTwin(f);
+                        if (next[e] == x && usable(e)) {
+                            arriveBackward(e, graph.edgeTarget(f), d + weight[e], x);
+                        }
+                    }
+                    return;
+                }
+                int b = arcOfLabel(x);
+                if (isEntry(x)) {
+                    /* Cross entry b back into the previous cell. */
+                    int e = o.arcEdge[b];
+                    if (usable(e)) {
+                        arriveBackward(e, o.arcTail[b], d + weight[e], x);
+                    }
+                    return;
+                }
+                int i = level(o.arcTail[b]) - 1;
+                int c = o.cell(i, o.arcTail[b]);
+                int numExits = o.exitStart[i][c + 1] - o.exitStart[i][c];
+                int column = o.cliqueStart[i][c] + o.exitIndex[i][b];
+                for (int k = o.entryStart[i][c]; k < o.entryStart[i][c + 1]; k++) {
+                    double cost = clique[i][column + (k - o.entryStart[i][c]) * numExits];
+                    if (cost < Double.POSITIVE_INFINITY) {
+                        reach(false, entryLabel(o.entryArcs[i][k]), d + cost, x);
+                    }
+                }
+            }
+
+            /**
+             * Reaches, backward at cost d, the labels that may take half-edge e from its
+             * source v: the exit of e, or the states of v not forbidden to take it.
+             */
+            void arriveBackward(int e, int v, double d, int from) {
+                if (level(v) > 0) {
+                    reach(false, exitLabel(overlay.arcOf[e]), d, from);
+                    return;
+                }
+                for (int s : states(v)) {
+                    if (!graph.isTurnForbidden(s, e)) {
+                        reach(false, s, d, from);
+                    }
+                }
+            }
+
+            /** Returns the vertex ids of the route, unpacking the clique edges on it. */
+            List<Long> path() {
+                List<Integer> labels = new ArrayList<>();
+                for (int x = meet; x >= 0; x = forward.edgeTo(x)) {
+                    labels.add(x);
+                }
+                Collections.reverse(labels);
+                for (int x = backward.edgeTo(meet); x >= 0; x = backward.edgeTo(x)) {
+                    labels.add(x);
+                }
+
+                Overlay o = overlay;
+                List<Long> res = new ArrayList<>();
+                for (int k = 0; k < labels.size(); k++) {
+                    int x = labels.get(k);
+                    if (x < numStates) {
+                        res.add(graph.vertexID(graph.stateVertex(x)));
+                        continue;
+                    }
+                    int a = arcOfLabel(x);
+                    if (isEntry(x)) {
+                        res.add(graph.vertexID(o.arcHead[a]));
+                        continue;
+                    }
+                    /* An exit always follows the entry of its cell. */
+                    int entry = arcOfLabel(labels.get(k - 1));
+                    int i = level(o.arcHead[entry]) - 1;
+                    res.addAll(unpack(i, o.cell(i, o.arcHead[entry]), entry, a));
+                }
+                return res;
+            }
+
+            /**
+             * Returns the vertices after the target of entry a up to the source of exit b,
+             * on the cheapest path between them within cell c at level i.
+             */
+            List<Long> unpack(int i, int c, int a, int b) {
+                int found = cellSearch(i, c, next[overlay.arcEdge[a]], -1, b);
+                SearchState state = SearchState.begin(numStates);
+                List<Long> res = new ArrayList<>();
+                for (int s = found; state.edgeTo(s) >= 0; s = state.edgeTo(s)) {
+                    res.add(graph.vertexID(graph.stateVertex(s)));
+                }
+                Collections.reverse(res);
+                return res;
+            }
+        }
+    }
+}
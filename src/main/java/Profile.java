@@ -0,0 +1,270 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The cost a route minimizes, and the mode of travel that decides which ways it may use.
+ * The cost of a road is its length times the profile's cost per mile on that way, which
+ * GraphDB precomputes for every half-edge when the graph is loaded, along with a bitmask
+ * of the modes allowed on it. Profiles are selected by lower-case name, e.g.
+ * <code>profile=foot</code>.
+ */
+public enum Profile {
+    /** Driving distance in miles. */
+    DISTANCE(Mode.CAR) {
+        @Override
+        double costPerMile(GraphDB.Edge way) {
+            return 1;
+        }
+
+        @Override
+        double costPerSecond() {
+            return FALLBACK_SPEED / 3600;
+        }
+    },
+    /** Driving time in seconds, at the posted speed limit or the default for the road. */
+    TIME(Mode.CAR) {
+        @Override
+        double costPerMile(GraphDB.Edge way) {
+            return 3600 / speedMph(way);
+        }
+    },
+    /** Walking time in seconds. */
+    FOOT(Mode.FOOT) {
+        @Override
+        double costPerMile(GraphDB.Edge way) {
+            return 3600 / ("steps".equals(way.extrainfo.get("highway")) ? 1.5 : 3);
+        }
+    },
+    /** Cycling time in seconds. */
+    BIKE(Mode.BIKE) {
+        @Override
+        double costPerMile(GraphDB.Edge way) {
+            String highway = way.extrainfo.get("highway");
+            if ("cycleway".equals(highway)) {
+                return 3600 / 12.0;
+            } else if ("path".equals(highway) || "track".equals(highway)) {
+                return 3600 / 8.0;
+            }
+            return 3600 / 11.0;
+        }
+    };
+
+    /**
+     * A way of getting around, with the set of ways it may use. Driving keeps the original
+     * road types and ignores access tags, so the car graph is the one the map was built
+     * for; walking and cycling follow the foot, bicycle and access tags. Driving and
+     * cycling keep to the direction of one-way streets, and driving obeys turn
+     * restrictions.
+     */
+    enum Mode {
+        CAR(GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES, null, "oneway"),
+        FOOT(with(without(GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES, "motorway",
+                "motorway_link", "trunk", "trunk_link"), "service", "footway", "path",
+                "pedestrian", "steps", "track"), "foot", null),
+        BIKE(with(without(GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES, "motorway",
+                "motorway_link"), "service", "path", "track", "cycleway"), "bicycle",
+                "oneway:bicycle");
+
+        private final Set<String> highwayTypes;
+        /** The tag that overrides the access tag for this mode, or null to ignore both. */
+        private final String accessTag;
+        /** The tag that overrides the oneway tag for this mode, or null to ignore both. */
+        private final String onewayTag;
+
+        Mode(Set<String> highwayTypes, String accessTag, String onewayTag) {
+            this.highwayTypes = highwayTypes;
+            this.accessTag = accessTag;
+            this.onewayTag = onewayTag;
+        }
+
+        /** The bit of this mode in access bitmasks. */
+        int bit() {
+            return 1 << ordinal();
+        }
+
+        /** Returns whether this mode may use the given way. */
+        boolean allows(GraphDB.Edge way) {
+            if (accessTag == null) {
+                return highwayTypes.contains(way.extrainfo.get("highway"));
+            }
+            String access = way.extrainfo.get(accessTag);
+            if (access == null) {
+                access = way.extrainfo.get("access");
+            }
+            if ("no".equals(access) || "private".equals(access)) {
+                return false;
+            }
+            return highwayTypes.contains(way.extrainfo.get("highway"))
+                    || "yes".equals(access) || "designated".equals(access)
+                    || "permissive".equals(access);
+        }
+
+        /**
+         * Returns the direction this mode may travel a way in: 1 if only in the order of
+         * its nodes, -1 if only against it, or 0 if in both. Motorways and roundabouts are
+         * one-way unless tagged otherwise.
+         */
+        int oneway(GraphDB.Edge way) {
+            if (onewayTag == null) {
+                return 0;
+            }
+            String oneway = way.extrainfo.get(onewayTag);
+            if (oneway == null) {
+                oneway = way.extrainfo.get("oneway");
+            }
+            if (oneway == null) {
+                String junction = way.extrainfo.get("junction");
+                return "motorway".equals(way.extrainfo.get("highway"))
+                        || "roundabout".equals(junction) || "circular".equals(junction) ? 1 : 0;
+            }
+            switch (oneway) {
+                case "yes":
+                case "true":
+                case "1":
+                    return 1;
+                case "-1":
+                case "reverse":
+                    return -1;
+                default:
+                    return 0;
+            }
+        }
+
+        private static Set<String> with(Set<String> types, String... more) {
+            Set<String> res = new HashSet<>(types);
+            res.addAll(Arrays.asList(more));
+            return res;
+        }
+
+        private static Set<String> without(Set<String> types, String... fewer) {
+            Set<String> res = new HashSet<>(types);
+            res.removeAll(Arrays.asList(fewer));
+            return res;
+        }
+    }
+
+    /**
+     * Default speeds in mph per highway class, for ways without a usable maxspeed tag,
+     * roughly the speed limits typical of California.
+     */
+    private static final Map<String, Double> DEFAULT_SPEEDS = new HashMap<>();
+    /** Speed assumed on roads of any other class. */
+    private static final double FALLBACK_SPEED = 25;
+    /** A maxspeed value: a number and an optional unit, km/h if none is given. */
+    private static final Pattern MAXSPEED = Pattern.compile(
+            "\\s*(\\d+(?:\\.\\d+)?)\\s*(mph|km/h|kmh|kph|knots)?\\s*");
+
+    static {
+        DEFAULT_SPEEDS.put("motorway", 65.0);
+        DEFAULT_SPEEDS.put("trunk", 55.0);
+        DEFAULT_SPEEDS.put("primary", 40.0);
+        DEFAULT_SPEEDS.put("secondary", 35.0);
+        DEFAULT_SPEEDS.put("tertiary", 30.0);
+        DEFAULT_SPEEDS.put("unclassified", 25.0);
+        DEFAULT_SPEEDS.put("residential", 25.0);
+        DEFAULT_SPEEDS.put("living_street", 10.0);
+        DEFAULT_SPEEDS.put("motorway_link", 45.0);
+        DEFAULT_SPEEDS.put("trunk_link", 40.0);
+        DEFAULT_SPEEDS.put("primary_link", 30.0);
+        DEFAULT_SPEEDS.put("secondary_link", 30.0);
+        DEFAULT_SPEEDS.put("tertiary_link", 25.0);
+    }
+
+    /** The mode of travel of this profile. */
+    final Mode mode;
+
+    Profile(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Returns the cost of one mile along the given way, which must be positive. Only
+     * called for ways the profile's mode allows.
+     */
+    abstract double costPerMile(GraphDB.Edge way);
+
+    /**
+     * Returns the cost of a second's delay, e.g. for a turn. Time-based profiles count in
+     * seconds already; distance counts the miles that could be driven at a typical speed.
+     */
+    double costPerSecond() {
+        return 1;
+    }
+
+    /**
+     * Returns the profile with the given name, ignoring case.
+     * @throws IllegalArgumentException If there is no such profile.
+     */
+    static Profile fromName(String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+
+    /** Returns the bitmask of the modes that may use the given way. */
+    static int access(GraphDB.Edge way) {
+        int mask = 0;
+        for (Mode mode : Mode.values()) {
+            if (mode.allows(way)) {
+                mask |= mode.bit();
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Returns the bitmask of the modes that may travel along the given way in one
+     * direction.
+     * @param backward Whether the direction is against the order of the way's nodes.
+     */
+    static int access(GraphDB.Edge way, boolean backward) {
+        int mask = 0;
+        for (Mode mode : Mode.values()) {
+            if (mode.allows(way) && mode.oneway(way) != (backward ? 1 : -1)) {
+                mask |= mode.bit();
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Returns the speed on a way in mph: its maxspeed tag if that holds a speed, otherwise
+     * the default for its highway class. Of several values separated by semicolons, the
+     * first is used.
+     */
+    static double speedMph(GraphDB.Edge way) {
+        String maxspeed = way.extrainfo.get("maxspeed");
+        if (maxspeed != null) {
+            double speed = parseMph(maxspeed.split(";")[0]);
+            if (speed > 0) {
+                return speed;
+            }
+        }
+        return DEFAULT_SPEEDS.getOrDefault(way.extrainfo.get("highway"), FALLBACK_SPEED);
+    }
+
+    /**
+     * Converts a maxspeed value such as "25 mph" or "50" to mph, or returns 0 if it is not a
+     * speed, e.g. "none" or "signals".
+     */
+    static double parseMph(String maxspeed) {
+        Matcher m = MAXSPEED.matcher(maxspeed);
+        if (!m.matches()) {
+            return 0;
+        }
+        double value = Double.parseDouble(m.group(1));
+        String unit = m.group(2) == null ? "km/h" : m.group(2);
+        switch (unit) {
+            case "mph":
+                return value;
+            case "knots":
+                return value * 1.150779;
+            default:
+                return value / 1.609344;
+        }
+    }
+}
@@ -13,8 +13,9 @@ public class Rasterer {
     public static final double[] DPPs = new double[max_depth + 1];
     public static final double[] widths = new double[max_depth + 1];
     public static final double[] heights = new double[max_depth + 1];
-    public Rasterer() {
-        // YOUR CODE HERE
+
+    /* The tables are filled in once, before any request thread can read them. */
+    static {
         DPPs[0] = calcLonDPP(MapServer.ROOT_LRLON, MapServer.ROOT_ULLON, MapServer.TILE_SIZE);
         widths[0] = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
         heights[0] = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
@@ -25,7 +26,10 @@ public class Rasterer {
         }
     }
 
-    public double calcLonDPP(double lr_lon, double ul_lon, double pixel_size) {
+    public Rasterer() {
+    }
+
+    public static double calcLonDPP(double lr_lon, double ul_lon, double pixel_size) {
         return (lr_lon - ul_lon) / pixel_size;
     }
 
@@ -0,0 +1,187 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A bounded cache of computed routes, keyed by the snapped start and destination points,
+ * the profile and the turn costs. Many route requests repeat, e.g. commutes or trips
+ * between the same campus buildings, and a hit skips the search entirely.
+ *
+ * Repeated requests are rarely clicked on exactly the same spot, so a snapped point is
+ * keyed by its road segment and its position along it rounded down to SNAP_QUANTUM_MILES.
+ * A hit for a point a few metres from the cached one returns the cached route with the
+ * request's own endpoints; it may cost up to twice the quantum more than the best route.
+ *
+ * The cache is split into segments by key hash, each an access-ordered LinkedHashMap
+ * under its own lock, so concurrent requests rarely contend and each segment evicts its
+ * least recently used route. Routes are immutable, so they are shared by every hit.
+ *
+ * Entries belong to one graph. Lookups and insertions for any other graph miss and are
+ * ignored, so a request that was still routing on a replaced graph cannot put a stale
+ * route into the cache after invalidate().
+ */
+public class RouteCache {
+    private static final int NUM_SEGMENTS = 16;
+    /** The length of road, about 5 metres, within which snapped points share routes. */
+    static final double SNAP_QUANTUM_MILES = 0.003;
+
+    private static final Metrics.Counter HITS = Metrics.counter(
+            "bearmap_route_cache_hits_total", "Route requests answered from the route cache.");
+    private static final Metrics.Counter MISSES = Metrics.counter(
+            "bearmap_route_cache_misses_total", "Route requests that had to search.");
+    private static final Metrics.Counter EVICTIONS = Metrics.counter(
+            "bearmap_route_cache_evictions_total", "Routes evicted from the route cache.");
+
+    /**
+     * A route request, after snapping its endpoints to roads, as the half-edge of each and
+     * the quantum of road along it.
+     */
+    private static class Key {
+        final int startEdge;
+        final long startQuantum;
+        final int destEdge;
+        final long destQuantum;
+        final Profile profile;
+        final Router.TurnCosts turnCosts;
+
+        Key(GraphDB g, GraphDB.Snap start, GraphDB.Snap dest, Profile profile,
+            Router.TurnCosts turnCosts) {
+            startEdge = start.edge;
+            startQuantum = quantum(g, start);
+            destEdge = dest.edge;
+            destQuantum = quantum(g, dest);
+            this.profile = profile;
+            this.turnCosts = turnCosts;
+        }
+
+        private static long quantum(GraphDB g, GraphDB.Snap snap) {
+            return (long) Math.floor(snap.t * g.edgeLength(snap.edge) / SNAP_QUANTUM_MILES);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return startEdge == k.startEdge && startQuantum == k.startQuantum
+                    && destEdge == k.destEdge && destQuantum == k.destQuantum
+                    && profile == k.profile && Objects.equals(turnCosts, k.turnCosts);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(startEdge, startQuantum, destEdge, destQuantum, profile,
+                    turnCosts);
+        }
+    }
+
+    /** One lock's worth of the cache. */
+    private static class Segment extends LinkedHashMap<Key, Router.Route> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Router.Route> eldest) {
+            if (size() > capacity) {
+                EVICTIONS.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final Segment[] segments;
+    private volatile GraphDB graph;
+
+    /**
+     * Creates an empty cache for routes on the given graph.
+     * @param capacity The maximum number of routes kept; 0 disables the cache.
+     */
+    public RouteCache(int capacity, GraphDB graph) {
+        int perSegment = (capacity + NUM_SEGMENTS - 1) / NUM_SEGMENTS;
+        segments = new Segment[capacity == 0 ? 0 : NUM_SEGMENTS];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+        this.graph = graph;
+    }
+
+    /**
+     * Returns the cached route between two points snapped onto g, or null if there is none.
+     * A route cached for points a little way off along the same segments is returned with
+     * the given points as its ends.
+     * @param turnCosts The turn costs of the route, or null for none.
+     */
+    public Router.Route get(GraphDB g, GraphDB.Snap start, GraphDB.Snap dest, Profile profile,
+                            Router.TurnCosts turnCosts) {
+        if (segments.length == 0 || g != graph) {
+            MISSES.increment();
+            return null;
+        }
+        Key key = new Key(g, start, dest, profile, turnCosts);
+        Segment segment = segmentOf(key);
+        Router.Route route;
+        synchronized (segment) {
+            route = segment.get(key);
+        }
+        if (route == null) {
+            MISSES.increment();
+            return null;
+        }
+        HITS.increment();
+        if (route.from != null && route.to != null
+                && (!route.from.equals(start) || !route.to.equals(dest))) {
+            return new Router.Route(start, dest, route.vertices, route.found);
+        }
+        return route;
+    }
+
+    /** Caches a route computed on g, unless g has been replaced since. */
+    public void put(GraphDB g, GraphDB.Snap start, GraphDB.Snap dest, Profile profile,
+                    Router.TurnCosts turnCosts, Router.Route route) {
+        if (segments.length == 0 || g != graph) {
+            return;
+        }
+        Key key = new Key(g, start, dest, profile, turnCosts);
+        Segment segment = segmentOf(key);
+        synchronized (segment) {
+            /* Check again under the lock, in case invalidate() cleared the segment since. */
+            if (g == graph) {
+                segment.put(key, route);
+            }
+        }
+    }
+
+    /** Drops every cached route, and from now on only caches routes on the given graph. */
+    public void invalidate(GraphDB g) {
+        graph = g;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /** Returns the number of cached routes. */
+    public int size() {
+        int n = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                n += segment.size();
+            }
+        }
+        return n;
+    }
+
+    private Segment segmentOf(Key key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (NUM_SEGMENTS - 1)];
+    }
+
+}
@@ -1,4 +1,6 @@
 import java.util.*;
+import java.util.function.LongToDoubleFunction;
+import java.util.function.ObjIntConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -11,20 +13,94 @@ import java.util.regex.Pattern;
  * down to the priority you use to order your vertices.
  */
 public class Router {
-    public static class Pair implements Comparable<Pair> {
-        private long id;
-        private double dist;
+    /**
+     * Counters and timings for a single route query, filled in by shortestPath when one is
+     * passed in. Searches run without stats skip the timing calls entirely.
+     */
+    public static class SearchStats {
+        /** Vertices removed from the heap and expanded. */
+        int settled;
+        /** Edges examined while expanding settled vertices. */
+        int relaxed;
+        /** Vertices added to the heap, counting the start vertex. */
+        int pushes;
+        /** Queued vertices whose key was lowered after a shorter path to them was found. */
+        int decreases;
+        /** Entries left in the heap when the search stopped. */
+        int finalHeapSize;
+        /** Time spent finding the vertices closest to the start and destination points. */
+        long closestNanos;
+        /** Time spent in the search itself, including building the path. */
+        long searchNanos;
+
+        @Override
+        public String toString() {
+            return String.format("settled=%d relaxed=%d pushes=%d decreases=%d "
+                    + "finalHeapSize=%d closest=%.3fms search=%.3fms", settled, relaxed, pushes,
+                    decreases, finalHeapSize, closestNanos / 1e6, searchNanos / 1e6);
+        }
+    }
+
+    /**
+     * Penalties in seconds for turning left, right or sharply, including U-turns. Searching
+     * with turn costs minimizes the cost of a route plus the penalties of its turns, which
+     * favors routes with fewer and gentler turns. Going straight on and slight turns are
+     * free.
+     */
+    public static class TurnCosts {
+        final double left;
+        final double right;
+        final double sharp;
+
+        /** @throws IllegalArgumentException If a penalty is negative or not a number. */
+        public TurnCosts(double left, double right, double sharp) {
+            if (!(left >= 0 && right >= 0 && sharp >= 0)) {
+                throw new IllegalArgumentException("Turn costs must not be negative.");
+            }
+            this.left = left;
+            this.right = right;
+            this.sharp = sharp;
+        }
+
+        /**
+         * Parses turn costs written as left,right,sharp, e.g. "15,5,30".
+         * @throws IllegalArgumentException If the costs are malformed.
+         */
+        static TurnCosts parse(String costs) {
+            String[] parts = costs.split(",");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Expected left,right,sharp turn costs.");
+            }
+            return new TurnCosts(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]),
+                    Double.parseDouble(parts[2]));
+        }
 
-        private Pair(long id, double dist) {
-            this.id = id;
-            this.dist = dist;
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TurnCosts)) {
+                return false;
+            }
+            TurnCosts c = (TurnCosts) o;
+            return left == c.left && right == c.right && sharp == c.sharp;
         }
 
         @Override
-        public int compareTo(Pair pair) {
-            return this.dist - pair.dist > 0 ? 1 : -1;
+        public int hashCode() {
+            return Objects.hash(left, right, sharp);
+        }
+
+        /** Returns the penalty of every NavigationDirection in a profile's cost units. */
+        double[] penalties(Profile profile) {
+            double[] res = new double[NavigationDirection.NUM_DIRECTIONS];
+            double unit = profile.costPerSecond();
+            res[NavigationDirection.LEFT] = left * unit;
+            res[NavigationDirection.RIGHT] = right * unit;
+            res[NavigationDirection.SHARP_LEFT] = sharp * unit;
+            res[NavigationDirection.SHARP_RIGHT] = sharp * unit;
+            return res;
         }
     }
+
     /**
      * Return a List of longs representing the shortest path from the node
      * closest to a start location and the node closest to the destination
@@ -38,89 +114,1008 @@ public class Router {
      */
     public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
                                           double destlon, double destlat) {
-        long start = g.closest(stlon, stlat);
-        long dest = g.closest(destlon, destlat);
-        PriorityQueue<Pair> pq = new PriorityQueue<>();
-        pq.offer(new Pair(start, g.distance(start, dest)));
-        Map<Long, Double> shortestDist = new HashMap<>();
-        shortestDist.put(start, 0.0);
-        Set<Long> visited = new HashSet<>();
-        Map<Long, Long> edgeToMap = new HashMap<>();
-        while (!pq.isEmpty()) {
-            Pair pair = pq.poll();
-            if (visited.contains(pair.id)) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, Profile.DISTANCE, null);
+    }
+
+    /**
+     * Like {@link #shortestPath(GraphDB, double, double, double, double)}, minimizing the
+     * cost of the given profile and optionally recording statistics about the query.
+     * @param profile The cost to minimize.
+     * @param stats The statistics to fill in, or null to not collect any.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat, Profile profile,
+                                          SearchStats stats) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, profile, null, stats);
+    }
+
+    /**
+     * Like {@link #shortestPath(GraphDB, double, double, double, double, Profile,
+     * SearchStats)}, adding the given penalties for turns to the cost of the route.
+     * @param turnCosts The turn penalties, or null to not penalize turns.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat, Profile profile,
+                                          TurnCosts turnCosts, SearchStats stats) {
+        long t = stats == null ? 0 : System.nanoTime();
+        long start = g.closest(stlon, stlat, profile);
+        long dest = g.closest(destlon, destlat, profile);
+        if (stats != null) {
+            stats.closestNanos = System.nanoTime() - t;
+        }
+        return shortestPath(g, start, dest, profile, turnCosts, stats);
+    }
+
+    /**
+     * Return a List of longs representing the shortest path between two vertices.
+     * @param g The graph to use.
+     * @param start The id of the start vertex.
+     * @param dest The id of the destination vertex.
+     * @return A list of node id's in the order visited on the shortest path.
+     */
+    public static List<Long> shortestPath(GraphDB g, long start, long dest) {
+        return shortestPath(g, start, dest, Profile.DISTANCE, null);
+    }
+
+    /**
+     * Like {@link #shortestPath(GraphDB, long, long)}, minimizing the cost of the given
+     * profile and optionally recording statistics about the search.
+     * @param profile The cost to minimize.
+     * @param stats The statistics to fill in, or null to not collect any.
+     */
+    public static List<Long> shortestPath(GraphDB g, long start, long dest, Profile profile,
+                                          SearchStats stats) {
+        return shortestPath(g, start, dest, profile, null, stats);
+    }
+
+    /**
+     * Like {@link #shortestPath(GraphDB, long, long, Profile, SearchStats)}, adding the
+     * given penalties for turns to the cost of the route.
+     * @param turnCosts The turn penalties, or null to not penalize turns.
+     */
+    public static List<Long> shortestPath(GraphDB g, long start, long dest, Profile profile,
+                                          TurnCosts turnCosts, SearchStats stats) {
+        Route route = route(g, g.vertexIndex(start), null, g.vertexIndex(dest), null, profile,
+                turnCosts, stats);
+        /* An unreachable destination gives a path of just the destination. */
+        return route.found ? route.vertices : Collections.singletonList(dest);
+    }
+
+    /**
+     * Like {@link #shortestPath(GraphDB, double, double, double, double, Profile,
+     * SearchStats)}, on a graph split into cells; see ShardedGraph.
+     */
+    public static List<Long> shortestPath(ShardedGraph g, double stlon, double stlat,
+                                          double destlon, double destlat, Profile profile,
+                                          SearchStats stats) {
+        long t = stats == null ? 0 : System.nanoTime();
+        long start = g.closest(stlon, stlat, profile);
+        long dest = g.closest(destlon, destlat, profile);
+        if (stats != null) {
+            stats.closestNanos = System.nanoTime() - t;
+        }
+        return shortestPath(g, start, dest, profile, stats);
+    }
+
+    /**
+     * Like {@link #shortestPath(GraphDB, long, long, Profile, SearchStats)}, on a graph
+     * split into cells; see ShardedGraph. The search loads the cells it reaches, and no
+     * others.
+     *
+     * It is the A* search of search(), with labels for the search states of every cell
+     * reached. A vertex is always labelled with the states of its own cell, which has all
+     * its half-edges and turn restrictions: a half-edge to a vertex of another cell leads
+     * to the state that the same half-edge leads to in that cell. The heuristic uses the
+     * lowest cost per mile of the whole map, so it stays admissible in every cell.
+     */
+    public static List<Long> shortestPath(ShardedGraph g, long start, long dest,
+                                          Profile profile, SearchStats stats) {
+        long t = stats == null ? 0 : System.nanoTime();
+        int bit = profile.mode.bit();
+        double scale = g.minCostPerMile(profile);
+        double destLon = g.lon(dest), destLat = g.lat(dest);
+        CellLabels labels = new CellLabels(g);
+        int startSlot = labels.slot(g.cellOf(start));
+        int first = labels.label(startSlot, labels.cells.get(startSlot).vertexIndex(start));
+        labels.reach(first, 0, -1);
+        VertexHeap heap = new VertexHeap(64);
+        heap.ensureCapacity(first + 1);
+        heap.push(first, scale * GraphDB.distance(g.lon(start), g.lat(start), destLon,
+                destLat));
+        int numSettled = 0, relaxed = 0, pushes = 1, decreases = 0;
+        int found = -1;
+        while (!heap.isEmpty()) {
+            int s = heap.pop();
+            int slot = labels.slotOf[s];
+            int cell = labels.cellNumbers.get(slot);
+            GraphDB c = labels.cells.get(slot);
+            int state = labels.stateOf[s];
+            int v = c.stateVertex(state);
+            if (c.vertexID(v) == dest) {
+                found = s;
+                break;
+            }
+            labels.settled.set(s);
+            numSettled++;
+            double[] weight = c.edgeWeights(profile);
+            int[] next = c.edgeTargets(profile);
+            for (int e = c.edgeStart(v); e < c.edgeEnd(v); e++) {
+                if ((c.edgeAccess(e) & bit) == 0 || c.isTurnForbidden(state, e)) {
+                    continue;
+                }
+                relaxed++;
+                int w = c.edgeTarget(e);
+                int wCell = g.cellOf(c.vertexLon(w), c.vertexLat(w));
+                int wSlot = wCell == cell ? slot : labels.slot(wCell);
+                int x;
+                if (wSlot == slot) {
+                    x = labels.label(slot, next[e]);
+                } else {
+                    /* Carry on in the cell of w, along the same half-edge there. */
+                    GraphDB other = labels.cells.get(wSlot);
+                    int f = other.edgeBetween(other.vertexIndex(c.vertexID(v)),
+                            other.vertexIndex(c.vertexID(w)));
+                    if (f < 0) {
+                        throw new IllegalStateException("Cell " + wCell + " has no half-edge "
+                                + "from " + c.vertexID(v) + " to " + c.vertexID(w) + " of cell "
+                                + cell + "; the cells were not written together.");
+                    }
+                    x = labels.label(wSlot, other.edgeTargets(profile)[f]);
+                }
+                double d = labels.dist[s] + weight[e];
+                if (labels.settled.get(x) || labels.dist[x] <= d) {
+                    continue;
+                }
+                if (labels.dist[x] < Double.POSITIVE_INFINITY) {
+                    decreases++;
+                } else {
+                    pushes++;
+                }
+                labels.reach(x, d, s);
+                heap.ensureCapacity(x + 1);
+                heap.push(x, d + scale * GraphDB.distance(c.vertexLon(w), c.vertexLat(w),
+                        destLon, destLat));
+            }
+        }
+        if (stats != null) {
+            stats.settled = numSettled;
+            stats.relaxed = relaxed;
+            stats.pushes = pushes;
+            stats.decreases = decreases;
+            stats.finalHeapSize = heap.size();
+            stats.searchNanos = System.nanoTime() - t;
+        }
+
+        if (found < 0) {
+            return Collections.singletonList(dest);
+        }
+        LinkedList<Long> res = new LinkedList<>();
+        for (int s = found; s >= 0; s = labels.edgeTo[s]) {
+            GraphDB c = labels.cells.get(labels.slotOf[s]);
+            res.addFirst(c.vertexID(c.stateVertex(labels.stateOf[s])));
+        }
+        return res;
+    }
+
+    /**
+     * The labels of a search over a ShardedGraph: every search state reached, in any cell,
+     * is numbered as it is first seen. The cells reached are held until the search ends,
+     * so it is not affected by the graph dropping them.
+     */
+    private static class CellLabels {
+        private final ShardedGraph g;
+        /** The cells reached and their numbers, by slot, and the slot of every number. */
+        final List<GraphDB> cells = new ArrayList<>();
+        final List<Integer> cellNumbers = new ArrayList<>();
+        private final Map<Integer, Integer> slots = new HashMap<>();
+        /** The label of every state of every cell reached, by slot, or -1. */
+        private final List<int[]> labels = new ArrayList<>();
+        private int numLabels;
+        int[] slotOf = new int[64];
+        int[] stateOf = new int[64];
+        double[] dist = new double[64];
+        int[] edgeTo = new int[64];
+        final BitSet settled = new BitSet();
+
+        CellLabels(ShardedGraph g) {
+            this.g = g;
+        }
+
+        /** Returns the slot of a cell, loading it if it was not reached yet. */
+        int slot(int cell) {
+            Integer slot = slots.get(cell);
+            if (slot == null) {
+                slot = cells.size();
+                GraphDB c = g.cell(cell);
+                cells.add(c);
+                cellNumbers.add(cell);
+                int[] cellLabels = new int[c.numStates()];
+                Arrays.fill(cellLabels, -1);
+                labels.add(cellLabels);
+                slots.put(cell, slot);
+            }
+            return slot;
+        }
+
+        /** Returns the label of a state of a cell, unreached if it is new. */
+        int label(int slot, int state) {
+            int[] cellLabels = labels.get(slot);
+            if (cellLabels[state] >= 0) {
+                return cellLabels[state];
+            }
+            int k = numLabels++;
+            if (k == slotOf.length) {
+                slotOf = Arrays.copyOf(slotOf, 2 * k);
+                stateOf = Arrays.copyOf(stateOf, 2 * k);
+                dist = Arrays.copyOf(dist, 2 * k);
+                edgeTo = Arrays.copyOf(edgeTo, 2 * k);
+            }
+            slotOf[k] = slot;
+            stateOf[k] = state;
+            dist[k] = Double.POSITIVE_INFINITY;
+            cellLabels[state] = k;
+            return k;
+        }
+
+        void reach(int label, double d, int from) {
+            dist[label] = d;
+            edgeTo[label] = from;
+        }
+    }
+
+    /**
+     * A route between two points on road segments, as found by GraphDB.snap(). The route
+     * runs from the start point along its segment to the first vertex, through the
+     * vertices, and along the destination's segment to the destination point. If both
+     * points are on the same segment and the route stays on it, there are no vertices.
+     */
+    public static class Route {
+        /** The start and destination points, or null where the route ends at a vertex. */
+        final GraphDB.Snap from;
+        final GraphDB.Snap to;
+        /** The ids of the vertices passed, in order. The list must not be modified. */
+        final List<Long> vertices;
+        /** Whether the destination can be reached; if not, there are no vertices. */
+        final boolean found;
+
+        Route(GraphDB.Snap from, GraphDB.Snap to, List<Long> vertices, boolean found) {
+            this.from = from;
+            this.to = to;
+            this.vertices = vertices;
+            this.found = found;
+        }
+
+        /**
+         * Returns the half-edges of the route in order. The route covers only part of the
+         * first and last ones if it starts or ends on a segment; see edgeFractions().
+         */
+        int[] edges(GraphDB g) {
+            int n = vertices.size();
+            int first = from == null ? 0 : 1;
+            int numEdges = Math.max(n - 1, 0) + first + (to == null ? 0 : 1);
+            if (n == 0) {
+                numEdges = 1;
+            }
+            int[] res = new int[numEdges];
+            if (n == 0) {
+                res[0] = to.t >= from.t ? from.edge : g.edgeTwin(from.edge);
+                return res;
+            }
+            int last = g.vertexIndex(vertices.get(0));
+            if (from != null) {
+                res[0] = g.edgeTarget(from.edge) == last ? from.edge : g.edgeTwin(from.edge);
+            }
+            for (int i = 1; i < n; i++) {
+                int curr = g.vertexIndex(vertices.get(i));
+                res[first + i - 1] = g.edgeBetween(last, curr);
+                if (res[first + i - 1] < 0) {
+                    throw new IllegalArgumentException("Vertices " + vertices.get(i - 1)
+                            + " and " + vertices.get(i) + " are not adjacent.");
+                }
+                last = curr;
+            }
+            if (to != null) {
+                res[numEdges - 1] = g.edgeTarget(to.edge) == last
+                        ? g.edgeTwin(to.edge) : to.edge;
+            }
+            return res;
+        }
+
+        /** Returns the fraction of each of edges() the route covers. */
+        double[] edgeFractions(GraphDB g, int[] edges) {
+            double[] res = new double[edges.length];
+            Arrays.fill(res, 1);
+            if (vertices.isEmpty()) {
+                res[0] = Math.abs(to.t - from.t);
+                return res;
+            }
+            if (from != null) {
+                res[0] = edges[0] == from.edge ? 1 - from.t : from.t;
+            }
+            if (to != null) {
+                res[edges.length - 1] = edges[edges.length - 1] == to.edge ? to.t : 1 - to.t;
+            }
+            return res;
+        }
+
+        /**
+         * Returns the longitude and latitude of every point of the route in turn, or no
+         * points if the destination cannot be reached.
+         */
+        double[] polyline(GraphDB g) {
+            return polyline(g::lon, g::lat);
+        }
+
+        /** Like polyline(GraphDB), for a route on a graph split into cells. */
+        double[] polyline(ShardedGraph g) {
+            return polyline(g::lon, g::lat);
+        }
+
+        private double[] polyline(LongToDoubleFunction lon, LongToDoubleFunction lat) {
+            if (!found) {
+                return new double[0];
+            }
+            int n = vertices.size() + (from == null ? 0 : 1) + (to == null ? 0 : 1);
+            double[] res = new double[2 * n];
+            int i = 0;
+            if (from != null) {
+                res[i++] = from.lon;
+                res[i++] = from.lat;
+            }
+            for (long v : vertices) {
+                res[i++] = lon.applyAsDouble(v);
+                res[i++] = lat.applyAsDouble(v);
+            }
+            if (to != null) {
+                res[i++] = to.lon;
+                res[i++] = to.lat;
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Returns the cheapest route between two points on road segments, as found by
+     * GraphDB.snap() for the same profile. The search starts and ends part way along the
+     * segments, so long blocks do not detour to their nearest vertex.
+     * @param turnCosts The turn penalties, or null to not penalize turns.
+     * @param stats The statistics to fill in, or null to not collect any.
+     */
+    public static Route shortestPath(GraphDB g, GraphDB.Snap from, GraphDB.Snap to,
+                                     Profile profile, TurnCosts turnCosts, SearchStats stats) {
+        return route(g, -1, from, -1, to, profile, turnCosts, stats);
+    }
+
+    /** Runs the search for a route between vertices or snapped points. */
+    private static Route route(GraphDB g, int start, GraphDB.Snap from, int dest,
+                               GraphDB.Snap to, Profile profile, TurnCosts turnCosts,
+                               SearchStats stats) {
+        long t = stats == null ? 0 : System.nanoTime();
+        Route route = turnCosts == null
+                ? search(g, start, from, dest, to, profile, stats)
+                : searchWithTurns(g, start, from, dest, to, profile,
+                        turnCosts.penalties(profile), stats);
+        if (stats != null) {
+            stats.searchNanos = System.nanoTime() - t;
+        }
+        return route;
+    }
+
+    /**
+     * A* search over the profile's edge weights. The heuristic is the great-circle distance
+     * to the destination times the lowest cost per mile in the graph, which never
+     * overestimates and is consistent, so every state is settled at most once.
+     *
+     * The search labels the graph's search states rather than its vertices, so that it
+     * obeys turn restrictions: a vertex with restricted turns has a state for every
+     * half-edge whose turns are restricted, besides its own. Without restrictions the
+     * states are just the vertices.
+     *
+     * A route from or to a snapped point uses two more states, numStates() for the start
+     * point and numStates() + 1 for the destination point. They exist only in this
+     * search's SearchState, so the graph is not changed and concurrent searches are safe.
+     * @param start The start vertex index, ignored if from is given.
+     * @param dest The destination vertex index, ignored if to is given.
+     */
+    private static Route search(GraphDB g, int start, GraphDB.Snap from, int dest,
+                                GraphDB.Snap to, Profile profile, SearchStats stats) {
+        double[] weight = g.edgeWeights(profile);
+        int[] next = g.edgeTargets(profile);
+        int bit = profile.mode.bit();
+        int n = g.numVertices();
+        int source = g.numStates(), target = source + 1;
+        int toEdge = to == null ? -1 : to.edge;
+        int toTwin = to == null ? -1 : g.edgeTwin(to.edge);
+        double scale = g.minCostPerMile(profile);
+        double destLon = to == null ? g.vertexLon(dest) : to.lon;
+        double destLat = to == null ? g.vertexLat(dest) : to.lat;
+        SearchState state = SearchState.begin(target + 1);
+        VertexHeap heap = state.heap;
+        int first = from == null ? start : source;
+        state.reach(first, 0, -1);
+        heap.push(first, scale * GraphDB.distance(from == null ? g.vertexLon(start) : from.lon,
+                from == null ? g.vertexLat(start) : from.lat, destLon, destLat));
+        int numSettled = 0, relaxed = 0, pushes = 1, decreases = 0;
+        int found = -1;
+        while (!heap.isEmpty()) {
+            int s = heap.pop();
+            int v = s < n ? s : s < source ? g.stateVertex(s) : -1;
+            if (s == target || to == null && v == dest) {
+                found = s;
+                break;
+            }
+            state.settle(s);
+            numSettled++;
+            double distS = state.dist(s);
+            if (s == source) {
+                /* Leave the start point along its segment, in either direction allowed. */
+                int[] out = {from.edge, g.edgeTwin(from.edge)};
+                double[] part = {1 - from.t, from.t};
+                for (int k = 0; k < 2; k++) {
+                    int e = out[k];
+                    if ((g.edgeAccess(e) & bit) == 0) {
+                        continue;
+                    }
+                    relaxed++;
+                    int w = next[e];
+                    double d = part[k] * weight[e];
+                    if (state.dist(w) <= d) {
+                        continue;
+                    }
+                    pushes++;
+                    state.reach(w, d, s);
+                    int x = w < n ? w : g.stateVertex(w);
+                    heap.push(w, d + scale * GraphDB.distance(g.vertexLon(x), g.vertexLat(x),
+                            destLon, destLat));
+                }
+                double direct = directCost(g, weight, bit, from, to);
+                if (direct < Double.POSITIVE_INFINITY) {
+                    pushes++;
+                    state.reach(target, direct, s);
+                    heap.push(target, direct);
+                }
                 continue;
             }
-            if (pair.id == dest) {
+            for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                if ((g.edgeAccess(e) & bit) == 0 || s >= n && g.isTurnForbidden(s, e)) {
+                    continue;
+                }
+                relaxed++;
+                if (e == toEdge || e == toTwin) {
+                    /* Stop part way along the destination's segment. */
+                    double d = distS + (e == to.edge ? to.t : 1 - to.t) * weight[e];
+                    if (state.dist(target) > d) {
+                        if (state.isReached(target)) {
+                            decreases++;
+                        } else {
+                            pushes++;
+                        }
+                        state.reach(target, d, s);
+                        heap.push(target, d);
+                    }
+                }
+                int w = next[e];
+                double d = distS + weight[e];
+                if (state.isSettled(w) || state.dist(w) <= d) {
+                    continue;
+                }
+                if (state.isReached(w)) {
+                    decreases++;
+                } else {
+                    pushes++;
+                }
+                state.reach(w, d, s);
+                int x = w < n ? w : g.stateVertex(w);
+                heap.push(w, d + scale * GraphDB.distance(g.vertexLon(x), g.vertexLat(x),
+                        destLon, destLat));
+            }
+        }
+        if (stats != null) {
+            stats.settled = numSettled;
+            stats.relaxed = relaxed;
+            stats.pushes = pushes;
+            stats.decreases = decreases;
+            stats.finalHeapSize = heap.size();
+        }
+
+        if (found < 0) {
+            return new Route(from, to, Collections.emptyList(), false);
+        }
+        LinkedList<Long> res = new LinkedList<>();
+        for (int s = found; s >= 0; s = state.edgeTo(s)) {
+            if (s < source) {
+                res.addFirst(g.vertexID(g.stateVertex(s)));
+            }
+        }
+        return new Route(from, to, res, true);
+    }
+
+    /**
+     * Returns the cost of going straight from one point to another on the same segment, or
+     * infinity if they are on different segments or the direction is not allowed.
+     */
+    private static double directCost(GraphDB g, double[] weight, int bit, GraphDB.Snap from,
+                                     GraphDB.Snap to) {
+        if (to == null || from.edge != to.edge) {
+            return Double.POSITIVE_INFINITY;
+        }
+        int e = to.t >= from.t ? from.edge : g.edgeTwin(from.edge);
+        if ((g.edgeAccess(e) & bit) == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Math.abs(to.t - from.t) * weight[e];
+    }
+
+    /**
+     * A* search like search(), adding the penalty of every turn. The cost of a turn depends
+     * on the half-edge the route arrives along, so the search labels half-edges instead of
+     * vertices: state e < m is the target of half-edge e entered along it, state m is the
+     * start, and state m + 1 the destination point if the route ends on a segment. The
+     * direction of every turn is precomputed by GraphDB, so no bearings are computed here.
+     * Penalties are never negative, which keeps the heuristic admissible.
+     */
+    private static Route searchWithTurns(GraphDB g, int start, GraphDB.Snap from, int dest,
+                                         GraphDB.Snap to, Profile profile, double[] penalty,
+                                         SearchStats stats) {
+        double[] weight = g.edgeWeights(profile);
+        int[] next = g.edgeTargets(profile);
+        byte[] turns = g.turnDirections();
+        int bit = profile.mode.bit();
+        int m = g.numEdges();
+        int target = m + 1;
+        int toEdge = to == null ? -1 : to.edge;
+        int toTwin = to == null ? -1 : g.edgeTwin(to.edge);
+        double scale = g.minCostPerMile(profile);
+        double destLon = to == null ? g.vertexLon(dest) : to.lon;
+        double destLat = to == null ? g.vertexLat(dest) : to.lat;
+        SearchState state = SearchState.begin(target + 1);
+        VertexHeap heap = state.heap;
+        state.reach(m, 0, -1);
+        heap.push(m, scale * GraphDB.distance(from == null ? g.vertexLon(start) : from.lon,
+                from == null ? g.vertexLat(start) : from.lat, destLon, destLat));
+        int numSettled = 0, relaxed = 0, pushes = 1, decreases = 0;
+        int found = -1;
+        while (!heap.isEmpty()) {
+            int s = heap.pop();
+            int v = s < m ? g.edgeTarget(s) : s == m ? start : -1;
+            if (s == target || to == null && v == dest) {
+                found = s;
                 break;
             }
-            visited.add(pair.id);
-            for (long nei : g.adjacent(pair.id)) {
-                double tempDist = shortestDist.get(pair.id) + g.distance(pair.id, nei);
-                if (visited.contains(nei) || shortestDist.getOrDefault(nei, Double.MAX_VALUE) <= tempDist) {
+            state.settle(s);
+            numSettled++;
+            double distS = state.dist(s);
+            if (s == m && from != null) {
+                /* Leave the start point along its segment, in either direction allowed. */
+                int[] out = {from.edge, g.edgeTwin(from.edge)};
+                double[] part = {1 - from.t, from.t};
+                for (int k = 0; k < 2; k++) {
+                    int e = out[k];
+                    if ((g.edgeAccess(e) & bit) == 0) {
+                        continue;
+                    }
+                    relaxed++;
+                    pushes++;
+                    double d = part[k] * weight[e];
+                    state.reach(e, d, s);
+                    int w = g.edgeTarget(e);
+                    heap.push(e, d + scale * GraphDB.distance(g.vertexLon(w), g.vertexLat(w),
+                            destLon, destLat));
+                }
+                double direct = directCost(g, weight, bit, from, to);
+                if (direct < Double.POSITIVE_INFINITY) {
+                    pushes++;
+                    state.reach(target, direct, s);
+                    heap.push(target, direct);
+                }
+                continue;
+            }
+            /* The vertex search state s arrives in, for turn restrictions. */
+            int arrival = s == m ? start : next[s];
+            int turnIndex = s == m ? 0 : g.turnIndex(s);
+            for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                if ((g.edgeAccess(e) & bit) == 0 || g.isTurnForbidden(arrival, e)) {
                     continue;
                 }
-                edgeToMap.put(nei, pair.id);
-                shortestDist.put(nei, tempDist);
-                pq.offer(new Pair(nei, g.distance(nei, dest) + tempDist));
+                relaxed++;
+                double turn = s == m ? 0 : penalty[turns[turnIndex + e]];
+                if (e == toEdge || e == toTwin) {
+                    /* Stop part way along the destination's segment. */
+                    double d = distS + turn + (e == to.edge ? to.t : 1 - to.t) * weight[e];
+                    if (state.dist(target) > d) {
+                        if (state.isReached(target)) {
+                            decreases++;
+                        } else {
+                            pushes++;
+                        }
+                        state.reach(target, d, s);
+                        heap.push(target, d);
+                    }
+                }
+                double d = distS + weight[e] + turn;
+                if (state.isSettled(e) || state.dist(e) <= d) {
+                    continue;
+                }
+                if (state.isReached(e)) {
+                    decreases++;
+                } else {
+                    pushes++;
+                }
+                state.reach(e, d, s);
+                int w = g.edgeTarget(e);
+                heap.push(e, d + scale * GraphDB.distance(g.vertexLon(w), g.vertexLat(w),
+                        destLon, destLat));
             }
         }
+        if (stats != null) {
+            stats.settled = numSettled;
+            stats.relaxed = relaxed;
+            stats.pushes = pushes;
+            stats.decreases = decreases;
+            stats.finalHeapSize = heap.size();
+        }
+
+        if (found < 0) {
+            return new Route(from, to, Collections.emptyList(), false);
+        }
         LinkedList<Long> res = new LinkedList<>();
-        Long curr = dest;
-        while (curr != start) {
-            res.addFirst(curr);
-            curr = edgeToMap.get(curr);
-            if (curr == null) {
-                return res;
+        for (int s = found; s >= 0; s = state.edgeTo(s)) {
+            if (s < m) {
+                res.addFirst(g.vertexID(g.edgeTarget(s)));
+            } else if (s == m && from == null) {
+                res.addFirst(g.vertexID(start));
             }
         }
-        res.addFirst(start);
+        return new Route(from, to, res, true);
+    }
+
+    /**
+     * Returns the shortest path distances in miles from one vertex to each of the targets,
+     * using a single Dijkstra search that stops as soon as every target is settled.
+     * @param g The graph to use.
+     * @param origin The id of the origin vertex.
+     * @param targets The ids of the target vertices.
+     * @return The distance to each target, or infinity for unreachable targets.
+     */
+    public static double[] distances(GraphDB g, long origin, long[] targets) {
+        return distances(g, origin, targets, Profile.DISTANCE);
+    }
+
+    /**
+     * Like {@link #distances(GraphDB, long, long[])}, returning the cost of the cheapest
+     * route to each target under the given profile instead.
+     */
+    public static double[] distances(GraphDB g, long origin, long[] targets, Profile profile) {
+        return distances(g, g.vertexIndex(origin), vertexIndexes(g, targets), profile);
+    }
+
+    /**
+     * Computes the cost of the cheapest routes between every origin and every target, with
+     * one search per origin on the calling thread. Rows are handed to the consumer in the
+     * order of the origins. Callers that want the rows in parallel split the origins over
+     * their own threads, as MapServer does on its CPU pool.
+     * @param g The graph to use.
+     * @param origins The ids of the origin vertices.
+     * @param targets The ids of the target vertices.
+     * @param profile The cost to minimize, e.g. Profile.DISTANCE for miles.
+     * @param rows Receives each row of costs, as returned by distances(), with the index of
+     *             its origin.
+     */
+    public static void distanceMatrix(GraphDB g, long[] origins, long[] targets,
+                                      Profile profile, ObjIntConsumer<double[]> rows) {
+        int[] from = vertexIndexes(g, origins);
+        int[] to = vertexIndexes(g, targets);
+        for (int i = 0; i < from.length; i++) {
+            rows.accept(distances(g, from[i], to, profile), i);
+        }
+    }
+
+    private static int[] vertexIndexes(GraphDB g, long[] ids) {
+        int[] res = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            res[i] = g.vertexIndex(ids[i]);
+        }
         return res;
     }
 
+    /**
+     * Dijkstra search over search states, as in search(). A vertex is done the first time
+     * any of its states is settled; since this search never needs to know whether a state
+     * is settled, the settled flags of the vertex indexes record that instead.
+     */
+    private static double[] distances(GraphDB g, int origin, int[] targets,
+                                      Profile profile) {
+        double[] weight = g.edgeWeights(profile);
+        int[] next = g.edgeTargets(profile);
+        int bit = profile.mode.bit();
+        int n = g.numVertices();
+        SearchState state = SearchState.begin(g.numStates());
+        VertexHeap heap = state.heap;
+        int remaining = 0;
+        for (int t : targets) {
+            if (!state.isMarked(t)) {
+                state.mark(t);
+                remaining++;
+            }
+        }
+        state.reach(origin, 0, -1);
+        heap.push(origin, 0);
+        while (remaining > 0 && !heap.isEmpty()) {
+            int s = heap.pop();
+            int v = s < n ? s : g.stateVertex(s);
+            if (state.isMarked(v) && !state.isSettled(v)) {
+                state.settle(v);
+                remaining--;
+            }
+            double distS = state.dist(s);
+            for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                if ((g.edgeAccess(e) & bit) == 0 || s >= n && g.isTurnForbidden(s, e)) {
+                    continue;
+                }
+                int w = next[e];
+                double d = distS + weight[e];
+                if (d < state.dist(w)) {
+                    state.reach(w, d, s);
+                    heap.push(w, d);
+                }
+            }
+        }
+        double[] res = new double[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            res[i] = vertexDist(g, state, targets[i]);
+        }
+        return res;
+    }
+
+    /** Returns the best distance found to a vertex in any of its search states. */
+    private static double vertexDist(GraphDB g, SearchState state, int v) {
+        double d = state.dist(v);
+        for (int s = g.firstTurnState(v); s < g.numStates() && g.stateVertex(s) == v; s++) {
+            d = Math.min(d, state.dist(s));
+        }
+        return d;
+    }
+
+    /**
+     * The part of the graph within a distance budget of an origin, as found by
+     * {@link #isochrone}. Roads are reachable up to the point where the budget runs out, so
+     * a road leaving the area is cut short rather than dropped.
+     */
+    public static class Isochrone {
+        /** Ids of the reachable vertices, closest first, and their distances in miles. */
+        final long[] vertices;
+        final double[] distances;
+        /** Reachable stretches of road as lon1, lat1, lon2, lat2 quadruples. */
+        final double[] segments;
+
+        private Isochrone(long[] vertices, double[] distances, double[] segments) {
+            this.vertices = vertices;
+            this.distances = distances;
+            this.segments = segments;
+        }
+
+        public int numSegments() {
+            return segments.length / 4;
+        }
+    }
+
+    /**
+     * Finds every vertex and stretch of road within maxMiles of a vertex along the roads
+     * cars can use, with a Dijkstra search that stops at the edge of the budget.
+     * @param g The graph to use.
+     * @param origin The id of the origin vertex.
+     * @param maxMiles The distance budget in miles.
+     * @return The reachable part of the graph.
+     */
+    public static Isochrone isochrone(GraphDB g, long origin, double maxMiles) {
+        return isochrone(g, origin, maxMiles, Profile.DISTANCE);
+    }
+
+    /**
+     * Like {@link #isochrone(GraphDB, long, double)}, along the ways the profile's mode of
+     * travel can use. The budget is still in miles.
+     */
+    public static Isochrone isochrone(GraphDB g, long origin, double maxMiles,
+                                      Profile profile) {
+        int[] next = g.edgeTargets(profile);
+        int bit = profile.mode.bit();
+        int n = g.numVertices();
+        SearchState state = SearchState.begin(g.numStates());
+        VertexHeap heap = state.heap;
+        int[] settled = new int[16];
+        double[] settledDist = new double[16];
+        int numSettled = 0;
+        int start = g.vertexIndex(origin);
+        state.reach(start, 0, -1);
+        heap.push(start, 0);
+        /* As in distances(), the settled flags of the vertex indexes mark vertices done. */
+        while (!heap.isEmpty() && heap.minKey() <= maxMiles) {
+            int s = heap.pop();
+            int v = s < n ? s : g.stateVertex(s);
+            double distS = state.dist(s);
+            if (!state.isSettled(v)) {
+                state.settle(v);
+                if (numSettled == settled.length) {
+                    settled = Arrays.copyOf(settled, 2 * numSettled);
+                    settledDist = Arrays.copyOf(settledDist, 2 * numSettled);
+                }
+                settled[numSettled] = v;
+                settledDist[numSettled++] = distS;
+            }
+            for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                if ((g.edgeAccess(e) & bit) == 0 || s >= n && g.isTurnForbidden(s, e)) {
+                    continue;
+                }
+                int w = next[e];
+                double d = distS + g.edgeLength(e);
+                if (d < state.dist(w)) {
+                    state.reach(w, d, s);
+                    heap.push(w, d);
+                }
+            }
+        }
+
+        /* Vertices left in the heap are beyond the budget, so a vertex is reachable exactly
+         * when its distance is within it. Each road between two vertices is covered when
+         * the budget left at the ends it can be entered from adds up to its length;
+         * otherwise each of those ends contributes the stretch it can reach on its own. */
+        long[] vertices = new long[numSettled];
+        double[] segments = new double[64];
+        int numCoords = 0;
+        for (int k = 0; k < numSettled; k++) {
+            int v = settled[k];
+            vertices[k] = g.vertexID(v);
+            double left = maxMiles - settledDist[k];
+            for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                if ((g.edgeAccess(e) & bit) == 0 || left <= 0) {
+                    continue;
+                }
+                int w = g.edgeTarget(e);
+                double length = g.edgeLength(e);
+                double distW = vertexDist(g, state, w);
+                double leftAtW = distW < maxMiles && (reverseAccess(g, v, w) & bit) != 0
+                        ? maxMiles - distW : 0;
+                double t;
+                if (left + leftAtW >= length) {
+                    if (w < v && leftAtW > 0) {
+                        continue;
+                    }
+                    t = 1;
+                } else {
+                    t = left / length;
+                }
+                if (numCoords + 4 > segments.length) {
+                    segments = Arrays.copyOf(segments, 2 * segments.length);
+                }
+                double lon = g.vertexLon(v), lat = g.vertexLat(v);
+                segments[numCoords++] = lon;
+                segments[numCoords++] = lat;
+                segments[numCoords++] = lon + t * (g.vertexLon(w) - lon);
+                segments[numCoords++] = lat + t * (g.vertexLat(w) - lat);
+            }
+        }
+        return new Isochrone(vertices, Arrays.copyOf(settledDist, numSettled),
+                Arrays.copyOf(segments, numCoords));
+    }
+
+    /** Returns the access bitmask of the half-edge from w back to v. */
+    private static int reverseAccess(GraphDB g, int v, int w) {
+        int e = g.edgeBetween(w, v);
+        return e < 0 ? 0 : g.edgeAccess(e);
+    }
+
     /**
      * Create the list of directions corresponding to a route on the graph.
      * @param g The graph to use.
      * @param route The route to translate into directions. Each element
      *              corresponds to a node from the graph in the route.
      * @return A list of NavigatiionDirection objects corresponding to the input
-     * route.
+     * route, which is empty if the route has fewer than two nodes.
      */
     public static List<NavigationDirection> routeDirections(GraphDB g, List<Long> route) {
+        if (route.size() < 2) {
+            return new ArrayList<>();
+        }
+        return routeDirections(g, new Route(null, null, route, true));
+    }
+
+    /**
+     * Returns the directions for a route, or none if it was not found. The start and end
+     * indexes of each step refer to the points of the route's polyline.
+     */
+    public static List<NavigationDirection> routeDirections(GraphDB g, Route route) {
+        if (!route.found || route.from == null && route.vertices.size() < 2) {
+            return new ArrayList<>();
+        }
+        /* Look up the half-edges of the route once; the rest reads only precomputed arrays. */
+        int[] edges = route.edges(g);
+        double[] fractions = route.edgeFractions(g, edges);
+
         List<NavigationDirection> res = new ArrayList<>();
+        byte[] turns = g.turnDirections();
         double dist = 0.0;
-        Long lastNodeID = route.get(0), currNodeID = route.get(1);
-        String lastWayName = g.getNode(lastNodeID).neighbors.get(currNodeID).extrainfo.get("name");
-        double lastBearing = g.bearing(lastNodeID, currNodeID);
-        int relativeDirection = 0;
-        for (int i = 1; i < route.size(); i++) {
-            lastNodeID = route.get(i - 1);
-            currNodeID = route.get(i);
-            GraphDB.Node lastNode = g.getNode(lastNodeID);
-            double currBearing = g.bearing(lastNodeID, currNodeID);
-            String currWayName = lastNode.neighbors.get(currNodeID).extrainfo.get("name");
-            if (currWayName.equals(lastWayName)) {
-                dist += g.distance(currNodeID, lastNodeID);
+        int lastEdge = edges[0];
+        int lastWayName = g.edgeNameId(lastEdge);
+        int relativeDirection = NavigationDirection.START;
+        int stepStart = 0;
+        for (int i = 0; i < edges.length; i++) {
+            int currEdge = edges[i];
+            int currWayName = g.edgeNameId(currEdge);
+            double length = fractions[i] * g.edgeLength(currEdge);
+            if (currWayName == lastWayName) {
+                dist += length;
             } else {
                 NavigationDirection nd = new NavigationDirection();
                 nd.direction = relativeDirection;
-                relativeDirection = getDirection(lastBearing, currBearing);
+                relativeDirection = turns[g.turnIndex(lastEdge) + currEdge];
                 nd.distance = dist;
-                nd.way = lastWayName;
-                dist = g.distance(currNodeID, lastNodeID);
+                nd.way = g.nameOfId(lastWayName);
+                nd.start = stepStart;
+                nd.end = i;
+                stepStart = i;
+                dist = length;
                 lastWayName = currWayName;
                 res.add(nd);
             }
-            if (i == route.size() - 1) {
+            if (i == edges.length - 1) {
+                NavigationDirection nd = new NavigationDirection();
+                nd.direction = relativeDirection;
+                nd.way = g.nameOfId(currWayName);
+                nd.distance = dist;
+                nd.start = stepStart;
+                nd.end = edges.length;
+                res.add(nd);
+            }
+            lastEdge = currEdge;
+        }
+        return res;
+    }
+
+    /**
+     * Like {@link #routeDirections(GraphDB, Route)}, for a route between vertices of a graph
+     * split into cells; see ShardedGraph. Each half-edge and each turn is looked up in the
+     * cell of the vertex it leaves from, which has all the half-edges at that vertex.
+     */
+    public static List<NavigationDirection> routeDirections(ShardedGraph g, Route route) {
+        List<NavigationDirection> res = new ArrayList<>();
+        List<Long> vertices = route.vertices;
+        if (!route.found || route.from != null || route.to != null || vertices.size() < 2) {
+            return res;
+        }
+        double dist = 0.0;
+        String lastWay = null;
+        int relativeDirection = NavigationDirection.START;
+        int stepStart = 0;
+        for (int i = 0; i < vertices.size() - 1; i++) {
+            long v = vertices.get(i);
+            GraphDB c = g.cellGraph(v);
+            int currEdge = c.edgeBetween(c.vertexIndex(v), c.vertexIndex(vertices.get(i + 1)));
+            String currWay = c.nameOfId(c.edgeNameId(currEdge));
+            if (lastWay != null && !currWay.equals(lastWay)) {
                 NavigationDirection nd = new NavigationDirection();
                 nd.direction = relativeDirection;
-                nd.way = currWayName;;
+                int lastEdge = c.edgeBetween(c.vertexIndex(vertices.get(i - 1)),
+                        c.vertexIndex(v));
+                relativeDirection = c.turnDirections()[c.turnIndex(lastEdge) + currEdge];
                 nd.distance = dist;
+                nd.way = lastWay;
+                nd.start = stepStart;
+                nd.end = i;
+                stepStart = i;
+                dist = 0.0;
                 res.add(nd);
             }
-            lastBearing = currBearing;
+            lastWay = currWay;
+            dist += c.edgeLength(currEdge);
         }
-        return res; // FIXME
+        NavigationDirection nd = new NavigationDirection();
+        nd.direction = relativeDirection;
+        nd.way = lastWay;
+        nd.distance = dist;
+        nd.start = stepStart;
+        nd.end = vertices.size() - 1;
+        res.add(nd);
+        return res;
     }
 
     public static int getDirection(double lastBearing, double currBearing) {
@@ -209,6 +1204,9 @@ public class Router {
         String way;
         /** The distance along this way I represent. */
         double distance;
+        /** The indexes in the route of the nodes where this step starts and ends. */
+        int start;
+        int end;
 
         /**
          * Create a default, anonymous NavigationDirection.
@@ -0,0 +1,102 @@
+import java.util.Arrays;
+
+/**
+ * Per-vertex arrays for graph searches, indexed by GraphDB search state, reused from one
+ * search to the next so that a short search does not pay for allocating and clearing
+ * arrays the size of the graph. Every entry is stamped with the search that wrote it and
+ * reads as unset in any later search, which makes starting a search O(1).
+ *
+ * Each thread has its own state, returned by begin(); it must not be passed to other
+ * threads, and a search must be finished with it before the thread begins another.
+ */
+class SearchState {
+    private static final ThreadLocal<SearchState> CURRENT = new ThreadLocal<>();
+    private static final ThreadLocal<SearchState> BACKWARD = new ThreadLocal<>();
+
+    /** The search's priority queue, empty when the search begins. */
+    final VertexHeap heap;
+    private final double[] dist;
+    private final int[] edgeTo;
+    /* The search that last reached, settled or marked each vertex. */
+    private final int[] reached;
+    private final int[] settled;
+    private final int[] marked;
+    private int epoch;
+
+    private SearchState(int n) {
+        heap = new VertexHeap(n);
+        dist = new double[n];
+        edgeTo = new int[n];
+        reached = new int[n];
+        settled = new int[n];
+        marked = new int[n];
+    }
+
+    /**
+     * Returns this thread's search state, cleared for a new search over a graph with n
+     * search states or fewer.
+     */
+    static SearchState begin(int n) {
+        return begin(n, false);
+    }
+
+    /**
+     * Like begin(int), returning this thread's second search state if backward is set, for
+     * the backward half of a bidirectional search.
+     */
+    static SearchState begin(int n, boolean backward) {
+        ThreadLocal<SearchState> current = backward ? BACKWARD : CURRENT;
+        SearchState state = current.get();
+        if (state == null || state.dist.length < n) {
+            state = new SearchState(n);
+            current.set(state);
+        }
+        state.heap.clear();
+        if (state.epoch == Integer.MAX_VALUE) {
+            Arrays.fill(state.reached, 0);
+            Arrays.fill(state.settled, 0);
+            Arrays.fill(state.marked, 0);
+            state.epoch = 0;
+        }
+        state.epoch++;
+        return state;
+    }
+
+    /** Returns the best distance found to v so far, or infinity if v was not reached. */
+    double dist(int v) {
+        return reached[v] == epoch ? dist[v] : Double.POSITIVE_INFINITY;
+    }
+
+    boolean isReached(int v) {
+        return reached[v] == epoch;
+    }
+
+    /** Records a new best distance to v, reached from vertex from, or -1 for the origin. */
+    void reach(int v, double d, int from) {
+        dist[v] = d;
+        edgeTo[v] = from;
+        reached[v] = epoch;
+    }
+
+    /** Returns the vertex v was last reached from, or -1 for the origin. */
+    int edgeTo(int v) {
+        return edgeTo[v];
+    }
+
+    boolean isSettled(int v) {
+        return settled[v] == epoch;
+    }
+
+    void settle(int v) {
+        settled[v] = epoch;
+    }
+
+    /** Marks are free for the search to use, e.g. for target vertices. */
+    boolean isMarked(int v) {
+        return marked[v] == epoch;
+    }
+
+    void mark(int v) {
+        marked[v] = epoch;
+    }
+}
@@ -0,0 +1,239 @@
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * A uniform grid over line segments, used to find the segment closest to a point.
+ * Each segment is registered in every cell its bounding box overlaps, and cells are stored
+ * in compressed form: the segments of cell c are cellSegments[cellStart[c]..cellStart[c+1]).
+ *
+ * Distances are measured in miles on an equirectangular projection centered on the
+ * indexed area, which is accurate to well under a percent at city scale. A query visits
+ * rings of cells around the target and stops as soon as no unvisited cell can hold a
+ * segment closer than the best one found.
+ */
+public class SegmentIndex {
+    /** Miles per degree of latitude, using the radius of {@link GraphDB#distance}. */
+    private static final double MILES_PER_DEGREE = 3963 * Math.PI / 180;
+    /** Target average number of segments per cell. */
+    private static final int SEGMENTS_PER_CELL = 4;
+    /** The most cells along either axis, whatever the shape of the indexed area. */
+    private static final int MAX_CELLS_PER_AXIS = 4096;
+
+    /** Projected segment endpoints, in miles. */
+    private final double[] x1, y1, x2, y2;
+    private final double lonScale;
+    private final double minX, minY;
+    private final double cellSize;
+    private final int cols, rows;
+    private final int[] cellStart;
+    private final int[] cellSegments;
+
+    /**
+     * The closest point on a segment to a query point.
+     */
+    public static class Hit {
+        /** The caller's index of the segment. */
+        public final int segment;
+        /** Position of the closest point along the segment, from 0 at its start to 1. */
+        public final double t;
+        /** Coordinates of the closest point. */
+        public final double lon, lat;
+        /** Distance in miles from the query point to the closest point. */
+        public final double distance;
+
+        Hit(int segment, double t, double lon, double lat, double distance) {
+            this.segment = segment;
+            this.t = t;
+            this.lon = lon;
+            this.lat = lat;
+            this.distance = distance;
+        }
+    }
+
+    /**
+     * Builds an index over segments (lon1[i], lat1[i]) - (lon2[i], lat2[i]).
+     * Segment i is reported back as index i.
+     */
+    public SegmentIndex(double[] lon1, double[] lat1, double[] lon2, double[] lat2) {
+        int n = lon1.length;
+        double sumLat = 0;
+        for (int i = 0; i < n; i++) {
+            sumLat += lat1[i] + lat2[i];
+        }
+        double midLat = n == 0 ? 0 : sumLat / (2 * n);
+        lonScale = MILES_PER_DEGREE * Math.cos(Math.toRadians(midLat));
+
+        x1 = new double[n];
+        y1 = new double[n];
+        x2 = new double[n];
+        y2 = new double[n];
+        double loX = Double.MAX_VALUE, loY = Double.MAX_VALUE;
+        double hiX = -Double.MAX_VALUE, hiY = -Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            x1[i] = lon1[i] * lonScale;
+            y1[i] = lat1[i] * MILES_PER_DEGREE;
+            x2[i] = lon2[i] * lonScale;
+            y2[i] = lat2[i] * MILES_PER_DEGREE;
+            loX = Math.min(loX, Math.min(x1[i], x2[i]));
+            loY = Math.min(loY, Math.min(y1[i], y2[i]));
+            hiX = Math.max(hiX, Math.max(x1[i], x2[i]));
+            hiY = Math.max(hiY, Math.max(y1[i], y2[i]));
+        }
+        if (n == 0) {
+            loX = loY = hiX = hiY = 0;
+        }
+        minX = loX;
+        minY = loY;
+        /*
+         * Sized by the longer side rather than the area, so that segments along a line, with
+         * no area, do not get cells of next to no width and millions of them.
+         */
+        double side = Math.max(hiX - loX, hiY - loY);
+        double size = side / Math.sqrt(Math.max(n, 1) / (double) SEGMENTS_PER_CELL);
+        cellSize = Math.max(Math.max(size, side / MAX_CELLS_PER_AXIS), 1e-6);
+        cols = Math.min((int) ((hiX - loX) / cellSize) + 1, MAX_CELLS_PER_AXIS);
+        rows = Math.min((int) ((hiY - loY) / cellSize) + 1, MAX_CELLS_PER_AXIS);
+
+        /* Two passes: count the segments of each cell, then fill them in. */
+        cellStart = new int[cols * rows + 1];
+        for (int i = 0; i < n; i++) {
+            forEachCell(i, c -> cellStart[c + 1]++);
+        }
+        for (int c = 0; c < cols * rows; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        cellSegments = new int[cellStart[cols * rows]];
+        int[] fill = Arrays.copyOf(cellStart, cols * rows);
+        for (int i = 0; i < n; i++) {
+            final int seg = i;
+            forEachCell(i, c -> cellSegments[fill[c]++] = seg);
+        }
+    }
+
+    /** Number of segments in the index. */
+    public int size() {
+        return x1.length;
+    }
+
+    /**
+     * Returns the segment closest to the given point, or null if the index is empty.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     */
+    public Hit nearest(double lon, double lat) {
+        return nearest(lon, lat, seg -> true);
+    }
+
+    /**
+     * Returns the segment closest to the given point among those the filter accepts, or null
+     * if it accepts none.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param accept Whether a segment, by index, may be returned.
+     */
+    public Hit nearest(double lon, double lat, IntPredicate accept) {
+        if (x1.length == 0) {
+            return null;
+        }
+        double px = lon * lonScale;
+        double py = lat * MILES_PER_DEGREE;
+        int cx = clamp((int) Math.floor((px - minX) / cellSize), cols);
+        int cy = clamp((int) Math.floor((py - minY) / cellSize), rows);
+
+        int best = -1;
+        double bestDist = Double.MAX_VALUE;
+        for (int r = 0; ; r++) {
+            /* Only the cells of the ring inside the grid, so a ring costs O(r) at most. */
+            for (int y = Math.max(0, cy - r); y <= Math.min(rows - 1, cy + r); y++) {
+                boolean edgeRow = y == cy - r || y == cy + r;
+                int xLo = Math.max(0, cx - r), xHi = Math.min(cols - 1, cx + r);
+                for (int x = xLo; x <= xHi; x++) {
+                    if (!edgeRow && x != cx - r && x != cx + r) {
+                        /* Jump to the ring's right column. */
+                        if (cx + r > xHi) {
+                            break;
+                        }
+                        x = cx + r;
+                    }
+                    int c = y * cols + x;
+                    for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                        int seg = cellSegments[k];
+                        double d = squaredDistance(seg, px, py);
+                        if (d < bestDist && accept.test(seg)) {
+                            bestDist = d;
+                            best = seg;
+                        }
+                    }
+                }
+            }
+            boolean coversGrid = cx - r <= 0 && cy - r <= 0 && cx + r >= cols - 1
+                    && cy + r >= rows - 1;
+            if (coversGrid || (best >= 0 && Math.sqrt(bestDist) <= ringClearance(px, py,
+                    cx, cy, r))) {
+                break;
+            }
+        }
+        return best < 0 ? null : hit(best, px, py);
+    }
+
+    /**
+     * Distance from the point to the outside of the block of cells within r rings of
+     * (cx, cy); every segment not yet visited lies at least this far away. A side of the
+     * block past the edge of the grid has no segments beyond it and does not count.
+     */
+    private double ringClearance(double px, double py, int cx, int cy, int r) {
+        double inf = Double.POSITIVE_INFINITY;
+        double left = cx - r <= 0 ? inf : px - (minX + (cx - r) * cellSize);
+        double right = cx + r >= cols - 1 ? inf : minX + (cx + r + 1) * cellSize - px;
+        double bottom = cy - r <= 0 ? inf : py - (minY + (cy - r) * cellSize);
+        double top = cy + r >= rows - 1 ? inf : minY + (cy + r + 1) * cellSize - py;
+        return Math.max(0, Math.min(Math.min(left, right), Math.min(bottom, top)));
+    }
+
+    private double squaredDistance(int seg, double px, double py) {
+        double t = projection(seg, px, py);
+        double qx = x1[seg] + t * (x2[seg] - x1[seg]) - px;
+        double qy = y1[seg] + t * (y2[seg] - y1[seg]) - py;
+        return qx * qx + qy * qy;
+    }
+
+    /** Position along the segment of the point closest to (px, py), clamped to [0, 1]. */
+    private double projection(int seg, double px, double py) {
+        double dx = x2[seg] - x1[seg];
+        double dy = y2[seg] - y1[seg];
+        double len = dx * dx + dy * dy;
+        if (len == 0) {
+            return 0;
+        }
+        double t = ((px - x1[seg]) * dx + (py - y1[seg]) * dy) / len;
+        return Math.max(0, Math.min(1, t));
+    }
+
+    private Hit hit(int seg, double px, double py) {
+        double t = projection(seg, px, py);
+        double lon = (x1[seg] + t * (x2[seg] - x1[seg])) / lonScale;
+        double lat = (y1[seg] + t * (y2[seg] - y1[seg])) / MILES_PER_DEGREE;
+        return new Hit(seg, t, lon, lat, GraphDB.distance(lon, lat, px / lonScale,
+                py / MILES_PER_DEGREE));
+    }
+
+    private interface CellVisitor {
+        void visit(int cell);
+    }
+
+    private void forEachCell(int seg, CellVisitor visitor) {
+        int xLo = clamp((int) ((Math.min(x1[seg], x2[seg]) - minX) / cellSize), cols);
+        int xHi = clamp((int) ((Math.max(x1[seg], x2[seg]) - minX) / cellSize), cols);
+        int yLo = clamp((int) ((Math.min(y1[seg], y2[seg]) - minY) / cellSize), rows);
+        int yHi = clamp((int) ((Math.max(y1[seg], y2[seg]) - minY) / cellSize), rows);
+        for (int y = yLo; y <= yHi; y++) {
+            for (int x = xLo; x <= xHi; x++) {
+                visitor.visit(y * cols + x);
+            }
+        }
+    }
+
+    private static int clamp(int i, int n) {
+        return Math.max(0, Math.min(n - 1, i));
+    }
+}
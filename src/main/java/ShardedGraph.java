@@ -0,0 +1,681 @@
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A graph too large to keep in memory, split into square cells of longitude and latitude
+ * that are loaded from disk when a query needs them. write() splits a map into a directory
+ * of cell snapshots and an index, from a loaded graph or, for maps too large to load, from
+ * the OSM file a band of cells at a time; see GraphDB.split() for what each cell holds.
+ * In short, a cell has all the half-edges of its own vertices, and the boundary vertices
+ * at the far ends of the segments that leave it, so a search can follow any half-edge out
+ * of a cell and carry on in the cell of the vertex it leads to.
+ *
+ * At most maxCells cells are kept loaded; the least recently used one is dropped when
+ * another is loaded. Only the index stays in memory for good: the id and cell of every
+ * vertex, 12 bytes a vertex, and the lowest cost per mile of the whole map under every
+ * profile, for the A* heuristic of routes across cells. Cells are immutable, so a query
+ * holding a cell can go on using it after it is dropped.
+ */
+public class ShardedGraph {
+    /** The index file in a directory written by write(). */
+    static final String INDEX_FILE = "cells.index";
+    /** Leading bytes of an index file, "CELL", followed by the format version. */
+    private static final int INDEX_MAGIC = 0x43454c4c;
+    private static final int INDEX_VERSION = 1;
+
+    private static final Metrics.Counter LOADS = Metrics.counter(
+            "bearmap_cell_loads_total", "Graph cells loaded from disk.");
+    private static final Metrics.Counter EVICTIONS = Metrics.counter(
+            "bearmap_cell_evictions_total", "Graph cells dropped to make room for others.");
+
+    private final String dir;
+    /** The south-west corner of cell 0, the side of a cell in degrees, and the grid size. */
+    private final double west;
+    private final double south;
+    private final double cellDegrees;
+    private final int columns;
+    private final int rows;
+    /** Every vertex id in increasing order, and the cell of each. */
+    private final long[] ids;
+    private final int[] vertexCells;
+    /** Cells that have a file, i.e. any vertices or named locations. */
+    private final BitSet present;
+    private final double[] minCostPerMile;
+    /** Loaded cells by number, least recently used first. */
+    private final LinkedHashMap<Integer, GraphDB> loaded;
+    private long numLoads;
+
+    /**
+     * Opens a graph written by write(), loading no cells yet.
+     * @param dir The directory written by write().
+     * @param maxCells The number of cells to keep loaded.
+     * @throws IOException If the index cannot be read.
+     */
+    public ShardedGraph(String dir, int maxCells) throws IOException {
+        if (maxCells < 1) {
+            throw new IllegalArgumentException("At least one cell must be kept loaded.");
+        }
+        this.dir = dir;
+        String path = new File(dir, INDEX_FILE).getPath();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(path), 1 << 16))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                throw new IOException(path + " is not a version " + INDEX_VERSION
+                        + " cell index.");
+            }
+            west = in.readDouble();
+            south = in.readDouble();
+            cellDegrees = in.readDouble();
+            columns = in.readInt();
+            rows = in.readInt();
+            minCostPerMile = new double[Profile.values().length];
+            for (int k = 0; k < minCostPerMile.length; k++) {
+                minCostPerMile[k] = in.readDouble();
+            }
+            present = new BitSet(columns * rows);
+            for (int k = in.readInt(); k > 0; k--) {
+                present.set(in.readInt());
+            }
+            int n = in.readInt();
+            ids = new long[n];
+            vertexCells = new int[n];
+            for (int i = 0; i < n; i++) {
+                ids[i] = in.readLong();
+                vertexCells[i] = in.readInt();
+            }
+        }
+        loaded = new LinkedHashMap<Integer, GraphDB>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, GraphDB> eldest) {
+                if (size() > maxCells) {
+                    EVICTIONS.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Splits a graph into cells of the given size and writes them, with their index, to a
+     * directory, which is created if needed. The grid starts at the south-west corner of
+     * the graph's vertices; named locations outside it go to the nearest cell. The graph
+     * must be loaded whole; write(String, String, double, int) splits a map that is not.
+     * @param cellDegrees The side of a cell, in degrees of longitude and latitude.
+     */
+    public static void write(GraphDB g, String dir, double cellDegrees) throws IOException {
+        int n = g.numVertices();
+        double west = Double.POSITIVE_INFINITY, south = Double.POSITIVE_INFINITY;
+        double east = Double.NEGATIVE_INFINITY, north = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            west = Math.min(west, g.vertexLon(i));
+            east = Math.max(east, g.vertexLon(i));
+            south = Math.min(south, g.vertexLat(i));
+            north = Math.max(north, g.vertexLat(i));
+        }
+        Grid grid = new Grid(west, south, east, north, cellDegrees);
+        makeDirectory(dir);
+        BitSet present = new BitSet(grid.columns * grid.rows);
+        IOException[] failure = new IOException[1];
+        g.split(grid, grid.columns * grid.rows, (part, cell) -> {
+            present.set(cell);
+            try {
+                part.writeSnapshot(cellPath(dir, cell));
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        double[] minCostPerMile = new double[Profile.values().length];
+        for (Profile profile : Profile.values()) {
+            minCostPerMile[profile.ordinal()] = g.minCostPerMile(profile);
+        }
+        long[] ids = new long[n];
+        int[] cells = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = g.vertexID(i);
+            cells[i] = grid.partOf(g.vertexLon(i), g.vertexLat(i));
+        }
+        writeIndex(dir, grid, minCostPerMile, present, ids, cells);
+    }
+
+    /**
+     * Splits the map in an OSM XML file into cells like write(GraphDB, String, double),
+     * without loading it whole. The cells are built a band of rows at a time, each from a
+     * graph of just the roads with a node in the band, the named locations in it and the
+     * turn restrictions at its nodes. Besides that graph, only the ids of the nodes on
+     * roads are held, with 4 more bytes each for the index being written, so the memory
+     * needed is about that of the ShardedGraph that serves the cells. The file is read
+     * twice, and twice more for every band.
+     *
+     * The cells are those write(GraphDB, String, double) writes for the graph loaded from
+     * the file, except that the grid starts at the south-west corner of the nodes on
+     * roads, even those whose every segment leads to a node missing from the file.
+     * @param cellDegrees The side of a cell, in degrees of longitude and latitude.
+     * @param bandRows The number of rows of cells built at once.
+     * @throws IOException If the file cannot be read, or a cell cannot be written.
+     * @throws SAXException If the file is not valid XML.
+     */
+    public static void write(String osmPath, String dir, double cellDegrees, int bandRows)
+            throws IOException, SAXException {
+        if (bandRows < 1) {
+            throw new IllegalArgumentException("Bands must have at least one row.");
+        }
+        long[] roads = roadNodes(osmPath);
+        double[] box = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        read(osmPath, new ElementFilter() {
+            @Override
+            void element() {
+                if (name.equals("node") && Arrays.binarySearch(roads, id()) >= 0) {
+                    box[0] = Math.min(box[0], lon());
+                    box[1] = Math.min(box[1], lat());
+                    box[2] = Math.max(box[2], lon());
+                    box[3] = Math.max(box[3], lat());
+                }
+            }
+        });
+        Grid grid = new Grid(box[0], box[1], box[2], box[3], cellDegrees);
+        makeDirectory(dir);
+
+        BitSet present = new BitSet(grid.columns * grid.rows);
+        double[] minCostPerMile = new double[Profile.values().length];
+        Arrays.fill(minCostPerMile, Double.POSITIVE_INFINITY);
+        /* The cell of every node on a road that is a vertex of its cell, or -1. */
+        int[] cells = new int[roads.length];
+        Arrays.fill(cells, -1);
+        IOException[] failure = new IOException[1];
+        for (int first = 0; first < grid.rows; first += bandRows) {
+            int last = Math.min(grid.rows, first + bandRows);
+            int south = first * grid.columns, north = last * grid.columns;
+            /* The nodes on roads in the band, and the nodes of the roads through it. */
+            BitSet inBand = new BitSet(roads.length);
+            BitSet needed = new BitSet(roads.length);
+            read(osmPath, new ElementFilter() {
+                @Override
+                void element() {
+                    int i = name.equals("node") ? Arrays.binarySearch(roads, id()) : -1;
+                    int cell = i >= 0 ? grid.partOf(lon(), lat()) : -1;
+                    if (cell >= south && cell < north) {
+                        inBand.set(i);
+                    } else if (name.equals("way") && isRoad() && touches(roads, inBand)) {
+                        for (long ref : nodeRefs()) {
+                            needed.set(Arrays.binarySearch(roads, ref));
+                        }
+                    }
+                }
+            });
+            GraphDB band = new GraphDB(osmPath, handler -> new ElementFilter() {
+                @Override
+                void element() throws SAXException {
+                    boolean keep = false;
+                    if (name.equals("node")) {
+                        int i = Arrays.binarySearch(roads, id());
+                        int cell = grid.partOf(lon(), lat());
+                        keep = i >= 0 && needed.get(i)
+                                || tag("name") != null && cell >= south && cell < north;
+                    } else if (name.equals("way")) {
+                        keep = isRoad() && touches(roads, inBand);
+                    } else if (name.equals("relation")) {
+                        keep = touches(roads, inBand);
+                    }
+                    if (keep) {
+                        replay(handler);
+                    }
+                }
+            });
+            /* Cells outside the band are missing the roads of their own vertices. */
+            band.split(grid, grid.columns * grid.rows, (part, cell) -> {
+                if (cell < south || cell >= north) {
+                    return;
+                }
+                present.set(cell);
+                for (int i = 0; i < part.numVertices(); i++) {
+                    if (grid.partOf(part.vertexLon(i), part.vertexLat(i)) == cell) {
+                        cells[Arrays.binarySearch(roads, part.vertexID(i))] = cell;
+                    }
+                }
+                try {
+                    part.writeSnapshot(cellPath(dir, cell));
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            /* A band without ways a profile may use has no cost per mile for it, i.e. 0. */
+            for (Profile profile : Profile.values()) {
+                double cost = band.minCostPerMile(profile);
+                if (cost > 0) {
+                    minCostPerMile[profile.ordinal()] = Math.min(
+                            minCostPerMile[profile.ordinal()], cost);
+                }
+            }
+        }
+        for (int k = 0; k < minCostPerMile.length; k++) {
+            if (minCostPerMile[k] == Double.POSITIVE_INFINITY) {
+                minCostPerMile[k] = 0;
+            }
+        }
+        writeIndex(dir, grid, minCostPerMile, present, roads, cells);
+    }
+
+    /**
+     * Splits the map in an OSM XML file into a directory of cells, for MapServer to serve
+     * with -Dbearmap.shards; see write(String, String, double, int).
+     * Usage: java ShardedGraph map.osm.xml dir cellDegrees [bandRows, 8 by default]
+     */
+    public static void main(String[] args) throws IOException, SAXException {
+        if (args.length < 3) {
+            System.err.println("Usage: java ShardedGraph map.osm.xml dir cellDegrees "
+                    + "[bandRows]");
+            System.exit(1);
+        }
+        write(args[0], args[1], Double.parseDouble(args[2]),
+                args.length > 3 ? Integer.parseInt(args[3]) : 8);
+    }
+
+    /** Returns the ids of the nodes of the roads in an OSM XML file, in increasing order. */
+    private static long[] roadNodes(String osmPath) throws IOException, SAXException {
+        class RoadNodes extends ElementFilter {
+            private long[] ids = new long[1024];
+            private int n;
+
+            @Override
+            void element() {
+                if (!name.equals("way") || !isRoad()) {
+                    return;
+                }
+                for (long ref : nodeRefs()) {
+                    if (n == ids.length) {
+                        /* Roads share nodes, so only grow once the duplicates are gone. */
+                        n = sortUnique(ids, n);
+                        if (2 * n > ids.length) {
+                            ids = Arrays.copyOf(ids, 2 * ids.length);
+                        }
+                    }
+                    ids[n++] = ref;
+                }
+            }
+
+            @Override
+            public void endDocument() {
+                ids = Arrays.copyOf(ids, sortUnique(ids, n));
+            }
+        }
+        RoadNodes roads = new RoadNodes();
+        read(osmPath, roads);
+        return roads.ids;
+    }
+
+    /**
+     * Sorts the first n ids, moving each distinct one to the front once, and returns the
+     * number of distinct ids.
+     */
+    private static int sortUnique(long[] ids, int n) {
+        Arrays.sort(ids, 0, n);
+        int res = 0;
+        for (int i = 0; i < n; i++) {
+            if (res == 0 || ids[i] != ids[res - 1]) {
+                ids[res++] = ids[i];
+            }
+        }
+        return res;
+    }
+
+    private static void read(String osmPath, ElementFilter filter)
+            throws IOException, SAXException {
+        GraphDB.newParser().parse(new File(osmPath), filter);
+    }
+
+    private static void makeDirectory(String dir) throws IOException {
+        File directory = new File(dir);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + dir + ".");
+        }
+    }
+
+    /**
+     * Writes the index of a directory of cells: the grid, the lowest cost per mile of every
+     * profile, the cells that have a file, and the id and cell of every vertex, in the
+     * order of the ids given, which must be increasing. Ids with a negative cell are left
+     * out.
+     */
+    private static void writeIndex(String dir, Grid grid, double[] minCostPerMile,
+                                   BitSet present, long[] ids, int[] cells)
+            throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dir, INDEX_FILE)), 1 << 16))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeDouble(grid.west);
+            out.writeDouble(grid.south);
+            out.writeDouble(grid.cellDegrees);
+            out.writeInt(grid.columns);
+            out.writeInt(grid.rows);
+            for (double cost : minCostPerMile) {
+                out.writeDouble(cost);
+            }
+            out.writeInt(present.cardinality());
+            for (int cell = present.nextSetBit(0); cell >= 0;
+                 cell = present.nextSetBit(cell + 1)) {
+                out.writeInt(cell);
+            }
+            int n = 0;
+            for (int cell : cells) {
+                n += cell >= 0 ? 1 : 0;
+            }
+            out.writeInt(n);
+            for (int i = 0; i < ids.length; i++) {
+                if (cells[i] >= 0) {
+                    out.writeLong(ids[i]);
+                    out.writeInt(cells[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * The grid of cells over the vertices of a map. Cells are numbered by row from the
+     * south-west corner, and locations outside the grid go to the nearest cell.
+     */
+    private static final class Grid implements GraphDB.Partition {
+        final double west;
+        final double south;
+        final double cellDegrees;
+        final int columns;
+        final int rows;
+
+        /** Makes the grid from the south-west corner of a box, or one cell if it is empty. */
+        Grid(double west, double south, double east, double north, double cellDegrees) {
+            if (!(cellDegrees > 0)) {
+                throw new IllegalArgumentException("Cells must have a positive size.");
+            }
+            if (west > east) {
+                west = east = south = north = 0;
+            }
+            this.west = west;
+            this.south = south;
+            this.cellDegrees = cellDegrees;
+            columns = (int) Math.floor((east - west) / cellDegrees) + 1;
+            rows = (int) Math.floor((north - south) / cellDegrees) + 1;
+        }
+
+        @Override
+        public int partOf(double lon, double lat) {
+            return cellOf(lon, lat, west, south, cellDegrees, columns, rows);
+        }
+    }
+
+    /**
+     * Hands each node, way and relation of an OSM XML file to element() whole, with its
+     * tags, nodes and members, so that it can be judged by them; replay() then passes it
+     * on to another handler as the parser would have.
+     */
+    private abstract static class ElementFilter extends DefaultHandler {
+        private int depth;
+        /** The element's name and attributes, and those of its children. */
+        String name;
+        private Attributes attributes;
+        private final List<String> childNames = new ArrayList<>();
+        private final List<Attributes> children = new ArrayList<>();
+
+        abstract void element() throws SAXException;
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                                 Attributes atts) {
+            depth++;
+            /* The elements are children of the root element, osm. */
+            if (depth == 2) {
+                name = qName;
+                attributes = new AttributesImpl(atts);
+                childNames.clear();
+                children.clear();
+            } else if (depth == 3) {
+                childNames.add(qName);
+                children.add(new AttributesImpl(atts));
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName)
+                throws SAXException {
+            if (depth == 2) {
+                element();
+            }
+            depth--;
+        }
+
+        void replay(DefaultHandler handler) throws SAXException {
+            handler.startElement("", "", name, attributes);
+            for (int k = 0; k < children.size(); k++) {
+                handler.startElement("", "", childNames.get(k), children.get(k));
+                handler.endElement("", "", childNames.get(k));
+            }
+            handler.endElement("", "", name);
+        }
+
+        long id() {
+            return Long.parseLong(attributes.getValue("id"));
+        }
+
+        double lon() {
+            return Double.parseDouble(attributes.getValue("lon"));
+        }
+
+        double lat() {
+            return Double.parseDouble(attributes.getValue("lat"));
+        }
+
+        /** Returns the value of a tag of the element, or null if it has none. */
+        String tag(String key) {
+            for (int k = 0; k < children.size(); k++) {
+                if (childNames.get(k).equals("tag")
+                        && key.equals(children.get(k).getValue("k"))) {
+                    return children.get(k).getValue("v");
+                }
+            }
+            return null;
+        }
+
+        /** Returns the nodes of a way, or the node members of a relation. */
+        List<Long> nodeRefs() {
+            List<Long> res = new ArrayList<>();
+            for (int k = 0; k < children.size(); k++) {
+                Attributes child = children.get(k);
+                if (childNames.get(k).equals("nd") || childNames.get(k).equals("member")
+                        && "node".equals(child.getValue("type"))) {
+                    res.add(Long.parseLong(child.getValue("ref")));
+                }
+            }
+            return res;
+        }
+
+        /** Whether a way is routed, as GraphBuildingHandler decides. */
+        boolean isRoad() {
+            String highway = tag("highway");
+            return highway != null && nodeRefs().size() >= 2
+                    && (GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES.contains(highway)
+                    || GraphBuildingHandler.PATH_HIGHWAY_TYPES.contains(highway));
+        }
+
+        /** Whether any node of the element is one of the given nodes on roads. */
+        boolean touches(long[] roads, BitSet nodes) {
+            for (long ref : nodeRefs()) {
+                int i = Arrays.binarySearch(roads, ref);
+                if (i >= 0 && nodes.get(i)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static String cellPath(String dir, int cell) {
+        return new File(dir, "cell-" + cell + GraphDB.SNAPSHOT_SUFFIX).getPath();
+    }
+
+    /** Returns the cell of a location, clamped to the grid. */
+    private static int cellOf(double lon, double lat, double west, double south,
+                              double cellDegrees, int columns, int rows) {
+        int x = (int) Math.floor((lon - west) / cellDegrees);
+        int y = (int) Math.floor((lat - south) / cellDegrees);
+        x = Math.max(0, Math.min(columns - 1, x));
+        y = Math.max(0, Math.min(rows - 1, y));
+        return y * columns + x;
+    }
+
+    /** Returns the cell of a location, clamped to the grid. */
+    int cellOf(double lon, double lat) {
+        return cellOf(lon, lat, west, south, cellDegrees, columns, rows);
+    }
+
+    /** Returns the cell of a vertex. */
+    int cellOf(long v) {
+        int i = Arrays.binarySearch(ids, v);
+        if (i < 0) {
+            throw new IllegalArgumentException("Vertex " + v + " is not in the graph.");
+        }
+        return vertexCells[i];
+    }
+
+    /**
+     * Returns a cell, loading it if needed, or null if it has no vertices or named
+     * locations. Loading holds the lock, so queries needing other cells wait meanwhile.
+     */
+    synchronized GraphDB cell(int cell) {
+        GraphDB g = loaded.get(cell);
+        if (g == null && present.get(cell)) {
+            g = new GraphDB(cellPath(dir, cell));
+            LOADS.increment();
+            numLoads++;
+            loaded.put(cell, g);
+        }
+        return g;
+    }
+
+    /** Returns the cell of a vertex, which holds all its half-edges. */
+    GraphDB cellGraph(long v) {
+        return cell(cellOf(v));
+    }
+
+    /** Returns the number of cells loaded. */
+    synchronized int numLoaded() {
+        return loaded.size();
+    }
+
+    /** Returns the number of times a cell was loaded, counting reloads of dropped ones. */
+    synchronized long numLoads() {
+        return numLoads;
+    }
+
+    /** Returns the number of cells with vertices or named locations. */
+    int numCells() {
+        return present.cardinality();
+    }
+
+    int numVertices() {
+        return ids.length;
+    }
+
+    double lon(long v) {
+        return cellGraph(v).lon(v);
+    }
+
+    double lat(long v) {
+        return cellGraph(v).lat(v);
+    }
+
+    /** Returns the lowest cost per mile of any way in the whole map under a profile. */
+    double minCostPerMile(Profile profile) {
+        return minCostPerMile[profile.ordinal()];
+    }
+
+    /** Like GraphDB.adjacent(), loading only the vertex's cell. */
+    Iterable<Long> adjacent(long v) {
+        return cellGraph(v).adjacent(v);
+    }
+
+    /** Like GraphDB.closest(double, double). */
+    long closest(double lon, double lat) {
+        return closest(lon, lat, Profile.DISTANCE);
+    }
+
+    /**
+     * Like GraphDB.closest(double, double, Profile). Starts with the cell of the location
+     * and then looks in rings of cells around it, loading only the cells that could hold a
+     * closer vertex, until a whole ring is too far away.
+     */
+    long closest(double lon, double lat, Profile profile) {
+        int home = cellOf(lon, lat);
+        int hx = home % columns, hy = home / columns;
+        long best = 0;
+        double bestDist = Double.POSITIVE_INFINITY;
+        for (int r = 0; r < Math.max(columns, rows); r++) {
+            double ringDist = Double.POSITIVE_INFINITY;
+            for (int y = hy - r; y <= hy + r; y++) {
+                for (int x = hx - r; x <= hx + r; x++) {
+                    boolean onRing = Math.abs(x - hx) == r || Math.abs(y - hy) == r;
+                    if (!onRing || x < 0 || y < 0 || x >= columns || y >= rows) {
+                        continue;
+                    }
+                    double d = cellDistance(x, y, lon, lat);
+                    ringDist = Math.min(ringDist, d);
+                    if (d >= bestDist || !present.get(y * columns + x)) {
+                        continue;
+                    }
+                    GraphDB g = cell(y * columns + x);
+                    long v = g.closest(lon, lat, profile);
+                    if (v == 0) {
+                        continue;
+                    }
+                    double dist = GraphDB.distance(lon, lat, g.lon(v), g.lat(v));
+                    if (dist < bestDist) {
+                        best = v;
+                        bestDist = dist;
+                    }
+                }
+            }
+            if (ringDist >= bestDist) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns a lower bound on the great-circle distance in miles from a location to any
+     * location in a cell, as KdTree bounds its splits: the distance to the nearer parallel
+     * or to the nearer meridian of the cell, whichever is larger.
+     */
+    private double cellDistance(int x, int y, double lon, double lat) {
+        double cellWest = west + x * cellDegrees, cellSouth = south + y * cellDegrees;
+        double dLon = Math.max(0, Math.max(cellWest - lon, lon - cellWest - cellDegrees));
+        double dLat = Math.max(0, Math.max(cellSouth - lat, lat - cellSouth - cellDegrees));
+        double byLat = GraphDB.distance(lon, lat, lon, lat + dLat);
+        double byLon = 3963 * Math.asin(Math.min(1, Math.abs(Math.sin(Math.toRadians(
+                Math.min(dLon, 90)))) * Math.cos(Math.toRadians(lat))));
+        return Math.max(byLat, byLon);
+    }
+}
@@ -0,0 +1,160 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Slowdowns and closures of roads, e.g. for incidents or events, that driving routes take
+ * into account without reloading the graph. A slowdown multiplies the driving time of a
+ * road by a factor of at least 1, so the A* heuristics stay admissible; a closure keeps
+ * cars off it altogether. Rules name OSM ids, a whole way or one direction of a segment
+ * between two nodes, so they carry over to reloaded and changed graphs.
+ *
+ * Traffic is immutable; with() returns the updated traffic. GraphDB.withTraffic() turns it
+ * into the edge weights searches use, once per update rather than in the search loop.
+ */
+public class Traffic {
+    /** No slowdowns or closures. */
+    static final Traffic NONE = new Traffic(Collections.emptyMap(), Collections.emptyMap());
+
+    /**
+     * An update of the traffic on a way, given by its id, or on a segment, given by the ids
+     * of the nodes it runs from and to. A factor of 1 that is not closed clears the rule.
+     */
+    static class Rule {
+        Long way;
+        Long from;
+        Long to;
+        Double factor;
+        boolean closed;
+
+        Rule() {
+        }
+
+        Rule(Long way, Long from, Long to, double factor, boolean closed) {
+            this.way = way;
+            this.from = from;
+            this.to = to;
+            this.factor = factor;
+            this.closed = closed;
+        }
+
+        /** Returns a rule slowing down a way by the given factor. */
+        static Rule way(long way, double factor) {
+            return new Rule(way, null, null, factor, false);
+        }
+
+        /** Returns a rule slowing down a segment, in its direction, by the given factor. */
+        static Rule segment(long from, long to, double factor) {
+            return new Rule(null, from, to, factor, false);
+        }
+
+        /** Returns the factor of the rule, infinity if closed. */
+        private double factor() {
+            return closed ? Double.POSITIVE_INFINITY : factor == null ? 1 : factor;
+        }
+    }
+
+    /** One direction of a segment, as the ids of the nodes it runs from and to. */
+    static class Segment {
+        final long from;
+        final long to;
+
+        Segment(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Segment && from == ((Segment) o).from
+                    && to == ((Segment) o).to;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(from, to);
+        }
+    }
+
+    /** Factors of ways and of segments, by id. Closed roads have a factor of infinity. */
+    private final Map<Long, Double> ways;
+    private final Map<Segment, Double> segments;
+
+    private Traffic(Map<Long, Double> ways, Map<Segment, Double> segments) {
+        this.ways = ways;
+        this.segments = segments;
+    }
+
+    /**
+     * Returns this traffic with the given rules applied in order, each replacing any rule
+     * for the same way or segment.
+     * @throws IllegalArgumentException If a rule names neither a way nor a segment, or has
+     * a factor below 1. No rule is applied then.
+     */
+    Traffic with(List<Rule> rules) {
+        Map<Long, Double> newWays = new HashMap<>(ways);
+        Map<Segment, Double> newSegments = new HashMap<>(segments);
+        for (Rule rule : rules) {
+            double factor = rule.factor();
+            if (!(factor >= 1)) {
+                throw new IllegalArgumentException("Traffic factors must be at least 1.");
+            }
+            if (rule.way != null && rule.from == null && rule.to == null) {
+                update(newWays, rule.way, factor);
+            } else if (rule.way == null && rule.from != null && rule.to != null) {
+                update(newSegments, new Segment(rule.from, rule.to), factor);
+            } else {
+                throw new IllegalArgumentException("Traffic rules need a way, or a from and "
+                        + "a to node.");
+            }
+        }
+        return new Traffic(newWays, newSegments);
+    }
+
+    private static <K> void update(Map<K, Double> factors, K key, double factor) {
+        if (factor == 1) {
+            factors.remove(key);
+        } else {
+            factors.put(key, factor);
+        }
+    }
+
+    /** Returns the factors of ways, by way id. The map must not be modified. */
+    Map<Long, Double> ways() {
+        return ways;
+    }
+
+    /** Returns the factors of segments. The map must not be modified. */
+    Map<Segment, Double> segments() {
+        return segments;
+    }
+
+    boolean isEmpty() {
+        return ways.isEmpty() && segments.isEmpty();
+    }
+
+    /** Returns the number of rules. */
+    int size() {
+        return ways.size() + segments.size();
+    }
+
+    /** Returns the rules, ways first. */
+    List<Rule> rules() {
+        List<Rule> res = new ArrayList<>();
+        for (Map.Entry<Long, Double> entry : ways.entrySet()) {
+            res.add(rule(entry.getKey(), null, null, entry.getValue()));
+        }
+        for (Map.Entry<Segment, Double> entry : segments.entrySet()) {
+            res.add(rule(null, entry.getKey().from, entry.getKey().to, entry.getValue()));
+        }
+        return res;
+    }
+
+    private static Rule rule(Long way, Long from, Long to, double factor) {
+        boolean closed = factor == Double.POSITIVE_INFINITY;
+        return new Rule(way, from, to, closed ? 1 : factor, closed);
+    }
+}
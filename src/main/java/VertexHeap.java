@@ -0,0 +1,127 @@
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of vertex indexes keyed by distance, for searches over GraphDB's
+ * packed vertex arrays. Each vertex is in the heap at most once: pushing a vertex that is
+ * already queued with a larger key lowers its key instead, so the heap never holds stale
+ * entries and never grows beyond the number of vertices.
+ */
+public class VertexHeap {
+    /** Vertices in heap order, and their keys. */
+    private int[] heap;
+    private double[] keys;
+    /** position[v] is the heap position of vertex v, or -1 if v is not queued. */
+    private int[] position;
+    private int size;
+
+    /**
+     * Creates an empty heap for vertices 0 to n - 1.
+     * @param n The number of vertices in the graph.
+     */
+    public VertexHeap(int n) {
+        heap = new int[n];
+        keys = new double[n];
+        position = new int[n];
+        Arrays.fill(position, -1);
+    }
+
+    /**
+     * Makes room for vertices up to n - 1, for searches that number their vertices as they
+     * reach them.
+     */
+    public void ensureCapacity(int n) {
+        if (n <= position.length) {
+            return;
+        }
+        int capacity = Math.max(n, 2 * position.length);
+        heap = Arrays.copyOf(heap, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        int old = position.length;
+        position = Arrays.copyOf(position, capacity);
+        Arrays.fill(position, old, capacity, -1);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Queues a vertex with the given key, or lowers its key if it is already queued with a
+     * larger one.
+     * @return Whether the heap changed.
+     */
+    public boolean push(int v, double key) {
+        int i = position[v];
+        if (i < 0) {
+            i = size++;
+        } else if (keys[i] <= key) {
+            return false;
+        }
+        siftUp(i, v, key);
+        return true;
+    }
+
+    /** Removes every vertex, in time proportional to the number queued. */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            position[heap[i]] = -1;
+        }
+        size = 0;
+    }
+
+    /** Returns the smallest key in the heap, which must not be empty. */
+    public double minKey() {
+        return keys[0];
+    }
+
+    /** Removes and returns the vertex with the smallest key; the heap must not be empty. */
+    public int pop() {
+        int min = heap[0];
+        position[min] = -1;
+        size--;
+        if (size > 0) {
+            siftDown(0, heap[size], keys[size]);
+        }
+        return min;
+    }
+
+    private void siftUp(int i, int v, double key) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] <= key) {
+                break;
+            }
+            place(i, heap[parent], keys[parent]);
+            i = parent;
+        }
+        place(i, v, key);
+    }
+
+    private void siftDown(int i, int v, double key) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && keys[child + 1] < keys[child]) {
+                child++;
+            }
+            if (keys[child] >= key) {
+                break;
+            }
+            place(i, heap[child], keys[child]);
+            i = child;
+        }
+        place(i, v, key);
+    }
+
+    private void place(int i, int v, double key) {
+        heap[i] = v;
+        keys[i] = key;
+        position[v] = i;
+    }
+}
@@ -0,0 +1,112 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * A Jetty thread pool that runs every job, and so every request, on a virtual thread of
+ * its own. A request blocked reading tiles or writing its response then holds no platform
+ * thread, so the number of concurrent requests is not capped by the size of a pool.
+ * CPU-heavy work still runs on the server's bounded CPU WorkerPool.
+ *
+ * Virtual threads need Java 21. The project still builds for Java 8, so they are created
+ * reflectively; see the virtual-threads profile in pom.xml.
+ *
+ * The server starts and stops the pool with itself. Once stopped, the pool takes no new
+ * jobs, and join() returns when the running ones are done.
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+    private final ExecutorService executor;
+    private final AtomicInteger running = new AtomicInteger();
+
+    /**
+     * Creates a pool whose threads are named after the given prefix.
+     * @throws UnsupportedOperationException If the JVM has no virtual threads.
+     */
+    public VirtualThreadPool(String name) {
+        this(newPerTaskExecutor(name));
+    }
+
+    /** Creates a pool that runs its jobs on the given executor, which it shuts down. */
+    VirtualThreadPool(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns an executor that starts a new virtual thread for every task, named after
+     * the given prefix.
+     * @throws UnsupportedOperationException If the JVM has no virtual threads.
+     */
+    static ExecutorService newPerTaskExecutor(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, "bearmap-" + name + "-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory")
+                    .invoke(builder);
+            return (ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later, "
+                    + "this is Java " + System.getProperty("java.version") + ".", e);
+        }
+    }
+
+    /**
+     * Runs a job on a thread of its own.
+     * @throws RejectedExecutionException If the pool has been stopped.
+     */
+    @Override
+    public void execute(Runnable job) {
+        running.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                try {
+                    job.run();
+                } finally {
+                    running.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            running.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /** Takes no new jobs, and lets the running ones finish. */
+    @Override
+    protected void doStop() {
+        executor.shutdown();
+    }
+
+    /** Waits until the pool is stopped and its running jobs are done. */
+    @Override
+    public void join() throws InterruptedException {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /** Returns the number of jobs running, each on its own thread. */
+    @Override
+    public int getThreads() {
+        return running.get();
+    }
+
+    /** Virtual threads end with their job, so none are ever idle. */
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    /** A new thread can always be started. */
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+}
@@ -0,0 +1,215 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * A fixed number of worker threads with a bounded queue, for one kind of server work.
+ * The server keeps CPU-heavy work (routing, image compositing and encoding) and blocking
+ * I/O (tile reads) on separate pools, sized for the cores and the disk respectively, so
+ * that neither kind can starve the other.
+ *
+ * Request threads hand their work to a pool and wait for the result. Once all workers are
+ * busy and the queue is full, further work is rejected at once with a
+ * RejectedExecutionException rather than queued, so that an overloaded server sheds
+ * requests instead of letting every request's latency grow without bound.
+ *
+ * A pool may instead start a virtual thread for every task, see virtual(). Tasks then never
+ * wait for a thread, and the pool sheds work once it is running its maximum number of tasks.
+ */
+public class WorkerPool {
+    private final String name;
+    private final ExecutorService executor;
+    /** Tasks that may still start, or null if the executor's queue bounds the pool. */
+    private final Semaphore permits;
+    private final Metrics.Counter rejected;
+
+    /**
+     * Starts a pool of daemon threads named after the pool.
+     * @param name The pool name, used for thread names and the metrics' pool label.
+     * @param threads The number of worker threads.
+     * @param queueSize The number of tasks that may wait for a worker.
+     */
+    public WorkerPool(String name, int threads, int queueSize) {
+        this.name = name;
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(queueSize, 1)), r -> {
+                    Thread t = new Thread(r, "bearmap-" + name + "-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        executor = pool;
+        permits = null;
+        rejected = registerMetrics(name, pool::getActiveCount, () -> pool.getQueue().size());
+    }
+
+    /**
+     * Creates a pool that runs at most maxTasks tasks at once on the given executor, which
+     * must start a thread for every task.
+     */
+    WorkerPool(String name, ExecutorService executor, int maxTasks) {
+        this.name = name;
+        this.executor = executor;
+        permits = new Semaphore(maxTasks);
+        rejected = registerMetrics(name, () -> maxTasks - permits.availablePermits(),
+                () -> 0);
+    }
+
+    /**
+     * Returns a pool that runs every task on a new virtual thread, at most maxTasks at once.
+     * This suits blocking I/O, where a task mostly waits and holds no platform thread.
+     * @throws UnsupportedOperationException If the JVM has no virtual threads.
+     */
+    public static WorkerPool virtual(String name, int maxTasks) {
+        return new WorkerPool(name, VirtualThreadPool.newPerTaskExecutor(name), maxTasks);
+    }
+
+    private static Metrics.Counter registerMetrics(String name, LongSupplier active,
+                                                   LongSupplier queued) {
+        Metrics.gauge("bearmap_pool_active_threads", "Worker threads running a task.",
+                active, "pool", name);
+        Metrics.gauge("bearmap_pool_queued_tasks", "Tasks waiting for a worker thread.",
+                queued, "pool", name);
+        return Metrics.counter("bearmap_pool_rejected_total",
+                "Tasks rejected because their worker pool was full.", "pool", name);
+    }
+
+    /**
+     * Runs a task on the pool and waits for its result. Exceptions thrown by the task are
+     * rethrown as they are.
+     * @throws RejectedExecutionException If the pool is full.
+     */
+    public <T> T run(Callable<T> task) throws Exception {
+        return await(submit(task));
+    }
+
+    /**
+     * Runs every task on the pool and waits for their results, which are returned in the
+     * order of the tasks. Either all tasks are accepted or, if the pool fills up part way,
+     * those already accepted are cancelled and none run to completion.
+     * @throws RejectedExecutionException If the pool is full.
+     */
+    public <T> List<T> runAll(List<? extends Callable<T>> tasks) throws Exception {
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        boolean done = false;
+        try {
+            for (Callable<T> task : tasks) {
+                futures.add(submit(task));
+            }
+            List<T> res = new ArrayList<>(tasks.size());
+            for (Future<T> future : futures) {
+                res.add(await(future));
+            }
+            done = true;
+            return res;
+        } finally {
+            if (!done) {
+                /* Queued tasks go first, so none starts once the running ones stop. */
+                for (int i = futures.size() - 1; i >= 0; i--) {
+                    futures.get(i).cancel(true);
+                }
+                /* Cancelled tasks would otherwise hold their queue slots until dequeued. */
+                if (executor instanceof ThreadPoolExecutor) {
+                    ((ThreadPoolExecutor) executor).purge();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a task on the pool and returns its future result, for chaining stages of work
+     * that run on different pools. Cancelling the returned future cancels the task.
+     * @throws RejectedExecutionException If the pool is full.
+     */
+    public <T> CompletableFuture<T> supply(Callable<T> task) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        Future<?> future = submit(() -> {
+            try {
+                res.complete(task.call());
+            } catch (Throwable e) {
+                res.completeExceptionally(e);
+            }
+            return null;
+        });
+        res.whenComplete((value, e) -> {
+            if (res.isCancelled()) {
+                future.cancel(true);
+            }
+        });
+        return res;
+    }
+
+    /** Stops the workers once the queued tasks are done. */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return executor instanceof ThreadPoolExecutor
+                ? name + " pool of " + ((ThreadPoolExecutor) executor).getMaximumPoolSize()
+                        + " threads"
+                : name + " pool of virtual threads";
+    }
+
+    private <T> Future<T> submit(Callable<T> task) {
+        if (permits == null) {
+            try {
+                return executor.submit(task);
+            } catch (RejectedExecutionException e) {
+                rejected.increment();
+                throw e;
+            }
+        }
+        if (!permits.tryAcquire()) {
+            rejected.increment();
+            throw new RejectedExecutionException(this + " is running its maximum of "
+                    + "tasks.");
+        }
+        /* done() runs once the task finishes or is cancelled, even before it started. */
+        FutureTask<T> future = new FutureTask<T>(task) {
+            @Override
+            protected void done() {
+                permits.release();
+            }
+        };
+        try {
+            executor.execute(future);
+            return future;
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            rejected.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for a task's result. Exceptions thrown by the task are rethrown as they are.
+     */
+    static <T> T await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (Exception) cause;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+}
@@ -58,6 +58,9 @@ $(function() {
     const route_server = host + '/route';
     const clear_route = host + '/clear_route';
     const search = host + '/search';
+    /* Wording of the maneuver codes in route steps, as in Router.NavigationDirection. */
+    const maneuvers = ['Start', 'Go straight', 'Slight left', 'Slight right', 'Turn right',
+                       'Turn left', 'Sharp left', 'Sharp right'];
 
     /* ════════════════════════════ ೋღ HELPERS ღೋ ══════════════════════════ */
     /* Compute lat and lon by window size */
@@ -112,6 +115,7 @@ $(function() {
             async: true,
             url: raster_server,
             data: params,
+            dataType: 'json',
             success: function(data) {
                 console.log(data);
                 if (data.query_success) {
@@ -171,11 +175,17 @@ $(function() {
             async: true,
             url: route_server,
             data: route_params,
+            dataType: 'json',
             success: function(data) {
-                data = JSON.parse(data);
                 updateImg();
                 if (data.directions_success) {
-                    $directionsText.html(data.directions);
+                    $directionsText.empty();
+                    data.steps.forEach(function(step, i) {
+                        $directionsText.append($('<span>').text((i + 1) + '. '
+                            + maneuvers[step.maneuver] + ' on ' + step.way
+                            + ' and continue for ' + step.distance.toFixed(3) + ' miles.'),
+                            '<br>');
+                    });
                 } else {
                     $directionsText.html('No routing directions to display.');
                 }
@@ -332,7 +342,9 @@ $(function() {
                   async: true,
                   url: search,
                   dataType: 'json',
-                  data: { term: ui.item.value, full: true},
+                  data: { term: ui.item.value, full: true,
+                          lat: (params.ullat + real_lrlat()) / 2,
+                          lon: (params.ullon + real_lrlon()) / 2 },
                   success: function(data) {
                       removeMarkers();
                       for (var i = 0; i < data.length; i++) {
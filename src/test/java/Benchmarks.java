@@ -0,0 +1,889 @@
+import com.google.gson.GsonBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+/**
+ * Throughput and latency benchmarks for the hot paths of the server: routing, directions,
+ * nearest-vertex lookup, autocomplete, rastering, image writing and graph construction.
+ * Run it through the benchmark profile, e.g.
+ * <pre>
+ *     mvn -Pbenchmark test -Dbenchmark.osm=path/to/map.osm.xml -Dbenchmark.include=Router
+ * </pre>
+ *
+ * Each benchmark runs a warmup phase and then a measurement phase, timing every operation
+ * on its own. Results are printed as a table and written as JSON (one object per benchmark,
+ * with the mean, percentiles and throughput) so that runs can be compared by scripts.
+ *
+ * Inputs are the queries in path_params.txt and raster_params.txt plus larger sets of
+ * random queries spread over the bounding box of the loaded graph. With the sizes argument
+ * the benchmarks instead run on synthetic maps of growing size, to show how load time,
+ * memory and query latency scale:
+ * <pre>
+ *     mvn -Pbenchmark test -Dbenchmark.sizes=10000,100000,1000000
+ * </pre>
+ *
+ * This is a small stand-alone harness rather than JMH, because JMH cannot generate its
+ * harness code for benchmarks of classes in the default package, which is where all of
+ * this project's classes live.
+ */
+public class Benchmarks {
+    private static final String PATH_PARAMS_FILE = "path_params.txt";
+    private static final String RASTER_PARAMS_FILE = "raster_params.txt";
+    private static final String IMG_ROOT = "../library-sp18/data/proj3_imgs/";
+    private static final int NUM_RANDOM_QUERIES = 1000;
+    private static final long SEED = 61;
+    /** Distance budget of the isochrone benchmark, about half the width of the Berkeley map. */
+    private static final double ISOCHRONE_MILES = 2.5;
+    /** Raster requests sent at once by the raster load benchmark. */
+    private static final int RASTER_CLIENTS = 2000;
+    /** Vertices moved and roads added by the GraphDB.applyChange benchmark. */
+    private static final int NUM_CHANGED = 10;
+    /** Segments slowed down or closed by each traffic update, and the updates' period. */
+    private static final int TRAFFIC_RULES = 50;
+    private static final long TRAFFIC_PERIOD_MILLIS = 100;
+    /** The side of a graph cell in degrees, and the cells kept loaded when not all are. */
+    private static final double CELL_DEGREES = 0.05;
+    private static final int LOADED_CELLS = 16;
+    /** The most vertices in an overlay cell, by level. */
+    private static final int[] OVERLAY_CELLS = {128, 1024, 8192};
+    /** How far apart repeated clicks land in the near-repeat cache benchmark, about 2 m. */
+    private static final double NEAR_REPEAT_DEGREES = 0.00002;
+    /** Turn penalties of the turn cost benchmark, in seconds. */
+    private static final Router.TurnCosts TURN_COSTS = new Router.TurnCosts(15, 5, 30);
+
+    /** Prevents the JIT from discarding results. */
+    private static volatile int sink;
+
+    /** A benchmarked operation; i cycles through the inputs of the benchmark. */
+    interface Op {
+        Object run(int i) throws Exception;
+    }
+
+    /** The measured statistics of one benchmark. */
+    static class Result {
+        String benchmark;
+        String workload;
+        long operations;
+        double meanMicros;
+        double opsPerSecond;
+        Map<String, Double> percentilesMicros = new LinkedHashMap<>();
+        Map<String, Object> extra = new LinkedHashMap<>();
+    }
+
+    private final Pattern include;
+    private final long warmupMillis;
+    private final long measureMillis;
+    private final List<Result> results = new ArrayList<>();
+
+    Benchmarks(String include, long warmupMillis, long measureMillis) {
+        this.include = Pattern.compile(include);
+        this.warmupMillis = warmupMillis;
+        this.measureMillis = measureMillis;
+    }
+
+    /**
+     * Arguments are given as key=value pairs:
+     * osm (path of the OSM file), out (path of the JSON output), include (regular expression
+     * selecting benchmarks by name), warmup and measure (phase lengths in milliseconds), and
+     * sizes (comma-separated graph sizes; if given, runs runScaling instead of using osm).
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> conf = new HashMap<>();
+        conf.put("osm", "../library-sp18/data/berkeley-2018.osm.xml");
+        conf.put("out", "target/benchmark.json");
+        conf.put("include", ".*");
+        conf.put("warmup", "2000");
+        conf.put("measure", "3000");
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                conf.put(arg.substring(0, eq), arg.substring(eq + 1));
+            }
+        }
+        Benchmarks b = new Benchmarks(conf.get("include"), Long.parseLong(conf.get("warmup")),
+                Long.parseLong(conf.get("measure")));
+        if (conf.containsKey("sizes") && !conf.get("sizes").isEmpty()) {
+            b.runScaling(conf.get("sizes"));
+        } else {
+            b.runAll(conf.get("osm"));
+        }
+        b.write(conf.get("out"));
+    }
+
+    void runAll(String osmPath) throws Exception {
+        GraphDB g = measureConstruction(osmPath, osmPath);
+        measureChange(g, osmPath);
+        GraphDB undirected = loadUndirected(osmPath);
+        Random r = new Random(SEED);
+        runRouting(g, undirected, "params", pathParams());
+        runQueries(g, undirected, "random", r);
+
+        Rasterer rasterer = new Rasterer();
+        List<Map<String, Double>> fileBoxes = rasterParams();
+        List<Map<String, Double>> randomBoxes = new ArrayList<>();
+        for (int i = 0; i < NUM_RANDOM_QUERIES; i++) {
+            randomBoxes.add(randomRasterBox(r));
+        }
+        run("Rasterer.getMapRaster", "params", i ->
+                rasterer.getMapRaster(fileBoxes.get(i % fileBoxes.size())));
+        run("Rasterer.getMapRaster", "random", i ->
+                rasterer.getMapRaster(randomBoxes.get(i % randomBoxes.size())));
+
+        if (!Files.isDirectory(Paths.get(IMG_ROOT))) {
+            System.out.println("Skipping image benchmarks, no tiles in " + IMG_ROOT);
+            return;
+        }
+        List<Map<String, Object>> rasters = new ArrayList<>();
+        for (Map<String, Double> params : fileBoxes) {
+            rasters.add(rasterer.getMapRaster(params));
+        }
+        run("MapServer.writeImagesToOutputStream", "params", i -> {
+            Map<String, Object> raster = new HashMap<>(rasters.get(i % rasters.size()));
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            MapServer.writeImagesToOutputStream(raster, os);
+            return os.size();
+        });
+        run("MapServer.writeRaster", "params", i -> {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            MapServer.writeRaster(rasterer, fileBoxes.get(i % fileBoxes.size()), os);
+            return os.size();
+        });
+        runRasterLoad(rasterer, fileBoxes);
+    }
+
+    /**
+     * Sends RASTER_CLIENTS raster requests at once, each on a request thread as the server
+     * runs it: on one of MapServer.HTTP_THREADS platform threads or, when run with
+     * -Dbearmap.virtualThreads=true, on a virtual thread of its own. Latency is measured
+     * from the moment all requests arrive, so it includes waiting for a request thread.
+     * Requests shed by a full worker pool are counted but not timed. The first round
+     * warms up and the second is recorded.
+     */
+    private void runRasterLoad(Rasterer rasterer, List<Map<String, Double>> boxes)
+            throws Exception {
+        String benchmark = "MapServer.raster.concurrent";
+        if (!selected(benchmark)) {
+            return;
+        }
+        String mode = MapServer.VIRTUAL_THREADS ? "virtual" : "platform";
+        for (int round = 0; round < 2; round++) {
+            ExecutorService requests = MapServer.VIRTUAL_THREADS
+                    ? VirtualThreadPool.newPerTaskExecutor("benchmark")
+                    : Executors.newFixedThreadPool(MapServer.HTTP_THREADS);
+            long[] times = new long[RASTER_CLIENTS];
+            AtomicInteger done = new AtomicInteger();
+            AtomicLong shed = new AtomicLong();
+            List<Future<?>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int c = 0; c < RASTER_CLIENTS; c++) {
+                Map<String, Double> params = boxes.get(c % boxes.size());
+                futures.add(requests.submit(() -> {
+                    try {
+                        ByteArrayOutputStream os = new ByteArrayOutputStream();
+                        MapServer.writeRaster(rasterer, params, os);
+                        consume(os);
+                        times[done.getAndIncrement()] = System.nanoTime() - start;
+                    } catch (RejectedExecutionException e) {
+                        shed.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long elapsed = System.nanoTime() - start;
+            requests.shutdown();
+            if (round == 1) {
+                Result result = record(benchmark, "params,clients=" + RASTER_CLIENTS + ","
+                        + mode, times, Math.max(done.get(), 1), elapsed);
+                result.extra.put("mode", mode);
+                result.extra.put("shed", shed.get());
+            }
+        }
+    }
+
+    /**
+     * Measures how construction, memory and query latency grow with the size of the map,
+     * on synthetic maps from OSMGenerator. Each size is loaded both from OSM XML and from a
+     * snapshot; results are tagged with the workload "vertices=n".
+     * @param sizes Comma-separated numbers of road intersections to generate.
+     */
+    void runScaling(String sizes) throws Exception {
+        for (String size : sizes.split(",")) {
+            int n = Integer.parseInt(size.trim());
+            String workload = "vertices=" + n;
+            File osm = File.createTempFile("bench-" + n + "-", ".osm.xml");
+            File snapshot = File.createTempFile("bench-" + n + "-", GraphDB.SNAPSHOT_SUFFIX);
+            osm.deleteOnExit();
+            snapshot.deleteOnExit();
+            new OSMGenerator(n, 8, 0.01, SEED).write(osm.getPath());
+
+            GraphDB g = measureConstruction(osm.getPath(), workload);
+            g.writeSnapshot(snapshot.getPath());
+            measureConstruction(snapshot.getPath(), workload + ",snapshot");
+            measureChange(g, workload);
+            runQueries(g, loadUndirected(osm.getPath()), workload, new Random(SEED));
+            osm.delete();
+            snapshot.delete();
+        }
+    }
+
+    /** Runs the graph query benchmarks on random inputs over the graph's bounding box. */
+    private void runQueries(GraphDB g, GraphDB undirected, String workload, Random r)
+            throws Exception {
+        double[] box = boundingBox(g);
+        List<double[]> randomRoutes = new ArrayList<>();
+        for (int i = 0; i < NUM_RANDOM_QUERIES; i++) {
+            randomRoutes.add(new double[]{randomLon(r, box), randomLat(r, box),
+                randomLon(r, box), randomLat(r, box)});
+        }
+        runRouting(g, undirected, workload, randomRoutes);
+        runConcurrent(g, workload, randomRoutes);
+        runTraffic(g, workload, randomRoutes, r);
+        runSharded(g, workload, randomRoutes);
+        runOverlay(g, workload, randomRoutes);
+
+        double[][] points = new double[NUM_RANDOM_QUERIES][];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new double[]{randomLon(r, box), randomLat(r, box)};
+        }
+        run("GraphDB.closest", workload, i -> {
+            double[] p = points[i % points.length];
+            return g.closest(p[0], p[1]);
+        });
+
+        List<String> prefixes = new ArrayList<>();
+        List<String> allNames = g.getLocationsByPrefix("");
+        for (int i = 0; i < NUM_RANDOM_QUERIES && !allNames.isEmpty(); i++) {
+            String name = allNames.get(r.nextInt(allNames.size()));
+            prefixes.add(name.substring(0, Math.min(name.length(), 1 + r.nextInt(3))));
+        }
+        if (!prefixes.isEmpty()) {
+            run("GraphDB.getLocationsByPrefix", workload, i ->
+                    g.getLocationsByPrefix(prefixes.get(i % prefixes.size())));
+        }
+    }
+
+    /**
+     * Runs the routing benchmarks. Router.shortestPath.undirected times the same queries on
+     * the map loaded without one-way streets and turn restrictions, as a baseline for what
+     * obeying them costs. Router.shortestPath.snapped routes between the points snapped onto
+     * the nearest road segments, and Router.shortestPath.cached answers repeated snapped
+     * queries from a RouteCache, as the server does; .nearby repeats them with every point
+     * moved by up to NEAR_REPEAT_DEGREES, as repeated clicks land.
+     * @param undirected The undirected graph, or null if that benchmark is not selected.
+     */
+    private void runRouting(GraphDB g, GraphDB undirected, String workload,
+                            List<double[]> queries) throws Exception {
+        Result search = run("Router.shortestPath", workload, i -> {
+            double[] q = queries.get(i % queries.size());
+            return Router.shortestPath(g, q[0], q[1], q[2], q[3]);
+        });
+        if (undirected != null) {
+            run("Router.shortestPath.undirected", workload, i -> {
+                double[] q = queries.get(i % queries.size());
+                return Router.shortestPath(undirected, q[0], q[1], q[2], q[3]);
+            });
+        }
+        run("Router.shortestPath.time", workload, i -> {
+            double[] q = queries.get(i % queries.size());
+            return Router.shortestPath(g, q[0], q[1], q[2], q[3], Profile.TIME, null);
+        });
+        run("Router.shortestPath.snapped", workload, i -> {
+            double[] q = queries.get(i % queries.size());
+            return Router.shortestPath(g, g.snap(q[0], q[1], Profile.DISTANCE),
+                    g.snap(q[2], q[3], Profile.DISTANCE), Profile.DISTANCE, null, null);
+        });
+        for (double jitter : new double[]{0, NEAR_REPEAT_DEGREES}) {
+            String benchmark = jitter == 0 ? "Router.shortestPath.cached"
+                    : "Router.shortestPath.cached.nearby";
+            if (!selected(benchmark)) {
+                continue;
+            }
+            RouteCache cache = new RouteCache(queries.size(), g);
+            Random r = new Random(SEED);
+            long[] hits = new long[2];
+            Result cached = run(benchmark, workload, i -> {
+                double[] q = queries.get(i % queries.size());
+                GraphDB.Snap from = g.snap(q[0] + jitter * (r.nextDouble() - 0.5),
+                        q[1] + jitter * (r.nextDouble() - 0.5), Profile.DISTANCE);
+                GraphDB.Snap to = g.snap(q[2] + jitter * (r.nextDouble() - 0.5),
+                        q[3] + jitter * (r.nextDouble() - 0.5), Profile.DISTANCE);
+                Router.Route route = cache.get(g, from, to, Profile.DISTANCE, null);
+                hits[route == null ? 1 : 0]++;
+                if (route == null) {
+                    route = Router.shortestPath(g, from, to, Profile.DISTANCE, null, null);
+                    cache.put(g, from, to, Profile.DISTANCE, null, route);
+                }
+                return route;
+            });
+            if (cached != null) {
+                cached.extra.put("hitRate", (double) hits[0] / (hits[0] + hits[1]));
+            }
+        }
+        Result turning = run("Router.shortestPath.turnCosts", workload, i -> {
+            double[] q = queries.get(i % queries.size());
+            return Router.shortestPath(g, q[0], q[1], q[2], q[3], Profile.DISTANCE,
+                    TURN_COSTS, null);
+        });
+        if (turning != null && !queries.isEmpty()) {
+            long turnSettled = 0, turnRelaxed = 0;
+            for (double[] q : queries) {
+                Router.SearchStats stats = new Router.SearchStats();
+                Router.shortestPath(g, q[0], q[1], q[2], q[3], Profile.DISTANCE, TURN_COSTS,
+                        stats);
+                turnSettled += stats.settled;
+                turnRelaxed += stats.relaxed;
+            }
+            turning.extra.put("meanSettled", (double) turnSettled / queries.size());
+            turning.extra.put("meanRelaxed", (double) turnRelaxed / queries.size());
+        }
+        List<Router.Route> routes = new ArrayList<>();
+        long settled = 0, relaxed = 0;
+        for (double[] q : queries) {
+            Router.SearchStats stats = new Router.SearchStats();
+            List<Long> route = Router.shortestPath(g, q[0], q[1], q[2], q[3],
+                    Profile.DISTANCE, stats);
+            settled += stats.settled;
+            relaxed += stats.relaxed;
+            if (route.size() > 1) {
+                routes.add(Router.shortestPath(g, g.snap(q[0], q[1], Profile.DISTANCE),
+                        g.snap(q[2], q[3], Profile.DISTANCE), Profile.DISTANCE, null, null));
+            }
+        }
+        if (search != null && !queries.isEmpty()) {
+            search.extra.put("meanSettled", (double) settled / queries.size());
+            search.extra.put("meanRelaxed", (double) relaxed / queries.size());
+        }
+        if (!routes.isEmpty()) {
+            run("Router.routeDirections", workload, i ->
+                    Router.routeDirections(g, routes.get(i % routes.size())));
+            run("MapServer.writeRoute", workload, i -> {
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                MapServer.writeRoute(g, routes.get(i % routes.size()), os);
+                return os.size();
+            });
+        }
+        if (!queries.isEmpty()) {
+            run("Router.isochrone", workload, i -> {
+                double[] q = queries.get(i % queries.size());
+                return Router.isochrone(g, g.closest(q[0], q[1]), ISOCHRONE_MILES);
+            });
+        }
+    }
+
+    /**
+     * Measures route search throughput as the server runs searches, through a WorkerPool
+     * of 1, 2, 4, ... threads up to the number of cores, each with twice as many client
+     * threads as workers. Records the speedup over one thread and the searches shed
+     * because the pool was full; searches share no mutable state, so the speedup should
+     * stay close to the number of threads.
+     */
+    private void runConcurrent(GraphDB g, String workload, List<double[]> queries)
+            throws Exception {
+        String benchmark = "Router.shortestPath.concurrent";
+        if (!selected(benchmark) || queries.isEmpty()) {
+            return;
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> poolSizes = new ArrayList<>();
+        for (int threads = 1; threads < cores; threads *= 2) {
+            poolSizes.add(threads);
+        }
+        poolSizes.add(cores);
+        double single = 0;
+        for (int threads : poolSizes) {
+            WorkerPool pool = new WorkerPool("benchmark-" + threads, threads, 2 * threads);
+            AtomicLong shed = new AtomicLong();
+            Result result = runThreads(benchmark, workload + ",threads=" + threads,
+                    2 * threads, i -> {
+                        double[] q = queries.get(i % queries.size());
+                        try {
+                            return pool.run(() ->
+                                    Router.shortestPath(g, q[0], q[1], q[2], q[3]));
+                        } catch (RejectedExecutionException e) {
+                            shed.incrementAndGet();
+                            return e;
+                        }
+                    });
+            pool.shutdown();
+            if (threads == 1) {
+                single = result.opsPerSecond;
+            }
+            result.extra.put("threads", threads);
+            result.extra.put("speedup", result.opsPerSecond / single);
+            result.extra.put("shed", shed.get());
+        }
+    }
+
+    /**
+     * Measures traffic updates and time-optimal route searches while they stream in. Each
+     * update slows down TRAFFIC_RULES random segments, closing one in ten, on top of the
+     * previous updates, as GraphDB.withTraffic. Router.shortestPath.traffic runs searches
+     * from two client threads while another thread installs an update every
+     * TRAFFIC_PERIOD_MILLIS, for comparison with Router.shortestPath.time.
+     */
+    private void runTraffic(GraphDB g, String workload, List<double[]> queries, Random r)
+            throws Exception {
+        if (queries.isEmpty()) {
+            return;
+        }
+        List<List<Traffic.Rule>> updates = new ArrayList<>();
+        for (int k = 0; k < NUM_RANDOM_QUERIES; k++) {
+            List<Traffic.Rule> rules = new ArrayList<>();
+            while (rules.size() < TRAFFIC_RULES) {
+                int v = r.nextInt(g.numVertices());
+                if (g.edgeStart(v) == g.edgeEnd(v)) {
+                    continue;
+                }
+                long w = g.vertexID(g.edgeTarget(g.edgeStart(v)));
+                rules.add(new Traffic.Rule(null, g.vertexID(v), w, 1 + 2 * r.nextDouble(),
+                        rules.size() % 10 == 0));
+            }
+            updates.add(rules);
+        }
+        Traffic[] traffic = {Traffic.NONE};
+        run("GraphDB.withTraffic", workload, i -> {
+            traffic[0] = traffic[0].with(updates.get(i % updates.size()));
+            return g.withTraffic(traffic[0]);
+        });
+
+        String benchmark = "Router.shortestPath.traffic";
+        if (!selected(benchmark)) {
+            return;
+        }
+        AtomicReference<GraphDB> current = new AtomicReference<>(g);
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong installed = new AtomicLong();
+        Thread updater = new Thread(() -> {
+            Traffic t = Traffic.NONE;
+            for (int i = 0; !done.get(); i++) {
+                t = t.with(updates.get(i % updates.size()));
+                current.set(g.withTraffic(t));
+                installed.incrementAndGet();
+                try {
+                    Thread.sleep(TRAFFIC_PERIOD_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        updater.start();
+        Result result;
+        try {
+            result = runThreads(benchmark, workload, 2, i -> {
+                double[] q = queries.get(i % queries.size());
+                return Router.shortestPath(current.get(), q[0], q[1], q[2], q[3],
+                        Profile.TIME, null);
+            });
+        } finally {
+            done.set(true);
+            updater.interrupt();
+            updater.join();
+        }
+        result.extra.put("updates", installed.get());
+        result.extra.put("rulesPerUpdate", TRAFFIC_RULES);
+    }
+
+    /**
+     * Measures queries on the graph split into cells of CELL_DEGREES, with all cells kept
+     * loaded once used and with only LOADED_CELLS, for comparison with the whole graph.
+     * Records the cells loaded from disk per query.
+     */
+    private void runSharded(GraphDB g, String workload, List<double[]> queries)
+            throws Exception {
+        if (!selected("ShardedGraph") || queries.isEmpty()) {
+            return;
+        }
+        File dir = Files.createTempDirectory("bench-cells").toFile();
+        ShardedGraph.write(g, dir.getPath(), CELL_DEGREES);
+        int numCells = new ShardedGraph(dir.getPath(), 1).numCells();
+        for (int maxCells : new int[]{numCells, LOADED_CELLS}) {
+            ShardedGraph sharded = new ShardedGraph(dir.getPath(), maxCells);
+            String cells = workload + ",cells=" + maxCells + "/" + numCells;
+            Result route = run("ShardedGraph.shortestPath", cells, i -> {
+                double[] q = queries.get(i % queries.size());
+                return Router.shortestPath(sharded, q[0], q[1], q[2], q[3], Profile.DISTANCE,
+                        null);
+            });
+            if (route != null) {
+                route.extra.put("cellLoadsPerOp", (double) sharded.numLoads()
+                        / route.operations);
+            }
+            run("ShardedGraph.closest", cells, i -> {
+                double[] q = queries.get(i % queries.size());
+                return sharded.closest(q[0], q[1]);
+            });
+        }
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Measures partitioning the graph into an overlay with cells of OVERLAY_CELLS, its
+     * customization for time-optimal routes, and time-optimal route searches on it, for
+     * comparison with Router.shortestPath.time. Records the boundary arcs of the overlay.
+     */
+    private void runOverlay(GraphDB g, String workload, List<double[]> queries)
+            throws Exception {
+        if (!selected("Overlay") || queries.isEmpty()) {
+            return;
+        }
+        Overlay[] overlay = new Overlay[1];
+        Result partition = run("Overlay.partition", workload, i -> {
+            overlay[0] = new Overlay(g, OVERLAY_CELLS);
+            return overlay[0];
+        });
+        if (overlay[0] == null) {
+            overlay[0] = new Overlay(g, OVERLAY_CELLS);
+        }
+        if (partition != null) {
+            partition.extra.put("levels", overlay[0].numLevels());
+            partition.extra.put("boundaryArcs", overlay[0].numBoundaryArcs());
+        }
+        Overlay.Metric[] metric = new Overlay.Metric[1];
+        ExecutorService cells = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        try {
+            run("Overlay.customize", workload, i -> {
+                metric[0] = overlay[0].customize(g, Profile.TIME, cells);
+                return metric[0];
+            });
+        } finally {
+            cells.shutdown();
+        }
+        if (metric[0] == null) {
+            metric[0] = overlay[0].customize(g, Profile.TIME);
+        }
+        run("Overlay.shortestPath", workload, i -> {
+            double[] q = queries.get(i % queries.size());
+            return metric[0].shortestPath(g.closest(q[0], q[1], Profile.TIME),
+                    g.closest(q[2], q[3], Profile.TIME), null);
+        });
+    }
+
+    /** Loads the map without directions if the undirected benchmark is selected. */
+    private GraphDB loadUndirected(String path) {
+        return selected("Router.shortestPath.undirected") ? new GraphDB(path, false) : null;
+    }
+
+    /**
+     * Measures loading the given map, recording the vertex count and the heap retained by
+     * one loaded graph. Returns a loaded graph either way.
+     */
+    private GraphDB measureConstruction(String path, String workload) throws Exception {
+        Runtime rt = Runtime.getRuntime();
+        long before = usedHeap(rt);
+        GraphDB[] keep = new GraphDB[1];
+        Result result = run("GraphDB.construct", workload, i -> {
+            keep[0] = null;
+            keep[0] = new GraphDB(path);
+            return keep[0];
+        });
+        if (result == null) {
+            return new GraphDB(path);
+        }
+        result.extra.put("vertices", TestGraphBuilding.countIterableItems(keep[0].vertices()));
+        result.extra.put("retainedHeapBytes", usedHeap(rt) - before);
+        return keep[0];
+    }
+
+    /**
+     * Measures applying a small OSM change file to the graph, for comparison with loading
+     * the whole map: the change moves NUM_CHANGED vertices and adds as many new roads, each
+     * from a vertex to a new named node. GraphDB.applyChange builds the changed graph in
+     * full, GraphDB.withChange layers the change over the graph, and GraphDB.compact packs
+     * such a layered graph.
+     */
+    private void measureChange(GraphDB g, String workload) throws Exception {
+        if (!selected("GraphDB.applyChange") && !selected("GraphDB.withChange")
+                && !selected("GraphDB.compact")) {
+            return;
+        }
+        Random r = new Random(SEED);
+        long newID = g.vertexID(g.numVertices() - 1) + 1;
+        StringBuilder create = new StringBuilder();
+        StringBuilder modify = new StringBuilder();
+        for (int k = 0; k < NUM_CHANGED; k++) {
+            int v = r.nextInt(g.numVertices());
+            modify.append(String.format(Locale.ROOT,
+                    "<node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"/>%n",
+                    g.vertexID(v), g.vertexLat(v) + 0.00001, g.vertexLon(v)));
+            int w = r.nextInt(g.numVertices());
+            long node = newID++;
+            create.append(String.format(Locale.ROOT,
+                    "<node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\">"
+                    + "<tag k=\"name\" v=\"Change %d\"/></node>%n",
+                    node, g.vertexLat(w) + 0.0005, g.vertexLon(w), k));
+            create.append(String.format(Locale.ROOT,
+                    "<way id=\"%d\"><nd ref=\"%d\"/><nd ref=\"%d\"/>"
+                    + "<tag k=\"highway\" v=\"residential\"/></way>%n",
+                    newID++, g.vertexID(w), node));
+        }
+        File change = File.createTempFile("bench-", ".osc");
+        change.deleteOnExit();
+        Files.write(change.toPath(), ("<osmChange version=\"0.6\">\n<create>\n" + create
+                + "</create>\n<modify>\n" + modify + "</modify>\n</osmChange>\n")
+                .getBytes(StandardCharsets.UTF_8));
+        Result result = run("GraphDB.applyChange", workload,
+                i -> new GraphDB(g, change.getPath()));
+        if (result != null) {
+            result.extra.put("changedElements", 3 * NUM_CHANGED);
+        }
+        result = run("GraphDB.withChange", workload, i -> g.withChange(change.getPath()));
+        if (result != null) {
+            result.extra.put("changedElements", 3 * NUM_CHANGED);
+        }
+        GraphDB changed = g.withChange(change.getPath());
+        run("GraphDB.compact", workload, i -> changed.compact());
+        change.delete();
+    }
+
+    /**
+     * Runs one benchmark: operations are repeated for the warmup period, then timed one by
+     * one for the measurement period. Returns null if the benchmark is not selected.
+     */
+    Result run(String benchmark, String workload, Op op) throws Exception {
+        if (!selected(benchmark)) {
+            return null;
+        }
+        int i = 0;
+        long end = System.nanoTime() + warmupMillis * 1000000;
+        while (System.nanoTime() < end) {
+            consume(op.run(i++));
+        }
+
+        long[] times = new long[1024];
+        int n = 0;
+        long start = System.nanoTime();
+        end = start + measureMillis * 1000000;
+        long now = start;
+        while (now < end || n == 0) {
+            long t = System.nanoTime();
+            consume(op.run(i++));
+            now = System.nanoTime();
+            if (n == times.length) {
+                times = Arrays.copyOf(times, 2 * n);
+            }
+            times[n++] = now - t;
+        }
+
+        return record(benchmark, workload, times, n, now - start);
+    }
+
+    /**
+     * Runs one benchmark from several client threads at once, like run(). Throughput is
+     * over all clients together.
+     */
+    Result runThreads(String benchmark, String workload, int clients, Op op)
+            throws Exception {
+        AtomicInteger next = new AtomicInteger();
+        long[][] times = new long[clients][];
+        int[] counts = new int[clients];
+        Exception[] failure = new Exception[1];
+        long warmupEnd = System.nanoTime() + warmupMillis * 1000000;
+        long measureStart = warmupEnd;
+        long measureEnd = measureStart + measureMillis * 1000000;
+        Thread[] threads = new Thread[clients];
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            threads[c] = new Thread(() -> {
+                long[] own = new long[1024];
+                int n = 0;
+                try {
+                    while (System.nanoTime() < warmupEnd) {
+                        consume(op.run(next.getAndIncrement()));
+                    }
+                    long now = System.nanoTime();
+                    while (now < measureEnd) {
+                        long t = now;
+                        consume(op.run(next.getAndIncrement()));
+                        now = System.nanoTime();
+                        if (n == own.length) {
+                            own = Arrays.copyOf(own, 2 * n);
+                        }
+                        own[n++] = now - t;
+                    }
+                } catch (Exception e) {
+                    synchronized (failure) {
+                        failure[0] = e;
+                    }
+                }
+                times[client] = own;
+                counts[client] = n;
+            });
+            threads[c].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        int n = 0;
+        for (int count : counts) {
+            n += count;
+        }
+        long[] all = new long[Math.max(n, 1)];
+        n = 0;
+        for (int c = 0; c < clients; c++) {
+            System.arraycopy(times[c], 0, all, n, counts[c]);
+            n += counts[c];
+        }
+        return record(benchmark, workload, all, Math.max(n, 1), measureEnd - measureStart);
+    }
+
+    /** Computes, prints and keeps the statistics of n operation times. */
+    private Result record(String benchmark, String workload, long[] times, int n,
+                          long elapsedNanos) {
+        Arrays.sort(times, 0, n);
+        Result result = new Result();
+        result.benchmark = benchmark;
+        result.workload = workload;
+        result.operations = n;
+        long total = 0;
+        for (int k = 0; k < n; k++) {
+            total += times[k];
+        }
+        result.meanMicros = total / 1000.0 / n;
+        result.opsPerSecond = n / (elapsedNanos / 1e9);
+        for (double p : new double[]{50, 90, 99, 99.9, 100}) {
+            int k = Math.min(n - 1, (int) Math.ceil(p / 100 * n) - 1);
+            result.percentilesMicros.put("p" + p, times[Math.max(k, 0)] / 1000.0);
+        }
+        results.add(result);
+        System.out.println(String.format("%-36s %-20s %8d ops %12.2f us/op %12.2f us p99",
+                benchmark, shorten(workload), n, result.meanMicros,
+                result.percentilesMicros.get("p99.0")));
+        return result;
+    }
+
+    boolean selected(String benchmark) {
+        return include.matcher(benchmark).find();
+    }
+
+    List<Result> results() {
+        return results;
+    }
+
+    void write(String outPath) throws IOException {
+        if (Paths.get(outPath).getParent() != null) {
+            Files.createDirectories(Paths.get(outPath).getParent());
+        }
+        try (Writer w = Files.newBufferedWriter(Paths.get(outPath), StandardCharsets.UTF_8)) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(results, w);
+        }
+        System.out.println("Wrote " + results.size() + " results to " + outPath);
+    }
+
+    private static void consume(Object o) {
+        sink += System.identityHashCode(o);
+    }
+
+    private static long usedHeap(Runtime rt) throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static String shorten(String workload) {
+        return workload.length() <= 20 ? workload
+                : "..." + workload.substring(workload.length() - 17);
+    }
+
+    /** Returns {minLon, minLat, maxLon, maxLat} over all vertices of the graph. */
+    static double[] boundingBox(GraphDB g) {
+        double[] box = {Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (long v : g.vertices()) {
+            box[0] = Math.min(box[0], g.lon(v));
+            box[1] = Math.min(box[1], g.lat(v));
+            box[2] = Math.max(box[2], g.lon(v));
+            box[3] = Math.max(box[3], g.lat(v));
+        }
+        return box;
+    }
+
+    static double randomLon(Random r, double[] box) {
+        return box[0] + r.nextDouble() * (box[2] - box[0]);
+    }
+
+    static double randomLat(Random r, double[] box) {
+        return box[1] + r.nextDouble() * (box[3] - box[1]);
+    }
+
+    /** A random viewport inside the root tile, at a random zoom level. */
+    private static Map<String, Double> randomRasterBox(Random r) {
+        double width = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / (1 << r.nextInt(8));
+        double height = width * (0.5 + r.nextDouble());
+        double ullon = MapServer.ROOT_ULLON + r.nextDouble() * (MapServer.ROOT_LRLON
+                - MapServer.ROOT_ULLON - width);
+        double ullat = MapServer.ROOT_ULLAT - r.nextDouble() * (MapServer.ROOT_ULLAT
+                - MapServer.ROOT_LRLAT - height);
+        Map<String, Double> params = new HashMap<>();
+        params.put("ullon", ullon);
+        params.put("ullat", ullat);
+        params.put("lrlon", ullon + width);
+        params.put("lrlat", ullat - height);
+        params.put("w", 400.0 + r.nextInt(1200));
+        params.put("h", 300.0 + r.nextInt(900));
+        return params;
+    }
+
+    private static List<double[]> pathParams() throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(PATH_PARAMS_FILE),
+                Charset.defaultCharset());
+        List<double[]> queries = new ArrayList<>();
+        for (int i = 2; i + 3 < lines.size(); i += 4) {
+            queries.add(new double[]{Double.parseDouble(lines.get(i)),
+                Double.parseDouble(lines.get(i + 1)), Double.parseDouble(lines.get(i + 2)),
+                Double.parseDouble(lines.get(i + 3))});
+        }
+        return queries;
+    }
+
+    private static List<Map<String, Double>> rasterParams() throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(RASTER_PARAMS_FILE),
+                Charset.defaultCharset());
+        List<Map<String, Double>> boxes = new ArrayList<>();
+        for (int i = 2; i + 5 < lines.size(); i += 6) {
+            Map<String, Double> params = new HashMap<>();
+            params.put("ullon", Double.parseDouble(lines.get(i)));
+            params.put("ullat", Double.parseDouble(lines.get(i + 1)));
+            params.put("lrlon", Double.parseDouble(lines.get(i + 2)));
+            params.put("lrlat", Double.parseDouble(lines.get(i + 3)));
+            params.put("w", Double.parseDouble(lines.get(i + 4)));
+            params.put("h", Double.parseDouble(lines.get(i + 5)));
+            boxes.add(params);
+        }
+        return boxes;
+    }
+}
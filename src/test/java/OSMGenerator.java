@@ -0,0 +1,248 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates synthetic OSM XML files of configurable size for scale testing, and optionally
+ * a GraphDB snapshot of the result. The road network is a jittered grid of streets
+ * anchored at the upper left corner of the Berkeley map:
+ * <ul>
+ *     <li>Every tenth street is a primary road and every fifth a secondary road, some with
+ *     maxspeed tags; the rest are residential. A few blocks are footways or service roads,
+ *     which cars may not use, and some blocks are missing entirely.</li>
+ *     <li>Streets are split into ways of a few blocks each, and most ways are named after
+ *     their street. Some residential ways are one-way, and a few intersections forbid
+ *     turning from the row onto the column.</li>
+ *     <li>Like real extracts, most nodes are not on any road: building outlines, fences
+ *     and so on. A fraction of nodes are named points of interest, whose names are drawn
+ *     from a Zipf distribution so that a few chain names are very common.</li>
+ * </ul>
+ * Example: <code>java OSMGenerator vertices=1000000 out=big.osm.xml snapshot=big.snapshot</code>
+ */
+public class OSMGenerator {
+    /** Spacing of the street grid in degrees, about a block. */
+    private static final double BLOCK = 0.001;
+    /** Number of blocks in each way. */
+    private static final int BLOCKS_PER_WAY = 8;
+    /** Fraction of intersections with a turn restriction. */
+    private static final double RESTRICTION_FRACTION = 0.02;
+    /** Number of distinct point-of-interest names. */
+    private static final int NUM_POI_NAMES = 5000;
+    private static final String[] CHAINS = {"Starbucks", "Peet's Coffee", "Safeway",
+        "Walgreens", "Chase Bank", "McDonald's", "Subway", "Chevron", "CVS Pharmacy",
+        "Trader Joe's"};
+    private static final String[] STREET_SUFFIXES = {"Street", "Avenue", "Way", "Road",
+        "Boulevard", "Lane"};
+
+    private final Random random;
+    private final int side;
+    private final double nodesPerVertex;
+    private final double poiFraction;
+    private final double[] zipfCdf;
+    private long nextID = 1;
+    /** The way each grid node was last written on, by rows (0) or columns (1), or 0. */
+    private long[][][] wayAt;
+
+    /**
+     * @param vertices Approximate number of road intersections to generate.
+     * @param nodesPerVertex Total nodes per road node; Berkeley has about 16.
+     * @param poiFraction Fraction of all nodes that are named points of interest.
+     * @param seed Random seed; the same arguments always produce the same file.
+     */
+    OSMGenerator(int vertices, double nodesPerVertex, double poiFraction, long seed) {
+        this.random = new Random(seed);
+        this.side = Math.max(2, (int) Math.ceil(Math.sqrt(vertices)));
+        this.nodesPerVertex = Math.max(1, nodesPerVertex);
+        this.poiFraction = poiFraction;
+        this.zipfCdf = new double[NUM_POI_NAMES];
+        double sum = 0;
+        for (int i = 0; i < NUM_POI_NAMES; i++) {
+            sum += 1.0 / (i + 1);
+            zipfCdf[i] = sum;
+        }
+        for (int i = 0; i < NUM_POI_NAMES; i++) {
+            zipfCdf[i] /= sum;
+        }
+    }
+
+    /**
+     * Arguments are key=value pairs: vertices (default 100000), nodesPerVertex (default 8),
+     * poiFraction (default 0.01), seed (default 61), out (the OSM file, required) and
+     * snapshot (optional, a snapshot file to write from the generated graph).
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> conf = new HashMap<>();
+        conf.put("vertices", "100000");
+        conf.put("nodesPerVertex", "8");
+        conf.put("poiFraction", "0.01");
+        conf.put("seed", "61");
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                conf.put(arg.substring(0, eq), arg.substring(eq + 1));
+            }
+        }
+        if (!conf.containsKey("out")) {
+            System.out.println("Usage: java OSMGenerator out=file.osm.xml [vertices=n] "
+                    + "[nodesPerVertex=x] [poiFraction=x] [seed=n] [snapshot=file.snapshot]");
+            return;
+        }
+        OSMGenerator gen = new OSMGenerator(Integer.parseInt(conf.get("vertices")),
+                Double.parseDouble(conf.get("nodesPerVertex")),
+                Double.parseDouble(conf.get("poiFraction")), Long.parseLong(conf.get("seed")));
+        gen.write(conf.get("out"));
+        if (conf.containsKey("snapshot")) {
+            new GraphDB(conf.get("out")).writeSnapshot(conf.get("snapshot"));
+        }
+    }
+
+    /** Writes the generated map to the given OSM XML file. */
+    void write(String path) throws IOException {
+        try (Writer w = new BufferedWriter(Files.newBufferedWriter(Paths.get(path),
+                StandardCharsets.UTF_8), 1 << 16)) {
+            w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\">\n");
+            long[][] grid = writeNodes(w);
+            wayAt = new long[2][side][side];
+            writeWays(w, grid, true);
+            writeWays(w, grid, false);
+            writeRestrictions(w, grid);
+            w.write("</osm>\n");
+        }
+    }
+
+    /** Writes the grid nodes interleaved with off-road nodes; returns the grid node ids. */
+    private long[][] writeNodes(Writer w) throws IOException {
+        long[][] grid = new long[side][side];
+        double extraPerVertex = nodesPerVertex - 1;
+        double owed = 0;
+        for (int r = 0; r < side; r++) {
+            for (int c = 0; c < side; c++) {
+                double lat = MapServer.ROOT_ULLAT - (r + jitter()) * BLOCK;
+                double lon = MapServer.ROOT_ULLON + (c + jitter()) * BLOCK;
+                grid[r][c] = nextID;
+                writeNode(w, lon, lat, random.nextDouble() < poiFraction);
+
+                /* Off-road nodes scattered around this block. */
+                owed += extraPerVertex;
+                while (owed >= 1) {
+                    owed -= 1;
+                    writeNode(w, lon + random.nextDouble() * BLOCK,
+                            lat - random.nextDouble() * BLOCK,
+                            random.nextDouble() < poiFraction);
+                }
+            }
+        }
+        return grid;
+    }
+
+    private void writeNode(Writer w, double lon, double lat, boolean named) throws IOException {
+        w.write(String.format(Locale.ROOT, "  <node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"",
+                nextID++, lat, lon));
+        if (named) {
+            w.write(">\n    <tag k=\"name\" v=\"" + escape(poiName()) + "\"/>\n  </node>\n");
+        } else {
+            w.write("/>\n");
+        }
+    }
+
+    /** Writes one street per row (or column) of the grid, split into short ways. */
+    private void writeWays(Writer w, long[][] grid, boolean rows) throws IOException {
+        for (int street = 0; street < side; street++) {
+            String highway = street % 10 == 0 ? "primary"
+                    : street % 5 == 0 ? "secondary" : "residential";
+            String name = (rows ? "Row " : "Column ") + street + " "
+                    + STREET_SUFFIXES[street % STREET_SUFFIXES.length];
+            for (int start = 0; start < side - 1; start += BLOCKS_PER_WAY) {
+                int end = Math.min(side - 1, start + BLOCKS_PER_WAY);
+                double roll = random.nextDouble();
+                if (roll < 0.03) {
+                    /* A missing stretch of road. */
+                    continue;
+                }
+                String type = roll < 0.06 ? "footway" : roll < 0.08 ? "service" : highway;
+                long id = nextID++;
+                w.write("  <way id=\"" + id + "\">\n");
+                for (int i = start; i <= end; i++) {
+                    long ref = rows ? grid[street][i] : grid[i][street];
+                    w.write("    <nd ref=\"" + ref + "\"/>\n");
+                    if (rows) {
+                        wayAt[0][street][i] = id;
+                    } else {
+                        wayAt[1][i][street] = id;
+                    }
+                }
+                w.write("    <tag k=\"highway\" v=\"" + type + "\"/>\n");
+                if (random.nextDouble() < 0.9) {
+                    w.write("    <tag k=\"name\" v=\"" + name + "\"/>\n");
+                }
+                if (!type.equals("residential") && random.nextDouble() < 0.5) {
+                    w.write("    <tag k=\"maxspeed\" v=\""
+                            + (type.equals("primary") ? "35 mph" : "25 mph") + "\"/>\n");
+                }
+                if (type.equals("residential") && random.nextDouble() < 0.1) {
+                    w.write("    <tag k=\"oneway\" v=\"yes\"/>\n");
+                }
+                w.write("  </way>\n");
+            }
+        }
+    }
+
+    /** Writes turn restrictions from rows onto columns at a few intersections. */
+    private void writeRestrictions(Writer w, long[][] grid) throws IOException {
+        for (int r = 0; r < side; r++) {
+            for (int c = 0; c < side; c++) {
+                if (random.nextDouble() >= RESTRICTION_FRACTION || wayAt[0][r][c] == 0
+                        || wayAt[1][r][c] == 0) {
+                    continue;
+                }
+                w.write("  <relation id=\"" + nextID++ + "\">\n");
+                w.write("    <member type=\"way\" ref=\"" + wayAt[0][r][c]
+                        + "\" role=\"from\"/>\n");
+                w.write("    <member type=\"node\" ref=\"" + grid[r][c]
+                        + "\" role=\"via\"/>\n");
+                w.write("    <member type=\"way\" ref=\"" + wayAt[1][r][c]
+                        + "\" role=\"to\"/>\n");
+                w.write("    <tag k=\"type\" v=\"restriction\"/>\n");
+                w.write("    <tag k=\"restriction\" v=\"no_left_turn\"/>\n");
+                w.write("  </relation>\n");
+            }
+        }
+    }
+
+    /** Offset in blocks of a grid node from its ideal position. */
+    private double jitter() {
+        return (random.nextDouble() - 0.5) * 0.3;
+    }
+
+    /** Draws a point-of-interest name from the Zipf distribution. */
+    private String poiName() {
+        int i = Arrays.binarySearch(zipfCdf, random.nextDouble());
+        i = i < 0 ? -i - 1 : i;
+        i = Math.min(i, NUM_POI_NAMES - 1);
+        return i < CHAINS.length ? CHAINS[i] : "Place " + toWord(i);
+    }
+
+    /** Spells a number in letters, since cleaned names drop digits. */
+    private static String toWord(int i) {
+        StringBuilder sb = new StringBuilder();
+        do {
+            sb.append((char) ('a' + i % 26));
+            i /= 26;
+        } while (i > 0);
+        sb.setCharAt(0, Character.toUpperCase(sb.charAt(0)));
+        return sb.toString();
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("\"", "&quot;").replace("'", "&apos;")
+                .replace("<", "&lt;");
+    }
+}
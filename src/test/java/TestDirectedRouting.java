@@ -0,0 +1,160 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks one-way streets and turn restrictions. The hand-written map is a ladder of two
+ * streets, 1 - 2 - 3 on top and 4 - 5 - 6 below, joined by 1 - 4, 2 - 5 and the one-way
+ * 3 - 6. At 2, cars coming up from 5 may not turn left towards 1, and cars coming from 1
+ * must go straight on to 3.
+ */
+public class TestDirectedRouting {
+    private static final String OSM =
+            "<node id=\"1\" lat=\"37.8700\" lon=\"-122.260\"/>\n"
+            + "<node id=\"2\" lat=\"37.8700\" lon=\"-122.259\"/>\n"
+            + "<node id=\"3\" lat=\"37.8700\" lon=\"-122.258\"/>\n"
+            + "<node id=\"4\" lat=\"37.8690\" lon=\"-122.260\"/>\n"
+            + "<node id=\"5\" lat=\"37.8692\" lon=\"-122.259\"/>\n"
+            + "<node id=\"6\" lat=\"37.8690\" lon=\"-122.258\"/>\n"
+            + "<way id=\"10\">\n"
+            + "  <nd ref=\"1\"/><nd ref=\"2\"/>\n"
+            + "  <tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Top West\"/>\n"
+            + "</way>\n"
+            + "<way id=\"15\">\n"
+            + "  <nd ref=\"2\"/><nd ref=\"3\"/>\n"
+            + "  <tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Top East\"/>\n"
+            + "</way>\n"
+            + "<way id=\"11\">\n"
+            + "  <nd ref=\"4\"/><nd ref=\"5\"/><nd ref=\"6\"/>\n"
+            + "  <tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Bottom\"/>\n"
+            + "</way>\n"
+            + "<way id=\"12\">\n"
+            + "  <nd ref=\"1\"/><nd ref=\"4\"/>\n"
+            + "  <tag k=\"highway\" v=\"residential\"/>\n"
+            + "</way>\n"
+            + "<way id=\"13\">\n"
+            + "  <nd ref=\"2\"/><nd ref=\"5\"/>\n"
+            + "  <tag k=\"highway\" v=\"residential\"/>\n"
+            + "</way>\n"
+            + "<way id=\"14\">\n"
+            + "  <nd ref=\"3\"/><nd ref=\"6\"/>\n"
+            + "  <tag k=\"highway\" v=\"residential\"/><tag k=\"oneway\" v=\"yes\"/>\n"
+            + "</way>\n"
+            + "<relation id=\"20\">\n"
+            + "  <member type=\"way\" ref=\"13\" role=\"from\"/>\n"
+            + "  <member type=\"node\" ref=\"2\" role=\"via\"/>\n"
+            + "  <member type=\"way\" ref=\"10\" role=\"to\"/>\n"
+            + "  <tag k=\"type\" v=\"restriction\"/><tag k=\"restriction\" v=\"no_left_turn\"/>\n"
+            + "</relation>\n"
+            + "<relation id=\"21\">\n"
+            + "  <member type=\"way\" ref=\"10\" role=\"from\"/>\n"
+            + "  <member type=\"node\" ref=\"2\" role=\"via\"/>\n"
+            + "  <member type=\"way\" ref=\"15\" role=\"to\"/>\n"
+            + "  <tag k=\"type\" v=\"restriction\"/>\n"
+            + "  <tag k=\"restriction\" v=\"only_straight_on\"/>\n"
+            + "</relation>\n";
+
+    private static GraphDB graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        graph = new GraphDB(TestGraphStorage.writeOsm(OSM));
+    }
+
+    @Test
+    public void testOneway() {
+        assertEquals(Arrays.asList(3L, 6L), Router.shortestPath(graph, 3, 6));
+        assertEquals(Arrays.asList(6L, 5L, 2L, 3L), Router.shortestPath(graph, 6, 3));
+        assertEquals(Arrays.asList(6L, 3L),
+                Router.shortestPath(graph, 6, 3, Profile.FOOT, null));
+        assertEquals(Arrays.asList(2L, 6L), list(graph.adjacent(3)));
+        assertEquals(Arrays.asList(3L, 5L), list(graph.adjacent(6)));
+
+        /* From 6, only the road towards 5 can be driven. */
+        double half = graph.distance(3, 6) / 2;
+        Router.Isochrone fromSix = Router.isochrone(graph, 6, half);
+        assertEquals(1, fromSix.vertices.length);
+        assertEquals(1, fromSix.numSegments());
+        assertTrue(fromSix.segments[2] < -122.258 && fromSix.segments[2] > -122.259);
+        assertEquals(2, Router.isochrone(graph, 3, half).numSegments());
+    }
+
+    @Test
+    public void testTurnRestrictions() {
+        assertEquals(Arrays.asList(5L, 4L, 1L), Router.shortestPath(graph, 5, 1));
+        assertEquals(Arrays.asList(2L, 1L), Router.shortestPath(graph, 2, 1));
+        assertEquals(Arrays.asList(1L, 4L, 5L), Router.shortestPath(graph, 1, 5));
+        assertEquals(Arrays.asList(1L, 2L, 3L), Router.shortestPath(graph, 1, 3));
+        assertEquals(Arrays.asList(5L, 2L, 1L),
+                Router.shortestPath(graph, 5, 1, Profile.FOOT, null));
+        double detour = graph.distance(5, 4) + graph.distance(4, 1);
+        assertEquals(detour, Router.distances(graph, 5, new long[]{1, 5})[0], 1e-12);
+        assertEquals(0, Router.distances(graph, 5, new long[]{1, 5})[1], 0);
+    }
+
+    @Test
+    public void testUndirectedGraph() throws Exception {
+        GraphDB undirected = new GraphDB(TestGraphStorage.writeOsm(OSM), false);
+        assertEquals(Arrays.asList(6L, 3L), Router.shortestPath(undirected, 6, 3));
+        assertEquals(Arrays.asList(5L, 2L, 1L), Router.shortestPath(undirected, 5, 1));
+        assertEquals(undirected.numVertices(), undirected.numStates());
+    }
+
+    @Test
+    public void testSnapshotKeepsDirections() throws Exception {
+        File file = File.createTempFile("directed", GraphDB.SNAPSHOT_SUFFIX);
+        file.deleteOnExit();
+        graph.writeSnapshot(file.getPath());
+        GraphDB loaded = new GraphDB(file.getPath());
+        assertEquals(Arrays.asList(6L, 5L, 2L, 3L), Router.shortestPath(loaded, 6, 3));
+        assertEquals(Arrays.asList(5L, 4L, 1L), Router.shortestPath(loaded, 5, 1));
+        assertEquals(graph.numStates(), loaded.numStates());
+    }
+
+    @Test
+    public void testRoutesMatchDistancesOnGrid() throws Exception {
+        File file = File.createTempFile("directed", ".osm.xml");
+        file.deleteOnExit();
+        new OSMGenerator(2500, 2, 0, 37).write(file.getPath());
+        GraphDB grid = new GraphDB(file.getPath());
+        assertTrue(grid.numStates() > grid.numVertices());
+        double[] weights = grid.edgeWeights(Profile.DISTANCE);
+        Random r = new Random(37);
+        for (int k = 0; k < 50; k++) {
+            long from = grid.vertexID(r.nextInt(grid.numVertices()));
+            long to = grid.vertexID(r.nextInt(grid.numVertices()));
+            double expected = Router.distances(grid, from, new long[]{to})[0];
+            List<Long> route = Router.shortestPath(grid, from, to);
+            if (Double.isInfinite(expected)) {
+                assertEquals(1, route.size());
+                continue;
+            }
+            double cost = 0;
+            for (int i = 1; i < route.size(); i++) {
+                int v = grid.vertexIndex(route.get(i - 1));
+                int w = grid.vertexIndex(route.get(i));
+                for (int e = grid.edgeStart(v); e < grid.edgeEnd(v); e++) {
+                    if (grid.edgeTarget(e) == w) {
+                        assertTrue((grid.edgeAccess(e) & Profile.Mode.CAR.bit()) != 0);
+                        cost += weights[e];
+                    }
+                }
+            }
+            assertEquals(expected, cost, 1e-9);
+        }
+    }
+
+    private static List<Long> list(Iterable<Long> ids) {
+        List<Long> res = new ArrayList<>();
+        ids.forEach(res::add);
+        return res;
+    }
+}
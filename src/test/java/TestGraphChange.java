@@ -0,0 +1,527 @@
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that applying an OSM change file to a graph gives the same graph as loading the
+ * changed map. The hand-written map has Long Street 1 - 2, with a footpath along the same
+ * segment, Side Street 2 - 3 and a footpath 3 - 4. Node 2 is a named corner store and
+ * node 5, on no road, a named cafe.
+ */
+public class TestGraphChange {
+    private static final String NODES =
+            "<node id=\"1\" lat=\"37.870\" lon=\"-122.270\"/>\n"
+            + "<node id=\"4\" lat=\"37.872\" lon=\"-122.260\"/>\n"
+            + "<node id=\"5\" lat=\"37.869\" lon=\"-122.270\">\n"
+            + "  <tag k=\"name\" v=\"Cafe Strada\"/>\n"
+            + "</node>\n";
+    private static final String OLD_NODES =
+            "<node id=\"2\" lat=\"37.870\" lon=\"-122.260\">\n"
+            + "  <tag k=\"name\" v=\"Corner Store\"/>\n"
+            + "</node>\n"
+            + "<node id=\"3\" lat=\"37.871\" lon=\"-122.260\"/>\n";
+    private static final String NEW_NODES =
+            "<node id=\"2\" lat=\"37.870\" lon=\"-122.260\">\n"
+            + "  <tag k=\"name\" v=\"Corner Market\"/>\n"
+            + "</node>\n"
+            + "<node id=\"3\" lat=\"37.8712\" lon=\"-122.2601\"/>\n";
+    private static final String CREATED_NODES =
+            "<node id=\"6\" lat=\"37.873\" lon=\"-122.261\">\n"
+            + "  <tag k=\"name\" v=\"People's Park\"/>\n"
+            + "</node>\n";
+    private static final String KEPT_WAYS =
+            "<way id=\"13\">\n"
+            + "  <nd ref=\"1\"/><nd ref=\"2\"/>\n"
+            + "  <tag k=\"highway\" v=\"footway\"/>\n"
+            + "</way>\n";
+    private static final String DELETED_WAYS =
+            "<way id=\"10\">\n"
+            + "  <nd ref=\"1\"/><nd ref=\"2\"/>\n"
+            + "  <tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Long Street\"/>\n"
+            + "</way>\n"
+            + "<way id=\"12\">\n"
+            + "  <nd ref=\"3\"/><nd ref=\"4\"/>\n"
+            + "  <tag k=\"highway\" v=\"footway\"/>\n"
+            + "</way>\n";
+    private static final String OLD_WAYS =
+            "<way id=\"11\">\n"
+            + "  <nd ref=\"2\"/><nd ref=\"3\"/>\n"
+            + "  <tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Side Street\"/>\n"
+            + "</way>\n";
+    private static final String NEW_WAYS =
+            "<way id=\"11\">\n"
+            + "  <nd ref=\"2\"/><nd ref=\"3\"/>\n"
+            + "  <tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Side Avenue\"/>\n"
+            + "  <tag k=\"oneway\" v=\"yes\"/>\n"
+            + "</way>\n";
+    private static final String CREATED_WAYS =
+            "<way id=\"20\">\n"
+            + "  <nd ref=\"5\"/><nd ref=\"1\"/>\n"
+            + "  <tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"New Street\"/>\n"
+            + "</way>\n"
+            + "<way id=\"21\">\n"
+            + "  <nd ref=\"3\"/><nd ref=\"4\"/><nd ref=\"6\"/>\n"
+            + "  <tag k=\"highway\" v=\"tertiary\"/><tag k=\"maxspeed\" v=\"30 mph\"/>\n"
+            + "</way>\n";
+    /** Turn restrictions onto Long Street, and onto way 21 which the change creates. */
+    private static final String RESTRICTIONS =
+            "<relation id=\"30\">\n"
+            + "  <member type=\"way\" ref=\"11\" role=\"from\"/>\n"
+            + "  <member type=\"node\" ref=\"2\" role=\"via\"/>\n"
+            + "  <member type=\"way\" ref=\"10\" role=\"to\"/>\n"
+            + "  <tag k=\"type\" v=\"restriction\"/><tag k=\"restriction\" v=\"no_left_turn\"/>\n"
+            + "</relation>\n"
+            + "<relation id=\"31\">\n"
+            + "  <member type=\"way\" ref=\"11\" role=\"from\"/>\n"
+            + "  <member type=\"node\" ref=\"3\" role=\"via\"/>\n"
+            + "  <member type=\"way\" ref=\"21\" role=\"to\"/>\n"
+            + "  <tag k=\"type\" v=\"restriction\"/><tag k=\"restriction\" v=\"no_right_turn\"/>\n"
+            + "</relation>\n";
+    private static final String CHANGE = "<create>\n" + CREATED_NODES + CREATED_WAYS
+            + "</create>\n<modify>\n" + NEW_NODES + NEW_WAYS + "</modify>\n<delete>\n"
+            + "<way id=\"10\"/>\n<way id=\"12\"/>\n</delete>\n";
+
+    /** Writes the given elements of an osmChange document into a temporary file. */
+    private static String writeChange(String sections) throws IOException {
+        File file = File.createTempFile("change", ".osc");
+        file.deleteOnExit();
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osmChange version=\"0.6\">\n"
+                + sections + "</osmChange>\n";
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+        return file.getPath();
+    }
+
+    private static GraphDB base() throws IOException {
+        return new GraphDB(TestGraphStorage.writeOsm(NODES + OLD_NODES + KEPT_WAYS
+                + DELETED_WAYS + OLD_WAYS + RESTRICTIONS));
+    }
+
+    /**
+     * Lists every vertex and half-edge of a graph with what routing and search see of them,
+     * and every named location.
+     */
+    private static List<String> describe(GraphDB g) {
+        List<String> res = new ArrayList<>();
+        for (int i = 0; i < g.numVertices(); i++) {
+            res.add(g.vertexID(i) + " " + g.vertexLon(i) + " " + g.vertexLat(i));
+            for (int e = g.edgeStart(i); e < g.edgeEnd(i); e++) {
+                res.add("  -> " + g.vertexID(g.edgeTarget(e)) + " "
+                        + g.nameOfId(g.edgeNameId(e)) + " access " + g.edgeAccess(e)
+                        + " time " + g.edgeWeights(Profile.TIME)[e]);
+            }
+        }
+        res.add("states " + g.numStates());
+        List<String> names = new ArrayList<>(g.getLocationsByPrefix(""));
+        Collections.sort(names);
+        res.addAll(names);
+        return res;
+    }
+
+    /**
+     * Lists what routing and search see of a graph by vertex id rather than by index, since
+     * graphs with a change layered over them number their vertices differently: every
+     * vertex on a road, its half-edges and the turns forbidden after each, and every named
+     * location.
+     */
+    private static List<String> describeById(GraphDB g) {
+        TreeMap<Long, List<String>> vertices = new TreeMap<>();
+        int[] states = g.edgeTargets(Profile.TIME);
+        for (int i = 0; i < g.numVertices(); i++) {
+            for (int e = g.edgeStart(i); e < g.edgeEnd(i); e++) {
+                int j = g.edgeTarget(e);
+                TreeSet<Long> forbidden = new TreeSet<>();
+                for (int f = g.edgeStart(j); f < g.edgeEnd(j); f++) {
+                    if (g.isTurnForbidden(states[e], f)) {
+                        forbidden.add(g.vertexID(g.edgeTarget(f)));
+                    }
+                }
+                vertices.computeIfAbsent(g.vertexID(i), id -> new ArrayList<>()).add("  -> "
+                        + g.vertexID(j) + " " + g.nameOfId(g.edgeNameId(e)) + " access "
+                        + g.edgeAccess(e) + " time " + g.edgeWeights(Profile.TIME)[e]
+                        + " no turn " + forbidden);
+                vertices.computeIfAbsent(g.vertexID(j), id -> new ArrayList<>());
+            }
+        }
+        List<String> res = new ArrayList<>();
+        for (Map.Entry<Long, List<String>> v : vertices.entrySet()) {
+            res.add(v.getKey() + " " + g.lon(v.getKey()) + " " + g.lat(v.getKey()));
+            Collections.sort(v.getValue());
+            res.addAll(v.getValue());
+        }
+        List<String> names = new ArrayList<>(g.getLocationsByPrefix(""));
+        Collections.sort(names);
+        res.addAll(names);
+        res.add("dropped " + g.droppedSegments());
+        return res;
+    }
+
+    /**
+     * Checks that two graphs give the same answers to point queries around the map. Points
+     * on segments may be computed from either end, so their coordinates may differ in the
+     * last digits.
+     */
+    private static void assertSameQueries(GraphDB expected, GraphDB actual) {
+        Random random = new Random(7);
+        for (int k = 0; k < 50; k++) {
+            double lon = -122.272 + 0.014 * random.nextDouble();
+            double lat = 37.866 + 0.009 * random.nextDouble();
+            for (Profile profile : Profile.values()) {
+                assertEquals(expected.closest(lon, lat, profile),
+                        actual.closest(lon, lat, profile));
+                GraphDB.Snap snap = expected.snap(lon, lat, profile);
+                GraphDB.Snap other = actual.snap(lon, lat, profile);
+                assertEquals(snap == null, other == null);
+                if (snap != null) {
+                    assertEquals(snap.lon, other.lon, 1e-7);
+                    assertEquals(snap.lat, other.lat, 1e-7);
+                }
+            }
+            Map<String, Object> found = expected.reverseGeocode(lon, lat);
+            Map<String, Object> other = actual.reverseGeocode(lon, lat);
+            assertEquals(found.get("node"), other.get("node"));
+            /* Equally close segments at a corner may be on either way. */
+            assertEquals(found.containsKey("way"), other.containsKey("way"));
+            if (found.containsKey("way")) {
+                assertEquals((double) ((Map<?, ?>) found.get("way")).get("distance"),
+                        (double) ((Map<?, ?>) other.get("way")).get("distance"), 1e-9);
+            }
+        }
+    }
+
+    /**
+     * Applies a change to a graph by building the changed graph in full, and checks that
+     * layering the change over the graph and compacting the layer give the same graph.
+     * @return The changed graph, built in full.
+     */
+    private static GraphDB change(GraphDB g, String sections) throws Exception {
+        String path = writeChange(sections);
+        GraphDB changed = new GraphDB(g, path);
+        GraphDB layered = g.withChange(path);
+        assertEquals(describeById(changed), describeById(layered));
+        assertSameQueries(changed, layered);
+        GraphDB compacted = layered.compact();
+        assertEquals(describe(changed), describe(compacted));
+        assertSame(compacted, compacted.compact());
+        return changed;
+    }
+
+    @Test
+    public void testSameAsChangedMap() throws Exception {
+        GraphDB base = base();
+        List<String> before = describe(base);
+        GraphDB changed = change(base, CHANGE);
+
+        GraphDB expected = new GraphDB(TestGraphStorage.writeOsm(NODES + NEW_NODES
+                + CREATED_NODES + KEPT_WAYS + CREATED_WAYS + NEW_WAYS + RESTRICTIONS));
+        assertEquals(describe(expected), describe(changed));
+        assertTrue(base.numStates() > base.numVertices());
+        assertTrue(changed.numStates() > changed.numVertices());
+        assertNotEquals(before, describe(changed));
+        /* The base graph may still be serving requests. */
+        assertEquals(before, describe(base));
+    }
+
+    @Test
+    public void testHiddenSegmentReappears() throws Exception {
+        /* Long Street hid the footpath along 1 - 2; without it, walkers still get through. */
+        GraphDB changed = change(base(), "<delete>\n<way id=\"10\"/>\n"
+                + "</delete>\n");
+        assertEquals("", changed.wayName(1, 2));
+        assertEquals(Arrays.asList(1L, 2L), Router.shortestPath(changed, 1, 2, Profile.FOOT,
+                null));
+    }
+
+    @Test
+    public void testChangesAccumulate() throws Exception {
+        String[] changes = {"<create>\n" + CREATED_NODES + CREATED_WAYS + "</create>\n",
+            "<modify>\n" + NEW_NODES + NEW_WAYS + "</modify>\n",
+            "<delete>\n<way id=\"10\"/>\n<way id=\"12\"/>\n</delete>\n"};
+        GraphDB g = base();
+        GraphDB layered = g;
+        for (String sections : changes) {
+            g = change(g, sections);
+            layered = layered.withChange(writeChange(sections));
+            assertEquals(describeById(g), describeById(layered));
+        }
+        assertEquals(describe(change(base(), CHANGE)), describe(g));
+    }
+
+    /**
+     * Applies random changes to a grid of streets, some of them one-way and some with turn
+     * restrictions, and checks after each that the layers agree with the graphs built in
+     * full. The layers pile up until they need compacting, as they do on the server.
+     */
+    @Test
+    public void testRandomChanges() throws Exception {
+        Random random = new Random(42);
+        RandomMap map = new RandomMap(random);
+        StringBuilder osm = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            map.way(random, osm);
+        }
+        for (int i = 0; i < 10; i++) {
+            map.restriction(random, osm);
+        }
+        GraphDB g = new GraphDB(TestGraphStorage.writeOsm(map.nodes() + osm));
+        GraphDB layered = g;
+        for (int step = 0; step < 30; step++) {
+            String sections = map.change(random);
+            g = change(layered, sections);
+            layered = layered.withChange(writeChange(sections));
+            assertEquals(describeById(g), describeById(layered));
+            if (layered.needsCompaction()) {
+                layered = layered.compact();
+                assertEquals(describeById(g), describeById(layered));
+            }
+        }
+    }
+
+    /**
+     * A map of short streets along a six by six grid, with named shops off the streets,
+     * that makes random changes to itself.
+     */
+    private static class RandomMap {
+        private static final int SIDE = 6;
+        private static final String[] HIGHWAYS = {"residential", "residential", "primary",
+            "footway", "service", "construction"};
+        private final double[][] nodes = new double[SIDE * SIDE + 10][];
+        private final String[] shops = new String[nodes.length];
+        private final List<Long> ways = new ArrayList<>();
+        private final List<Long> relations = new ArrayList<>();
+        private long nextID = 100;
+
+        RandomMap(Random random) {
+            for (int i = 0; i < nodes.length; i++) {
+                moveNode(random, i);
+            }
+        }
+
+        private void moveNode(Random random, int i) {
+            double jitter = 0.0001 * random.nextDouble();
+            if (i < SIDE * SIDE) {
+                nodes[i] = new double[]{37.867 + 0.001 * (i / SIDE) + jitter,
+                    -122.271 + 0.002 * (i % SIDE) + jitter};
+            } else {
+                nodes[i] = new double[]{37.866 + 0.008 * random.nextDouble(),
+                    -122.272 + 0.014 * random.nextDouble()};
+                shops[i] = "Shop " + random.nextInt(8);
+            }
+        }
+
+        private String node(int i) {
+            String res = "<node id=\"" + (i + 1) + "\" lat=\"" + nodes[i][0] + "\" lon=\""
+                    + nodes[i][1] + "\"";
+            return shops[i] == null ? res + "/>\n"
+                    : res + ">\n  <tag k=\"name\" v=\"" + shops[i] + "\"/>\n</node>\n";
+        }
+
+        String nodes() {
+            StringBuilder res = new StringBuilder();
+            for (int i = 0; i < nodes.length; i++) {
+                res.append(node(i));
+            }
+            return res.toString();
+        }
+
+        /** Writes a way of one to three blocks along a row or column, with a fresh id. */
+        private void way(Random random, StringBuilder out) {
+            ways.add(nextID);
+            way(random, nextID++, out);
+        }
+
+        private void way(Random random, long id, StringBuilder out) {
+            boolean row = random.nextBoolean();
+            int start = random.nextInt(SIDE - 1);
+            int end = Math.min(SIDE - 1, start + 1 + random.nextInt(3));
+            int line = random.nextInt(SIDE);
+            out.append("<way id=\"").append(id).append("\">\n ");
+            for (int k = start; k <= end; k++) {
+                out.append(" <nd ref=\"").append(1 + (row ? line * SIDE + k : k * SIDE + line))
+                        .append("\"/>");
+            }
+            out.append("\n  <tag k=\"highway\" v=\"")
+                    .append(HIGHWAYS[random.nextInt(HIGHWAYS.length)]).append("\"/>");
+            if (random.nextInt(3) > 0) {
+                out.append("<tag k=\"name\" v=\"Street ").append(random.nextInt(5))
+                        .append("\"/>");
+            }
+            if (random.nextInt(4) == 0) {
+                out.append("<tag k=\"oneway\" v=\"").append(random.nextBoolean() ? "yes"
+                        : "-1").append("\"/>");
+            }
+            out.append("\n</way>\n");
+        }
+
+        /** Writes a restriction between two random ways at a random node, with a fresh id. */
+        private void restriction(Random random, StringBuilder out) {
+            relations.add(nextID);
+            restriction(random, nextID++, out);
+        }
+
+        private void restriction(Random random, long id, StringBuilder out) {
+            out.append("<relation id=\"").append(id).append("\">\n")
+                    .append("  <member type=\"way\" ref=\"")
+                    .append(ways.get(random.nextInt(ways.size())))
+                    .append("\" role=\"from\"/>\n  <member type=\"node\" ref=\"")
+                    .append(1 + random.nextInt(SIDE * SIDE))
+                    .append("\" role=\"via\"/>\n  <member type=\"way\" ref=\"")
+                    .append(ways.get(random.nextInt(ways.size())))
+                    .append("\" role=\"to\"/>\n  <tag k=\"type\" v=\"restriction\"/>")
+                    .append("<tag k=\"restriction\" v=\"no_")
+                    .append(random.nextBoolean() ? "left" : "u").append("_turn\"/>\n")
+                    .append("</relation>\n");
+        }
+
+        /**
+         * Returns the sections of a change file that makes a few random changes, each to a
+         * different element.
+         */
+        String change(Random random) {
+            StringBuilder create = new StringBuilder();
+            StringBuilder modify = new StringBuilder();
+            StringBuilder delete = new StringBuilder();
+            Set<Long> changed = new HashSet<>();
+            for (int n = 1 + random.nextInt(3); n > 0; n--) {
+                int kind = random.nextInt(7);
+                if (kind == 0) {
+                    changed.add(nextID);
+                    way(random, create);
+                } else if (kind == 4) {
+                    changed.add(nextID);
+                    restriction(random, create);
+                } else if (kind == 3) {
+                    int i = random.nextInt(nodes.length);
+                    if (changed.add(i + 1L)) {
+                        moveNode(random, i);
+                        modify.append(node(i));
+                    }
+                } else if (kind <= 2) {
+                    long way = ways.get(random.nextInt(ways.size()));
+                    if (!changed.add(way)) {
+                        continue;
+                    } else if (kind == 1) {
+                        way(random, way, modify);
+                    } else {
+                        ways.remove(way);
+                        delete.append("<way id=\"").append(way).append("\"/>\n");
+                    }
+                } else if (!relations.isEmpty()) {
+                    long relation = relations.get(random.nextInt(relations.size()));
+                    if (!changed.add(relation)) {
+                        continue;
+                    } else if (kind == 5) {
+                        relations.remove(relation);
+                        delete.append("<relation id=\"").append(relation).append("\"/>\n");
+                    } else {
+                        restriction(random, relation, modify);
+                    }
+                }
+            }
+            return "<create>\n" + create + "</create>\n<modify>\n" + modify
+                    + "</modify>\n<delete>\n" + delete + "</delete>\n";
+        }
+    }
+
+    @Test
+    public void testRoadOpens() throws Exception {
+        /* Way 40 is under construction, so its nodes 7 and 8 are on no road at first. */
+        String nodes = "<node id=\"7\" lat=\"37.868\" lon=\"-122.265\"/>\n"
+                + "<node id=\"8\" lat=\"37.867\" lon=\"-122.262\"/>\n";
+        String building = "<way id=\"40\">\n"
+                + "  <nd ref=\"1\"/><nd ref=\"7\"/><nd ref=\"8\"/><nd ref=\"2\"/>\n"
+                + "  <tag k=\"highway\" v=\"construction\"/>\n"
+                + "</way>\n";
+        String open = "<way id=\"40\">\n"
+                + "  <nd ref=\"1\"/><nd ref=\"7\"/><nd ref=\"8\"/><nd ref=\"2\"/>\n"
+                + "  <tag k=\"highway\" v=\"residential\"/>\n"
+                + "</way>\n";
+        String map = NODES + OLD_NODES + nodes + KEPT_WAYS + DELETED_WAYS + OLD_WAYS;
+        GraphDB base = new GraphDB(TestGraphStorage.writeOsm(map + building));
+        GraphDB expected = new GraphDB(TestGraphStorage.writeOsm(map + open));
+        GraphDB changed = change(base, "<modify>\n" + open + "</modify>\n");
+        assertEquals(describe(expected), describe(changed));
+        assertEquals(0, changed.droppedSegments());
+
+        /* Snapshots keep the nodes too. */
+        File snapshot = File.createTempFile("change", GraphDB.SNAPSHOT_SUFFIX);
+        snapshot.deleteOnExit();
+        base.writeSnapshot(snapshot.getPath());
+        GraphDB loaded = new GraphDB(snapshot.getPath());
+        changed = change(loaded, "<modify>\n" + open + "</modify>\n");
+        assertEquals(describe(expected), describe(changed));
+
+        /* Segments with nodes that neither graph has are left out, and counted. */
+        changed = change(base, "<modify>\n" + open.replace("\"8\"", "\"9\"")
+                + "</modify>\n");
+        assertEquals(2, changed.droppedSegments());
+        assertEquals(Arrays.asList(1L, 7L), Router.shortestPath(changed, 1, 7,
+                Profile.DISTANCE, null));
+    }
+
+    @Test
+    public void testRestrictionsChange() throws Exception {
+        /* Relation 30 turns into a no_right_turn from Long Street onto Side Street, and 31
+         * goes away. */
+        String modified = "<relation id=\"30\">\n"
+                + "  <member type=\"way\" ref=\"10\" role=\"from\"/>\n"
+                + "  <member type=\"node\" ref=\"2\" role=\"via\"/>\n"
+                + "  <member type=\"way\" ref=\"11\" role=\"to\"/>\n"
+                + "  <tag k=\"type\" v=\"restriction\"/>"
+                + "<tag k=\"restriction\" v=\"no_right_turn\"/>\n"
+                + "</relation>\n";
+        String map = NODES + OLD_NODES + KEPT_WAYS + DELETED_WAYS + OLD_WAYS;
+        GraphDB expected = new GraphDB(TestGraphStorage.writeOsm(map + modified));
+        GraphDB changed = change(base(), "<modify>\n" + modified
+                + "</modify>\n<delete>\n<relation id=\"31\"/>\n</delete>\n");
+        assertEquals(describe(expected), describe(changed));
+        assertEquals(describe(new GraphDB(TestGraphStorage.writeOsm(map))),
+                describe(change(base(), "<delete>\n<relation id=\"30\"/>\n"
+                        + "<relation id=\"31\"/>\n</delete>\n")));
+
+        /* Snapshots keep the relation ids. */
+        File snapshot = File.createTempFile("change", GraphDB.SNAPSHOT_SUFFIX);
+        snapshot.deleteOnExit();
+        base().writeSnapshot(snapshot.getPath());
+        changed = change(new GraphDB(snapshot.getPath()), "<modify>\n"
+                + modified + "</modify>\n<delete>\n<relation id=\"31\"/>\n</delete>\n");
+        assertEquals(describe(expected), describe(changed));
+    }
+
+    @Test
+    public void testServerAppliesChange() throws Exception {
+        MapServer.reloadGraph(TestGraphStorage.writeOsm(NODES + OLD_NODES + KEPT_WAYS
+                + DELETED_WAYS + OLD_WAYS));
+        GraphDB g = MapServer.applyChange(writeChange(CHANGE));
+        assertSame(g, MapServer.currentGraph());
+        assertEquals(Arrays.asList("Corner Market"), MapServer.getLocationsByPrefix("corner"));
+
+        try {
+            MapServer.applyChange(writeChange("<create>\n<node id=\"7\""));
+            fail();
+        } catch (SAXException e) {
+            /* Expected: the change is cut short. */
+        }
+        assertSame(g, MapServer.currentGraph());
+        assertTrue(g.numVertices() > 0);
+    }
+}
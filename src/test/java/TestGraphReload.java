@@ -0,0 +1,65 @@
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that MapServer swaps in reloaded graphs, and keeps its current graph when a
+ * reload fails.
+ */
+public class TestGraphReload {
+    private static final String WAY = "<way id=\"10\">\n"
+            + "  <nd ref=\"1\"/><nd ref=\"2\"/>\n"
+            + "  <tag k=\"highway\" v=\"residential\"/>\n"
+            + "</way>\n";
+
+    /** Writes a map of one road whose first node is named as given. */
+    private static String writeMap(String name) throws IOException {
+        return TestGraphStorage.writeOsm(
+                "<node id=\"1\" lat=\"37.870\" lon=\"-122.270\">\n"
+                + "  <tag k=\"name\" v=\"" + name + "\"/>\n"
+                + "</node>\n"
+                + "<node id=\"2\" lat=\"37.870\" lon=\"-122.260\"/>\n" + WAY);
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        GraphDB before = MapServer.reloadGraph(writeMap("Alpha Hall"));
+        assertSame(before, MapServer.currentGraph());
+        assertEquals(Arrays.asList("Alpha Hall"), MapServer.getLocationsByPrefix("alpha"));
+
+        GraphDB after = MapServer.reloadGraph(writeMap("Beta Hall"));
+        assertNotSame(before, after);
+        assertSame(after, MapServer.currentGraph());
+        assertEquals(Collections.emptyList(), MapServer.getLocationsByPrefix("alpha"));
+        assertEquals(Arrays.asList("Beta Hall"), MapServer.getLocationsByPrefix("beta"));
+        /* A request that started on the old graph still has all of it. */
+        assertEquals(Arrays.asList("Alpha Hall"), before.getLocationsByPrefix("alpha"));
+    }
+
+    @Test
+    public void testFailedReloadKeepsGraph() throws Exception {
+        GraphDB current = MapServer.reloadGraph(writeMap("Gamma Hall"));
+        try {
+            MapServer.reloadGraph(current + "-missing.osm.xml");
+            fail();
+        } catch (FileNotFoundException e) {
+            /* Expected. */
+        }
+        try {
+            MapServer.reloadGraph(TestGraphStorage.writeOsm(
+                    "<node id=\"1\" lat=\"37.870\" lon=\"-122.270\"/>\n"));
+            fail();
+        } catch (IOException e) {
+            /* Expected: the file has no roads. */
+        }
+        assertSame(current, MapServer.currentGraph());
+    }
+}
@@ -0,0 +1,166 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which nodes GraphDB keeps after parsing, on a small hand-written OSM file:
+ * vertices on valid ways are kept, named nodes stay searchable even when they are not
+ * vertices, all other nodes are discarded, and snapshots load back the same graph.
+ */
+public class TestGraphStorage {
+    private static GraphDB graph;
+
+    private static final String OSM =
+            "<node id=\"1\" lat=\"37.870\" lon=\"-122.260\"/>\n"
+            + "<node id=\"2\" lat=\"37.870\" lon=\"-122.259\"/>\n"
+            + "<node id=\"3\" lat=\"37.871\" lon=\"-122.259\">\n"
+            + "  <tag k=\"name\" v=\"Corner Cafe\"/>\n"
+            + "</node>\n"
+            + "<node id=\"4\" lat=\"37.875\" lon=\"-122.250\"/>\n"
+            + "<node id=\"5\" lat=\"37.876\" lon=\"-122.251\">\n"
+            + "  <tag k=\"name\" v=\"Lonely Statue\"/>\n"
+            + "</node>\n"
+            + "<way id=\"10\">\n"
+            + "  <nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>\n"
+            + "  <tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"First Street\"/>\n"
+            + "</way>\n"
+            + "<way id=\"11\">\n"
+            + "  <nd ref=\"2\"/><nd ref=\"3\"/><nd ref=\"99\"/>\n"
+            + "  <tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Second Street\"/>\n"
+            + "</way>\n"
+            + "<way id=\"12\">\n"
+            + "  <nd ref=\"4\"/><nd ref=\"5\"/>\n"
+            + "  <tag k=\"highway\" v=\"footway\"/>\n"
+            + "</way>\n";
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        graph = new GraphDB(writeOsm(OSM));
+    }
+
+    /**
+     * Writes the given elements into a temporary OSM XML file.
+     * @param elements The node, way and relation elements of the file.
+     * @return The path of the file.
+     */
+    static String writeOsm(String elements) throws IOException {
+        File file = File.createTempFile("graph", ".osm.xml");
+        file.deleteOnExit();
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\">\n"
+                + elements + "</osm>\n";
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+        return file.getPath();
+    }
+
+    @Test
+    public void testOnlyConnectedNodesAreVertices() {
+        HashSet<Long> actual = new HashSet<>();
+        for (long v : graph.vertices()) {
+            actual.add(v);
+        }
+        HashSet<Long> expected = new HashSet<>();
+        expected.add(1L);
+        expected.add(2L);
+        expected.add(3L);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testLastWayWinsSharedSegment() {
+        assertEquals("First Street", graph.wayName(1, 2));
+        assertEquals("Second Street", graph.wayName(2, 3));
+        assertEquals("Second Street", graph.wayName(3, 2));
+        assertEquals(2, TestGraphBuilding.countIterableItems(graph.adjacent(2)));
+    }
+
+    @Test
+    public void testWayNameIds() {
+        int one = graph.vertexIndex(1), two = graph.vertexIndex(2), three = graph.vertexIndex(3);
+        int first = graph.edgeNameId(graph.edgeBetween(one, two));
+        int second = graph.edgeNameId(graph.edgeBetween(two, three));
+        assertEquals(second, graph.edgeNameId(graph.edgeBetween(three, two)));
+        assertTrue(first != second);
+        assertEquals("First Street", graph.nameOfId(first));
+        assertEquals(-1, graph.edgeBetween(one, three));
+
+        List<Router.NavigationDirection> directions =
+                Router.routeDirections(graph, Arrays.asList(1L, 2L, 3L));
+        assertEquals(2, directions.size());
+        assertEquals("First Street", directions.get(0).way);
+        assertEquals(graph.distance(1, 2), directions.get(0).distance, 1e-12);
+        assertEquals(Router.NavigationDirection.LEFT, directions.get(1).direction);
+        assertEquals("Second Street", directions.get(1).way);
+    }
+
+    @Test
+    public void testStreamedRoute() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        MapServer.writeRoute(graph,
+                new Router.Route(null, null, Arrays.asList(1L, 2L, 3L), true), os);
+        JsonObject json = new JsonParser().parse(os.toString("UTF-8")).getAsJsonObject();
+        assertTrue(json.get("directions_success").getAsBoolean());
+        JsonArray steps = json.getAsJsonArray("steps");
+        assertEquals(2, steps.size());
+        JsonObject turn = steps.get(1).getAsJsonObject();
+        assertEquals(Router.NavigationDirection.LEFT, turn.get("maneuver").getAsInt());
+        assertEquals("Second Street", turn.get("way").getAsString());
+        assertEquals(1, turn.get("start").getAsInt());
+        assertEquals(2, turn.get("end").getAsInt());
+        assertEquals(0, steps.get(0).getAsJsonObject().get("start").getAsInt());
+        JsonArray polyline = json.getAsJsonArray("polyline");
+        assertEquals(6, polyline.size());
+        assertEquals(-122.259, polyline.get(4).getAsDouble(), 0);
+
+        os.reset();
+        MapServer.writeRoute(graph, new Router.Route(null, null, Arrays.asList(1L), true), os);
+        json = new JsonParser().parse(os.toString("UTF-8")).getAsJsonObject();
+        assertTrue(json.get("routing_success").getAsBoolean());
+        assertFalse(json.get("directions_success").getAsBoolean());
+        assertEquals(0, json.getAsJsonArray("steps").size());
+    }
+
+    @Test
+    public void testNamedNodesStaySearchable() {
+        List<Map<String, Object>> statue = graph.getLocations("lonely statue");
+        assertEquals(1, statue.size());
+        assertEquals(5L, statue.get(0).get("id"));
+        assertEquals(37.876, (double) statue.get(0).get("lat"), 1e-9);
+        assertEquals(-122.251, (double) statue.get(0).get("lon"), 1e-9);
+        assertTrue(graph.getLocationsByPrefix("corner").contains("Corner Cafe"));
+        assertTrue(graph.getLocations("nowhere").isEmpty());
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        File file = File.createTempFile("graph", GraphDB.SNAPSHOT_SUFFIX);
+        file.deleteOnExit();
+        graph.writeSnapshot(file.getPath());
+        GraphDB loaded = new GraphDB(file.getPath());
+        for (long v : graph.vertices()) {
+            assertEquals(graph.lon(v), loaded.lon(v), 0);
+            assertEquals(graph.lat(v), loaded.lat(v), 0);
+            assertEquals(graph.adjacent(v), loaded.adjacent(v));
+        }
+        assertEquals(TestGraphBuilding.countIterableItems(graph.vertices()),
+                TestGraphBuilding.countIterableItems(loaded.vertices()));
+        assertEquals("Second Street", loaded.wayName(2, 3));
+        assertEquals(graph.getLocations("lonely statue"), loaded.getLocations("lonely statue"));
+        assertEquals(graph.getLocationsByPrefix(""), loaded.getLocationsByPrefix(""));
+    }
+}
@@ -0,0 +1,79 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks Router.isochrone against one-to-many distances on a generated street grid, and
+ * the cut-off road segments on a single street.
+ */
+public class TestIsochrone {
+    private static GraphDB grid;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        File file = File.createTempFile("isochrone", ".osm.xml");
+        file.deleteOnExit();
+        new OSMGenerator(900, 2, 0.01, 34).write(file.getPath());
+        grid = new GraphDB(file.getPath());
+    }
+
+    @Test
+    public void testReachableVertices() {
+        long origin = grid.vertexID(grid.numVertices() / 2);
+        long[] all = new long[grid.numVertices()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = grid.vertexID(i);
+        }
+        double[] expected = Router.distances(grid, origin, all);
+        double budget = 0.5;
+        Router.Isochrone iso = Router.isochrone(grid, origin, budget);
+
+        Map<Long, Double> reached = new HashMap<>();
+        for (int k = 0; k < iso.vertices.length; k++) {
+            reached.put(iso.vertices[k], iso.distances[k]);
+            assertTrue(k == 0 || iso.distances[k - 1] <= iso.distances[k]);
+        }
+        assertEquals(origin, iso.vertices[0]);
+        for (int i = 0; i < all.length; i++) {
+            if (expected[i] <= budget) {
+                assertEquals(expected[i], reached.get(all[i]), 1e-9);
+            } else {
+                assertTrue(!reached.containsKey(all[i]));
+            }
+        }
+        assertTrue(iso.numSegments() >= iso.vertices.length - 1);
+    }
+
+    @Test
+    public void testSegmentsCutAtBudget() throws Exception {
+        /* A straight street 1 - 2 - 3 with blocks of equal length. */
+        GraphDB street = new GraphDB(TestGraphStorage.writeOsm(
+                "<node id=\"1\" lat=\"37.870\" lon=\"-122.260\"/>\n"
+                + "<node id=\"2\" lat=\"37.870\" lon=\"-122.259\"/>\n"
+                + "<node id=\"3\" lat=\"37.870\" lon=\"-122.258\"/>\n"
+                + "<way id=\"10\">\n"
+                + "  <nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>\n"
+                + "  <tag k=\"highway\" v=\"residential\"/>\n"
+                + "</way>\n"));
+        double block = street.distance(1, 2);
+        Router.Isochrone iso = Router.isochrone(street, 1, 1.5 * block);
+        assertEquals(2, iso.vertices.length);
+        assertEquals(2, iso.numSegments());
+        double[] s = iso.segments;
+        assertEquals(-122.260, s[0], 1e-12);
+        assertEquals(-122.259, s[2], 1e-12);
+        assertEquals(-122.259, s[4], 1e-12);
+        assertEquals(-122.2585, s[6], 1e-9);
+        assertEquals(37.870, s[7], 1e-12);
+
+        Router.Isochrone all = Router.isochrone(street, 2, block);
+        assertEquals(3, all.vertices.length);
+        assertEquals(2, all.numSegments());
+    }
+}
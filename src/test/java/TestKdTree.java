@@ -0,0 +1,62 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks KdTree nearest and k-nearest queries against a linear scan over random points
+ * around Berkeley.
+ */
+public class TestKdTree {
+    private static final int NUM_POINTS = 2000;
+    private static final int NUM_QUERIES = 200;
+
+    @Test
+    public void testNearestMatchesLinearScan() {
+        Random r = new Random(61);
+        double[] lons = new double[NUM_POINTS];
+        double[] lats = new double[NUM_POINTS];
+        randomPoints(r, lons, lats);
+        KdTree tree = new KdTree(lons, lats);
+        for (int q = 0; q < NUM_QUERIES; q++) {
+            double lon = -122.30 + r.nextDouble() * 0.1;
+            double lat = 37.82 + r.nextDouble() * 0.08;
+            Integer[] expected = byDistance(lons, lats, lon, lat);
+            assertEquals((int) expected[0], tree.nearest(lon, lat));
+            int[] actual = tree.nearest(lon, lat, 10);
+            for (int i = 0; i < actual.length; i++) {
+                assertEquals((int) expected[i], actual[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testFewerPointsThanK() {
+        double[] lons = {-122.25, -122.26, -122.27};
+        double[] lats = {37.87, 37.87, 37.87};
+        KdTree tree = new KdTree(lons, lats);
+        assertArrayEquals(new int[]{2, 1, 0}, tree.nearest(-122.28, 37.87, 5));
+        assertEquals(-1, new KdTree(new double[0], new double[0]).nearest(-122.28, 37.87));
+    }
+
+    private static void randomPoints(Random r, double[] lons, double[] lats) {
+        for (int i = 0; i < lons.length; i++) {
+            lons[i] = -122.30 + r.nextDouble() * 0.1;
+            lats[i] = 37.82 + r.nextDouble() * 0.08;
+        }
+    }
+
+    private static Integer[] byDistance(double[] lons, double[] lats, double lon, double lat) {
+        Integer[] order = new Integer[lons.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(
+            i -> GraphDB.distance(lons[i], lats[i], lon, lat)));
+        return order;
+    }
+}
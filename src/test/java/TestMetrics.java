@@ -0,0 +1,57 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the accuracy of Metrics histograms and the Prometheus export format.
+ */
+public class TestMetrics {
+    @Test
+    public void testBucketsCoverValues() {
+        for (long v : new long[]{0, 1, 31, 32, 33, 63, 64, 1000, 123456789, Long.MAX_VALUE}) {
+            int b = Metrics.Histogram.bucket(v);
+            long lo = Metrics.Histogram.lowerBound(b);
+            assertTrue(v + " below its bucket", lo <= v);
+            assertTrue(v + " above its bucket", v - lo < Metrics.Histogram.width(b));
+        }
+    }
+
+    @Test
+    public void testQuantilesWithinPrecision() {
+        Metrics.Histogram h = new Metrics.Histogram();
+        assertEquals(0, h.quantile(0.5));
+        for (long i = 1; i <= 100000; i++) {
+            h.record(i * 1000);
+        }
+        assertEquals(100000, h.count());
+        for (double q : new double[]{0.01, 0.5, 0.9, 0.99, 0.999}) {
+            double expected = q * 100000 * 1000;
+            assertEquals("quantile " + q, expected, h.quantile(q), expected * 0.04);
+        }
+    }
+
+    @Test
+    public void testPrometheusFormat() {
+        Metrics.Histogram h = Metrics.histogram("test_metrics_duration_seconds",
+                "A test histogram.", "phase", "a\"b");
+        h.record(2000000000L);
+        Metrics.counter("test_metrics_items_total", "A test counter.").add(3);
+        Metrics.gauge("test_metrics_size", "A test gauge.", () -> 7);
+
+        String text = Metrics.prometheus();
+        assertTrue(text.contains("# TYPE test_metrics_duration_seconds summary\n"));
+        assertTrue(text.contains("test_metrics_duration_seconds{phase=\"a\\\"b\",quantile=\"0.5\"} "));
+        assertTrue(text.contains("test_metrics_duration_seconds_sum{phase=\"a\\\"b\"} 2.0\n"));
+        assertTrue(text.contains("test_metrics_duration_seconds_count{phase=\"a\\\"b\"} 1\n"));
+        assertTrue(text.contains("# TYPE test_metrics_items_total counter\n"));
+        assertTrue(text.contains("test_metrics_items_total 3\n"));
+        assertTrue(text.contains("test_metrics_size 7\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTypeConflict() {
+        Metrics.counter("test_metrics_conflict", "A counter.");
+        Metrics.histogram("test_metrics_conflict", "Not a counter.");
+    }
+}
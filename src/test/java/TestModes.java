@@ -0,0 +1,98 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that walking and cycling share the road graph but follow their own access rules.
+ * The hand-written map has a residential street 1-2-3, a footway shortcut 1-4-3, a private
+ * cycleway 3-5 and a motorway 2-6.
+ */
+public class TestModes {
+    private static GraphDB graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        graph = new GraphDB(TestGraphStorage.writeOsm(
+                "<node id=\"1\" lat=\"37.870\" lon=\"-122.260\"/>\n"
+                + "<node id=\"2\" lat=\"37.873\" lon=\"-122.259\"/>\n"
+                + "<node id=\"3\" lat=\"37.870\" lon=\"-122.258\"/>\n"
+                + "<node id=\"4\" lat=\"37.870\" lon=\"-122.259\"/>\n"
+                + "<node id=\"5\" lat=\"37.869\" lon=\"-122.257\"/>\n"
+                + "<node id=\"6\" lat=\"37.875\" lon=\"-122.259\"/>\n"
+                + "<way id=\"10\">\n"
+                + "  <nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>\n"
+                + "  <tag k=\"highway\" v=\"residential\"/>\n"
+                + "</way>\n"
+                + "<way id=\"11\">\n"
+                + "  <nd ref=\"1\"/><nd ref=\"4\"/><nd ref=\"3\"/>\n"
+                + "  <tag k=\"highway\" v=\"footway\"/>\n"
+                + "</way>\n"
+                + "<way id=\"12\">\n"
+                + "  <nd ref=\"3\"/><nd ref=\"5\"/>\n"
+                + "  <tag k=\"highway\" v=\"cycleway\"/><tag k=\"access\" v=\"private\"/>\n"
+                + "</way>\n"
+                + "<way id=\"13\">\n"
+                + "  <nd ref=\"2\"/><nd ref=\"6\"/>\n"
+                + "  <tag k=\"highway\" v=\"motorway\"/>\n"
+                + "</way>\n"));
+    }
+
+    @Test
+    public void testAccessRules() {
+        GraphDB.Edge way = new GraphDB.Edge(1);
+        way.extrainfo.put("highway", "residential");
+        assertTrue(Profile.Mode.CAR.allows(way));
+        assertTrue(Profile.Mode.FOOT.allows(way));
+        way.extrainfo.put("foot", "no");
+        assertFalse(Profile.Mode.FOOT.allows(way));
+        assertTrue(Profile.Mode.BIKE.allows(way));
+        way.extrainfo.put("access", "private");
+        assertTrue(Profile.Mode.CAR.allows(way));
+        assertFalse(Profile.Mode.BIKE.allows(way));
+        way.extrainfo.put("bicycle", "designated");
+        assertTrue(Profile.Mode.BIKE.allows(way));
+        way.extrainfo.put("highway", "footway");
+        assertFalse(Profile.Mode.CAR.allows(way));
+        assertEquals(Profile.Mode.BIKE.bit(), Profile.access(way));
+    }
+
+    @Test
+    public void testCarGraphIsUnchanged() {
+        HashSet<Long> vertices = new HashSet<>();
+        for (long v : graph.vertices()) {
+            vertices.add(v);
+        }
+        assertEquals(new HashSet<>(Arrays.asList(1L, 2L, 3L, 6L)), vertices);
+        assertEquals(Arrays.asList(1L, 2L, 3L), Router.shortestPath(graph, 1, 3));
+        assertEquals(1L, graph.closest(-122.2594, 37.870));
+    }
+
+    @Test
+    public void testWalkingUsesFootways() {
+        assertEquals(Arrays.asList(1L, 4L, 3L),
+                Router.shortestPath(graph, 1, 3, Profile.FOOT, null));
+        assertEquals(4L, graph.closest(-122.2594, 37.870, Profile.FOOT));
+        double miles = graph.distance(1, 4) + graph.distance(4, 3);
+        assertEquals(miles * 1200, Router.distances(graph, 1, new long[]{3}, Profile.FOOT)[0],
+                1e-9);
+        assertTrue(Double.isInfinite(
+                Router.distances(graph, 1, new long[]{6}, Profile.FOOT)[0]));
+    }
+
+    @Test
+    public void testCyclingSkipsPrivateAndFootways() {
+        assertEquals(Arrays.asList(1L, 2L, 3L),
+                Router.shortestPath(graph, 1, 3, Profile.BIKE, null));
+        assertTrue(Double.isInfinite(
+                Router.distances(graph, 1, new long[]{5}, Profile.BIKE)[0]));
+        Router.Isochrone reachable = Router.isochrone(graph, 1, 10, Profile.BIKE);
+        assertEquals(3, reachable.vertices.length);
+        assertEquals(2, reachable.numSegments());
+    }
+}
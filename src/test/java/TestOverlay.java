@@ -0,0 +1,191 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that routes over a multi-level overlay cost as much as those of Router on the
+ * whole graph, before and after customizing it for traffic. The generated street grid has
+ * one-way streets and turn restrictions, and the overlay three levels of cells.
+ */
+public class TestOverlay {
+    private static GraphDB graph;
+    private static Overlay overlay;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        File file = File.createTempFile("overlay", ".osm.xml");
+        file.deleteOnExit();
+        new OSMGenerator(2500, 2, 0, 41).write(file.getPath());
+        graph = new GraphDB(file.getPath());
+        overlay = new Overlay(graph, 40, 160, 640);
+    }
+
+    /** Returns the cost of a route under a profile, on the given graph. */
+    private static double cost(GraphDB g, List<Long> route, Profile profile) {
+        double[] weights = g.edgeWeights(profile);
+        double res = 0;
+        for (int i = 1; i < route.size(); i++) {
+            int e = g.edgeBetween(g.vertexIndex(route.get(i - 1)),
+                    g.vertexIndex(route.get(i)));
+            assertTrue((g.edgeAccess(e) & profile.mode.bit()) != 0);
+            res += weights[e];
+        }
+        return res;
+    }
+
+    /** Checks random routes of a metric against Router on the graph it was customized on. */
+    private static void checkRoutes(GraphDB g, Profile profile, long seed) {
+        checkRoutes(g, overlay.customize(g, profile), profile, seed);
+    }
+
+    private static void checkRoutes(GraphDB g, Overlay.Metric metric, Profile profile,
+                                    long seed) {
+        Random r = new Random(seed);
+        for (int k = 0; k < 40; k++) {
+            long from = g.vertexID(r.nextInt(g.numVertices()));
+            long to = g.vertexID(r.nextInt(g.numVertices()));
+            List<Long> expected = Router.shortestPath(g, from, to, profile, null);
+            List<Long> route = metric.shortestPath(from, to, null);
+            assertEquals(to, (long) route.get(route.size() - 1));
+            if (expected.size() == 1) {
+                assertEquals(expected, route);
+                continue;
+            }
+            assertEquals(from, (long) route.get(0));
+            assertEquals(cost(g, expected, profile), cost(g, route, profile), 1e-9);
+        }
+    }
+
+    @Test
+    public void testSameRoutes() {
+        assertEquals(3, overlay.numLevels());
+        assertTrue(overlay.numBoundaryArcs() > 0);
+        assertTrue(graph.numStates() > graph.numVertices());
+        checkRoutes(graph, Profile.DISTANCE, 1);
+        checkRoutes(graph, Profile.TIME, 2);
+        checkRoutes(graph, Profile.FOOT, 3);
+    }
+
+    @Test
+    public void testCustomizeOnExecutor() {
+        ExecutorService cells = Executors.newFixedThreadPool(4);
+        try {
+            checkRoutes(graph, overlay.customize(graph, Profile.TIME, cells), Profile.TIME, 7);
+        } finally {
+            cells.shutdown();
+        }
+    }
+
+    @Test
+    public void testCustomizeForTraffic() {
+        /* Close and slow down random segments, without partitioning the graph again. */
+        Random r = new Random(43);
+        List<Traffic.Rule> rules = new ArrayList<>();
+        for (int k = 0; k < 300; k++) {
+            int v = r.nextInt(graph.numVertices());
+            if (graph.edgeStart(v) == graph.edgeEnd(v)) {
+                continue;
+            }
+            int w = graph.edgeTarget(graph.edgeStart(v));
+            rules.add(k % 2 == 0
+                    ? new Traffic.Rule(null, graph.vertexID(v), graph.vertexID(w), 1, true)
+                    : Traffic.Rule.segment(graph.vertexID(v), graph.vertexID(w), 4));
+        }
+        GraphDB slow = graph.withTraffic(Traffic.NONE.with(rules));
+        checkRoutes(slow, Profile.TIME, 4);
+        checkRoutes(slow, Profile.DISTANCE, 5);
+    }
+
+    /** Returns the cost of a route between snapped points, on the given graph. */
+    private static double cost(GraphDB g, Router.Route route, Profile profile) {
+        double[] weights = g.edgeWeights(profile);
+        List<Long> vertices = route.vertices;
+        long first = vertices.get(0), last = vertices.get(vertices.size() - 1);
+        int from = route.from.edge, to = route.to.edge;
+        double res = cost(g, vertices, profile);
+        res += g.vertexID(g.edgeTarget(from)) == first ? (1 - route.from.t) * weights[from]
+                : route.from.t * weights[g.edgeTwin(from)];
+        res += g.vertexID(g.edgeTarget(g.edgeTwin(to))) == last ? route.to.t * weights[to]
+                : (1 - route.to.t) * weights[g.edgeTwin(to)];
+        return res;
+    }
+
+    @Test
+    public void testSnappedRoutes() {
+        GraphDB slow = graph.withTraffic(Traffic.NONE.with(Collections.singletonList(
+                Traffic.Rule.segment(graph.vertexID(0), graph.vertexID(graph.edgeTarget(
+                        graph.edgeStart(0))), 3))));
+        Random r = new Random(47);
+        for (GraphDB g : new GraphDB[]{graph, slow}) {
+            for (Profile profile : new Profile[]{Profile.TIME, Profile.FOOT}) {
+                Overlay.Metric metric = overlay.customize(g, profile);
+                for (int k = 0; k < 30; k++) {
+                    GraphDB.Snap from = g.snap(randomLon(r), randomLat(r), profile);
+                    GraphDB.Snap to = g.snap(randomLon(r), randomLat(r), profile);
+                    Router.Route expected = Router.shortestPath(g, from, to, profile, null,
+                            null);
+                    Router.Route route = metric.shortestPath(from, to, null);
+                    assertEquals(expected.found, route.found);
+                    if (expected.found && !expected.vertices.isEmpty()) {
+                        assertEquals(cost(g, expected, profile), cost(g, route, profile),
+                                1e-9);
+                    }
+                }
+            }
+        }
+    }
+
+    private static double randomLon(Random r) {
+        return graph.vertexLon(r.nextInt(graph.numVertices())) + 0.001 * r.nextGaussian();
+    }
+
+    private static double randomLat(Random r) {
+        return graph.vertexLat(r.nextInt(graph.numVertices())) + 0.001 * r.nextGaussian();
+    }
+
+    @Test
+    public void testSameVertex() {
+        long v = graph.vertexID(graph.numVertices() / 2);
+        List<Long> route = overlay.customize(graph, Profile.TIME).shortestPath(v, v, null);
+        assertEquals(Router.shortestPath(graph, v, v, Profile.TIME, null), route);
+    }
+
+    @Test
+    public void testRejectsOtherGraphs() throws Exception {
+        try {
+            new Overlay(graph, 100, 50);
+            fail();
+        } catch (IllegalArgumentException e) {
+            /* Expected: cells must grow from level to level. */
+        }
+        GraphDB other = new GraphDB(TestGraphStorage.writeOsm(
+                "<node id=\"1\" lat=\"37.870\" lon=\"-122.270\"/>\n"
+                + "<node id=\"2\" lat=\"37.870\" lon=\"-122.265\"/>\n"
+                + "<way id=\"10\">\n"
+                + "  <nd ref=\"1\"/><nd ref=\"2\"/>\n"
+                + "  <tag k=\"highway\" v=\"residential\"/>\n"
+                + "</way>\n"));
+        try {
+            overlay.customize(other, Profile.TIME);
+            fail();
+        } catch (IllegalArgumentException e) {
+            /* Expected: the overlay is of another graph. */
+        }
+        /* A graph smaller than the cells has no levels, and is searched as it is. */
+        Overlay flat = new Overlay(other, 10);
+        assertEquals(0, flat.numLevels());
+        assertEquals(Router.shortestPath(other, 1, 2, Profile.DISTANCE, null),
+                flat.customize(other, Profile.DISTANCE).shortestPath(1, 2, null));
+    }
+}
@@ -0,0 +1,98 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks speed parsing and time-based routing. The hand-written map has two ways from 1
+ * to 3: a short residential street through 2, and a longer primary road through 4.
+ */
+public class TestProfile {
+    private static GraphDB graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        graph = new GraphDB(TestGraphStorage.writeOsm(
+                "<node id=\"1\" lat=\"37.870\" lon=\"-122.260\"/>\n"
+                + "<node id=\"2\" lat=\"37.871\" lon=\"-122.259\"/>\n"
+                + "<node id=\"3\" lat=\"37.870\" lon=\"-122.258\"/>\n"
+                + "<node id=\"4\" lat=\"37.868\" lon=\"-122.259\"/>\n"
+                + "<way id=\"10\">\n"
+                + "  <nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>\n"
+                + "  <tag k=\"highway\" v=\"residential\"/>\n"
+                + "</way>\n"
+                + "<way id=\"11\">\n"
+                + "  <nd ref=\"1\"/><nd ref=\"4\"/><nd ref=\"3\"/>\n"
+                + "  <tag k=\"highway\" v=\"primary\"/><tag k=\"maxspeed\" v=\"45 mph\"/>\n"
+                + "</way>\n"));
+    }
+
+    @Test
+    public void testParseMph() {
+        assertEquals(25, Profile.parseMph("25 mph"), 0);
+        assertEquals(25, Profile.parseMph("25mph"), 0);
+        assertEquals(31.07, Profile.parseMph("50"), 0.01);
+        assertEquals(31.07, Profile.parseMph("50 km/h"), 0.01);
+        assertEquals(11.51, Profile.parseMph("10 knots"), 0.01);
+        assertEquals(0, Profile.parseMph("none"), 0);
+        assertEquals(0, Profile.parseMph("signals"), 0);
+    }
+
+    @Test
+    public void testSpeedDefaults() {
+        GraphDB.Edge way = new GraphDB.Edge(1);
+        way.extrainfo.put("highway", "secondary");
+        assertEquals(35, Profile.speedMph(way), 0);
+        way.extrainfo.put("maxspeed", "walk");
+        assertEquals(35, Profile.speedMph(way), 0);
+        way.extrainfo.put("maxspeed", "30 mph;40 mph");
+        assertEquals(30, Profile.speedMph(way), 0);
+        assertEquals(120, Profile.TIME.costPerMile(way), 1e-9);
+    }
+
+    @Test
+    public void testTimeProfilePrefersFasterRoad() {
+        assertEquals(Arrays.asList(1L, 2L, 3L), Router.shortestPath(graph, 1, 3));
+        List<Long> fastest = Router.shortestPath(graph, 1, 3, Profile.TIME, null);
+        assertEquals(Arrays.asList(1L, 4L, 3L), fastest);
+        double seconds = (graph.distance(1, 4) + graph.distance(4, 3)) / 45 * 3600;
+        assertEquals(seconds, Router.distances(graph, 1, new long[]{3}, Profile.TIME)[0],
+                1e-9);
+        assertEquals(3600 / 45.0, graph.minCostPerMile(Profile.TIME), 1e-9);
+    }
+
+    @Test
+    public void testTimeRoutesAreOptimal() throws Exception {
+        File file = File.createTempFile("profile", ".osm.xml");
+        file.deleteOnExit();
+        new OSMGenerator(900, 2, 0, 35).write(file.getPath());
+        GraphDB grid = new GraphDB(file.getPath());
+        double[] weights = grid.edgeWeights(Profile.TIME);
+        Random r = new Random(35);
+        for (int k = 0; k < 20; k++) {
+            long from = grid.vertexID(r.nextInt(grid.numVertices()));
+            long to = grid.vertexID(r.nextInt(grid.numVertices()));
+            double expected = Router.distances(grid, from, new long[]{to}, Profile.TIME)[0];
+            List<Long> route = Router.shortestPath(grid, from, to, Profile.TIME, null);
+            if (Double.isInfinite(expected)) {
+                continue;
+            }
+            double cost = 0;
+            for (int i = 1; i < route.size(); i++) {
+                int v = grid.vertexIndex(route.get(i - 1));
+                int w = grid.vertexIndex(route.get(i));
+                for (int e = grid.edgeStart(v); e < grid.edgeEnd(v); e++) {
+                    if (grid.edgeTarget(e) == w) {
+                        cost += weights[e];
+                    }
+                }
+            }
+            assertEquals(expected, cost, 1e-6);
+        }
+    }
+}
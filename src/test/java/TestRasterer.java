@@ -1,6 +1,11 @@
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -12,9 +17,12 @@ import java.util.Map;
 import java.util.Collections;
 import java.util.StringJoiner;
 import java.util.Arrays;
+import java.util.Base64;
+import javax.imageio.ImageIO;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class TestRasterer {
@@ -47,6 +55,36 @@ public class TestRasterer {
         }
     }
 
+    @Test
+    public void testStreamedRaster() throws Exception {
+        Map<String, Double> params = paramsFromFile().get(0);
+        Map<String, Object> expected = rasterer.getMapRaster(params);
+        String[][] grid = (String[][]) expected.get("render_grid");
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        MapServer.writeRaster(rasterer, params, os);
+        JsonObject json = new JsonParser().parse(os.toString("UTF-8")).getAsJsonObject();
+        assertTrue(json.get("query_success").getAsBoolean());
+        assertEquals((int) expected.get("depth"), json.get("depth").getAsInt());
+        assertEquals((double) expected.get("raster_ul_lon"),
+                json.get("raster_ul_lon").getAsDouble(), 0);
+        assertEquals(grid[0][0], json.getAsJsonArray("render_grid").get(0).getAsJsonArray()
+                .get(0).getAsString());
+        byte[] png = Base64.getDecoder().decode(
+                json.get("b64_encoded_image_data").getAsString());
+        BufferedImage img = ImageIO.read(new ByteArrayInputStream(png));
+        assertEquals(grid[0].length * MapServer.TILE_SIZE, img.getWidth());
+        assertEquals(json.get("raster_width").getAsInt(), img.getWidth());
+        assertEquals(json.get("raster_height").getAsInt(), img.getHeight());
+
+        /* A box with its corners swapped fails, and has no image. */
+        params.put("ullon", params.get("lrlon") + 1);
+        os.reset();
+        MapServer.writeRaster(rasterer, params, os);
+        json = new JsonParser().parse(os.toString("UTF-8")).getAsJsonObject();
+        assertFalse(json.get("query_success").getAsBoolean());
+        assertFalse(json.has("b64_encoded_image_data"));
+    }
+
     private List<Map<String, Double>> paramsFromFile() throws Exception {
         List<String> lines = Files.readAllLines(Paths.get(PARAMS_FILE), Charset.defaultCharset());
         List<Map<String, Double>> testParams = new ArrayList<>();
@@ -0,0 +1,126 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that RouteCache returns the routes put into it, stays within its capacity and
+ * forgets everything when the graph is replaced.
+ */
+public class TestRouteCache {
+    private static String path;
+    private static GraphDB graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        File file = File.createTempFile("cache", ".osm.xml");
+        file.deleteOnExit();
+        path = file.getPath();
+        new OSMGenerator(400, 2, 0, 41).write(path);
+        graph = new GraphDB(path);
+    }
+
+    /** Returns a point at fraction t along half-edge e; only e and t matter to the cache. */
+    private static GraphDB.Snap snap(int e, double t) {
+        return new GraphDB.Snap(e, t, 0, 0);
+    }
+
+    private static Router.Route route(long... vertices) {
+        List<Long> ids = new ArrayList<>();
+        for (long v : vertices) {
+            ids.add(v);
+        }
+        return new Router.Route(null, null, ids, true);
+    }
+
+    @Test
+    public void testHitsByKey() {
+        RouteCache cache = new RouteCache(64, graph);
+        GraphDB.Snap from = graph.snap(graph.lon(graph.vertexID(0)) + 1e-5,
+                graph.lat(graph.vertexID(0)), Profile.DISTANCE);
+        GraphDB.Snap to = graph.snap(graph.lon(graph.vertexID(graph.numVertices() - 1)),
+                graph.lat(graph.vertexID(graph.numVertices() - 1)) + 1e-5, Profile.DISTANCE);
+        Router.Route route = Router.shortestPath(graph, from, to, Profile.DISTANCE, null, null);
+        assertNull(cache.get(graph, from, to, Profile.DISTANCE, null));
+        cache.put(graph, from, to, Profile.DISTANCE, null, route);
+        assertSame(route, cache.get(graph, from, to, Profile.DISTANCE, null));
+        assertSame(route, cache.get(graph, new GraphDB.Snap(from.edge, from.t, 0, 0), to,
+                Profile.DISTANCE, null));
+        assertNull(cache.get(graph, to, from, Profile.DISTANCE, null));
+        assertNull(cache.get(graph, from, to, Profile.TIME, null));
+        assertNull(cache.get(graph, from, to, Profile.DISTANCE,
+                new Router.TurnCosts(15, 5, 30)));
+        assertNull(cache.get(graph, snap(from.edge, from.t + 0.25), to, Profile.DISTANCE,
+                null));
+
+        Router.Route turning = route(1, 2);
+        cache.put(graph, from, to, Profile.DISTANCE, new Router.TurnCosts(15, 5, 30), turning);
+        assertSame(turning, cache.get(graph, from, to, Profile.DISTANCE,
+                new Router.TurnCosts(15, 5, 30)));
+    }
+
+    @Test
+    public void testBounded() {
+        RouteCache cache = new RouteCache(32, graph);
+        for (int i = 0; i < 200; i++) {
+            Router.Route route = route(i);
+            cache.put(graph, snap(i, 0.5), snap(i + 1, 0.5), Profile.DISTANCE, null, route);
+            assertSame(route, cache.get(graph, snap(i, 0.5), snap(i + 1, 0.5),
+                    Profile.DISTANCE, null));
+        }
+        assertTrue(cache.size() <= 32);
+        assertTrue(cache.size() > 0);
+
+        RouteCache disabled = new RouteCache(0, graph);
+        disabled.put(graph, snap(1, 0), snap(2, 0), Profile.DISTANCE, null, route(1, 2));
+        assertNull(disabled.get(graph, snap(1, 0), snap(2, 0), Profile.DISTANCE, null));
+    }
+
+    @Test
+    public void testNearRepeatsHit() {
+        RouteCache cache = new RouteCache(64, graph);
+        GraphDB.Snap from = graph.snap(graph.lon(graph.vertexID(0)) + 1e-5,
+                graph.lat(graph.vertexID(0)), Profile.DISTANCE);
+        GraphDB.Snap to = graph.snap(graph.lon(graph.vertexID(graph.numVertices() - 1)),
+                graph.lat(graph.vertexID(graph.numVertices() - 1)) + 1e-5, Profile.DISTANCE);
+        Router.Route route = Router.shortestPath(graph, from, to, Profile.DISTANCE, null, null);
+        cache.put(graph, from, to, Profile.DISTANCE, null, route);
+
+        /* A click a metre further along the same segment reuses the route, with its ends. */
+        double step = 0.0006 / graph.edgeLength(from.edge);
+        double t = Math.floor(from.t * graph.edgeLength(from.edge)
+                / RouteCache.SNAP_QUANTUM_MILES) * RouteCache.SNAP_QUANTUM_MILES
+                / graph.edgeLength(from.edge);
+        GraphDB.Snap near = snap(from.edge, t + step);
+        Router.Route hit = cache.get(graph, near, to, Profile.DISTANCE, null);
+        assertSame(near, hit.from);
+        assertSame(to, hit.to);
+        assertEquals(route.vertices, hit.vertices);
+        /* Further than the quantum, it is another request. */
+        assertNull(cache.get(graph, snap(from.edge, t + 6 * step), to, Profile.DISTANCE,
+                null));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        RouteCache cache = new RouteCache(64, graph);
+        cache.put(graph, snap(1, 0), snap(2, 0), Profile.DISTANCE, null, route(1, 2));
+        /* The same map loaded again: the same points, but a new graph. */
+        GraphDB reloaded = new GraphDB(path);
+        cache.invalidate(reloaded);
+        assertEquals(0, cache.size());
+        assertNull(cache.get(reloaded, snap(1, 0), snap(2, 0), Profile.DISTANCE, null));
+
+        /* Routes still being computed on the old graph are not cached. */
+        cache.put(graph, snap(1, 0), snap(2, 0), Profile.DISTANCE, null, route(1, 2));
+        assertNull(cache.get(graph, snap(1, 0), snap(2, 0), Profile.DISTANCE, null));
+        assertEquals(0, cache.size());
+    }
+}
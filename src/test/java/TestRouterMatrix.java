@@ -0,0 +1,92 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks Router's one-to-many distances against A* routes on a generated street grid.
+ */
+public class TestRouterMatrix {
+    private static GraphDB graph;
+    private static long[] vertices;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        File file = File.createTempFile("matrix", ".osm.xml");
+        file.deleteOnExit();
+        new OSMGenerator(900, 2, 0.01, 33).write(file.getPath());
+        graph = new GraphDB(file.getPath());
+        Random r = new Random(7);
+        vertices = new long[12];
+        for (int i = 0; i < vertices.length; i++) {
+            vertices[i] = graph.vertexID(r.nextInt(graph.numVertices()));
+        }
+    }
+
+    private static double routeLength(long from, long to) {
+        List<Long> route = Router.shortestPath(graph, from, to);
+        if (route.get(0) != from) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double length = 0;
+        for (int i = 1; i < route.size(); i++) {
+            length += graph.distance(route.get(i - 1), route.get(i));
+        }
+        return length;
+    }
+
+    @Test
+    public void testMatchesShortestPath() {
+        List<double[]> rows = new ArrayList<>();
+        for (int i = 0; i < vertices.length; i++) {
+            rows.add(null);
+        }
+        Router.distanceMatrix(graph, vertices, vertices, Profile.DISTANCE, (row, i) -> {
+            synchronized (rows) {
+                rows.set(i, row);
+            }
+        });
+        for (int i = 0; i < vertices.length; i++) {
+            assertEquals(0, rows.get(i)[i], 0);
+            for (int j = 0; j < vertices.length; j++) {
+                assertEquals(routeLength(vertices[i], vertices[j]), rows.get(i)[j], 1e-9);
+            }
+        }
+        assertEquals(rows.get(3)[5], Router.distances(graph, vertices[3],
+                new long[]{vertices[5]})[0], 0);
+    }
+
+    @Test
+    public void testMatrixOnPool() throws Exception {
+        /* The server deals the origins out over the CPU pool; each row must match its origin. */
+        List<CompletableFuture<double[]>> rows =
+                MapServer.routeMatrix(graph, vertices, vertices, Profile.DISTANCE);
+        assertEquals(vertices.length, rows.size());
+        for (int i = 0; i < vertices.length; i++) {
+            assertArrayEquals(Router.distances(graph, vertices[i], vertices),
+                    rows.get(i).get(), 0);
+        }
+    }
+
+    @Test
+    public void testStreamedJson() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        MapServer.writeRouteMatrix(graph,
+                new double[][]{{graph.lon(vertices[0]), graph.lat(vertices[0])}},
+                new double[][]{{graph.lon(vertices[1]), graph.lat(vertices[1])},
+                    {graph.lon(vertices[2]), graph.lat(vertices[2])}}, Profile.DISTANCE, os);
+        String json = os.toString("UTF-8");
+        assertTrue(json.startsWith("{\"origins\":[{\"id\":" + vertices[0] + ","));
+        assertTrue(json.contains("\"rows\":[{\"origin\":0,\"distances\":["));
+        assertTrue(json.endsWith("]}]}"));
+    }
+}
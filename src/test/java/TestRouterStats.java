@@ -0,0 +1,66 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the search statistics Router.shortestPath reports, on a small square of streets
+ * with a dead end: 1 - 2 - 3 along the top, 1 - 4 - 3 along the bottom and 2 - 5 off it.
+ */
+public class TestRouterStats {
+    private static GraphDB graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        graph = new GraphDB(TestGraphStorage.writeOsm(
+                "<node id=\"1\" lat=\"37.870\" lon=\"-122.260\"/>\n"
+                + "<node id=\"2\" lat=\"37.871\" lon=\"-122.259\"/>\n"
+                + "<node id=\"3\" lat=\"37.870\" lon=\"-122.258\"/>\n"
+                + "<node id=\"4\" lat=\"37.868\" lon=\"-122.259\"/>\n"
+                + "<node id=\"5\" lat=\"37.872\" lon=\"-122.259\"/>\n"
+                + "<way id=\"10\">\n"
+                + "  <nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/><nd ref=\"4\"/><nd ref=\"1\"/>\n"
+                + "  <tag k=\"highway\" v=\"residential\"/>\n"
+                + "</way>\n"
+                + "<way id=\"11\">\n"
+                + "  <nd ref=\"2\"/><nd ref=\"5\"/>\n"
+                + "  <tag k=\"highway\" v=\"residential\"/>\n"
+                + "</way>\n"));
+    }
+
+    @Test
+    public void testStatsDoNotChangeRoute() {
+        Router.SearchStats stats = new Router.SearchStats();
+        assertEquals(Router.shortestPath(graph, -122.260, 37.870, -122.258, 37.870),
+                Router.shortestPath(graph, -122.260, 37.870, -122.258, 37.870,
+                        Profile.DISTANCE, stats));
+        assertEquals(Arrays.asList(1L, 2L, 3L),
+                Router.shortestPath(graph, 1, 3, Profile.DISTANCE, null));
+    }
+
+    @Test
+    public void testCounters() {
+        Router.SearchStats stats = new Router.SearchStats();
+        Router.shortestPath(graph, 1, 3, Profile.DISTANCE, stats);
+        /* Settles 1 (pushing 2 and 4) then 2 (pushing 3 and 5); popping 3 ends the search. */
+        assertEquals(2, stats.settled);
+        assertEquals(5, stats.relaxed);
+        assertEquals(5, stats.pushes);
+        assertEquals(0, stats.decreases);
+        assertEquals(2, stats.finalHeapSize);
+        assertEquals(0, stats.closestNanos);
+        assertTrue(stats.searchNanos > 0);
+    }
+
+    @Test
+    public void testClosestTimed() {
+        Router.SearchStats stats = new Router.SearchStats();
+        Router.shortestPath(graph, -122.260, 37.870, -122.258, 37.870, Profile.DISTANCE,
+                stats);
+        assertTrue(stats.closestNanos > 0);
+        assertEquals(2, stats.settled);
+    }
+}
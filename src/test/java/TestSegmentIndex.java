@@ -0,0 +1,84 @@
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks SegmentIndex nearest-segment queries against a linear scan over random
+ * road-like segments around Berkeley.
+ */
+public class TestSegmentIndex {
+    private static final int NUM_SEGMENTS = 3000;
+    private static final int NUM_QUERIES = 300;
+
+    @Test
+    public void testNearestMatchesLinearScan() {
+        Random r = new Random(61);
+        double[] lon1 = new double[NUM_SEGMENTS], lat1 = new double[NUM_SEGMENTS];
+        double[] lon2 = new double[NUM_SEGMENTS], lat2 = new double[NUM_SEGMENTS];
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            lon1[i] = -122.30 + r.nextDouble() * 0.1;
+            lat1[i] = 37.82 + r.nextDouble() * 0.08;
+            /* Mostly short blocks, with the occasional long highway segment. */
+            double len = r.nextInt(20) == 0 ? 0.02 : 0.001;
+            lon2[i] = lon1[i] + (r.nextDouble() - 0.5) * len;
+            lat2[i] = lat1[i] + (r.nextDouble() - 0.5) * len;
+        }
+        SegmentIndex index = new SegmentIndex(lon1, lat1, lon2, lat2);
+        for (int q = 0; q < NUM_QUERIES; q++) {
+            double lon = -122.31 + r.nextDouble() * 0.12;
+            double lat = 37.81 + r.nextDouble() * 0.10;
+            SegmentIndex.Hit hit = index.nearest(lon, lat);
+            double expected = Double.MAX_VALUE;
+            for (int i = 0; i < NUM_SEGMENTS; i++) {
+                SegmentIndex single = new SegmentIndex(new double[]{lon1[i]},
+                        new double[]{lat1[i]}, new double[]{lon2[i]}, new double[]{lat2[i]});
+                expected = Math.min(expected, single.nearest(lon, lat).distance);
+            }
+            /* The reference scan projects each segment around its own latitude. */
+            assertEquals(expected, hit.distance, 1e-6);
+        }
+    }
+
+    @Test
+    public void testClosestPointOnSegment() {
+        SegmentIndex index = new SegmentIndex(new double[]{-122.26}, new double[]{37.87},
+                new double[]{-122.25}, new double[]{37.87});
+        SegmentIndex.Hit hit = index.nearest(-122.2575, 37.871);
+        assertEquals(0, hit.segment);
+        assertEquals(0.25, hit.t, 1e-9);
+        assertEquals(-122.2575, hit.lon, 1e-9);
+        assertEquals(37.87, hit.lat, 1e-9);
+        assertNull(new SegmentIndex(new double[0], new double[0], new double[0],
+                new double[0]).nearest(-122.25, 37.87));
+    }
+
+    @Test(timeout = 5000)
+    public void testCollinearSegments() {
+        /* A single straight road: no area, so the grid is sized by its length. */
+        SegmentIndex road = new SegmentIndex(new double[]{-122.30}, new double[]{37.87},
+                new double[]{-122.10}, new double[]{37.87});
+        SegmentIndex.Hit hit = road.nearest(-122.2, 37.872);
+        assertEquals(GraphDB.distance(-122.2, 37.872, -122.2, 37.87), hit.distance, 1e-6);
+
+        /* A north-south chain of short segments, queried from well off to the sides. */
+        int n = 500;
+        double[] lon = new double[n], lat1 = new double[n], lat2 = new double[n];
+        for (int i = 0; i < n; i++) {
+            lon[i] = -122.26;
+            lat1[i] = 37.80 + i * 0.0002;
+            lat2[i] = lat1[i] + 0.0002;
+        }
+        SegmentIndex chain = new SegmentIndex(lon, lat1, lon, lat2);
+        Random r = new Random(7);
+        for (int q = 0; q < 100; q++) {
+            double qLon = -122.36 + r.nextDouble() * 0.2;
+            double qLat = 37.75 + r.nextDouble() * 0.2;
+            double nearestLat = Math.max(37.80, Math.min(37.90, qLat));
+            assertEquals(GraphDB.distance(qLon, qLat, -122.26, nearestLat),
+                    chain.nearest(qLon, qLat).distance, 1e-3);
+        }
+    }
+}
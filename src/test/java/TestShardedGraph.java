@@ -0,0 +1,214 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a graph split into cells answers closest, adjacent and routing queries as
+ * the whole graph does, and that splitting the map's file gives the same cells. The
+ * generated street grid, with one-way streets, turn restrictions and named places, is
+ * about 0.05 degrees wide and split into cells of 0.01 degrees.
+ */
+public class TestShardedGraph {
+    private static GraphDB graph;
+    private static String osmPath;
+    private static String dir;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        File file = File.createTempFile("sharded", ".osm.xml");
+        file.deleteOnExit();
+        osmPath = file.getPath();
+        new OSMGenerator(2500, 2, 0.05, 37).write(osmPath);
+        graph = new GraphDB(osmPath);
+        File cells = Files.createTempDirectory("cells").toFile();
+        cells.deleteOnExit();
+        dir = cells.getPath();
+        ShardedGraph.write(graph, dir, 0.01);
+        for (File cell : cells.listFiles()) {
+            cell.deleteOnExit();
+        }
+    }
+
+    /** Returns the cost of a route under a profile, on the whole graph. */
+    private static double cost(List<Long> route, Profile profile) {
+        double[] weights = graph.edgeWeights(profile);
+        double res = 0;
+        for (int i = 1; i < route.size(); i++) {
+            int e = graph.edgeBetween(graph.vertexIndex(route.get(i - 1)),
+                    graph.vertexIndex(route.get(i)));
+            assertTrue((graph.edgeAccess(e) & profile.mode.bit()) != 0);
+            res += weights[e];
+        }
+        return res;
+    }
+
+    @Test
+    public void testSameRoutes() throws Exception {
+        ShardedGraph sharded = new ShardedGraph(dir, 4);
+        Random r = new Random(37);
+        for (Profile profile : new Profile[]{Profile.DISTANCE, Profile.TIME, Profile.FOOT}) {
+            for (int k = 0; k < 30; k++) {
+                long from = graph.vertexID(r.nextInt(graph.numVertices()));
+                long to = graph.vertexID(r.nextInt(graph.numVertices()));
+                List<Long> expected = Router.shortestPath(graph, from, to, profile, null);
+                List<Long> route = Router.shortestPath(sharded, from, to, profile, null);
+                assertEquals(to, (long) route.get(route.size() - 1));
+                if (expected.size() == 1) {
+                    assertEquals(expected, route);
+                    continue;
+                }
+                assertEquals(from, (long) route.get(0));
+                assertEquals(cost(expected, profile), cost(route, profile), 1e-9);
+            }
+        }
+        assertTrue(sharded.numLoaded() <= 4);
+    }
+
+    @Test
+    public void testSameDirections() throws Exception {
+        ShardedGraph sharded = new ShardedGraph(dir, 4);
+        Random r = new Random(43);
+        for (int k = 0; k < 30; k++) {
+            long from = graph.vertexID(r.nextInt(graph.numVertices()));
+            long to = graph.vertexID(r.nextInt(graph.numVertices()));
+            List<Long> route = Router.shortestPath(sharded, from, to, Profile.TIME, null);
+            Router.Route found = new Router.Route(null, null, route, true);
+            assertEquals(describe(Router.routeDirections(graph, route)),
+                    describe(Router.routeDirections(sharded, found)));
+            assertTrue(Arrays.equals(found.polyline(graph), found.polyline(sharded)));
+        }
+    }
+
+    private static List<String> describe(List<Router.NavigationDirection> directions) {
+        List<String> res = new ArrayList<>();
+        for (Router.NavigationDirection d : directions) {
+            res.add(d + " " + d.start + " " + d.end);
+        }
+        return res;
+    }
+
+    @Test
+    public void testClosestAndAdjacent() throws Exception {
+        ShardedGraph sharded = new ShardedGraph(dir, 2);
+        Random r = new Random(61);
+        for (int k = 0; k < 100; k++) {
+            /* Some points are outside the map. */
+            double lon = graph.vertexLon(0) + 0.07 * r.nextDouble() - 0.01;
+            double lat = graph.vertexLat(0) + 0.07 * r.nextDouble() - 0.035;
+            for (Profile profile : new Profile[]{Profile.DISTANCE, Profile.FOOT}) {
+                long expected = graph.closest(lon, lat, profile);
+                long closest = sharded.closest(lon, lat, profile);
+                assertEquals(GraphDB.distance(lon, lat, graph.lon(expected),
+                        graph.lat(expected)), GraphDB.distance(lon, lat, sharded.lon(closest),
+                        sharded.lat(closest)), 1e-12);
+            }
+            long v = graph.vertexID(r.nextInt(graph.numVertices()));
+            assertEquals(sorted(graph.adjacent(v)), sorted(sharded.adjacent(v)));
+        }
+        assertEquals(graph.numVertices(), sharded.numVertices());
+    }
+
+    @Test
+    public void testLoadsOnlyNeededCells() throws Exception {
+        ShardedGraph sharded = new ShardedGraph(dir, 3);
+        long v = graph.vertexID(graph.numVertices() / 2);
+        sharded.adjacent(v);
+        assertEquals(1, sharded.numLoaded());
+        long w = sharded.adjacent(v).iterator().next();
+        Router.shortestPath(sharded, v, w, Profile.DISTANCE, null);
+        assertTrue(sharded.numLoaded() <= 2);
+
+        Random r = new Random(7);
+        for (int k = 0; k < 20; k++) {
+            Router.shortestPath(sharded, graph.vertexID(r.nextInt(graph.numVertices())),
+                    graph.vertexID(r.nextInt(graph.numVertices())), Profile.DISTANCE, null);
+            assertTrue(sharded.numLoaded() <= 3);
+        }
+        try {
+            sharded.adjacent(-1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            /* Expected: there is no such vertex. */
+        }
+    }
+
+    @Test
+    public void testWriteFromFile() throws Exception {
+        /* Two rows at a time, so that some roads cross from one band into another. */
+        File cells = Files.createTempDirectory("cells").toFile();
+        cells.deleteOnExit();
+        ShardedGraph.write(osmPath, cells.getPath(), 0.01, 2);
+        File[] files = cells.listFiles();
+        for (File cell : files) {
+            cell.deleteOnExit();
+        }
+        assertEquals(new File(dir).listFiles().length, files.length);
+        for (File cell : files) {
+            assertTrue(cell.getName(), Arrays.equals(Files.readAllBytes(cell.toPath()),
+                    Files.readAllBytes(new File(dir, cell.getName()).toPath())));
+        }
+    }
+
+    /** Splits a hand-written map into cells of 0.004 degrees, in a new directory. */
+    private static File writeCells(String elements) throws Exception {
+        File cells = Files.createTempDirectory("cells").toFile();
+        cells.deleteOnExit();
+        ShardedGraph.write(new GraphDB(TestGraphStorage.writeOsm(elements)), cells.getPath(),
+                0.004);
+        for (File cell : cells.listFiles()) {
+            cell.deleteOnExit();
+        }
+        return cells;
+    }
+
+    @Test
+    public void testMismatchedCells() throws Exception {
+        /* Nodes 1 and 4 are in cell 0, and 2 and 3 in cell 1. */
+        String nodes = "<node id=\"1\" lat=\"37.870\" lon=\"-122.270\"/>\n"
+                + "<node id=\"2\" lat=\"37.870\" lon=\"-122.265\"/>\n"
+                + "<node id=\"3\" lat=\"37.872\" lon=\"-122.265\"/>\n"
+                + "<node id=\"4\" lat=\"37.872\" lon=\"-122.270\"/>\n";
+        String ways = "<way id=\"11\"><nd ref=\"2\"/><nd ref=\"3\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+                + "<way id=\"12\"><nd ref=\"1\"/><nd ref=\"4\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n";
+        File first = writeCells(nodes + ways + "<way id=\"10\"><nd ref=\"1\"/><nd ref=\"2\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n");
+        File second = writeCells(nodes + ways + "<way id=\"13\"><nd ref=\"3\"/><nd ref=\"1\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n");
+        assertEquals(Arrays.asList(1L, 2L), Router.shortestPath(
+                new ShardedGraph(first.getPath(), 2), 1, 2, Profile.DISTANCE, null));
+
+        /* Cell 0 of the first map leads along 1 - 2 into cell 1 of the second, which has
+         * no such road. */
+        String cell = "cell-1" + GraphDB.SNAPSHOT_SUFFIX;
+        Files.copy(new File(second, cell).toPath(), new File(first, cell).toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        try {
+            Router.shortestPath(new ShardedGraph(first.getPath(), 2), 1, 2, Profile.DISTANCE,
+                    null);
+            fail();
+        } catch (IllegalStateException e) {
+            /* Expected: the cells were not written together. */
+        }
+    }
+
+    private static List<Long> sorted(Iterable<Long> ids) {
+        List<Long> res = new ArrayList<>();
+        ids.forEach(res::add);
+        Collections.sort(res);
+        return res;
+    }
+}
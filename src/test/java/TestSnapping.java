@@ -0,0 +1,137 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks routing between points snapped onto road segments. The hand-written map has a
+ * long block 1 - 2 with a side street 2 - 3 going north from its east end, and a separate
+ * one-way street 5 - 6 running east.
+ */
+public class TestSnapping {
+    private static final double LAT = 37.870;
+    private static GraphDB graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        graph = new GraphDB(TestGraphStorage.writeOsm(
+                "<node id=\"1\" lat=\"37.870\" lon=\"-122.270\"/>\n"
+                + "<node id=\"2\" lat=\"37.870\" lon=\"-122.260\"/>\n"
+                + "<node id=\"3\" lat=\"37.871\" lon=\"-122.260\"/>\n"
+                + "<node id=\"5\" lat=\"37.860\" lon=\"-122.270\"/>\n"
+                + "<node id=\"6\" lat=\"37.860\" lon=\"-122.260\"/>\n"
+                + "<way id=\"10\">\n"
+                + "  <nd ref=\"1\"/><nd ref=\"2\"/>\n"
+                + "  <tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Long Street\"/>\n"
+                + "</way>\n"
+                + "<way id=\"11\">\n"
+                + "  <nd ref=\"2\"/><nd ref=\"3\"/>\n"
+                + "  <tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Side Street\"/>\n"
+                + "</way>\n"
+                + "<way id=\"12\">\n"
+                + "  <nd ref=\"5\"/><nd ref=\"6\"/>\n"
+                + "  <tag k=\"highway\" v=\"residential\"/><tag k=\"oneway\" v=\"yes\"/>\n"
+                + "</way>\n"));
+    }
+
+    private static GraphDB.Snap snap(double lon, double lat) {
+        return graph.snap(lon, lat, Profile.DISTANCE);
+    }
+
+    /** Returns the total distance of the route's directions, in miles. */
+    private static double directionsLength(Router.Route route) {
+        double res = 0;
+        for (Router.NavigationDirection d : Router.routeDirections(graph, route)) {
+            res += d.distance;
+        }
+        return res;
+    }
+
+    @Test
+    public void testSnapsOntoSegment() {
+        GraphDB.Snap from = snap(-122.266, LAT + 0.0001);
+        assertEquals(-122.266, from.lon, 1e-9);
+        assertEquals(LAT, from.lat, 1e-9);
+        assertEquals(from, snap(-122.266, LAT - 0.0001));
+        assertTrue(from.t > 0 && from.t < 1);
+    }
+
+    @Test
+    public void testLongBlock() {
+        /* The start is closest to vertex 1, but the route should not go back there. */
+        assertEquals(1L, graph.closest(-122.266, LAT + 0.0001));
+        GraphDB.Snap from = snap(-122.266, LAT + 0.0001);
+        GraphDB.Snap to = snap(-122.2601, 37.8709);
+        Router.Route route = Router.shortestPath(graph, from, to, Profile.DISTANCE, null,
+                null);
+        assertTrue(route.found);
+        assertEquals(Arrays.asList(2L), route.vertices);
+        double[] line = route.polyline(graph);
+        assertEquals(6, line.length);
+        assertEquals(-122.266, line[0], 1e-9);
+        assertEquals(to.lat, line[5], 1e-9);
+
+        List<Router.NavigationDirection> directions = Router.routeDirections(graph, route);
+        assertEquals(2, directions.size());
+        assertEquals("Long Street", directions.get(0).way);
+        assertEquals(0.6 * graph.distance(1, 2), directions.get(0).distance, 1e-9);
+        assertEquals(Router.NavigationDirection.LEFT, directions.get(1).direction);
+        assertEquals(0, directions.get(0).start);
+        assertEquals(1, directions.get(1).start);
+        assertEquals(2, directions.get(1).end);
+
+        assertEquals(route.vertices, Router.shortestPath(graph, from, to, Profile.DISTANCE,
+                new Router.TurnCosts(15, 5, 30), null).vertices);
+    }
+
+    @Test
+    public void testSameSegment() {
+        GraphDB.Snap from = snap(-122.268, LAT);
+        GraphDB.Snap to = snap(-122.262, LAT);
+        Router.Route route = Router.shortestPath(graph, from, to, Profile.DISTANCE, null,
+                null);
+        assertTrue(route.found);
+        assertEquals(Collections.emptyList(), route.vertices);
+        assertEquals(4, route.polyline(graph).length);
+        assertEquals(0.6 * graph.distance(1, 2), directionsLength(route), 1e-9);
+
+        Router.Route back = Router.shortestPath(graph, to, from, Profile.DISTANCE, null, null);
+        assertTrue(back.found);
+        assertEquals(directionsLength(route), directionsLength(back), 1e-9);
+    }
+
+    @Test
+    public void testOneWay() throws Exception {
+        GraphDB.Snap west = snap(-122.268, 37.860);
+        GraphDB.Snap east = snap(-122.262, 37.860);
+        Router.Route ahead = Router.shortestPath(graph, west, east, Profile.DISTANCE, null,
+                null);
+        assertTrue(ahead.found);
+        assertEquals(0.6 * graph.distance(5, 6), directionsLength(ahead), 1e-9);
+
+        Router.Route against = Router.shortestPath(graph, east, west, Profile.DISTANCE, null,
+                null);
+        assertFalse(against.found);
+        assertTrue(Router.routeDirections(graph, against).isEmpty());
+        /* No straight line from the start to the destination is drawn. */
+        assertEquals(0, against.polyline(graph).length);
+        assertFalse(Router.shortestPath(graph, east, west, Profile.DISTANCE,
+                new Router.TurnCosts(15, 5, 30), null).found);
+
+        /* Walkers may go either way along it. */
+        assertTrue(Router.shortestPath(graph, graph.snap(-122.262, 37.860, Profile.FOOT),
+                graph.snap(-122.268, 37.860, Profile.FOOT), Profile.FOOT, null,
+                null).found);
+
+        GraphDB empty = new GraphDB(TestGraphStorage.writeOsm(
+                "<node id=\"1\" lat=\"37.870\" lon=\"-122.270\"/>\n"));
+        assertNull(empty.snap(-122.26, LAT, Profile.DISTANCE));
+    }
+}
@@ -0,0 +1,142 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that routes avoid slowed down and closed roads. The hand-written map has Main
+ * Street 1 - 2 - 3 running east, and a slightly longer detour 1 - 4 - 3 south of it.
+ */
+public class TestTraffic {
+    private static final String OSM =
+            "<node id=\"1\" lat=\"37.870\" lon=\"-122.270\"/>\n"
+            + "<node id=\"2\" lat=\"37.870\" lon=\"-122.265\"/>\n"
+            + "<node id=\"3\" lat=\"37.870\" lon=\"-122.260\"/>\n"
+            + "<node id=\"4\" lat=\"37.868\" lon=\"-122.265\"/>\n"
+            + "<way id=\"10\">\n"
+            + "  <nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>\n"
+            + "  <tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Main Street\"/>\n"
+            + "</way>\n"
+            + "<way id=\"11\">\n"
+            + "  <nd ref=\"1\"/><nd ref=\"4\"/><nd ref=\"3\"/>\n"
+            + "  <tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Detour\"/>\n"
+            + "</way>\n";
+    private static final List<Long> MAIN = Arrays.asList(1L, 2L, 3L);
+    private static final List<Long> DETOUR = Arrays.asList(1L, 4L, 3L);
+    private static String path;
+    private static GraphDB graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        path = TestGraphStorage.writeOsm(OSM);
+        graph = new GraphDB(path);
+    }
+
+    private static Traffic traffic(Traffic.Rule... rules) {
+        return Traffic.NONE.with(Arrays.asList(rules));
+    }
+
+    private static Traffic.Rule closed(long from, long to) {
+        return new Traffic.Rule(null, from, to, 1, true);
+    }
+
+    private static List<Long> route(GraphDB g, long from, long to, Profile profile) {
+        return Router.shortestPath(g, from, to, profile, null);
+    }
+
+    @Test
+    public void testSlowdown() {
+        GraphDB slow = graph.withTraffic(traffic(Traffic.Rule.way(10, 1.5)));
+        assertEquals(DETOUR, route(slow, 1, 3, Profile.TIME));
+        /* Slowdowns do not make roads longer. */
+        assertEquals(MAIN, route(slow, 1, 3, Profile.DISTANCE));
+        /* The graph without traffic is not changed. */
+        assertEquals(MAIN, route(graph, 1, 3, Profile.TIME));
+        assertEquals(1.5 * graph.edgeWeights(Profile.TIME)[0],
+                slow.edgeWeights(Profile.TIME)[0], 1e-9);
+
+        GraphDB slightly = graph.withTraffic(traffic(Traffic.Rule.segment(2, 3, 1.05)));
+        assertEquals(MAIN, route(slightly, 1, 3, Profile.TIME));
+    }
+
+    @Test
+    public void testClosure() {
+        GraphDB closed = graph.withTraffic(traffic(closed(2, 3)));
+        assertEquals(DETOUR, route(closed, 1, 3, Profile.DISTANCE));
+        assertEquals(DETOUR, route(closed, 1, 3, Profile.TIME));
+        /* Only the direction from 2 to 3 is closed, and only to cars. */
+        assertEquals(Arrays.asList(3L, 2L, 1L), route(closed, 3, 1, Profile.DISTANCE));
+        assertEquals(MAIN, route(closed, 1, 3, Profile.FOOT));
+
+        GraphDB allClosed = graph.withTraffic(traffic(closed(2, 3), Traffic.Rule.way(11,
+                Double.POSITIVE_INFINITY)));
+        assertEquals(Collections.singletonList(3L), route(allClosed, 1, 3, Profile.DISTANCE));
+    }
+
+    @Test
+    public void testSnapAvoidsClosures() {
+        /* A point just north of Main Street between 2 and 3, which snaps onto it. */
+        double lon = -122.2615, lat = 37.8702;
+        assertEquals(3, graph.vertexID(graph.edgeTarget(graph.snap(lon, lat,
+                Profile.DISTANCE).edge)));
+        /* Closed in one direction, the segment can still be driven the other way. */
+        GraphDB oneWay = graph.withTraffic(traffic(closed(2, 3)));
+        assertEquals(3, oneWay.vertexID(oneWay.edgeTarget(oneWay.snap(lon, lat,
+                Profile.DISTANCE).edge)));
+        /* Closed in both, cars snap onto the detour from 3 to 4 instead. */
+        GraphDB closed = graph.withTraffic(traffic(closed(2, 3), closed(3, 2)));
+        GraphDB.Snap snap = closed.snap(lon, lat, Profile.TIME);
+        assertEquals(4, closed.vertexID(closed.edgeTarget(snap.edge)));
+        GraphDB.Snap start = closed.snap(-122.270, 37.870, Profile.TIME);
+        assertTrue(Router.shortestPath(closed, start, snap, Profile.TIME, null, null).found);
+        assertEquals(3, closed.vertexID(closed.edgeTarget(closed.snap(lon, lat,
+                Profile.FOOT).edge)));
+        /* The graph without traffic keeps its indexes. */
+        assertEquals(3, graph.vertexID(graph.edgeTarget(graph.snap(lon, lat,
+                Profile.TIME).edge)));
+    }
+
+    @Test
+    public void testRules() {
+        Traffic t = traffic(Traffic.Rule.way(10, 2), closed(2, 3));
+        assertEquals(2, t.size());
+        assertEquals(2, Traffic.NONE.with(t.rules()).size());
+        assertTrue(t.with(Arrays.asList(Traffic.Rule.way(10, 1), Traffic.Rule.segment(2, 3,
+                1))).isEmpty());
+        assertSame(graph, graph.withTraffic(t).withTraffic(Traffic.NONE));
+        try {
+            traffic(Traffic.Rule.way(10, 0.5));
+            fail();
+        } catch (IllegalArgumentException e) {
+            /* Expected: speeding roads up would break the A* heuristics. */
+        }
+        try {
+            traffic(new Traffic.Rule(10L, 1L, null, 2, false));
+            fail();
+        } catch (IllegalArgumentException e) {
+            /* Expected: a rule needs a way or a segment. */
+        }
+    }
+
+    @Test
+    public void testServerKeepsTraffic() throws Exception {
+        try {
+            MapServer.reloadGraph(path);
+            MapServer.updateTraffic(Arrays.asList(closed(2, 3)), false);
+            assertEquals(DETOUR, route(MapServer.currentGraph(), 1, 3, Profile.DISTANCE));
+            /* Traffic carries over to reloaded graphs. */
+            GraphDB reloaded = MapServer.reloadGraph(path);
+            assertEquals(DETOUR, route(reloaded, 1, 3, Profile.DISTANCE));
+        } finally {
+            MapServer.updateTraffic(Collections.emptyList(), true);
+        }
+        assertEquals(MAIN, route(MapServer.currentGraph(), 1, 3, Profile.DISTANCE));
+    }
+}
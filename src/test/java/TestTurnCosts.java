@@ -0,0 +1,145 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks routing with turn costs. The hand-written map is a ladder of two streets,
+ * 1 - 2 - 3 on top and 4 - 5 - 6 below, joined by 1 - 4, 2 - 5 and 3 - 6. Vertex 5 is
+ * nudged towards 2, so the shortest route from 1 to 6 zig-zags through 2 and 5.
+ */
+public class TestTurnCosts {
+    private static final Router.TurnCosts COSTS = new Router.TurnCosts(15, 5, 30);
+    private static GraphDB graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        graph = new GraphDB(TestGraphStorage.writeOsm(
+                "<node id=\"1\" lat=\"37.8700\" lon=\"-122.260\"/>\n"
+                + "<node id=\"2\" lat=\"37.8700\" lon=\"-122.259\"/>\n"
+                + "<node id=\"3\" lat=\"37.8700\" lon=\"-122.258\"/>\n"
+                + "<node id=\"4\" lat=\"37.8690\" lon=\"-122.260\"/>\n"
+                + "<node id=\"5\" lat=\"37.8692\" lon=\"-122.259\"/>\n"
+                + "<node id=\"6\" lat=\"37.8690\" lon=\"-122.258\"/>\n"
+                + "<way id=\"10\">\n"
+                + "  <nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>\n"
+                + "  <tag k=\"highway\" v=\"residential\"/>\n"
+                + "</way>\n"
+                + "<way id=\"11\">\n"
+                + "  <nd ref=\"4\"/><nd ref=\"5\"/><nd ref=\"6\"/>\n"
+                + "  <tag k=\"highway\" v=\"residential\"/>\n"
+                + "</way>\n"
+                + "<way id=\"12\">\n"
+                + "  <nd ref=\"1\"/><nd ref=\"4\"/>\n"
+                + "  <tag k=\"highway\" v=\"residential\"/>\n"
+                + "</way>\n"
+                + "<way id=\"13\">\n"
+                + "  <nd ref=\"2\"/><nd ref=\"5\"/>\n"
+                + "  <tag k=\"highway\" v=\"residential\"/>\n"
+                + "</way>\n"
+                + "<way id=\"14\">\n"
+                + "  <nd ref=\"3\"/><nd ref=\"6\"/>\n"
+                + "  <tag k=\"highway\" v=\"residential\"/>\n"
+                + "</way>\n"));
+    }
+
+    @Test
+    public void testFewerTurns() {
+        assertEquals(Arrays.asList(1L, 2L, 5L, 6L), Router.shortestPath(graph, 1, 6));
+        assertEquals(Arrays.asList(1L, 2L, 3L, 6L),
+                Router.shortestPath(graph, 1, 6, Profile.DISTANCE, COSTS, null));
+        assertEquals(Arrays.asList(1L, 2L, 3L, 6L),
+                Router.shortestPath(graph, 1, 6, Profile.TIME, COSTS, null));
+        assertEquals(Arrays.asList(1L, 2L, 5L, 6L), Router.shortestPath(graph, 1, 6,
+                Profile.DISTANCE, new Router.TurnCosts(0, 0, 0), null));
+        assertEquals(Arrays.asList(3L), Router.shortestPath(graph, 3, 3, Profile.DISTANCE,
+                COSTS, null));
+    }
+
+    @Test
+    public void testTurnDirections() {
+        int in = edge(graph, 1, 2);
+        byte[] turns = graph.turnDirections();
+        assertEquals(Router.NavigationDirection.STRAIGHT, turns[graph.turnIndex(in)
+                + edge(graph, 2, 3)]);
+        assertEquals(Router.NavigationDirection.RIGHT, turns[graph.turnIndex(in)
+                + edge(graph, 2, 5)]);
+        assertEquals(Router.NavigationDirection.LEFT, turns[graph.turnIndex(edge(graph, 2, 5))
+                + edge(graph, 5, 6)]);
+    }
+
+    @Test
+    public void testParse() {
+        Router.TurnCosts costs = Router.TurnCosts.parse("15,5,30");
+        assertEquals(15, costs.left, 0);
+        assertEquals(5, costs.right, 0);
+        assertEquals(30, costs.sharp, 0);
+        for (String bad : new String[]{"15,5", "a,b,c", "-1,0,0", "NaN,0,0"}) {
+            try {
+                Router.TurnCosts.parse(bad);
+                fail(bad);
+            } catch (IllegalArgumentException e) {
+                /* Expected. */
+            }
+        }
+    }
+
+    /**
+     * With turn costs, routes are never shorter than the shortest route and never have
+     * more turn penalties than it.
+     */
+    @Test
+    public void testTradeOffOnGrid() throws Exception {
+        File file = File.createTempFile("turns", ".osm.xml");
+        file.deleteOnExit();
+        new OSMGenerator(900, 2, 0, 38).write(file.getPath());
+        GraphDB grid = new GraphDB(file.getPath());
+        double[] penalty = COSTS.penalties(Profile.DISTANCE);
+        Random r = new Random(38);
+        for (int k = 0; k < 30; k++) {
+            long from = grid.vertexID(r.nextInt(grid.numVertices()));
+            long to = grid.vertexID(r.nextInt(grid.numVertices()));
+            List<Long> shortest = Router.shortestPath(grid, from, to);
+            List<Long> turning = Router.shortestPath(grid, from, to, Profile.DISTANCE, COSTS,
+                    null);
+            assertEquals(shortest.size() == 1, turning.size() == 1);
+            assertTrue(length(grid, turning) >= length(grid, shortest) - 1e-9);
+            assertTrue(penalties(grid, turning, penalty)
+                    <= penalties(grid, shortest, penalty) + 1e-9);
+        }
+    }
+
+    private static int edge(GraphDB g, long v, long w) {
+        int i = g.vertexIndex(v), j = g.vertexIndex(w);
+        for (int e = g.edgeStart(i); e < g.edgeEnd(i); e++) {
+            if (g.edgeTarget(e) == j) {
+                return e;
+            }
+        }
+        throw new IllegalArgumentException(v + " and " + w + " are not adjacent.");
+    }
+
+    private static double length(GraphDB g, List<Long> route) {
+        double res = 0;
+        for (int i = 1; i < route.size(); i++) {
+            res += g.distance(route.get(i - 1), route.get(i));
+        }
+        return res;
+    }
+
+    private static double penalties(GraphDB g, List<Long> route, double[] penalty) {
+        double res = 0;
+        for (int i = 2; i < route.size(); i++) {
+            res += penalty[Router.getDirection(g.bearing(route.get(i - 2), route.get(i - 1)),
+                    g.bearing(route.get(i - 1), route.get(i)))];
+        }
+        return res;
+    }
+}
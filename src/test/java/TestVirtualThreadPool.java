@@ -0,0 +1,95 @@
+import org.eclipse.jetty.server.Server;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that VirtualThreadPool stops with the server that uses it, and that its jobs run
+ * on virtual threads. The latter only runs under the virtual-threads profile, e.g.
+ * mvn -Pvirtual-threads test -Dtest=TestVirtualThreadPool on Java 21.
+ */
+public class TestVirtualThreadPool {
+
+    /** Starts a server on the pool, runs a job on it and checks that the server stops. */
+    private static void checkLifeCycle(VirtualThreadPool pool) throws Exception {
+        Server server = new Server(pool);
+        server.start();
+        assertTrue(pool.isStarted());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        pool.execute(() -> {
+            try {
+                release.await();
+                finished.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertEquals(1, pool.getThreads());
+
+        server.stop();
+        assertTrue(pool.isStopped());
+        try {
+            pool.execute(() -> { });
+            fail();
+        } catch (RejectedExecutionException e) {
+            /* Expected: a stopped pool takes no new jobs. */
+        }
+        /* The running job finishes, and only then does join() return. */
+        AtomicBoolean joined = new AtomicBoolean();
+        Thread joiner = new Thread(() -> {
+            try {
+                server.join();
+                joined.set(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        joiner.start();
+        joiner.join(100);
+        assertFalse(joined.get());
+        release.countDown();
+        joiner.join(5000);
+        assertTrue(joined.get());
+        assertTrue(finished.await(0, TimeUnit.SECONDS));
+        assertEquals(0, pool.getThreads());
+    }
+
+    @Test(timeout = 10000)
+    public void testStopsWithServer() throws Exception {
+        checkLifeCycle(new VirtualThreadPool(Executors.newCachedThreadPool()));
+    }
+
+    @Test(timeout = 10000)
+    public void testVirtualThreads() throws Exception {
+        Assume.assumeTrue("Runs under the virtual-threads profile.",
+                Boolean.getBoolean("bearmap.virtualThreads"));
+        VirtualThreadPool pool = new VirtualThreadPool("test-virtual");
+        Method isVirtual = Thread.class.getMethod("isVirtual");
+        AtomicBoolean virtual = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(1);
+        pool.execute(() -> {
+            try {
+                virtual.set((Boolean) isVirtual.invoke(Thread.currentThread()));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                done.countDown();
+            }
+        });
+        done.await();
+        assertTrue(virtual.get());
+        checkLifeCycle(new VirtualThreadPool("test-lifecycle"));
+    }
+}
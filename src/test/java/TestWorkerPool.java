@@ -0,0 +1,108 @@
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that WorkerPool returns results in order, passes on the tasks' exceptions and
+ * sheds work once its threads are busy and its queue is full, or once it runs its maximum
+ * number of tasks.
+ */
+public class TestWorkerPool {
+
+    @Test
+    public void testResults() throws Exception {
+        WorkerPool pool = new WorkerPool("test-results", 3, 8);
+        assertEquals(42, (int) pool.run(() -> 42));
+        List<Callable<Integer>> tasks = Arrays.asList(() -> 1, () -> 2, () -> 3, () -> 4);
+        assertEquals(Arrays.asList(1, 2, 3, 4), pool.runAll(tasks));
+        pool.shutdown();
+    }
+
+    @Test
+    public void testRethrows() throws Exception {
+        WorkerPool pool = new WorkerPool("test-rethrows", 1, 1);
+        try {
+            pool.run(() -> {
+                throw new IllegalStateException("broken");
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("broken", e.getMessage());
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void testShedsWhenFull() throws Exception {
+        WorkerPool pool = new WorkerPool("test-sheds", 1, 1);
+        CountDownLatch never = new CountDownLatch(1);
+        AtomicBoolean queuedRan = new AtomicBoolean();
+        /* The first task takes the only thread and the second the only queue slot. */
+        List<Callable<Integer>> tasks = Arrays.asList(() -> {
+            never.await();
+            return 1;
+        }, () -> {
+            queuedRan.set(true);
+            return 2;
+        }, () -> 3);
+        try {
+            pool.runAll(tasks);
+            fail();
+        } catch (RejectedExecutionException e) {
+            /* Expected: the third task does not fit. */
+        }
+        /* The accepted tasks were cancelled, so the pool is free again. */
+        assertEquals(4, (int) pool.run(() -> 4));
+        assertFalse(queuedRan.get());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testShedsAtMaxTasks() throws Exception {
+        WorkerPool pool = new WorkerPool("test-max-tasks", Executors.newCachedThreadPool(), 2);
+        CountDownLatch never = new CountDownLatch(1);
+        List<Callable<Integer>> tasks = Arrays.asList(() -> {
+            never.await();
+            return 1;
+        }, () -> {
+            never.await();
+            return 2;
+        }, () -> 3);
+        try {
+            pool.runAll(tasks);
+            fail();
+        } catch (RejectedExecutionException e) {
+            /* Expected: only two tasks may run at once. */
+        }
+        /* Cancelling the running tasks gave back their places. */
+        assertEquals(Arrays.asList(4, 5), pool.runAll(Arrays.asList(() -> 4, () -> 5)));
+        pool.shutdown();
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        WorkerPool pool;
+        try {
+            pool = WorkerPool.virtual("test-virtual", 4);
+        } catch (UnsupportedOperationException e) {
+            Assume.assumeNoException("Virtual threads need Java 21.", e);
+            return;
+        }
+        Method isVirtual = Thread.class.getMethod("isVirtual");
+        assertTrue((Boolean) pool.run(() -> isVirtual.invoke(Thread.currentThread())));
+        pool.shutdown();
+    }
+}